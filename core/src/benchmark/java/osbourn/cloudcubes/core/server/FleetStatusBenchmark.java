@@ -0,0 +1,161 @@
+package osbourn.cloudcubes.core.server;
+
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.ec2.model.GroupIdentifier;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+import java.util.*;
+
+/**
+ * <p>
+ * Measures how long refreshing the state and instance of every server in a large fleet takes, once server by server
+ * as before {@link ServerRepository} existed and once through a {@link ServerFleet}. The servers are kept by the
+ * in-memory stand-ins of the tests, half of them ONLINE with a running instance, and each variant reports the number
+ * of DynamoDB and EC2 requests it made and how long it took.
+ * </p>
+ *
+ * <p>
+ * The stand-ins answer immediately, so the time measured is only the work done in this process. Both variants make
+ * their requests one after another, so the time they would take against AWS is estimated by adding a round trip per
+ * request. Run with {@code gradlew :core:benchmarkFleetStatus} (optionally with {@code -PfleetSize=N} and
+ * {@code -ProundTripMillis=N}).
+ * </p>
+ */
+public class FleetStatusBenchmark {
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        int fleetSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int roundTripMillis = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+        FakeEc2Client ec2Client = new FakeEc2Client();
+        TestInfrastructureConstructor infrastructureConstructor =
+                new TestInfrastructureConstructor(dynamoDbClient, ec2Client, null);
+        List<UUID> ids = putServers(dynamoDbClient, ec2Client,
+                infrastructureConstructor.getInfrastructureConfiguration()
+                        .getValue(InfrastructureSetting.SERVERSECURITYGROUPID), fleetSize);
+
+        System.out.printf("%d servers, %d ms per request%n", fleetSize, roundTripMillis);
+        // The first run of each variant loads and compiles its classes, so only the later runs are reported
+        for (int run = 0; run <= RUNS; run++) {
+            Result serverByServer = measure(dynamoDbClient, ec2Client,
+                    () -> refreshServerByServer(infrastructureConstructor, ids));
+            Result fleet = measure(dynamoDbClient, ec2Client,
+                    () -> refreshFleet(new ServerRepository(infrastructureConstructor), ids));
+            if (run > 0) {
+                serverByServer.print("server by server", roundTripMillis);
+                fleet.print("fleet", roundTripMillis);
+            }
+        }
+    }
+
+    private static List<UUID> putServers(InMemoryDynamoDbClient dynamoDbClient,
+                                         FakeEc2Client ec2Client,
+                                         String securityGroupId,
+                                         int count) {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            boolean online = i % 2 == 0;
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("Id", AttributeValue.builder().s(id.toString()).build());
+            item.put("DisplayName", AttributeValue.builder().s("Server " + i).build());
+            item.put("ServerState", AttributeValue.builder().s(online ? "ONLINE" : "OFFLINE").build());
+            if (online) {
+                String instanceId = "i-" + i;
+                item.put("EC2InstanceId", AttributeValue.builder().s(instanceId).build());
+                ec2Client.instances.put(instanceId, Instance.builder()
+                        .instanceId(instanceId)
+                        .securityGroups(GroupIdentifier.builder().groupId(securityGroupId).build())
+                        .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                        .publicIpAddress("192.0.2." + (i % 250 + 1))
+                        .build());
+            }
+            dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the state and the address of every server through its own database entry and instance manager.
+     *
+     * @return The number of servers with an address
+     */
+    private static int refreshServerByServer(TestInfrastructureConstructor infrastructureConstructor, List<UUID> ids) {
+        int serversWithAddress = 0;
+        for (UUID id : ids) {
+            EC2SpotInstanceManager instanceManager = CloudCubesServer.createInstanceManager(
+                    DynamoDBEntry.fromId(id, infrastructureConstructor.getDynamoDBClient(),
+                            TestInfrastructureConstructor.SERVER_TABLE_NAME),
+                    infrastructureConstructor);
+            if (instanceManager.getServerState() == ProvisionalServerState.ONLINE
+                    && instanceManager.getPublicIpAddress() != null) {
+                serversWithAddress++;
+            }
+        }
+        return serversWithAddress;
+    }
+
+    /**
+     * Reads the state and the instance of every server through a ServerFleet.
+     *
+     * @return The number of servers with an address
+     */
+    private static int refreshFleet(ServerRepository repository, List<UUID> ids) {
+        ServerFleet fleet = repository.loadServers(ids);
+        fleet.getServerStates();
+        int serversWithAddress = 0;
+        for (Instance instance : fleet.describeInstances().values()) {
+            if (instance.publicIpAddress() != null) {
+                serversWithAddress++;
+            }
+        }
+        return serversWithAddress;
+    }
+
+    private static Result measure(InMemoryDynamoDbClient dynamoDbClient,
+                                  FakeEc2Client ec2Client,
+                                  RefreshVariant variant) {
+        dynamoDbClient.clearRequests();
+        int ec2RequestsBefore = ec2Client.getRequestCount("DescribeInstances");
+        long start = System.nanoTime();
+        int serversWithAddress = variant.refresh();
+        long elapsedMicros = (System.nanoTime() - start) / 1000;
+        return new Result(serversWithAddress, dynamoDbClient.getRequests().size(),
+                ec2Client.getRequestCount("DescribeInstances") - ec2RequestsBefore, elapsedMicros);
+    }
+
+    private interface RefreshVariant {
+        int refresh();
+    }
+
+    private static class Result {
+        private final int serversWithAddress;
+        private final int dynamoDbRequests;
+        private final int ec2Requests;
+        private final long elapsedMicros;
+
+        Result(int serversWithAddress, int dynamoDbRequests, int ec2Requests, long elapsedMicros) {
+            this.serversWithAddress = serversWithAddress;
+            this.dynamoDbRequests = dynamoDbRequests;
+            this.ec2Requests = ec2Requests;
+            this.elapsedMicros = elapsedMicros;
+        }
+
+        void print(String name, int roundTripMillis) {
+            int requests = dynamoDbRequests + ec2Requests;
+            System.out.printf("%s: %d with address, %d DynamoDB + %d EC2 requests, %.1f ms in process, "
+                            + "~%.1f s with round trips%n",
+                    name, serversWithAddress, dynamoDbRequests, ec2Requests, elapsedMicros / 1000.0,
+                    (elapsedMicros / 1000.0 + (double) requests * roundTripMillis) / 1000);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package osbourn.cloudcubes.core.constructs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Limits the rate of requests to each AWS API action (such as "Ec2:RequestSpotInstances") with a token bucket whose
+ * rate adapts to throttling: the rate is halved whenever the action is throttled, and grows by about one request per
+ * second every second while requests succeed (additive increase, multiplicative decrease). EC2 and DynamoDB throttle
+ * per account and region rather than per client, so every client of the process shares the same limiter, see
+ * {@link InfrastructureConstructor#getAdaptiveRateLimiter()}.
+ * </p>
+ *
+ * <p>
+ * An action is not limited until it is first throttled, at which point its rate starts from half the rate it was
+ * called at. Once the rate has grown back to {@link #MAXIMUM_RATE}, the action is no longer limited. A request never
+ * waits longer than {@link #MAXIMUM_WAIT} for a token, after which it is sent anyway, so that a limiter that adapted
+ * to a short burst of throttling cannot stall a caller for long. Blocking clients wait on the calling thread, see
+ * {@link AdaptiveThrottlingInterceptor}. Asynchronous clients are wrapped with {@link #limitAsyncClient}, which delays
+ * each request with a scheduled future instead, so that no thread of the SDK ever waits for a token. This class is
+ * thread safe.
+ * </p>
+ */
+public class AdaptiveRateLimiter {
+    /**
+     * The lowest rate an action is limited to, in requests per second
+     */
+    public static final double MINIMUM_RATE = 0.5;
+    /**
+     * The rate, in requests per second, at which an action stops being limited
+     */
+    public static final double MAXIMUM_RATE = 100;
+    /**
+     * The longest time a request waits for a token
+     */
+    public static final Duration MAXIMUM_WAIT = Duration.ofSeconds(10);
+    private static final double DECREASE_FACTOR = 0.5;
+    /**
+     * Requests that are throttled together were usually sent before the rate was decreased, so the rate is decreased
+     * at most once in this time
+     */
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, ActionLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Waits until a request to an action may be sent.
+     *
+     * @param action The action, in the format "service:operation"
+     */
+    public void acquire(@NotNull String action) {
+        long waitNanos = getLimiter(action).reserve();
+        if (waitNanos == 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #acquire(String)}, which does not block any thread while waiting.
+     *
+     * @param action The action, in the format "service:operation"
+     * @return A future that completes once the request may be sent
+     */
+    public @NotNull CompletableFuture<Void> acquireAsync(@NotNull String action) {
+        long waitNanos = getLimiter(action).reserve();
+        if (waitNanos == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * <p>
+     * Wraps an asynchronous AWS client, so that every request waits for this limiter with
+     * {@link #acquireAsync(String)} before it is passed to the client, and successful requests are recorded. The
+     * service of the actions is the name of the client interface without "AsyncClient" (such as "Ec2" for
+     * Ec2AsyncClient), which is the service name the SDK gives the blocking client of the same service, so that both
+     * clients share the same limits.
+     * </p>
+     *
+     * <p>
+     * Only the first attempt of a request waits. Attempts the SDK retries after throttling are still recorded through
+     * {@link #observeThrottling}, and are spaced out by the backoff of the retry policy.
+     * </p>
+     *
+     * @param clientInterface The interface of the client, such as Ec2AsyncClient.class
+     * @param client          The client
+     * @return A client that forwards every call to client
+     */
+    public <T> @NotNull T limitAsyncClient(@NotNull Class<T> clientInterface, @NotNull T client) {
+        String service = clientInterface.getSimpleName().replaceFirst("AsyncClient$", "");
+        Object limitedClient = Proxy.newProxyInstance(clientInterface.getClassLoader(), new Class<?>[]{clientInterface},
+                (proxy, method, args) -> {
+                    if (method.getReturnType() != CompletableFuture.class) {
+                        return invoke(client, method, args);
+                    }
+                    String action = service + ":" + Character.toUpperCase(method.getName().charAt(0))
+                            + method.getName().substring(1);
+                    return acquireAsync(action)
+                            .thenCompose(ignored -> (CompletableFuture<?>) invoke(client, method, args))
+                            .whenComplete((response, throwable) -> {
+                                if (throwable == null) {
+                                    recordSuccess(action);
+                                }
+                            });
+                });
+        return clientInterface.cast(limitedClient);
+    }
+
+    /**
+     * Calls a method of a client, rethrowing whatever the method throws.
+     */
+    private static Object invoke(Object client, Method method, Object[] args) {
+        try {
+            return method.invoke(client, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records that a request to an action succeeded, which raises the rate of the action if it is limited.
+     *
+     * @param action The action, in the format "service:operation"
+     */
+    public void recordSuccess(@NotNull String action) {
+        getLimiter(action).recordSuccess();
+    }
+
+    /**
+     * Records that a request to an action was throttled, which lowers the rate of the action.
+     *
+     * @param action The action, in the format "service:operation"
+     */
+    public void recordThrottle(@NotNull String action) {
+        getLimiter(action).recordThrottle();
+    }
+
+    /**
+     * Wraps the retry condition of a client, so that every throttled attempt is recorded, including the attempts the
+     * SDK retries by itself. The action is read from the execution attributes of the attempt.
+     *
+     * @param retryCondition The retry condition of the client
+     * @return The retry condition, which decides the same way as retryCondition
+     */
+    public @NotNull RetryCondition observeThrottling(@NotNull RetryCondition retryCondition) {
+        return retryPolicyContext -> {
+            if (retryPolicyContext.exception() != null
+                    && RetryUtils.isThrottlingException(retryPolicyContext.exception())) {
+                recordThrottle(AdaptiveThrottlingInterceptor.getAction(retryPolicyContext.executionAttributes()));
+            }
+            return retryCondition.shouldRetry(retryPolicyContext);
+        };
+    }
+
+    /**
+     * Gets the requests, throttles and waiting time of every action that has been called so far.
+     *
+     * @return The metrics of each action, in the format ("service:operation", metrics), sorted by action
+     */
+    public @NotNull Map<String, ActionMetrics> getMetrics() {
+        Map<String, ActionMetrics> metrics = new TreeMap<>();
+        limiters.forEach((action, limiter) -> metrics.put(action, limiter.getMetrics(action)));
+        return metrics;
+    }
+
+    private ActionLimiter getLimiter(String action) {
+        return limiters.computeIfAbsent(action, ignored -> new ActionLimiter());
+    }
+
+    /**
+     * The token bucket of a single action
+     */
+    private static final class ActionLimiter {
+        private boolean limited = false;
+        private double rate = MAXIMUM_RATE;
+        private double tokens = 0;
+        private long lastRefillNanos = System.nanoTime();
+        private long lastDecreaseNanos = 0;
+        // The number of requests in the current and in the previous window, used to find the rate the action is called at
+        private long windowStartNanos = System.nanoTime();
+        private int windowRequests = 0;
+        private int previousWindowRequests = 0;
+
+        private long requests = 0;
+        private long throttles = 0;
+        private long waitNanos = 0;
+
+        /**
+         * Takes a token for a request. If the bucket is empty, the token is taken in advance, so that requests waiting
+         * at the same time are sent one after another at the current rate.
+         *
+         * @return The time the request must wait before it is sent, in nanoseconds
+         */
+        private synchronized long reserve() {
+            requests++;
+            countRequest();
+            if (!limited) {
+                return 0;
+            }
+            refill();
+            // Requests that would wait longer than the maximum are sent anyway, without taking more tokens in advance
+            double maximumDebt = rate * MAXIMUM_WAIT.toNanos() / 1e9;
+            tokens = Math.max(-maximumDebt, tokens - 1);
+            if (tokens >= 0) {
+                return 0;
+            }
+            long reservedWaitNanos = Math.min(MAXIMUM_WAIT.toNanos(), (long) (-tokens / rate * 1e9));
+            waitNanos += reservedWaitNanos;
+            return reservedWaitNanos;
+        }
+
+        private synchronized void recordSuccess() {
+            if (!limited) {
+                return;
+            }
+            // At a rate of r requests per second, r successes raise the rate by one request per second
+            rate += 1 / rate;
+            if (rate >= MAXIMUM_RATE) {
+                limited = false;
+                rate = MAXIMUM_RATE;
+            }
+        }
+
+        private synchronized void recordThrottle() {
+            throttles++;
+            long now = System.nanoTime();
+            if (limited && now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS) {
+                return;
+            }
+            if (!limited) {
+                countRequest();
+                rate = Math.min(MAXIMUM_RATE, Math.max(windowRequests, previousWindowRequests));
+                tokens = 0;
+                lastRefillNanos = now;
+                limited = true;
+            }
+            rate = Math.max(MINIMUM_RATE, rate * DECREASE_FACTOR);
+            tokens = Math.min(tokens, rate);
+            lastDecreaseNanos = now;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            // The bucket holds up to a second of requests, so that short bursts are not delayed
+            tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefillNanos) / 1e9 * rate);
+            lastRefillNanos = now;
+        }
+
+        private void countRequest() {
+            long now = System.nanoTime();
+            long elapsedWindows = (now - windowStartNanos) / RATE_WINDOW_NANOS;
+            if (elapsedWindows > 0) {
+                previousWindowRequests = elapsedWindows == 1 ? windowRequests : 0;
+                windowRequests = 0;
+                windowStartNanos += elapsedWindows * RATE_WINDOW_NANOS;
+            }
+            windowRequests++;
+        }
+
+        private synchronized ActionMetrics getMetrics(String action) {
+            return new ActionMetrics(action, requests, throttles, limited ? rate : null,
+                    Duration.ofNanos(waitNanos));
+        }
+    }
+
+    /**
+     * The requests, throttles and waiting time of an action since the limiter was created
+     */
+    public static final class ActionMetrics {
+        private final String action;
+        private final long requests;
+        private final long throttles;
+        private final Double rate;
+        private final Duration waitTime;
+
+        private ActionMetrics(String action, long requests, long throttles, Double rate, Duration waitTime) {
+            this.action = action;
+            this.requests = requests;
+            this.throttles = throttles;
+            this.rate = rate;
+            this.waitTime = waitTime;
+        }
+
+        public @NotNull String getAction() {
+            return action;
+        }
+
+        /**
+         * Gets the number of requests, counting every attempt of a request that was retried.
+         *
+         * @return The number of requests
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getThrottles() {
+            return throttles;
+        }
+
+        /**
+         * Gets the rate the action is currently limited to.
+         *
+         * @return The rate in requests per second, or null if the action is not limited
+         */
+        public @Nullable Double getRate() {
+            return rate;
+        }
+
+        /**
+         * Gets the time requests have spent waiting for tokens, added up over every request.
+         *
+         * @return The waiting time
+         */
+        public @NotNull Duration getWaitTime() {
+            return waitTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d requests, %d throttled, %s, waited %d ms", action, requests, throttles,
+                    rate == null ? "not limited" : String.format("limited to %.1f/s", rate), waitTime.toMillis());
+        }
+    }
+}
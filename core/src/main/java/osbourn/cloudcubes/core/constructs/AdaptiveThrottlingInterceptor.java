@@ -0,0 +1,43 @@
+package osbourn.cloudcubes.core.constructs;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+/**
+ * Makes every attempt of a request of a blocking AWS client wait for its {@link AdaptiveRateLimiter}, and reports
+ * successful requests to it. Blocking clients run interceptors on the thread that made the request, which waits for the
+ * response anyway; asynchronous clients run them on threads of the SDK, so they are limited with
+ * {@link AdaptiveRateLimiter#limitAsyncClient} instead. Throttled attempts are reported by the retry condition of the
+ * client, see {@link AdaptiveRateLimiter#observeThrottling}, since the interceptor only sees the outcome of the last
+ * attempt.
+ */
+class AdaptiveThrottlingInterceptor implements ExecutionInterceptor {
+    private final AdaptiveRateLimiter rateLimiter;
+
+    AdaptiveThrottlingInterceptor(AdaptiveRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Gets the action a request is made to.
+     *
+     * @param executionAttributes The execution attributes of the request
+     * @return The action, in the format "service:operation", such as "Ec2:RequestSpotInstances"
+     */
+    static String getAction(ExecutionAttributes executionAttributes) {
+        return executionAttributes.getAttribute(SdkExecutionAttribute.SERVICE_NAME) + ":"
+                + executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        rateLimiter.acquire(getAction(executionAttributes));
+    }
+
+    @Override
+    public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+        rateLimiter.recordSuccess(getAction(executionAttributes));
+    }
+}
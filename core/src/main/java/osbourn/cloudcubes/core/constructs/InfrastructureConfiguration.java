@@ -137,7 +137,13 @@ public final class InfrastructureConfiguration {
         SERVERINSTANCEPROFILEARN("CLOUDCUBESSERVERINSTANCEPROFILEARN"),
         SERVERSECURITYGROUPID("CLOUDCUBESSERVERSECURITYGROUPID"),
         SERVERVPCID("CLOUDCUBESSERVERVPCID"),
-        SERVERSUBNETIDSASSTRING("CLOUDCUBESSERVERSUBNETIDS");
+        SERVERSUBNETIDSASSTRING("CLOUDCUBESSERVERSUBNETIDS"),
+        SERVERIMAGENAMEPREFIX("CLOUDCUBESSERVERIMAGENAMEPREFIX"),
+        WORLDBUCKETNAME("CLOUDCUBESWORLDBUCKETNAME"),
+        SERVERIDLETIMEOUTMINUTES("CLOUDCUBESSERVERIDLETIMEOUTMINUTES"),
+        WARMPOOLTABLENAME("CLOUDCUBESWARMPOOLTABLENAME"),
+        WARMPOOLSIZEPERSUBNET("CLOUDCUBESWARMPOOLSIZEPERSUBNET"),
+        SERVERSTARTQUEUEURL("CLOUDCUBESSERVERSTARTQUEUEURL");
 
         private final @NotNull String environmentVariableName;
 
@@ -1,20 +1,94 @@
 package osbourn.cloudcubes.core.constructs;
 
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.minecraft.RconConnectionPool;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
+import osbourn.cloudcubes.core.server.InstanceTypeSelector;
+import osbourn.cloudcubes.core.server.ServerImageResolver;
+import osbourn.cloudcubes.core.server.ServerLifecycle;
+import osbourn.cloudcubes.core.server.ServerStartQueue;
+import osbourn.cloudcubes.core.server.ServerStateReconciler;
+import osbourn.cloudcubes.core.server.SpotFulfillmentTracker;
+import osbourn.cloudcubes.core.server.SpotPriceHistory;
+import osbourn.cloudcubes.core.server.SpotPriceInstanceTypeSelector;
+import osbourn.cloudcubes.core.server.SpotSubnetRanker;
+import osbourn.cloudcubes.core.server.StartLatencyMetrics;
+import osbourn.cloudcubes.core.server.WarmPool;
+import osbourn.cloudcubes.core.server.WorldSynchronizer;
+import software.amazon.awssdk.awscore.retry.AwsRetryPolicy;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryMode;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.Vpc;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.ssm.SsmClient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Retrieves information from an InfrastructureConfiguration object and generates AWS SDK objects.
  * For example, it can return objects representing the DynamoDB Table where the server data is stored.
+ * The objects are created when they are first requested and are then reused. This class is thread safe.
+ * Blocking clients use the JDK's URLConnection based HTTP client, which loads far fewer classes than the Apache client
+ * and so starts faster in Lambda functions.
  */
 public class InfrastructureConstructor {
+    /**
+     * The retries and the first backoff of the default retry policy of DynamoDB clients, see
+     * {@link #createDynamoDbRetryPolicy()}
+     */
+    static final int DYNAMODB_MAX_RETRIES = 8;
+    static final Duration DYNAMODB_BASE_RETRY_DELAY = Duration.ofMillis(25);
+    /**
+     * The longest backoff between two attempts in the default retry policies of the SDK
+     */
+    private static final Duration MAX_RETRY_BACKOFF = Duration.ofSeconds(20);
+    private static volatile InfrastructureConstructor environmentInfrastructureConstructor = null;
+
+    /**
+     * The event loop used by the asynchronous clients of every InfrastructureConstructor in the process, so that
+     * creating more clients does not create more I/O threads.
+     */
+    private static SdkEventLoopGroup sharedEventLoopGroup = null;
+    private static ServerListPinger sharedServerListPinger = null;
+    private static RconConnectionPool sharedRconConnectionPool = null;
+    private static AdaptiveRateLimiter sharedAdaptiveRateLimiter = null;
+    private static ExecutorService sharedBlockingExecutor = null;
+
     private final InfrastructureConfiguration infrastructureConfiguration;
 
     private DynamoDbClient dynamoDBClient = null;
+    private DynamoDbAsyncClient dynamoDBAsyncClient = null;
     private Ec2Client ec2Client = null;
+    private Ec2AsyncClient ec2AsyncClient = null;
+    private SsmClient ssmClient = null;
+    private SqsClient sqsClient = null;
     private Vpc serverVpc = null;
+    private SpotPriceHistory spotPriceHistory = null;
+    private SpotSubnetRanker spotSubnetRanker = null;
+    private InstanceTypeSelector instanceTypeSelector = null;
+    private ServerImageResolver serverImageResolver = null;
+    private SpotFulfillmentTracker spotFulfillmentTracker = null;
+    private ServerStateReconciler serverStateReconciler = null;
+    private WorldSynchronizer worldSynchronizer = null;
+    private WarmPool warmPool = null;
+    private ServerStartQueue serverStartQueue = null;
+    private ServerLifecycle serverLifecycle = null;
 
     /**
      * Generates an InfrastructureConstructor object from an InfrastructureConfiguration object.
@@ -25,6 +99,31 @@ public class InfrastructureConstructor {
         this.infrastructureConfiguration = infrastructureConfiguration;
     }
 
+    /**
+     * Gets an InfrastructureConstructor for the InfrastructureConfiguration stored in the environment variables. The
+     * object is created the first time this method is called and is shared by the whole process afterwards, so that
+     * warm Lambda invocations reuse the SDK clients (and their connection pools) created by earlier invocations.
+     *
+     * @return The InfrastructureConstructor shared by the process
+     * @throws InfrastructureConfiguration.IncompleteInfrastructureConfigurationException If the environment variables
+     * did not contain all the necessary values to construct an InfrastructureConfiguration object
+     * @see InfrastructureConfiguration#fromEnvironment()
+     */
+    public static InfrastructureConstructor fromEnvironment() {
+        InfrastructureConstructor infrastructureConstructor = environmentInfrastructureConstructor;
+        if (infrastructureConstructor == null) {
+            synchronized (InfrastructureConstructor.class) {
+                infrastructureConstructor = environmentInfrastructureConstructor;
+                if (infrastructureConstructor == null) {
+                    infrastructureConstructor =
+                            new InfrastructureConstructor(InfrastructureConfiguration.fromEnvironment());
+                    environmentInfrastructureConstructor = infrastructureConstructor;
+                }
+            }
+        }
+        return infrastructureConstructor;
+    }
+
     /**
      * Get the InfrastructureConfiguration object used to construct this object.
      *
@@ -34,25 +133,371 @@ public class InfrastructureConstructor {
         return infrastructureConfiguration;
     }
 
-    public DynamoDbClient getDynamoDBClient() {
+    public synchronized DynamoDbClient getDynamoDBClient() {
         if (dynamoDBClient == null) {
-            dynamoDBClient = DynamoDbClient.builder().region(infrastructureConfiguration.getRegion()).build();
+            dynamoDBClient = DynamoDbClient.builder()
+                    .region(infrastructureConfiguration.getRegion())
+                    .httpClientBuilder(UrlConnectionHttpClient.builder())
+                    .overrideConfiguration(createThrottledOverrideConfiguration(true, createDynamoDbRetryPolicy()))
+                    .build();
         }
         return dynamoDBClient;
     }
 
-    public Ec2Client getEc2Client() {
+    public synchronized Ec2Client getEc2Client() {
         if (ec2Client == null) {
-            ec2Client = Ec2Client.builder().region(infrastructureConfiguration.getRegion()).build();
+            ec2Client = Ec2Client.builder()
+                    .region(infrastructureConfiguration.getRegion())
+                    .httpClientBuilder(UrlConnectionHttpClient.builder())
+                    .overrideConfiguration(createThrottledOverrideConfiguration(true, createDefaultRetryPolicy()))
+                    .build();
         }
         return ec2Client;
     }
 
-    public Vpc getServerVpc() {
+    public synchronized SsmClient getSsmClient() {
+        if (ssmClient == null) {
+            ssmClient = SsmClient.builder()
+                    .region(infrastructureConfiguration.getRegion())
+                    .httpClientBuilder(UrlConnectionHttpClient.builder())
+                    .overrideConfiguration(createThrottledOverrideConfiguration(true, createDefaultRetryPolicy()))
+                    .build();
+        }
+        return ssmClient;
+    }
+
+    public synchronized SqsClient getSqsClient() {
+        if (sqsClient == null) {
+            sqsClient = SqsClient.builder()
+                    .region(infrastructureConfiguration.getRegion())
+                    .httpClientBuilder(UrlConnectionHttpClient.builder())
+                    .overrideConfiguration(createThrottledOverrideConfiguration(true, createDefaultRetryPolicy()))
+                    .build();
+        }
+        return sqsClient;
+    }
+
+    public synchronized DynamoDbAsyncClient getDynamoDBAsyncClient() {
+        if (dynamoDBAsyncClient == null) {
+            dynamoDBAsyncClient = getSharedAdaptiveRateLimiter().limitAsyncClient(DynamoDbAsyncClient.class,
+                    DynamoDbAsyncClient.builder()
+                            .region(infrastructureConfiguration.getRegion())
+                            .httpClientBuilder(
+                                    NettyNioAsyncHttpClient.builder().eventLoopGroup(getSharedEventLoopGroup()))
+                            .overrideConfiguration(
+                                    createThrottledOverrideConfiguration(false, createDynamoDbRetryPolicy()))
+                            .build());
+        }
+        return dynamoDBAsyncClient;
+    }
+
+    public synchronized Ec2AsyncClient getEc2AsyncClient() {
+        if (ec2AsyncClient == null) {
+            ec2AsyncClient = getSharedAdaptiveRateLimiter().limitAsyncClient(Ec2AsyncClient.class,
+                    Ec2AsyncClient.builder()
+                            .region(infrastructureConfiguration.getRegion())
+                            .httpClientBuilder(
+                                    NettyNioAsyncHttpClient.builder().eventLoopGroup(getSharedEventLoopGroup()))
+                            .overrideConfiguration(
+                                    createThrottledOverrideConfiguration(false, createDefaultRetryPolicy()))
+                            .build());
+        }
+        return ec2AsyncClient;
+    }
+
+    /**
+     * Gets the SpotSubnetRanker that decides which of the server subnets instances are launched in. The same object is
+     * returned every time, so capacity errors seen by one server are taken into account when starting the others.
+     *
+     * @return The SpotSubnetRanker for the server subnets
+     */
+    public synchronized SpotSubnetRanker getSpotSubnetRanker() {
+        if (spotSubnetRanker == null) {
+            spotSubnetRanker = new SpotSubnetRanker(
+                    getEc2Client(), getSpotPriceHistory(), infrastructureConfiguration.getServerSubnetIds());
+        }
+        return spotSubnetRanker;
+    }
+
+    /**
+     * Gets the InstanceTypeSelector that decides which instance types servers are launched on. By default, this is a
+     * {@link SpotPriceInstanceTypeSelector}, but a different selector can be set with
+     * {@link #setInstanceTypeSelector(InstanceTypeSelector)}.
+     *
+     * @return The InstanceTypeSelector
+     */
+    public synchronized InstanceTypeSelector getInstanceTypeSelector() {
+        if (instanceTypeSelector == null) {
+            instanceTypeSelector = new SpotPriceInstanceTypeSelector(getSpotPriceHistory());
+        }
+        return instanceTypeSelector;
+    }
+
+    public synchronized void setInstanceTypeSelector(InstanceTypeSelector instanceTypeSelector) {
+        this.instanceTypeSelector = instanceTypeSelector;
+    }
+
+    /**
+     * Gets the ServerImageResolver that finds the latest image baked by the stack's image pipeline.
+     *
+     * @return The ServerImageResolver
+     */
+    public synchronized ServerImageResolver getServerImageResolver() {
+        if (serverImageResolver == null) {
+            serverImageResolver = new ServerImageResolver(getEc2Client(),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERIMAGENAMEPREFIX));
+        }
+        return serverImageResolver;
+    }
+
+    /**
+     * Gets the SpotFulfillmentTracker that waits for spot requests to be fulfilled.
+     *
+     * @return The SpotFulfillmentTracker
+     */
+    public synchronized SpotFulfillmentTracker getSpotFulfillmentTracker() {
+        if (spotFulfillmentTracker == null) {
+            spotFulfillmentTracker = new SpotFulfillmentTracker(this::getEc2AsyncClient);
+        }
+        return spotFulfillmentTracker;
+    }
+
+    /**
+     * Gets the ServerStateReconciler shared by every server, so that verdicts are cached across servers and
+     * invocations.
+     *
+     * @return The ServerStateReconciler
+     */
+    public synchronized ServerStateReconciler getServerStateReconciler() {
+        if (serverStateReconciler == null) {
+            serverStateReconciler = new ServerStateReconciler(getEc2Client(), getServerListPinger());
+        }
+        return serverStateReconciler;
+    }
+
+    /**
+     * Gets the WorldSynchronizer that uploads server files to the world bucket.
+     *
+     * @return The WorldSynchronizer
+     */
+    public synchronized WorldSynchronizer getWorldSynchronizer() {
+        if (worldSynchronizer == null) {
+            worldSynchronizer = new WorldSynchronizer(getSsmClient(),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.WORLDBUCKETNAME));
+        }
+        return worldSynchronizer;
+    }
+
+    /**
+     * Gets the WarmPool of stopped instances that servers are started on. The same object is returned every time, so
+     * that its statistics cover every server started by the process.
+     *
+     * @return The WarmPool, which is disabled if the configured size per subnet is 0
+     */
+    public synchronized WarmPool getWarmPool() {
+        if (warmPool == null) {
+            warmPool = new WarmPool(getDynamoDBClient(),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.WARMPOOLTABLENAME),
+                    getEc2Client(),
+                    infrastructureConfiguration,
+                    getInstanceTypeSelector(),
+                    getServerImageResolver(),
+                    Integer.parseInt(infrastructureConfiguration.getValue(InfrastructureSetting.WARMPOOLSIZEPERSUBNET)));
+        }
+        return warmPool;
+    }
+
+    /**
+     * Gets the ServerStartQueue that requests to start servers are sent to.
+     *
+     * @return The ServerStartQueue
+     */
+    public synchronized ServerStartQueue getServerStartQueue() {
+        if (serverStartQueue == null) {
+            serverStartQueue = new ServerStartQueue(getSqsClient(),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSTARTQUEUEURL));
+        }
+        return serverStartQueue;
+    }
+
+    /**
+     * Gets the ServerLifecycle that records the lifecycle phases of the servers in the server table. In Lambda, the
+     * start latencies of every run that is stopped are printed in the embedded metric format, so that CloudWatch
+     * extracts them from the log.
+     *
+     * @return The ServerLifecycle
+     */
+    public synchronized ServerLifecycle getServerLifecycle() {
+        if (serverLifecycle == null) {
+            boolean inLambda = System.getenv("AWS_LAMBDA_FUNCTION_NAME") != null;
+            serverLifecycle = new ServerLifecycle(getDynamoDBClient(),
+                    this::getDynamoDBAsyncClient,
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERDATABASENAME),
+                    inLambda ? InfrastructureConstructor::logStartLatencies : null);
+        }
+        return serverLifecycle;
+    }
+
+    private static void logStartLatencies(UUID serverId, List<ServerLifecycle.Event> events) {
+        String metrics = StartLatencyMetrics.toEmbeddedMetricFormat(serverId, events);
+        if (metrics != null) {
+            System.out.println(metrics);
+        }
+    }
+
+    /**
+     * Gets the SpotPriceHistory shared by the objects created by this InfrastructureConstructor, so that spot prices are
+     * downloaded once and reused.
+     *
+     * @return The SpotPriceHistory
+     */
+    public synchronized SpotPriceHistory getSpotPriceHistory() {
+        if (spotPriceHistory == null) {
+            spotPriceHistory = new SpotPriceHistory(getEc2Client());
+        }
+        return spotPriceHistory;
+    }
+
+    public synchronized Vpc getServerVpc() {
         if (serverVpc == null) {
             String serverVpcId = infrastructureConfiguration.getValue(InfrastructureSetting.SERVERVPCID);
             serverVpc = Vpc.builder().vpcId(serverVpcId).build();
         }
         return serverVpc;
     }
+
+    /**
+     * Gets the rate limiter that every AWS client of the process waits for. EC2 and DynamoDB throttle requests per
+     * account and region, so the limiter is shared by every InfrastructureConstructor in the process.
+     *
+     * @return The AdaptiveRateLimiter shared by the process
+     */
+    public AdaptiveRateLimiter getAdaptiveRateLimiter() {
+        return getSharedAdaptiveRateLimiter();
+    }
+
+    /**
+     * Gets the executor that asynchronous operations run their blocking steps on, such as reconciling an UNKNOWN
+     * server state or stopping a server, so that those steps never block the threads of the asynchronous clients. The
+     * executor is shared by every InfrastructureConstructor in the process and its threads do not keep the JVM alive.
+     *
+     * @return The Executor shared by the process
+     */
+    public Executor getBlockingExecutor() {
+        return getSharedBlockingExecutor();
+    }
+
+    private static synchronized ExecutorService getSharedBlockingExecutor() {
+        if (sharedBlockingExecutor == null) {
+            sharedBlockingExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "cloudcubes-blocking");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sharedBlockingExecutor;
+    }
+
+    /**
+     * Gets the ServerListPinger used to check whether the Minecraft servers are ready. The pinger does not depend on
+     * the configuration, so every InfrastructureConstructor in the process shares the same selector thread and buffers.
+     *
+     * @return The ServerListPinger shared by the process
+     */
+    public ServerListPinger getServerListPinger() {
+        return getSharedServerListPinger();
+    }
+
+    private static synchronized ServerListPinger getSharedServerListPinger() {
+        if (sharedServerListPinger == null) {
+            try {
+                sharedServerListPinger = new ServerListPinger();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return sharedServerListPinger;
+    }
+
+    /**
+     * Gets the pool of RCON connections used to run commands on the Minecraft servers. The pool is shared by every
+     * InfrastructureConstructor in the process, so that a server has at most one connection.
+     *
+     * @return The RconConnectionPool shared by the process
+     */
+    public RconConnectionPool getRconConnectionPool() {
+        return getSharedRconConnectionPool();
+    }
+
+    private static synchronized RconConnectionPool getSharedRconConnectionPool() {
+        if (sharedRconConnectionPool == null) {
+            sharedRconConnectionPool = new RconConnectionPool(5000);
+        }
+        return sharedRconConnectionPool;
+    }
+
+    private static synchronized SdkEventLoopGroup getSharedEventLoopGroup() {
+        if (sharedEventLoopGroup == null) {
+            sharedEventLoopGroup = SdkEventLoopGroup.builder().build();
+        }
+        return sharedEventLoopGroup;
+    }
+
+    private static synchronized AdaptiveRateLimiter getSharedAdaptiveRateLimiter() {
+        if (sharedAdaptiveRateLimiter == null) {
+            sharedAdaptiveRateLimiter = new AdaptiveRateLimiter();
+        }
+        return sharedAdaptiveRateLimiter;
+    }
+
+    /**
+     * Creates the retry policy the SDK gives clients of most services when none is configured, for the retry mode it
+     * resolves from the environment and profile.
+     *
+     * @return The retry policy
+     */
+    static RetryPolicy createDefaultRetryPolicy() {
+        return AwsRetryPolicy.forRetryMode(RetryMode.defaultRetryMode());
+    }
+
+    /**
+     * Creates the retry policy the SDK gives DynamoDB clients when none is configured. DynamoDB answers quickly and
+     * throttles per partition, so the SDK retries its requests more often and sooner than those of other services. A
+     * client that is given a retry policy does not apply these values itself, so they are repeated here.
+     *
+     * @return The retry policy
+     */
+    static RetryPolicy createDynamoDbRetryPolicy() {
+        return createDefaultRetryPolicy().toBuilder()
+                .additionalRetryConditionsAllowed(false)
+                .numRetries(DYNAMODB_MAX_RETRIES)
+                .backoffStrategy(FullJitterBackoffStrategy.builder()
+                        .baseDelay(DYNAMODB_BASE_RETRY_DELAY)
+                        .maxBackoffTime(MAX_RETRY_BACKOFF)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Creates the configuration of a client that reports throttled attempts to the shared {@link AdaptiveRateLimiter}.
+     * Only the retry condition of the retry policy is wrapped, so the client keeps the number of retries and the
+     * backoff of the policy it is given.
+     *
+     * @param blocking    true for a blocking client, whose attempts wait for the limiter in an interceptor;
+     *                    asynchronous clients are wrapped with {@link AdaptiveRateLimiter#limitAsyncClient} instead
+     * @param retryPolicy The retry policy the SDK would give a client of the service, see
+     *                    {@link #createDefaultRetryPolicy()} and {@link #createDynamoDbRetryPolicy()}
+     */
+    static ClientOverrideConfiguration createThrottledOverrideConfiguration(boolean blocking,
+                                                                            RetryPolicy retryPolicy) {
+        AdaptiveRateLimiter rateLimiter = getSharedAdaptiveRateLimiter();
+        ClientOverrideConfiguration.Builder builder = ClientOverrideConfiguration.builder()
+                .retryPolicy(retryPolicy.toBuilder()
+                        .retryCondition(rateLimiter.observeThrottling(retryPolicy.retryCondition()))
+                        .build());
+        if (blocking) {
+            builder.addExecutionInterceptor(new AdaptiveThrottlingInterceptor(rateLimiter));
+        }
+        return builder.build();
+    }
 }
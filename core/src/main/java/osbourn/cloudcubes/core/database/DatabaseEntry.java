@@ -4,12 +4,14 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.util.Identifiable;
 
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents a single entry in a database
  */
-public interface DatabaseEntry extends Identifiable {
+public interface DatabaseEntry extends Identifiable, AutoCloseable {
     /**
      * Gets the primary key of the database entry
      *
@@ -32,5 +34,114 @@ public interface DatabaseEntry extends Identifiable {
      * @param value The value to put in the database
      */
     void setStringValue(@NotNull String key, @NotNull String value);
-}
 
+    /**
+     * Removes the value associated with key "key" from the database. Removing a key that does not exist does nothing.
+     *
+     * @param key The key of the value to remove
+     */
+    void removeValue(@NotNull String key);
+
+    /**
+     * Sets the string value associated with key "key" to newValue, but only if its current value in the database is
+     * expectedValue. The comparison and the write happen atomically, so when several callers race to change the same
+     * value, at most one of them succeeds.
+     * Implementations may also require that nobody has written to the entry since this object last read or wrote it,
+     * in which case a write to any other value of the entry makes the comparison fail too, even if the value of key is
+     * still expectedValue. Callers should then read the entry again and decide whether to retry.
+     *
+     * @param key The key of the value to be set
+     * @param expectedValue The value the key is expected to have, or null if the key is expected to not exist
+     * @param newValue The value to put in the database
+     * @return true if the value was set, false if the value in the database did not match expectedValue or the entry
+     *         was written to in the meantime
+     */
+    boolean compareAndSet(@NotNull String key, @Nullable String expectedValue, @NotNull String newValue);
+
+    /**
+     * Downloads every value of the entry in a single request, so that later calls to {@link #getStringValue(String)}
+     * can be answered without contacting the database.
+     */
+    void loadAll();
+
+    /**
+     * Downloads the values associated with the given keys in a single request, so that later calls to
+     * {@link #getStringValue(String)} for those keys can be answered without contacting the database. Keys whose
+     * values have already been downloaded are skipped.
+     *
+     * @param keys The keys of the values to download
+     */
+    void prefetch(@NotNull Set<String> keys);
+
+    /**
+     * Starts buffering the values set with {@link #setStringValue(String, String)} instead of writing each of them to
+     * the database immediately. The buffered values are written together the next time {@link #flush()} or
+     * {@link #close()} is called.
+     */
+    void deferWrites();
+
+    /**
+     * Writes all values buffered since {@link #deferWrites()} was called to the database and stops buffering values.
+     * Does nothing if no values are buffered.
+     */
+    void flush();
+
+    /**
+     * Asynchronous variant of {@link #getStringValue(String)}.
+     *
+     * @param key The key to get the value of
+     * @return A future that completes with the value in the database, or null if the key does not exist
+     */
+    @NotNull CompletableFuture<String> getStringValueAsync(@NotNull String key);
+
+    /**
+     * Asynchronous variant of {@link #setStringValue(String, String)}.
+     *
+     * @param key The key of the value to be set
+     * @param value The value to put in the database
+     * @return A future that completes once the value has been written, or buffered if writes are deferred
+     */
+    @NotNull CompletableFuture<Void> setStringValueAsync(@NotNull String key, @NotNull String value);
+
+    /**
+     * Asynchronous variant of {@link #compareAndSet(String, String, String)}.
+     *
+     * @param key The key of the value to be set
+     * @param expectedValue The value the key is expected to have, or null if the key is expected to not exist
+     * @param newValue The value to put in the database
+     * @return A future that completes with true if the value was set, or false if the value did not match
+     */
+    @NotNull CompletableFuture<Boolean> compareAndSetAsync(@NotNull String key,
+                                                           @Nullable String expectedValue,
+                                                           @NotNull String newValue);
+
+    /**
+     * Asynchronous variant of {@link #prefetch(Set)}.
+     *
+     * @param keys The keys of the values to download
+     * @return A future that completes once the values have been downloaded
+     */
+    @NotNull CompletableFuture<Void> prefetchAsync(@NotNull Set<String> keys);
+
+    /**
+     * Drops every value buffered since {@link #deferWrites()} was called without writing it, and stops buffering
+     * values. This is used to abandon a group of deferred writes after a failed
+     * {@link #compareAndSet(String, String, String)}.
+     */
+    void discardWrites();
+
+    /**
+     * Asynchronous variant of {@link #flush()}.
+     *
+     * @return A future that completes once the buffered values have been written
+     */
+    @NotNull CompletableFuture<Void> flushAsync();
+
+    /**
+     * Same as {@link #flush()}, which allows deferred writes to be scoped with a try-with-resources statement.
+     */
+    @Override
+    default void close() {
+        flush();
+    }
+}
@@ -2,30 +2,69 @@ package osbourn.cloudcubes.core.database;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 /**
  * Represents a entry on the DynamoDB database.
  * This class primarily acts as an interface to the DynamoDB table, allowing you to read and set values in the database.
+ * The asynchronous methods may complete on SDK threads, so the local cache and the buffer of deferred writes are
+ * synchronized, but an entry should still only be used by one logical operation at a time.
  */
 public class DynamoDBEntry implements DatabaseEntry {
+    /**
+     * The attribute that counts the writes made to an entry. It is incremented by every write made through this class,
+     * by the startup script of the instance and by the server agent, and is used by
+     * {@link #compareAndSet(String, String, String)} to detect concurrent modifications. The lifecycle log of
+     * {@link osbourn.cloudcubes.core.server.ServerLifecycle} is written without incrementing it, so that recording a
+     * phase does not make the next compare-and-set of the same operation fail.
+     */
+    public static final String VERSION_KEY = "Version";
+
     public final UUID id;
     private final DynamoDbClient dynamoDbClient;
+    private final Supplier<DynamoDbAsyncClient> dynamoDbAsyncClient;
     private final String tableName;
     /**
      * Contains a local cache of values the user requested from the database.
      * Format for each entry is ("nameOfKey", "valueInDatabase")
      */
-    private final Map<String, String> stringValueCache = new HashMap<>();
+    private final Map<String, String> stringValueCache = Collections.synchronizedMap(new HashMap<>());
+    /**
+     * Whether the whole item has been downloaded since the cache was last invalidated, in which case keys that are
+     * missing from the cache do not exist in the database
+     */
+    private volatile boolean wholeItemCached = false;
+    /**
+     * Guards pendingWrites and deferringWrites, which the asynchronous methods change from SDK threads. The lock is
+     * never held while a request is made.
+     */
+    private final Object writeLock = new Object();
+    /**
+     * Contains the values that were set while writes were deferred and have not been written to the database yet.
+     * Format for each entry is ("nameOfKey", "newValue"), where a null value means that the key is removed
+     */
+    private final Map<String, String> pendingWrites = new LinkedHashMap<>();
+    private boolean deferringWrites = false;
+    /**
+     * The version of the entry as of the last read or write, or null if it is not known. Entries that have never been
+     * written through this class have version 0.
+     */
+    private volatile @Nullable Long version = null;
 
-    private DynamoDBEntry(UUID id, DynamoDbClient dynamoDbClient, String tableName) {
+    private DynamoDBEntry(UUID id,
+                          DynamoDbClient dynamoDbClient,
+                          Supplier<DynamoDbAsyncClient> dynamoDbAsyncClient,
+                          String tableName) {
         this.id = id;
         this.dynamoDbClient = dynamoDbClient;
+        this.dynamoDbAsyncClient = dynamoDbAsyncClient;
         this.tableName = tableName;
     }
 
@@ -38,7 +77,51 @@ public class DynamoDBEntry implements DatabaseEntry {
      * @return The server object that was just created
      */
     public static DynamoDBEntry fromId(UUID id, DynamoDbClient dynamoDbClient, String tableName) {
-        return new DynamoDBEntry(id, dynamoDbClient, tableName);
+        return fromId(id, dynamoDbClient, () -> {
+            throw new IllegalStateException("This DynamoDBEntry was created without an asynchronous client");
+        }, tableName);
+    }
+
+    /**
+     * Creates a new DynamoDBEntry object that corresponds to the object with the given id in the server database and
+     * that can also make asynchronous requests. The asynchronous client is only retrieved the first time an
+     * asynchronous method is called, so entries that are only used synchronously do not pay for creating it.
+     *
+     * @param id                  The id of the server in the server database
+     * @param dynamoDbClient      The DynamoDB client used to make blocking requests
+     * @param dynamoDbAsyncClient Supplies the DynamoDB client used to make asynchronous requests
+     * @param tableName           The name of the database table
+     * @return The server object that was just created
+     */
+    public static DynamoDBEntry fromId(UUID id,
+                                       DynamoDbClient dynamoDbClient,
+                                       Supplier<DynamoDbAsyncClient> dynamoDbAsyncClient,
+                                       String tableName) {
+        return new DynamoDBEntry(id, dynamoDbClient, dynamoDbAsyncClient, tableName);
+    }
+
+    /**
+     * Creates a DynamoDBEntry object from an item that has already been downloaded, for example with a Scan or
+     * BatchGetItem request, so that the values of the item can be read without contacting the database again.
+     *
+     * @param item                The downloaded item, which must contain the "Id" attribute and should contain the
+     *                            "Version" attribute
+     * @param keys                The keys that were requested, which are cached as null if the item does not contain
+     *                            them, or null if the whole item was downloaded
+     * @param dynamoDbClient      The DynamoDB client used to make blocking requests
+     * @param dynamoDbAsyncClient Supplies the DynamoDB client used to make asynchronous requests
+     * @param tableName           The name of the database table
+     * @return The entry that was just created
+     */
+    public static DynamoDBEntry fromItem(Map<String, AttributeValue> item,
+                                         @Nullable Collection<String> keys,
+                                         DynamoDbClient dynamoDbClient,
+                                         Supplier<DynamoDbAsyncClient> dynamoDbAsyncClient,
+                                         String tableName) {
+        UUID id = UUID.fromString(item.get("Id").s());
+        DynamoDBEntry entry = new DynamoDBEntry(id, dynamoDbClient, dynamoDbAsyncClient, tableName);
+        entry.cacheReturnedItem(keys, item);
+        return entry;
     }
 
     @Override
@@ -66,13 +149,26 @@ public class DynamoDBEntry implements DatabaseEntry {
      */
     public @Nullable String getStringValue(@NotNull String valueToGet) {
         // Check if value has been cached
-        if (stringValueCache.containsKey(valueToGet)) {
+        if (isCached(valueToGet)) {
             return stringValueCache.get(valueToGet);
         } else {
             return requestStringValueFromDatabase(valueToGet);
         }
     }
 
+    @Override
+    public @NotNull CompletableFuture<String> getStringValueAsync(@NotNull String key) {
+        if (isCached(key)) {
+            return CompletableFuture.completedFuture(stringValueCache.get(key));
+        }
+        Set<String> keys = Collections.singleton(key);
+        return dynamoDbAsyncClient.get().getItem(buildGetItemRequest(keys))
+                .thenApply(response -> {
+                    cacheReturnedItem(keys, response.item());
+                    return stringValueCache.get(key);
+                });
+    }
+
     /**
      * <p>
      * Gets a value associated with a key from the database, assuming the value is a String.
@@ -92,49 +188,435 @@ public class DynamoDBEntry implements DatabaseEntry {
      * @see #getStringValue(String)
      */
     public @Nullable String requestStringValueFromDatabase(@NotNull String valueToGet) {
-        // Used to let AWS know that we want to get values from the item that has "Id" set to this.id
-        Map<String, AttributeValue> keyToGet = new HashMap<>();
-        keyToGet.put("Id", AttributeValue.builder()
-                .s(this.id.toString())
-                .build());
+        requestValuesFromDatabase(Collections.singleton(valueToGet));
+        return stringValueCache.get(valueToGet);
+    }
 
-        // Request item
-        GetItemRequest request = GetItemRequest.builder()
-                .key(keyToGet)
-                .tableName(this.tableName)
-                .projectionExpression(valueToGet)
-                .build();
-        Map<String, AttributeValue> returnedItem = dynamoDbClient.getItem(request).item();
+    /**
+     * Downloads every value of the entry with a single GetItem request and caches the values that are Strings. Keys
+     * that the entry does not contain are then known to be null without another request.
+     */
+    @Override
+    public void loadAll() {
+        requestValuesFromDatabase(null);
+    }
 
-        // Request value from database
-        String value = returnedItem.get(valueToGet).s();
-        stringValueCache.put(valueToGet, value);
-        return value;
+    /**
+     * Downloads the values of the given keys with a single GetItem request and caches them. Keys that do not exist in
+     * the database are cached as null.
+     *
+     * @param keys The keys of the values to download
+     */
+    @Override
+    public void prefetch(@NotNull Set<String> keys) {
+        if (wholeItemCached) {
+            return;
+        }
+        Set<String> uncachedKeys = new HashSet<>(keys);
+        uncachedKeys.removeAll(stringValueCache.keySet());
+        if (!uncachedKeys.isEmpty()) {
+            requestValuesFromDatabase(uncachedKeys);
+        }
     }
 
-    public void setStringValue(@NotNull String key, @NotNull String value) {
-        // Used to let AWS know that we want to set values for the item that has "Id" set to this.id
-        Map<String, AttributeValue> itemKey = new HashMap<>();
-        itemKey.put("Id", AttributeValue.builder()
-                .s(this.id.toString())
-                .build());
+    @Override
+    public @NotNull CompletableFuture<Void> prefetchAsync(@NotNull Set<String> keys) {
+        if (wholeItemCached) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Set<String> uncachedKeys = new HashSet<>(keys);
+        uncachedKeys.removeAll(stringValueCache.keySet());
+        if (uncachedKeys.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return dynamoDbAsyncClient.get().getItem(buildGetItemRequest(uncachedKeys))
+                .thenAccept(response -> cacheReturnedItem(uncachedKeys, response.item()));
+    }
 
-        // Tells AWS which value to update and what the new value is
-        HashMap<String, AttributeValueUpdate> updatedValues = new HashMap<>();
-        updatedValues.put(key, AttributeValueUpdate.builder()
-                .value(AttributeValue.builder().s(value).build())
-                .action(AttributeAction.PUT)
-                .build());
+    /**
+     * Downloads values from the database with one GetItem request and stores them in the cache.
+     *
+     * @param keys The keys of the values to download, or null to download the whole entry
+     */
+    private void requestValuesFromDatabase(@Nullable Collection<String> keys) {
+        cacheReturnedItem(keys, dynamoDbClient.getItem(buildGetItemRequest(keys)).item());
+    }
 
-        // Request value from database
-        UpdateItemRequest request = UpdateItemRequest.builder()
-                .tableName(this.tableName)
-                .key(itemKey)
-                .attributeUpdates(updatedValues)
-                .build();
-        dynamoDbClient.updateItem(request);
+    /**
+     * Builds a GetItem request that downloads the given values along with the version of the entry.
+     *
+     * @param keys The keys of the values to download, or null to download the whole entry
+     * @return The request
+     */
+    private GetItemRequest buildGetItemRequest(@Nullable Collection<String> keys) {
+        GetItemRequest.Builder requestBuilder = GetItemRequest.builder()
+                .key(getItemKey())
+                .tableName(this.tableName);
+        if (keys != null) {
+            // Attribute names are substituted with placeholders so that names which happen to be DynamoDB reserved
+            // words (such as "Name") can still be projected
+            Map<String, String> expressionAttributeNames = new HashMap<>();
+            StringJoiner projectionExpression = new StringJoiner(", ");
+            Set<String> keysToProject = new HashSet<>(keys);
+            keysToProject.add(VERSION_KEY);
+            for (String key : keysToProject) {
+                String placeholder = "#a" + expressionAttributeNames.size();
+                expressionAttributeNames.put(placeholder, key);
+                projectionExpression.add(placeholder);
+            }
+            requestBuilder.projectionExpression(projectionExpression.toString())
+                    .expressionAttributeNames(expressionAttributeNames);
+        }
+        return requestBuilder.build();
+    }
+
+    /**
+     * Stores the values of an item returned by a GetItem request in the cache. Keys with deferred writes keep their
+     * buffered values, because the database does not contain them yet.
+     *
+     * @param keys         The keys that were requested, or null if the whole entry was requested
+     * @param returnedItem The item that was returned
+     */
+    private void cacheReturnedItem(@Nullable Collection<String> keys, Map<String, AttributeValue> returnedItem) {
+        AttributeValue returnedVersion = returnedItem.get(VERSION_KEY);
+        version = returnedVersion == null ? 0L : Long.parseLong(returnedVersion.n());
+
+        synchronized (writeLock) {
+            if (keys != null) {
+                for (String key : keys) {
+                    AttributeValue value = returnedItem.get(key);
+                    stringValueCache.put(key, value == null ? null : value.s());
+                }
+            } else {
+                // Keys cached earlier that the entry no longer contains have been removed since
+                stringValueCache.keySet().removeIf(key -> !returnedItem.containsKey(key));
+                for (Map.Entry<String, AttributeValue> entry : returnedItem.entrySet()) {
+                    if (entry.getValue().s() != null) {
+                        stringValueCache.put(entry.getKey(), entry.getValue().s());
+                    }
+                }
+                wholeItemCached = true;
+            }
+            stringValueCache.putAll(pendingWrites);
+        }
+    }
+
+    /**
+     * Gets whether the value of a key is known without contacting the database.
+     */
+    private boolean isCached(@NotNull String key) {
+        return wholeItemCached || stringValueCache.containsKey(key);
+    }
+
+    /**
+     * Discards the cached value of a key, so that the next read fetches it from the database.
+     */
+    private void invalidateCachedValue(@NotNull String key) {
+        wholeItemCached = false;
+        stringValueCache.remove(key);
+    }
+
+    /**
+     * Sets the value associated with a key in the database. If writes are currently deferred, the value is only cached
+     * and will be written along with the other deferred values when {@link #flush()} is called.
+     *
+     * @param key   The key of the value to be set
+     * @param value The value to put in the database
+     * @see #deferWrites()
+     */
+    public void setStringValue(@NotNull String key, @NotNull String value) {
+        if (bufferIfDeferring(key, value)) {
+            return;
+        }
+        updateValuesInDatabase(Collections.singletonMap(key, value));
 
         // Cache new value
         stringValueCache.put(key, value);
     }
+
+    /**
+     * Removes the value associated with a key from the database. If writes are currently deferred, the removal is
+     * written along with the other deferred values when {@link #flush()} is called.
+     *
+     * @param key The key of the value to remove
+     * @see #deferWrites()
+     */
+    @Override
+    public void removeValue(@NotNull String key) {
+        if (bufferIfDeferring(key, null)) {
+            return;
+        }
+        updateValuesInDatabase(Collections.singletonMap(key, null));
+
+        // Cache the absence of the value
+        stringValueCache.put(key, null);
+    }
+
+    /**
+     * Buffers and caches a value if writes are deferred.
+     *
+     * @param key   The key of the value
+     * @param value The new value, or null if the key is removed
+     * @return true if the value was buffered, false if it has to be written now
+     */
+    private boolean bufferIfDeferring(@NotNull String key, @Nullable String value) {
+        synchronized (writeLock) {
+            if (!deferringWrites) {
+                return false;
+            }
+            pendingWrites.put(key, value);
+            stringValueCache.put(key, value);
+            return true;
+        }
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> setStringValueAsync(@NotNull String key, @NotNull String value) {
+        if (bufferIfDeferring(key, value)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        UpdateExpressionBuilder update = new UpdateExpressionBuilder().set(key, value);
+        return dynamoDbAsyncClient.get().updateItem(buildUpdateRequest(update))
+                .thenAccept(response -> {
+                    recordVersion(response);
+                    stringValueCache.put(key, value);
+                });
+    }
+
+    @Override
+    public void deferWrites() {
+        synchronized (writeLock) {
+            deferringWrites = true;
+        }
+    }
+
+    /**
+     * Writes every value set since {@link #deferWrites()} was called with a single UpdateItem request and stops
+     * deferring writes. If the request fails, the values stay buffered so that a later flush can retry them.
+     */
+    @Override
+    public void flush() {
+        Map<String, String> values = stopDeferringWrites();
+        if (!values.isEmpty()) {
+            updateValuesInDatabase(values);
+            removeWrittenValues(values);
+        }
+    }
+
+    /**
+     * Drops the deferred values and stops deferring writes. The cached values of the dropped keys are discarded too, so
+     * that the next read fetches the values that are actually in the database.
+     */
+    @Override
+    public void discardWrites() {
+        synchronized (writeLock) {
+            deferringWrites = false;
+            pendingWrites.keySet().forEach(this::invalidateCachedValue);
+            pendingWrites.clear();
+        }
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> flushAsync() {
+        Map<String, String> values = stopDeferringWrites();
+        if (values.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        UpdateExpressionBuilder update = new UpdateExpressionBuilder();
+        values.forEach(update::setOrRemove);
+        return dynamoDbAsyncClient.get().updateItem(buildUpdateRequest(update))
+                .thenAccept(response -> {
+                    recordVersion(response);
+                    removeWrittenValues(values);
+                });
+    }
+
+    /**
+     * Stops deferring writes.
+     *
+     * @return A copy of the buffered values, which stay buffered until they have been written
+     */
+    private Map<String, String> stopDeferringWrites() {
+        synchronized (writeLock) {
+            deferringWrites = false;
+            return new LinkedHashMap<>(pendingWrites);
+        }
+    }
+
+    /**
+     * Removes values that have been written from the buffer. A key that was set again while the request was being made
+     * keeps its newer value, which has not been written yet.
+     *
+     * @param values The values that were written, in the format ("nameOfKey", "newValue")
+     */
+    private void removeWrittenValues(@NotNull Map<String, String> values) {
+        synchronized (writeLock) {
+            values.forEach(pendingWrites::remove);
+        }
+    }
+
+    /**
+     * <p>
+     * Sets the value associated with a key to newValue, but only if the value in the database is still expectedValue
+     * and, if the version of the entry is known, nobody else has written to the entry since it was last read or
+     * written by this object. The check and the write are done atomically by DynamoDB, so if several callers race to
+     * change the same value, only one of them succeeds.
+     * </p>
+     *
+     * <p>
+     * Because the whole entry is versioned, a write to any other value (see {@link #VERSION_KEY}) also makes the
+     * comparison fail, even if the value of key is still expectedValue. Reading the entry again updates the known
+     * version, so a caller that still wants to make the change can retry after checking the values it depends on.
+     * </p>
+     *
+     * <p>
+     * Any writes deferred with {@link #deferWrites()} are sent in the same request and are only cleared from the
+     * buffer if the request succeeds. If the comparison fails, the cached value of the key is discarded so that the
+     * next read fetches the current value.
+     * </p>
+     *
+     * @param key           The key of the value to be set
+     * @param expectedValue The value the key must currently have, or null if the key must not exist
+     * @param newValue      The value to put in the database
+     * @return true if the value was set, false if the database contained a different value or version
+     */
+    @Override
+    public boolean compareAndSet(@NotNull String key, @Nullable String expectedValue, @NotNull String newValue) {
+        Map<String, String> deferredValues = snapshotPendingWrites();
+        UpdateExpressionBuilder update = buildCompareAndSetUpdate(key, expectedValue, newValue, deferredValues);
+        try {
+            recordVersion(dynamoDbClient.updateItem(buildUpdateRequest(update)));
+        } catch (ConditionalCheckFailedException e) {
+            return recordCompareAndSetResult(key, newValue, deferredValues, false);
+        }
+        return recordCompareAndSetResult(key, newValue, deferredValues, true);
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Boolean> compareAndSetAsync(@NotNull String key,
+                                                                  @Nullable String expectedValue,
+                                                                  @NotNull String newValue) {
+        Map<String, String> deferredValues = snapshotPendingWrites();
+        UpdateExpressionBuilder update = buildCompareAndSetUpdate(key, expectedValue, newValue, deferredValues);
+        return dynamoDbAsyncClient.get().updateItem(buildUpdateRequest(update))
+                .handle((response, throwable) -> {
+                    if (throwable == null) {
+                        recordVersion(response);
+                        return recordCompareAndSetResult(key, newValue, deferredValues, true);
+                    }
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (cause instanceof ConditionalCheckFailedException) {
+                        return recordCompareAndSetResult(key, newValue, deferredValues, false);
+                    }
+                    throw new CompletionException(cause);
+                });
+    }
+
+    private Map<String, String> snapshotPendingWrites() {
+        synchronized (writeLock) {
+            return new LinkedHashMap<>(pendingWrites);
+        }
+    }
+
+    /**
+     * Builds the update used by {@link #compareAndSet(String, String, String)}, which includes every deferred write.
+     */
+    private UpdateExpressionBuilder buildCompareAndSetUpdate(@NotNull String key,
+                                                             @Nullable String expectedValue,
+                                                             @NotNull String newValue,
+                                                             @NotNull Map<String, String> deferredValues) {
+        Map<String, String> values = new LinkedHashMap<>(deferredValues);
+        values.put(key, newValue);
+        UpdateExpressionBuilder update = new UpdateExpressionBuilder();
+        values.forEach(update::setOrRemove);
+
+        String condition;
+        if (expectedValue == null) {
+            condition = "attribute_not_exists(" + update.name(key) + ")";
+        } else {
+            condition = update.name(key) + " = " + update.value(AttributeValue.builder().s(expectedValue).build());
+        }
+        Long knownVersion = version;
+        if (knownVersion != null && knownVersion == 0) {
+            condition += " AND attribute_not_exists(" + update.name(VERSION_KEY) + ")";
+        } else if (knownVersion != null) {
+            condition += " AND " + update.name(VERSION_KEY) + " = "
+                    + update.value(AttributeValue.builder().n(Long.toString(knownVersion)).build());
+        }
+        return update.condition(condition);
+    }
+
+    /**
+     * Updates the local state after a compare-and-set request has completed.
+     *
+     * @param key            The key that was compared
+     * @param newValue       The value the key was to be set to
+     * @param deferredValues The deferred values that were sent with the request
+     * @param succeeded      Whether the condition of the request was met
+     * @return succeeded
+     */
+    private boolean recordCompareAndSetResult(@NotNull String key,
+                                              @NotNull String newValue,
+                                              @NotNull Map<String, String> deferredValues,
+                                              boolean succeeded) {
+        if (succeeded) {
+            removeWrittenValues(deferredValues);
+            stringValueCache.put(key, newValue);
+        } else {
+            // Somebody else has written to the entry, so the cached value can no longer be trusted
+            invalidateCachedValue(key);
+            version = null;
+        }
+        return succeeded;
+    }
+
+    /**
+     * Sets several values of the entry with one UpdateItem request.
+     *
+     * @param values The values to set, in the format ("nameOfKey", "newValue"), where a null value removes the key
+     */
+    private void updateValuesInDatabase(@NotNull Map<String, String> values) {
+        UpdateExpressionBuilder update = new UpdateExpressionBuilder();
+        values.forEach(update::setOrRemove);
+        recordVersion(dynamoDbClient.updateItem(buildUpdateRequest(update)));
+    }
+
+    /**
+     * Builds an UpdateItem request for this entry that also increments the version of the entry.
+     *
+     * @param update The update to send
+     * @return The request
+     */
+    private UpdateItemRequest buildUpdateRequest(@NotNull UpdateExpressionBuilder update) {
+        update.add(VERSION_KEY, 1);
+        return update.applyTo(UpdateItemRequest.builder()
+                        .tableName(this.tableName)
+                        .key(getItemKey())
+                        .returnValues(ReturnValue.UPDATED_NEW))
+                .build();
+    }
+
+    /**
+     * Remembers the version of the entry returned by an UpdateItem request built with
+     * {@link #buildUpdateRequest(UpdateExpressionBuilder)}.
+     *
+     * @param response The response to the request
+     */
+    private void recordVersion(@NotNull UpdateItemResponse response) {
+        AttributeValue newVersion = response.attributes().get(VERSION_KEY);
+        version = newVersion == null ? null : Long.parseLong(newVersion.n());
+    }
+
+    /**
+     * Generates the key used to let AWS know that we want to access the item that has "Id" set to this.id
+     *
+     * @return The key of this entry's item
+     */
+    private Map<String, AttributeValue> getItemKey() {
+        Map<String, AttributeValue> itemKey = new HashMap<>();
+        itemKey.put("Id", AttributeValue.builder()
+                .s(this.id.toString())
+                .build());
+        return itemKey;
+    }
 }
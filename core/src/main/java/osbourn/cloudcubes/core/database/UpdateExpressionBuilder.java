@@ -0,0 +1,109 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Assembles the UpdateExpression and ConditionExpression of a DynamoDB UpdateItem request. Attribute names and values
+ * are always substituted with placeholders (such as "#a0" and ":v0"), so that names which happen to be DynamoDB
+ * reserved words can be used safely.
+ */
+final class UpdateExpressionBuilder {
+    private final Map<String, String> expressionAttributeNames = new HashMap<>();
+    private final Map<String, String> namePlaceholders = new HashMap<>();
+    private final Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+    private final StringJoiner setActions = new StringJoiner(", ", "SET ", "").setEmptyValue("");
+    private final StringJoiner addActions = new StringJoiner(", ", "ADD ", "").setEmptyValue("");
+    private final StringJoiner removeActions = new StringJoiner(", ", "REMOVE ", "").setEmptyValue("");
+    private String conditionExpression = null;
+
+    /**
+     * Gets the placeholder that stands for an attribute name, registering it if it has not been used before.
+     *
+     * @param attributeName The name of the attribute
+     * @return The placeholder of the attribute name, e.g. "#a0"
+     */
+    @NotNull String name(@NotNull String attributeName) {
+        String placeholder = namePlaceholders.get(attributeName);
+        if (placeholder == null) {
+            placeholder = "#a" + namePlaceholders.size();
+            namePlaceholders.put(attributeName, placeholder);
+            expressionAttributeNames.put(placeholder, attributeName);
+        }
+        return placeholder;
+    }
+
+    /**
+     * Registers a value that is used in the expression.
+     *
+     * @param value The value
+     * @return The placeholder of the value, e.g. ":v0"
+     */
+    @NotNull String value(@NotNull AttributeValue value) {
+        String placeholder = ":v" + expressionAttributeValues.size();
+        expressionAttributeValues.put(placeholder, value);
+        return placeholder;
+    }
+
+    @NotNull UpdateExpressionBuilder set(@NotNull String attributeName, @NotNull String value) {
+        setActions.add(name(attributeName) + " = " + value(AttributeValue.builder().s(value).build()));
+        return this;
+    }
+
+    /**
+     * Sets an attribute to a value, or removes the attribute if the value is null.
+     *
+     * @param attributeName The name of the attribute
+     * @param value         The new value, or null to remove the attribute
+     * @return This builder
+     */
+    @NotNull UpdateExpressionBuilder setOrRemove(@NotNull String attributeName, @Nullable String value) {
+        return value == null ? remove(attributeName) : set(attributeName, value);
+    }
+
+    @NotNull UpdateExpressionBuilder remove(@NotNull String attributeName) {
+        removeActions.add(name(attributeName));
+        return this;
+    }
+
+    @NotNull UpdateExpressionBuilder add(@NotNull String attributeName, long amount) {
+        addActions.add(name(attributeName) + " " + value(AttributeValue.builder().n(Long.toString(amount)).build()));
+        return this;
+    }
+
+    /**
+     * Sets the condition that must hold for the update to be applied. The condition should refer to attribute names
+     * and values through {@link #name(String)} and {@link #value(AttributeValue)}.
+     *
+     * @param conditionExpression The condition, or null if the update should be applied unconditionally
+     * @return This builder
+     */
+    @NotNull UpdateExpressionBuilder condition(@Nullable String conditionExpression) {
+        this.conditionExpression = conditionExpression;
+        return this;
+    }
+
+    /**
+     * Applies the expressions and placeholders to a request builder.
+     *
+     * @param requestBuilder The builder of the request that should perform the update
+     * @return The request builder
+     */
+    @NotNull UpdateItemRequest.Builder applyTo(@NotNull UpdateItemRequest.Builder requestBuilder) {
+        StringJoiner updateExpression = new StringJoiner(" ");
+        updateExpression.add(setActions.toString()).add(addActions.toString()).add(removeActions.toString());
+        requestBuilder.updateExpression(updateExpression.toString().trim())
+                .expressionAttributeNames(expressionAttributeNames)
+                .conditionExpression(conditionExpression);
+        if (!expressionAttributeValues.isEmpty()) {
+            requestBuilder.expressionAttributeValues(expressionAttributeValues);
+        }
+        return requestBuilder;
+    }
+}
@@ -0,0 +1,289 @@
+package osbourn.cloudcubes.core.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A client for the RCON protocol that Minecraft servers use for remote administration. Each packet consists of its
+ * length, a request id, a type and an ASCII body, with the integers encoded as little-endian.
+ * </p>
+ *
+ * <p>
+ * Commands are pipelined: a command is written as soon as it is sent, without waiting for the responses to earlier
+ * commands, and a reader thread matches the responses to the commands by their request id. Minecraft splits long
+ * outputs into several response packets, so every command is followed by a packet of an unknown type, which the server
+ * answers only after it has answered the command. At most {@link #MAXIMUM_PENDING_COMMANDS} commands may be waiting
+ * for their responses, sending more commands blocks until earlier ones have been answered.
+ * </p>
+ *
+ * <p>
+ * See https://wiki.vg/RCON for a description of the protocol. This class is thread safe.
+ * </p>
+ */
+public class RconClient implements AutoCloseable {
+    /**
+     * The port Minecraft servers listen for RCON connections on by default
+     */
+    public static final int DEFAULT_PORT = 25575;
+    /**
+     * The number of commands that may be waiting for their responses at once
+     */
+    public static final int MAXIMUM_PENDING_COMMANDS = 16;
+
+    private static final int TYPE_RESPONSE = 0;
+    private static final int TYPE_COMMAND = 2;
+    private static final int TYPE_LOGIN = 3;
+    /**
+     * The largest packet a Minecraft server sends
+     */
+    private static final int MAXIMUM_PACKET_LENGTH = 4110;
+
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final OutputStream outputStream;
+    private final int timeoutMillis;
+    private final AtomicInteger nextRequestId = new AtomicInteger(0);
+    private final Map<Integer, PendingCommand> pendingCommands = new ConcurrentHashMap<>();
+    private final Semaphore pendingCommandPermits = new Semaphore(MAXIMUM_PENDING_COMMANDS);
+    private volatile boolean closed = false;
+
+    private RconClient(Socket socket, int timeoutMillis) throws IOException {
+        this.socket = socket;
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.outputStream = socket.getOutputStream();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Connects to a Minecraft server and logs in.
+     *
+     * @param host          The address of the server
+     * @param port          The RCON port of the server
+     * @param password      The RCON password of the server
+     * @param timeoutMillis The time the connection, and the response to every later command, may take
+     * @return The logged in client
+     * @throws IOException If the server could not be reached or rejected the password
+     */
+    public static @NotNull RconClient connect(@NotNull String host, int port, @NotNull String password,
+                                              int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            RconClient client = new RconClient(socket, timeoutMillis);
+            client.login(password);
+            // Responses are only awaited by the commands, the connection itself may stay idle indefinitely
+            socket.setSoTimeout(0);
+            Thread readerThread = new Thread(client::readResponses, "rcon-" + host + ":" + port);
+            readerThread.setDaemon(true);
+            readerThread.start();
+            return client;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a command on the server, as if it was typed into the server console, and waits for its output.
+     *
+     * @param command The command, without a leading slash
+     * @return The output of the command
+     * @throws IOException If the connection failed or the server did not respond in time
+     */
+    public @NotNull String sendCommand(@NotNull String command) throws IOException {
+        try {
+            return sendCommandAsync(command).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the RCON response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("The RCON command failed", e.getCause());
+        }
+    }
+
+    /**
+     * Runs a command on the server, as if it was typed into the server console. The command is written before this
+     * method returns, unless {@link #MAXIMUM_PENDING_COMMANDS} commands are already waiting for their responses, in
+     * which case this method blocks until one of them has been answered.
+     *
+     * @param command The command, without a leading slash
+     * @return A future that completes with the output of the command, or fails with an IOException if the connection
+     * failed or with a TimeoutException if the server did not respond in time
+     */
+    public @NotNull CompletableFuture<String> sendCommandAsync(@NotNull String command) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            pendingCommandPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new InterruptedIOException("Interrupted while waiting to send the command"));
+            return future;
+        }
+        future.whenComplete((output, throwable) -> pendingCommandPermits.release());
+
+        // Commands use even request ids and the packets marking the end of their responses use the next odd id.
+        // Request ids must not be negative, as the server answers with -1 if the client is not logged in.
+        int requestId = nextRequestId.getAndAdd(2) & 0x3FFFFFFE;
+        PendingCommand pendingCommand = new PendingCommand(future);
+        pendingCommands.put(requestId, pendingCommand);
+        future.whenComplete((output, throwable) -> pendingCommands.remove(requestId));
+        if (closed) {
+            future.completeExceptionally(new IOException("The RCON connection has been closed"));
+            return future;
+        }
+        try {
+            ByteBuffer packets = ByteBuffer.allocate(getPacketLength(command) + getPacketLength(""))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            putPacket(packets, requestId, TYPE_COMMAND, command);
+            putPacket(packets, requestId + 1, TYPE_RESPONSE, "");
+            synchronized (outputStream) {
+                outputStream.write(packets.array());
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            failPendingCommands(e);
+            return future;
+        }
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Returns whether the connection can still be used to send commands.
+     *
+     * @return false if the connection has been closed or has failed
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    private void login(String password) throws IOException {
+        int requestId = nextRequestId.getAndAdd(2);
+        ByteBuffer packet = ByteBuffer.allocate(getPacketLength(password)).order(ByteOrder.LITTLE_ENDIAN);
+        putPacket(packet, requestId, TYPE_LOGIN, password);
+        outputStream.write(packet.array());
+        outputStream.flush();
+        Packet response = readPacket();
+        // The server answers with a request id of -1 if the password is wrong
+        if (response.requestId != requestId) {
+            throw new IOException("The RCON password was rejected");
+        }
+    }
+
+    private static int getPacketLength(String body) {
+        // Length, request id, type, body and two terminating null bytes
+        return 4 + 4 + 4 + body.length() + 2;
+    }
+
+    private static void putPacket(ByteBuffer buffer, int requestId, int type, String body) {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.US_ASCII);
+        buffer.putInt(4 + 4 + bodyBytes.length + 2).putInt(requestId).putInt(type).put(bodyBytes)
+                .put((byte) 0).put((byte) 0);
+    }
+
+    private Packet readPacket() throws IOException {
+        int length = Integer.reverseBytes(inputStream.readInt());
+        if (length < 10 || length > MAXIMUM_PACKET_LENGTH) {
+            throw new IOException("Invalid RCON packet length " + length);
+        }
+        byte[] packet = new byte[length];
+        inputStream.readFully(packet);
+        ByteBuffer buffer = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+        int requestId = buffer.getInt();
+        int type = buffer.getInt();
+        String body = new String(packet, 8, length - 10, StandardCharsets.US_ASCII);
+        return new Packet(requestId, type, body);
+    }
+
+    /**
+     * Run by the reader thread until the connection is closed.
+     */
+    private void readResponses() {
+        try {
+            while (!closed) {
+                Packet packet = readPacket();
+                if (packet.type != TYPE_RESPONSE) {
+                    continue;
+                }
+                // The id of a response is the id of the command, or of the marker following it
+                PendingCommand pendingCommand = pendingCommands.get(packet.requestId & ~1);
+                if (pendingCommand == null) {
+                    // The command has timed out
+                    continue;
+                }
+                if ((packet.requestId & 1) == 0) {
+                    pendingCommand.output.append(packet.body);
+                } else {
+                    pendingCommand.future.complete(pendingCommand.output.toString());
+                }
+            }
+        } catch (IOException e) {
+            failPendingCommands(e);
+        }
+    }
+
+    private void failPendingCommands(IOException cause) {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The connection has already failed
+        }
+        for (PendingCommand pendingCommand : pendingCommands.values()) {
+            pendingCommand.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Closes the connection. Commands that have not been answered yet fail.
+     */
+    @Override
+    public void close() throws IOException {
+        failPendingCommands(new IOException("The RCON connection has been closed"));
+    }
+
+    private static final class PendingCommand {
+        private final CompletableFuture<String> future;
+        // Only used by the reader thread
+        private final StringBuilder output = new StringBuilder();
+
+        private PendingCommand(CompletableFuture<String> future) {
+            this.future = future;
+        }
+    }
+
+    private static final class Packet {
+        private final int requestId;
+        private final int type;
+        private final String body;
+
+        private Packet(int requestId, int type, String body) {
+            this.requestId = requestId;
+            this.type = type;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package osbourn.cloudcubes.core.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * Keeps one logged in {@link RconClient} per server, so that commands sent to the same server reuse the connection
+ * instead of paying for a TCP handshake and a login every time. Connections are opened on a background thread, so
+ * commands can be sent to many servers at the same time, and connections that have not been used for the idle timeout
+ * are closed.
+ * </p>
+ *
+ * <p>
+ * If a pooled connection has failed, it is replaced before the next command is sent. A command that was already sent
+ * over a connection that then failed is not sent again, because running a command twice is not always harmless. This
+ * class is thread safe.
+ * </p>
+ */
+public class RconConnectionPool implements AutoCloseable {
+    /**
+     * The time a connection may stay unused before it is closed, if no other time is given
+     */
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private final int timeoutMillis;
+    private final long idleTimeoutNanos;
+    private final Map<String, PooledConnection> connections = new HashMap<>();
+    private final ExecutorService connectExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "rcon-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates an RconConnectionPool that closes connections after {@link #DEFAULT_IDLE_TIMEOUT}.
+     *
+     * @param timeoutMillis The time establishing a connection, and the response to every command, may take
+     */
+    public RconConnectionPool(int timeoutMillis) {
+        this(timeoutMillis, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Creates an RconConnectionPool.
+     *
+     * @param timeoutMillis The time establishing a connection, and the response to every command, may take
+     * @param idleTimeout   The time a connection may stay unused before it is closed
+     */
+    public RconConnectionPool(int timeoutMillis, @NotNull Duration idleTimeout) {
+        this.timeoutMillis = timeoutMillis;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+    }
+
+    /**
+     * Runs a command on a server.
+     *
+     * @param host     The address of the server
+     * @param port     The RCON port of the server
+     * @param password The RCON password of the server
+     * @param command  The command, without a leading slash
+     * @return A future that completes with the output of the command, or fails with an IOException if the server could
+     * not be reached, rejected the password or the connection failed, or with a TimeoutException if the server did
+     * not respond in time
+     */
+    public @NotNull CompletableFuture<String> executeCommand(@NotNull String host, int port,
+                                                            @NotNull String password, @NotNull String command) {
+        return getConnection(host, port, password).thenCompose(client -> client.sendCommandAsync(command));
+    }
+
+    /**
+     * Runs several commands on a server. The commands are pipelined over the same connection, and run in the order
+     * they are given.
+     *
+     * @param host     The address of the server
+     * @param port     The RCON port of the server
+     * @param password The RCON password of the server
+     * @param commands The commands, without leading slashes
+     * @return A future that completes with the output of each command, in the same order as the commands, or fails
+     * like {@link #executeCommand(String, int, String, String)} if any of the commands failed
+     */
+    public @NotNull CompletableFuture<List<String>> executeCommands(@NotNull String host, int port,
+                                                                   @NotNull String password,
+                                                                   @NotNull List<String> commands) {
+        return getConnection(host, port, password).thenCompose(client -> {
+            List<CompletableFuture<String>> outputs = new ArrayList<>(commands.size());
+            for (String command : commands) {
+                outputs.add(client.sendCommandAsync(command));
+            }
+            return CompletableFuture.allOf(outputs.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                List<String> results = new ArrayList<>(outputs.size());
+                for (CompletableFuture<String> output : outputs) {
+                    results.add(output.join());
+                }
+                return results;
+            });
+        });
+    }
+
+    /**
+     * Gets the pooled connection to a server, or opens one if there is none or the pooled one has failed. Concurrent
+     * callers share the connection that is being opened.
+     */
+    private synchronized CompletableFuture<RconClient> getConnection(String host, int port, String password) {
+        long now = System.nanoTime();
+        closeIdleConnections(now);
+        String key = host + ":" + port;
+        PooledConnection connection = connections.get(key);
+        if (connection == null || !connection.isUsable(password)) {
+            if (connection != null) {
+                connection.close();
+            }
+            CompletableFuture<RconClient> client = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return RconClient.connect(host, port, password, timeoutMillis);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, connectExecutor).exceptionally(throwable -> {
+                // Callers expect the IOException itself, like the failures of the commands
+                Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                if (cause instanceof UncheckedIOException) {
+                    cause = cause.getCause();
+                }
+                synchronized (this) {
+                    connections.remove(key);
+                }
+                throw new CompletionException(cause);
+            });
+            connection = new PooledConnection(password, client);
+            connections.put(key, connection);
+        }
+        connection.lastUsed = now;
+        return connection.client;
+    }
+
+    private void closeIdleConnections(long now) {
+        Iterator<PooledConnection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            PooledConnection connection = iterator.next();
+            if (now - connection.lastUsed > idleTimeoutNanos) {
+                connection.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes every pooled connection.
+     */
+    @Override
+    public synchronized void close() {
+        for (PooledConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+        connectExecutor.shutdown();
+    }
+
+    private static final class PooledConnection {
+        private final String password;
+        private final CompletableFuture<RconClient> client;
+        private long lastUsed;
+
+        private PooledConnection(String password, CompletableFuture<RconClient> client) {
+            this.password = password;
+            this.client = client;
+        }
+
+        /**
+         * Returns false if the connection was opened with a different password, which happens when the server has
+         * been restarted, or if it has failed.
+         */
+        private boolean isUsable(String password) {
+            if (!this.password.equals(password)) {
+                return false;
+            }
+            // A connection that is still being opened is usable, a failed attempt removes itself from the pool
+            RconClient openClient = client.getNow(null);
+            return openClient == null ? !client.isCompletedExceptionally() : openClient.isOpen();
+        }
+
+        private void close() {
+            client.thenAccept(openClient -> {
+                try {
+                    openClient.close();
+                } catch (IOException e) {
+                    // The connection has already been closed
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package osbourn.cloudcubes.core.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>
+ * Queries the status of Minecraft servers with the Server List Ping protocol, the protocol used by the server list of
+ * the Minecraft client. See https://wiki.vg/Server_List_Ping for a description of the protocol. Every ping reads the
+ * status document and then measures the round trip time with a ping packet.
+ * </p>
+ *
+ * <p>
+ * Every ping is made with non-blocking I/O on a single selector thread, so many servers can be pinged at the same time
+ * without a thread per server. At most a fixed number of pings are in progress at once; the others wait until one of
+ * them finishes, so a sweep over a large fleet does not open hundreds of sockets at the same time. The buffers that
+ * requests and responses are written to are pooled and reused by later pings. This class is thread safe.
+ * </p>
+ */
+public class ServerListPinger implements AutoCloseable {
+    /**
+     * The number of pings that may be in progress at once when no other number is given
+     */
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_PINGS = 64;
+
+    /**
+     * The protocol version sent in the handshake. Servers answer status requests regardless of the version.
+     */
+    private static final int PROTOCOL_VERSION = 47;
+    /**
+     * The size of the pooled buffers, which fits the status of a server without an icon
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * The largest response accepted, which leaves room for the server icon
+     */
+    private static final int MAXIMUM_RESPONSE_LENGTH = 256 * 1024;
+
+    private final int maximumConcurrentPings;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final Queue<Ping> waitingPings = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    // Only used by the selector thread
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private int activePings = 0;
+
+    /**
+     * Creates a ServerListPinger that makes at most {@link #DEFAULT_MAXIMUM_CONCURRENT_PINGS} pings at once and starts
+     * its selector thread.
+     *
+     * @throws IOException If the selector could not be opened
+     */
+    public ServerListPinger() throws IOException {
+        this(DEFAULT_MAXIMUM_CONCURRENT_PINGS);
+    }
+
+    /**
+     * Creates a ServerListPinger and starts its selector thread.
+     *
+     * @param maximumConcurrentPings The number of pings that may be in progress at once
+     * @throws IOException If the selector could not be opened
+     */
+    public ServerListPinger(int maximumConcurrentPings) throws IOException {
+        if (maximumConcurrentPings < 1) {
+            throw new IllegalArgumentException("At least one ping must be allowed at once");
+        }
+        this.maximumConcurrentPings = maximumConcurrentPings;
+        selector = Selector.open();
+        selectorThread = new Thread(this::runSelector, "server-list-pinger");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Pings a Minecraft server.
+     *
+     * @param address The address of the server
+     * @param timeout The time the whole ping may take, including establishing the connection
+     * @return A future that completes with the status of the server, or fails with an IOException if the server could
+     * not be reached or sent an invalid response, or with a TimeoutException if it did not respond in time
+     * @see #ping(InetSocketAddress, Duration, Duration)
+     */
+    public @NotNull CompletableFuture<ServerStatus> ping(@NotNull InetSocketAddress address,
+                                                        @NotNull Duration timeout) {
+        return ping(address, timeout, timeout);
+    }
+
+    /**
+     * Pings a Minecraft server. The timeouts start once the ping has left the queue of waiting pings, so pings that
+     * wait for other pings to finish do not time out sooner.
+     *
+     * @param address        The address of the server
+     * @param connectTimeout The time establishing the connection may take
+     * @param timeout        The time the whole ping may take, including establishing the connection
+     * @return A future that completes with the status of the server, or fails with an IOException if the server could
+     * not be reached or sent an invalid response (a SocketTimeoutException if the connection could not be established
+     * in time), or with a TimeoutException if it did not respond in time
+     */
+    public @NotNull CompletableFuture<ServerStatus> ping(@NotNull InetSocketAddress address,
+                                                        @NotNull Duration connectTimeout,
+                                                        @NotNull Duration timeout) {
+        CompletableFuture<ServerStatus> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("The pinger has been closed"));
+            return future;
+        }
+        waitingPings.add(new Ping(address, connectTimeout.toNanos(), timeout.toNanos(), future));
+        selector.wakeup();
+        return future;
+    }
+
+    /**
+     * Pings several Minecraft servers. At most the maximum number of concurrent pings are in progress at once, the
+     * others are queued.
+     *
+     * @param addresses The addresses of the servers, in the format (key, address)
+     * @param timeout   The time each ping may take, including establishing the connection
+     * @param <K>       The type of the keys identifying the servers
+     * @return The ping of each server, in the format (key, ping), in the same order as the addresses
+     */
+    public @NotNull <K> Map<K, CompletableFuture<ServerStatus>> pingAll(@NotNull Map<K, InetSocketAddress> addresses,
+                                                                        @NotNull Duration timeout) {
+        Map<K, CompletableFuture<ServerStatus>> pings = new LinkedHashMap<>();
+        for (Map.Entry<K, InetSocketAddress> entry : addresses.entrySet()) {
+            pings.put(entry.getKey(), ping(entry.getValue(), timeout));
+        }
+        return pings;
+    }
+
+    /**
+     * Writes the handshake packet followed by the status request packet.
+     */
+    private static void writeStatusRequest(ByteBuffer buffer, InetSocketAddress address) {
+        byte[] host = address.getHostString().getBytes(StandardCharsets.UTF_8);
+        int handshakeLength = varIntLength(0x00) + varIntLength(PROTOCOL_VERSION) + varIntLength(host.length)
+                + host.length + Short.BYTES + varIntLength(1);
+        writeVarInt(buffer, handshakeLength);
+        writeVarInt(buffer, 0x00);
+        writeVarInt(buffer, PROTOCOL_VERSION);
+        writeVarInt(buffer, host.length);
+        buffer.put(host);
+        buffer.putShort((short) address.getPort());
+        // The next state is "status"
+        writeVarInt(buffer, 1);
+
+        // The status request is an empty packet with id 0
+        writeVarInt(buffer, 1);
+        writeVarInt(buffer, 0x00);
+    }
+
+    /**
+     * Writes a ping packet, which the server answers with a pong packet carrying the same payload.
+     */
+    private static void writePingRequest(ByteBuffer buffer, long payload) {
+        writeVarInt(buffer, 1 + Long.BYTES);
+        writeVarInt(buffer, 0x01);
+        buffer.putLong(payload);
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a VarInt from the buffer.
+     *
+     * @return The value, or -1 if the buffer does not contain the whole VarInt yet
+     * @throws IOException If the VarInt is longer than five bytes
+     */
+    private static int readVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int position = 0; position < 5; position++) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            byte currentByte = buffer.get();
+            value |= (currentByte & 0x7F) << (7 * position);
+            if ((currentByte & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt is too long");
+    }
+
+    private void runSelector() {
+        try {
+            while (!closed) {
+                long timeoutMillis = startWaitingPings();
+                selector.select(Math.max(1, timeoutMillis));
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    handle(key);
+                }
+                expirePings();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // The selector can only fail if it has been closed
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Ping) key.attachment()).fail(new IllegalStateException("The pinger has been closed"));
+        }
+    }
+
+    /**
+     * Starts as many waiting pings as the maximum number of concurrent pings allows.
+     *
+     * @return The time until the earliest ping times out, in milliseconds
+     */
+    private long startWaitingPings() {
+        while (activePings < maximumConcurrentPings) {
+            Ping ping = waitingPings.poll();
+            if (ping == null) {
+                break;
+            }
+            ping.start();
+        }
+        long now = System.nanoTime();
+        long earliestDeadline = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            Ping ping = (Ping) key.attachment();
+            if (!ping.finished) {
+                earliestDeadline = Math.min(earliestDeadline, ping.getDeadline());
+            }
+        }
+        return earliestDeadline == Long.MAX_VALUE ? 0 : Duration.ofNanos(earliestDeadline - now).toMillis();
+    }
+
+    private void handle(SelectionKey key) {
+        Ping ping = (Ping) key.attachment();
+        try {
+            if (key.isConnectable() && ping.channel.finishConnect()) {
+                ping.connected = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isWritable()) {
+                ping.write(key);
+            }
+            if (key.isValid() && key.isReadable()) {
+                ping.read(key);
+            }
+        } catch (IOException | RuntimeException e) {
+            ping.fail(e);
+        }
+    }
+
+    private void expirePings() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            Ping ping = (Ping) key.attachment();
+            if (!ping.finished && now - ping.getDeadline() >= 0) {
+                ping.fail(ping.connected
+                        ? new TimeoutException("The server did not respond in time")
+                        : new SocketTimeoutException("The connection could not be established in time"));
+            }
+        }
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        // Direct buffers are read into and written from without an intermediate copy
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Stops the selector thread. Pings that have not completed yet fail.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        Ping ping;
+        while ((ping = waitingPings.poll()) != null) {
+            ping.future.completeExceptionally(new IllegalStateException("The pinger has been closed"));
+        }
+    }
+
+    /**
+     * A ping. Apart from its future, a ping is only used by the selector thread.
+     */
+    private final class Ping {
+        private final InetSocketAddress address;
+        private final long connectTimeoutNanos;
+        private final long timeoutNanos;
+        private final CompletableFuture<ServerStatus> future;
+
+        private SocketChannel channel;
+        private ByteBuffer pooledBuffer;
+        private ByteBuffer buffer;
+        private long startTime;
+        private boolean connected = false;
+        private boolean finished = false;
+
+        private long sentTime;
+        private String statusJson = null;
+        private long statusLatencyNanos;
+
+        private Ping(InetSocketAddress address,
+                     long connectTimeoutNanos,
+                     long timeoutNanos,
+                     CompletableFuture<ServerStatus> future) {
+            this.address = address;
+            this.connectTimeoutNanos = connectTimeoutNanos;
+            this.timeoutNanos = timeoutNanos;
+            this.future = future;
+        }
+
+        private void start() {
+            activePings++;
+            startTime = System.nanoTime();
+            pooledBuffer = takeBuffer();
+            buffer = pooledBuffer;
+            writeStatusRequest(buffer, address);
+            buffer.flip();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                connected = channel.connect(address);
+                channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private long getDeadline() {
+            return startTime + (connected ? timeoutNanos : Math.min(connectTimeoutNanos, timeoutNanos));
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            channel.write(buffer);
+            if (!buffer.hasRemaining()) {
+                sentTime = System.nanoTime();
+                buffer.clear();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAXIMUM_RESPONSE_LENGTH) {
+                    throw new IOException("The status response is too long");
+                }
+                // Only statuses with large icons need more than a pooled buffer
+                ByteBuffer largerBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                largerBuffer.put(buffer);
+                buffer = largerBuffer;
+            }
+            if (channel.read(buffer) < 0) {
+                if (statusJson != null) {
+                    // Some servers close the connection instead of answering the ping packet
+                    complete(statusLatencyNanos);
+                    return;
+                }
+                throw new IOException("The server closed the connection before sending its status");
+            }
+
+            ByteBuffer received = buffer.duplicate().flip();
+            int packetLength = readVarInt(received);
+            if (packetLength < 0 || received.remaining() < packetLength) {
+                return;
+            }
+            int packetId = readVarInt(received);
+            if (statusJson == null) {
+                // The response is a packet with id 0 whose only field is the status, as a JSON document
+                if (packetId != 0x00) {
+                    throw new IOException("Unexpected packet in response to the status request");
+                }
+                int jsonLength = readVarInt(received);
+                if (jsonLength < 0 || jsonLength > received.remaining()) {
+                    throw new IOException("Invalid status response");
+                }
+                received.limit(received.position() + jsonLength);
+                statusJson = StandardCharsets.UTF_8.decode(received).toString();
+                statusLatencyNanos = System.nanoTime() - sentTime;
+
+                buffer = pooledBuffer.clear();
+                writePingRequest(buffer, sentTime);
+                buffer.flip();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                // The pong packet carries the payload of the ping packet, which is not needed
+                if (packetId != 0x01) {
+                    throw new IOException("Unexpected packet in response to the ping request");
+                }
+                complete(System.nanoTime() - sentTime);
+            }
+        }
+
+        private void complete(long latencyNanos) {
+            if (!finish()) {
+                return;
+            }
+            try {
+                future.complete(ServerStatus.fromJson(statusJson, Duration.ofNanos(latencyNanos)));
+            } catch (IllegalArgumentException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void fail(Throwable throwable) {
+            if (statusJson != null && !closed) {
+                // The status has already been received, only the latency measurement failed
+                complete(statusLatencyNanos);
+            } else if (finish()) {
+                future.completeExceptionally(throwable);
+            }
+        }
+
+        /**
+         * Closes the connection and returns the buffer to the pool.
+         *
+         * @return false if the ping had already finished
+         */
+        private boolean finish() {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+            activePings--;
+            if (channel != null) {
+                try {
+                    // Closing the channel also cancels its selection key
+                    channel.close();
+                } catch (IOException e) {
+                    // The ping has already finished
+                }
+            }
+            bufferPool.push(pooledBuffer);
+            pooledBuffer = null;
+            buffer = null;
+            return true;
+        }
+    }
+}
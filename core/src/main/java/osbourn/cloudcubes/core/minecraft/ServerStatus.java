@@ -0,0 +1,76 @@
+package osbourn.cloudcubes.core.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The status a Minecraft server reports in response to a Server List Ping.
+ */
+public final class ServerStatus {
+    // Quotes inside JSON strings are always escaped, so these only match the keys of the "players" object
+    private static final Pattern ONLINE_PLAYERS_PATTERN = Pattern.compile("\"online\"\\s*:\\s*(\\d+)");
+    private static final Pattern MAXIMUM_PLAYERS_PATTERN = Pattern.compile("\"max\"\\s*:\\s*(\\d+)");
+
+    private final int onlinePlayers;
+    private final int maximumPlayers;
+    private final String json;
+    private final Duration latency;
+
+    private ServerStatus(int onlinePlayers, int maximumPlayers, String json, Duration latency) {
+        this.onlinePlayers = onlinePlayers;
+        this.maximumPlayers = maximumPlayers;
+        this.json = json;
+        this.latency = latency;
+    }
+
+    /**
+     * Reads the player counts from the JSON document sent by the server.
+     *
+     * @param json    The JSON document
+     * @param latency The round trip time to the server
+     * @return The status
+     * @throws IllegalArgumentException If the document does not contain the player counts
+     */
+    public static @NotNull ServerStatus fromJson(@NotNull String json, @NotNull Duration latency) {
+        Matcher onlinePlayersMatcher = ONLINE_PLAYERS_PATTERN.matcher(json);
+        Matcher maximumPlayersMatcher = MAXIMUM_PLAYERS_PATTERN.matcher(json);
+        if (!onlinePlayersMatcher.find() || !maximumPlayersMatcher.find()) {
+            throw new IllegalArgumentException("The status does not contain the player counts");
+        }
+        return new ServerStatus(
+                Integer.parseInt(onlinePlayersMatcher.group(1)),
+                Integer.parseInt(maximumPlayersMatcher.group(1)),
+                json,
+                latency);
+    }
+
+    public int getOnlinePlayers() {
+        return onlinePlayers;
+    }
+
+    public int getMaximumPlayers() {
+        return maximumPlayers;
+    }
+
+    /**
+     * Gets the round trip time to the server, measured with a ping packet once the status had been received. If the
+     * server did not answer the ping packet, this is the time the status request took instead.
+     *
+     * @return The round trip time
+     */
+    public @NotNull Duration getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the JSON document sent by the server, which also contains the version, description and icon of the server.
+     *
+     * @return The JSON document
+     */
+    public @NotNull String getJson() {
+        return json;
+    }
+}
@@ -1,27 +1,50 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
 import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
 import osbourn.cloudcubes.core.database.DatabaseEntry;
 import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.minecraft.RconClient;
+import osbourn.cloudcubes.core.minecraft.RconConnectionPool;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class CloudCubesServer implements Server {
+    /**
+     * The port Minecraft servers accept players on
+     */
+    static final int MINECRAFT_PORT = 25565;
+    private static final Duration WORLD_READY_TIMEOUT = Duration.ofSeconds(3);
+
     private final UUID id;
     private final DatabaseEntry databaseEntry;
     private final InstanceManager instanceManager;
+    private final ServerListPinger serverListPinger;
+    private final RconConnectionPool rconConnectionPool;
 
-    private CloudCubesServer(
+    CloudCubesServer(
             UUID id,
             DynamoDBEntry databaseEntry,
-            InstanceManager instanceManager
+            InstanceManager instanceManager,
+            ServerListPinger serverListPinger,
+            RconConnectionPool rconConnectionPool
     ) {
         this.id = id;
         this.databaseEntry = databaseEntry;
         this.instanceManager = instanceManager;
+        this.serverListPinger = serverListPinger;
+        this.rconConnectionPool = rconConnectionPool;
     }
 
     @Override
@@ -29,9 +52,56 @@ public class CloudCubesServer implements Server {
         return id;
     }
 
+    /**
+     * Gets the state of the server as it is recorded in the database, without verifying it.
+     *
+     * @return The state of the server in the database
+     */
     @Override
     public ProvisionalServerState getServerState() {
-        return null;
+        String serverStateAsString = databaseEntry.getStringValue("ServerState");
+        if (serverStateAsString == null) {
+            return ProvisionalServerState.UNKNOWN;
+        }
+        try {
+            return ProvisionalServerState.valueOf(serverStateAsString);
+        } catch (IllegalArgumentException e) {
+            // TODO Log warning
+            return ProvisionalServerState.UNKNOWN;
+        }
+    }
+
+    /**
+     * Gets the lifecycle phase of the server as it was when the database entry was read. Servers loaded through a
+     * {@link ServerRepository} have it downloaded along with their state.
+     *
+     * @return The phase of the server in the database, or null if it has never been recorded
+     */
+    @Override
+    public @Nullable ServerLifecyclePhase getLifecyclePhase() {
+        return ServerLifecycle.parsePhase(databaseEntry.getStringValue(ServerLifecycle.PHASE_KEY));
+    }
+
+    /**
+     * Pings the Minecraft server. Servers that are recorded as OFFLINE are not pinged.
+     *
+     * @return true if the Minecraft server answered a status request
+     */
+    @Override
+    public boolean isWorldReady() {
+        if (getServerState() == ProvisionalServerState.OFFLINE) {
+            return false;
+        }
+        String publicIpAddress = instanceManager.getPublicIpAddress();
+        if (publicIpAddress == null) {
+            return false;
+        }
+        try {
+            serverListPinger.ping(new InetSocketAddress(publicIpAddress, MINECRAFT_PORT), WORLD_READY_TIMEOUT).join();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
     }
 
     @Override
@@ -39,6 +109,67 @@ public class CloudCubesServer implements Server {
         instanceManager.setState(ServerState.ONLINE);
     }
 
+    @Override
+    public @NotNull CompletableFuture<Void> startServerAsync() {
+        return instanceManager.setStateAsync(ServerState.ONLINE).thenApply(launched -> null);
+    }
+
+    @Override
+    public void stopServer() {
+        instanceManager.setState(ServerState.OFFLINE);
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> stopServerAsync() {
+        return instanceManager.setStateAsync(ServerState.OFFLINE).thenApply(stopped -> null);
+    }
+
+    @Override
+    public @NotNull String executeCommand(@NotNull String command) {
+        return join(executeCommandAsync(command));
+    }
+
+    @Override
+    public @NotNull CompletableFuture<String> executeCommandAsync(@NotNull String command) {
+        return executeCommandsAsync(List.of(command)).thenApply(outputs -> outputs.get(0));
+    }
+
+    @Override
+    public @NotNull List<String> executeCommands(@NotNull List<String> commands) {
+        return join(executeCommandsAsync(commands));
+    }
+
+    /**
+     * Runs several commands on the Minecraft server over the pooled RCON connection of the server.
+     *
+     * @param commands The commands, without leading slashes
+     * @return A future that completes with the output of each command, or fails with an IllegalStateException if the
+     * server is not running, or with an IOException if the commands could not be sent
+     */
+    @Override
+    public @NotNull CompletableFuture<List<String>> executeCommandsAsync(@NotNull List<String> commands) {
+        String rconPassword = databaseEntry.getStringValue("RconPassword");
+        String publicIpAddress = rconPassword == null ? null : instanceManager.getPublicIpAddress();
+        if (publicIpAddress == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The server is not running"));
+        }
+        return rconConnectionPool.executeCommands(publicIpAddress, RconClient.DEFAULT_PORT, rconPassword, commands);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Gets the display name of the server from the database
      *
@@ -62,19 +193,99 @@ public class CloudCubesServer implements Server {
     }
 
     public static CloudCubesServer fromId(UUID id, InfrastructureConfiguration infrastructureConfiguration) {
-        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(infrastructureConfiguration);
+        return fromId(id, new InfrastructureConstructor(infrastructureConfiguration));
+    }
+
+    /**
+     * Creates a server object that uses the SDK clients of the given InfrastructureConstructor. Passing a shared
+     * InfrastructureConstructor (such as {@link InfrastructureConstructor#fromEnvironment()}) avoids creating new
+     * clients for every server.
+     *
+     * @param id                        The id of the server
+     * @param infrastructureConstructor The InfrastructureConstructor providing the SDK clients
+     * @return The server object
+     */
+    public static CloudCubesServer fromId(UUID id, InfrastructureConstructor infrastructureConstructor) {
+        InfrastructureConfiguration infrastructureConfiguration =
+                infrastructureConstructor.getInfrastructureConfiguration();
         DynamoDBEntry dynamoDBEntry = DynamoDBEntry.fromId(
                 id,
                 infrastructureConstructor.getDynamoDBClient(),
+                infrastructureConstructor::getDynamoDBAsyncClient,
                 infrastructureConfiguration.getValue(InfrastructureSetting.SERVERDATABASENAME));
-        EC2SpotInstanceManager EC2SpotInstanceManager = new EC2SpotInstanceManager(
+        return new CloudCubesServer(id, dynamoDBEntry, createInstanceManager(dynamoDBEntry, infrastructureConstructor),
+                infrastructureConstructor.getServerListPinger(), infrastructureConstructor.getRconConnectionPool());
+    }
+
+    /**
+     * Creates the instance manager of a server. Servers whose "WorldStorage" is "EBS" keep their world on an EBS
+     * volume (see {@link EBSWorldVolumeInstanceManager}), all other servers keep it in the world bucket. The latter are
+     * started on an instance of the {@link WarmPool} if the pool is enabled, as pool instances have no world volume.
+     *
+     * @param dynamoDBEntry             The database entry of the server
+     * @param infrastructureConstructor The InfrastructureConstructor providing the SDK clients
+     * @return The instance manager
+     */
+    static EC2SpotInstanceManager createInstanceManager(DynamoDBEntry dynamoDBEntry,
+                                                        InfrastructureConstructor infrastructureConstructor) {
+        InfrastructureConfiguration infrastructureConfiguration =
+                infrastructureConstructor.getInfrastructureConfiguration();
+        // The instance manager reads these keys anyway, so looking up the world storage costs no extra request
+        dynamoDBEntry.prefetch(EC2SpotInstanceManager.DATABASE_KEYS);
+        if (EBSWorldVolumeInstanceManager.WORLD_STORAGE.equals(
+                dynamoDBEntry.getStringValue(EC2SpotInstanceManager.WORLD_STORAGE_KEY))) {
+            return new EBSWorldVolumeInstanceManager(
+                    dynamoDBEntry,
+                    infrastructureConstructor.getEc2Client(),
+                    infrastructureConstructor::getEc2AsyncClient,
+                    infrastructureConstructor.getBlockingExecutor(),
+                    infrastructureConfiguration,
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN),
+                    infrastructureConstructor.getSpotSubnetRanker(),
+                    infrastructureConstructor.getInstanceTypeSelector(),
+                    infrastructureConstructor.getServerImageResolver(),
+                    infrastructureConstructor.getSpotFulfillmentTracker(),
+                    infrastructureConstructor.getServerStateReconciler(),
+                    infrastructureConstructor.getWorldSynchronizer(),
+                    infrastructureConstructor.getServerLifecycle(),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID)
+            );
+        }
+        WarmPool warmPool = infrastructureConstructor.getWarmPool();
+        if (warmPool.isEnabled()) {
+            return new WarmPoolInstanceManager(
+                    dynamoDBEntry,
+                    infrastructureConstructor.getEc2Client(),
+                    infrastructureConstructor::getEc2AsyncClient,
+                    infrastructureConstructor.getBlockingExecutor(),
+                    infrastructureConfiguration,
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN),
+                    infrastructureConstructor.getSpotSubnetRanker(),
+                    infrastructureConstructor.getInstanceTypeSelector(),
+                    infrastructureConstructor.getServerImageResolver(),
+                    infrastructureConstructor.getSpotFulfillmentTracker(),
+                    infrastructureConstructor.getServerStateReconciler(),
+                    infrastructureConstructor.getWorldSynchronizer(),
+                    infrastructureConstructor.getServerLifecycle(),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID),
+                    warmPool
+            );
+        }
+        return new EC2SpotInstanceManager(
                 dynamoDBEntry,
                 infrastructureConstructor.getEc2Client(),
+                infrastructureConstructor::getEc2AsyncClient,
+                infrastructureConstructor.getBlockingExecutor(),
                 infrastructureConfiguration,
                 infrastructureConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN),
-                infrastructureConfiguration.getServerSubnetIds().get(0),
+                infrastructureConstructor.getSpotSubnetRanker(),
+                infrastructureConstructor.getInstanceTypeSelector(),
+                infrastructureConstructor.getServerImageResolver(),
+                infrastructureConstructor.getSpotFulfillmentTracker(),
+                infrastructureConstructor.getServerStateReconciler(),
+                infrastructureConstructor.getWorldSynchronizer(),
+                infrastructureConstructor.getServerLifecycle(),
                 infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID)
         );
-        return new CloudCubesServer(id, dynamoDBEntry, EC2SpotInstanceManager);
     }
 }
@@ -0,0 +1,352 @@
+package osbourn.cloudcubes.core.server;
+
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * An {@link EC2SpotInstanceManager} that keeps the world of the server on an EBS volume of its own instead of in the
+ * world bucket. When the server is stopped, the volume is snapshotted once the instance has been terminated, and when
+ * the server is started, the launch specification maps a new volume created from the latest snapshot to
+ * {@link #WORLD_VOLUME_DEVICE}. EC2 creates the volume in the availability zone of the subnet the instance is launched
+ * in, and the volume loads its blocks from the snapshot as they are read, so the time it takes to restore a world does
+ * not depend on its size.
+ * </p>
+ *
+ * <p>
+ * The ids of the volume and of the two latest snapshots are recorded in the database entry of the server, so that an
+ * earlier snapshot is still available if the latest one turns out to be unusable. Setting "FastSnapshotRestore" to
+ * "true" in the entry enables fast snapshot restore for the latest snapshot in the availability zones of the server
+ * subnets, so that new volumes do not have to load their blocks lazily. This is billed for every hour it is enabled.
+ * </p>
+ *
+ * <p>
+ * Cleaning up after a stop does not fail the stop. Snapshots that could not be deleted are recorded under
+ * {@link #UNDELETED_WORLD_SNAPSHOT_IDS_KEY} and deleted again by the next stop, and the error code of a failed move of
+ * fast snapshot restore is recorded under {@link #FAST_SNAPSHOT_RESTORE_ERROR_KEY} until a later move succeeds.
+ * </p>
+ */
+public class EBSWorldVolumeInstanceManager extends EC2SpotInstanceManager {
+    /**
+     * The value of {@link EC2SpotInstanceManager#WORLD_STORAGE_KEY} of servers whose world is kept on an EBS volume
+     */
+    public static final String WORLD_STORAGE = "EBS";
+    /**
+     * The device name the world volume is attached as, which startup.sh mounts as the server directory. Amazon Linux
+     * links the device name to the NVMe device of the volume on instance types that expose volumes as NVMe devices.
+     */
+    public static final String WORLD_VOLUME_DEVICE = "/dev/sdf";
+    public static final String WORLD_VOLUME_ID_KEY = "WorldVolumeId";
+    public static final String WORLD_SNAPSHOT_ID_KEY = "WorldSnapshotId";
+    public static final String PREVIOUS_WORLD_SNAPSHOT_ID_KEY = "PreviousWorldSnapshotId";
+    /**
+     * The key of the comma-separated ids of old snapshots whose deletion failed
+     */
+    public static final String UNDELETED_WORLD_SNAPSHOT_IDS_KEY = "UndeletedWorldSnapshotIds";
+    /**
+     * The key of the error code EC2 returned when fast snapshot restore was last moved to a new snapshot, which is
+     * absent if the move succeeded
+     */
+    public static final String FAST_SNAPSHOT_RESTORE_ERROR_KEY = "FastSnapshotRestoreError";
+    static final Set<String> DATABASE_KEYS;
+
+    static {
+        Set<String> databaseKeys = new HashSet<>(EC2SpotInstanceManager.DATABASE_KEYS);
+        databaseKeys.addAll(Set.of(WORLD_VOLUME_ID_KEY, WORLD_SNAPSHOT_ID_KEY, PREVIOUS_WORLD_SNAPSHOT_ID_KEY,
+                UNDELETED_WORLD_SNAPSHOT_IDS_KEY, "FastSnapshotRestore", "WorldVolumeSizeGiB"));
+        DATABASE_KEYS = Collections.unmodifiableSet(databaseKeys);
+    }
+
+    /**
+     * The size of the volume of a server that has never been stopped, if the database entry does not specify one
+     */
+    private static final int DEFAULT_WORLD_VOLUME_SIZE_GIB = 8;
+    /**
+     * The time a stop may take. The volume can only be snapshotted consistently once the instance has shut down and
+     * released it, which usually takes up to a minute after the instance is terminated.
+     */
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(150);
+    private static final Duration VOLUME_POLL_INTERVAL = Duration.ofSeconds(2);
+
+    private final List<String> serverSubnetIds;
+
+    /**
+     * Creates an EBSWorldVolumeInstanceManager. The arguments are the same as those of an
+     * {@link EC2SpotInstanceManager}, except that worldSynchronizer is not used to save the world.
+     */
+    public EBSWorldVolumeInstanceManager(DynamoDBEntry server,
+                                         Ec2Client ec2Client,
+                                         Supplier<Ec2AsyncClient> ec2AsyncClient,
+                                         Executor blockingExecutor,
+                                         InfrastructureConfiguration infrastructureConfiguration,
+                                         String serverInstanceProfileArn,
+                                         SpotSubnetRanker subnetRanker,
+                                         InstanceTypeSelector instanceTypeSelector,
+                                         ServerImageResolver serverImageResolver,
+                                         SpotFulfillmentTracker fulfillmentTracker,
+                                         ServerStateReconciler stateReconciler,
+                                         WorldSynchronizer worldSynchronizer,
+                                         ServerLifecycle lifecycle,
+                                         String serverSecurityGroup) {
+        super(server, ec2Client, ec2AsyncClient, blockingExecutor, infrastructureConfiguration, serverInstanceProfileArn,
+                subnetRanker, instanceTypeSelector, serverImageResolver, fulfillmentTracker, stateReconciler,
+                worldSynchronizer, lifecycle, serverSecurityGroup);
+        this.serverSubnetIds = infrastructureConfiguration.getServerSubnetIds();
+    }
+
+    /**
+     * Returns false, as every server is launched with a world volume of its own.
+     */
+    @Override
+    protected boolean canShareLaunch() {
+        return false;
+    }
+
+    @Override
+    protected Set<String> getDatabaseKeys() {
+        return DATABASE_KEYS;
+    }
+
+    @Override
+    protected Duration getStopTimeout() {
+        return STOP_TIMEOUT;
+    }
+
+    /**
+     * Does nothing, as the files are already on the world volume once the Minecraft server has stopped.
+     *
+     * @return true
+     */
+    @Override
+    protected boolean saveWorld(String instanceId, Instant deadline) {
+        return true;
+    }
+
+    /**
+     * Maps the world volume to {@link #WORLD_VOLUME_DEVICE}, created from the latest snapshot if there is one. The
+     * volume outlives the instance, so that it can be snapshotted after the instance has been terminated.
+     *
+     * @throws IllegalStateException If the server has no snapshot yet and "WorldVolumeSizeGiB" is set but is not a
+     *                               positive integer, in which case the server is not launched
+     */
+    @Override
+    protected void customizeLaunchSpecification(RequestSpotLaunchSpecification.Builder launchSpecification) {
+        String snapshotId = getServer().getStringValue(WORLD_SNAPSHOT_ID_KEY);
+        EbsBlockDevice.Builder volume = EbsBlockDevice.builder()
+                .volumeType(VolumeType.GP3)
+                .deleteOnTermination(false);
+        if (snapshotId == null) {
+            volume.volumeSize(getWorldVolumeSizeGiB());
+        } else {
+            volume.snapshotId(snapshotId);
+        }
+        launchSpecification.blockDeviceMappings(BlockDeviceMapping.builder()
+                .deviceName(WORLD_VOLUME_DEVICE)
+                .ebs(volume.build())
+                .build());
+    }
+
+    @Override
+    protected Map<String, String> getAdditionalEnvironmentVariables() {
+        return Map.of("WORLD_VOLUME_DEVICE", WORLD_VOLUME_DEVICE);
+    }
+
+    /**
+     * Snapshots the world volume once the instance has released it, records the snapshot and deletes the volume. The
+     * snapshot before the previous one is deleted as well, along with the snapshots earlier stops could not delete, and
+     * fast snapshot restore is moved to the new snapshot if it is enabled for the server.
+     *
+     * @throws IllegalStateException If the volume was not released before the deadline, in which case the stop can be
+     *                               retried
+     */
+    @Override
+    protected Map<String, String> afterInstanceTerminated(Instance instance, Instant deadline) {
+        String volumeId = getServer().getStringValue(WORLD_VOLUME_ID_KEY);
+        if (volumeId == null && instance != null) {
+            // The volume id is recorded before anything else, so a stop that fails later can still find the volume
+            volumeId = findWorldVolumeId(instance);
+            if (volumeId != null) {
+                getServer().setStringValue(WORLD_VOLUME_ID_KEY, volumeId);
+            }
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put(WORLD_VOLUME_ID_KEY, null);
+        if (volumeId == null || !awaitVolumeAvailable(volumeId, deadline)) {
+            // The volume has already been snapshotted and deleted
+            return values;
+        }
+
+        String snapshotId = getEC2Client().createSnapshot(CreateSnapshotRequest.builder()
+                        .volumeId(volumeId)
+                        .description("World of CloudCubes server " + getServer().id)
+                        .tagSpecifications(TagSpecification.builder()
+                                .resourceType(ResourceType.SNAPSHOT)
+                                .tags(Tag.builder().key("CloudCubesServerId").value(getServer().id.toString()).build())
+                                .build())
+                        .build())
+                .snapshotId();
+        String previousSnapshotId = getServer().getStringValue(WORLD_SNAPSHOT_ID_KEY);
+        String oldestSnapshotId = getServer().getStringValue(PREVIOUS_WORLD_SNAPSHOT_ID_KEY);
+        getServer().deferWrites();
+        getServer().setStringValue(WORLD_SNAPSHOT_ID_KEY, snapshotId);
+        if (previousSnapshotId == null) {
+            getServer().removeValue(PREVIOUS_WORLD_SNAPSHOT_ID_KEY);
+        } else {
+            getServer().setStringValue(PREVIOUS_WORLD_SNAPSHOT_ID_KEY, previousSnapshotId);
+        }
+        getServer().flush();
+
+        // The snapshot captures the volume as it was when the snapshot was created, so the volume can be deleted
+        // while the snapshot is still being completed
+        deleteVolume(volumeId);
+        List<String> undeletedSnapshotIds = new ArrayList<>();
+        String undeletedSnapshotIdsAsString = getServer().getStringValue(UNDELETED_WORLD_SNAPSHOT_IDS_KEY);
+        if (undeletedSnapshotIdsAsString != null) {
+            undeletedSnapshotIds.addAll(Arrays.asList(undeletedSnapshotIdsAsString.split(",")));
+        }
+        if (oldestSnapshotId != null) {
+            undeletedSnapshotIds.add(oldestSnapshotId);
+        }
+        undeletedSnapshotIds.removeIf(this::deleteSnapshot);
+        values.put(UNDELETED_WORLD_SNAPSHOT_IDS_KEY,
+                undeletedSnapshotIds.isEmpty() ? null : String.join(",", undeletedSnapshotIds));
+        if ("true".equals(getServer().getStringValue("FastSnapshotRestore"))) {
+            values.put(FAST_SNAPSHOT_RESTORE_ERROR_KEY, moveFastSnapshotRestore(previousSnapshotId, snapshotId));
+        }
+        return values;
+    }
+
+    private int getWorldVolumeSizeGiB() {
+        String sizeAsString = getServer().getStringValue("WorldVolumeSizeGiB");
+        if (sizeAsString == null) {
+            return DEFAULT_WORLD_VOLUME_SIZE_GIB;
+        }
+        int size;
+        try {
+            size = Integer.parseInt(sizeAsString);
+        } catch (NumberFormatException e) {
+            size = 0;
+        }
+        if (size <= 0) {
+            throw new IllegalStateException(
+                    "WorldVolumeSizeGiB of server " + getServer().id + " is not a positive integer: " + sizeAsString);
+        }
+        return size;
+    }
+
+    private static String findWorldVolumeId(Instance instance) {
+        for (InstanceBlockDeviceMapping blockDeviceMapping : instance.blockDeviceMappings()) {
+            if (WORLD_VOLUME_DEVICE.equals(blockDeviceMapping.deviceName()) && blockDeviceMapping.ebs() != null) {
+                return blockDeviceMapping.ebs().volumeId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for a volume to be detached from the terminated instance.
+     *
+     * @return false if the volume no longer exists
+     * @throws IllegalStateException If the volume is still attached at the deadline
+     */
+    private boolean awaitVolumeAvailable(String volumeId, Instant deadline) {
+        while (true) {
+            Volume volume;
+            try {
+                volume = getEC2Client().describeVolumes(DescribeVolumesRequest.builder().volumeIds(volumeId).build())
+                        .volumes().stream()
+                        .findFirst()
+                        .orElse(null);
+            } catch (Ec2Exception e) {
+                if (hasErrorCode(e, "InvalidVolume.NotFound")) {
+                    return false;
+                }
+                throw e;
+            }
+            if (volume == null || volume.state() == VolumeState.DELETING || volume.state() == VolumeState.DELETED) {
+                return false;
+            }
+            if (volume.state() == VolumeState.AVAILABLE) {
+                return true;
+            }
+            if (!Instant.now().plus(VOLUME_POLL_INTERVAL).isBefore(deadline)) {
+                throw new IllegalStateException("The world volume was not released by the instance in time");
+            }
+            try {
+                Thread.sleep(VOLUME_POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the world volume", e);
+            }
+        }
+    }
+
+    private void deleteVolume(String volumeId) {
+        try {
+            getEC2Client().deleteVolume(DeleteVolumeRequest.builder().volumeId(volumeId).build());
+        } catch (Ec2Exception e) {
+            if (!hasErrorCode(e, "InvalidVolume.NotFound")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Deletes a snapshot that is no longer needed.
+     *
+     * @return true if the snapshot no longer exists, false if EC2 refused to delete it
+     */
+    private boolean deleteSnapshot(String snapshotId) {
+        try {
+            getEC2Client().deleteSnapshot(DeleteSnapshotRequest.builder().snapshotId(snapshotId).build());
+        } catch (Ec2Exception e) {
+            // A stop that failed after deleting the snapshot has already done this
+            return hasErrorCode(e, "InvalidSnapshot.NotFound");
+        }
+        return true;
+    }
+
+    /**
+     * Enables fast snapshot restore for the new snapshot and disables it for the previous one. A failure does not fail
+     * the stop, as the volumes are still created from the snapshot, only more slowly, and EC2 disables fast snapshot
+     * restore for the previous snapshot once it is deleted.
+     *
+     * @return null if fast snapshot restore was moved, otherwise the error code EC2 returned
+     */
+    private String moveFastSnapshotRestore(String previousSnapshotId, String snapshotId) {
+        List<String> availabilityZones = new ArrayList<>();
+        try {
+            for (Subnet subnet : getEC2Client().describeSubnets(DescribeSubnetsRequest.builder()
+                    .subnetIds(serverSubnetIds)
+                    .build()).subnets()) {
+                if (!availabilityZones.contains(subnet.availabilityZone())) {
+                    availabilityZones.add(subnet.availabilityZone());
+                }
+            }
+            getEC2Client().enableFastSnapshotRestores(EnableFastSnapshotRestoresRequest.builder()
+                    .availabilityZones(availabilityZones)
+                    .sourceSnapshotIds(snapshotId)
+                    .build());
+            if (previousSnapshotId != null) {
+                getEC2Client().disableFastSnapshotRestores(DisableFastSnapshotRestoresRequest.builder()
+                        .availabilityZones(availabilityZones)
+                        .sourceSnapshotIds(previousSnapshotId)
+                        .build());
+            }
+        } catch (Ec2Exception e) {
+            return e.awsErrorDetails() != null && e.awsErrorDetails().errorCode() != null
+                    ? e.awsErrorDetails().errorCode()
+                    : e.getClass().getSimpleName();
+        }
+        return null;
+    }
+}
@@ -1,40 +1,144 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
 import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.*;
 
-import java.util.Base64;
-import java.util.List;
-import java.util.Map;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 /**
  * Represents an EC2 instance that corresponds to a DynamoDBEntry object.
  * Can be online or offline.
  */
 public class EC2SpotInstanceManager implements InstanceManager {
+    /**
+     * The key of where the world of a server is kept between its runs, see {@link CloudCubesServer}
+     */
+    public static final String WORLD_STORAGE_KEY = "WorldStorage";
+    /**
+     * The keys in the database entry that are read while starting or checking the state of the server. They are
+     * downloaded together so that a start costs a single read instead of one read per key.
+     */
+    static final Set<String> DATABASE_KEYS = Set.of(
+            "ServerState", "EC2SpotRequestId", "EC2SpotRequestState", "EC2InstanceId", "RequiredVCpus",
+            "RequiredMemoryMiB", WORLD_STORAGE_KEY, "ClaimedAt", "LaunchedAt");
+    /**
+     * The requirements used for servers that do not specify their own, which are those of an m5.large instance
+     */
+    static final int DEFAULT_REQUIRED_VCPUS = 2;
+    static final int DEFAULT_REQUIRED_MEMORY_MIB = 8192;
+    /**
+     * The value of "EC2SpotRequestId" between claiming the server for a start and recording the request that was made
+     */
+    static final String PENDING_SPOT_REQUEST_ID = "PENDING";
+    /**
+     * How long a server may stay claimed with {@link #PENDING_SPOT_REQUEST_ID}. Recording the spot request takes
+     * seconds, so a claim older than this belongs to a start that died before it could, and is cleared by the next
+     * read of the server state or stop.
+     */
+    static final Duration CLAIM_TIMEOUT = Duration.ofMinutes(5);
+    /**
+     * The name of the index of the server table whose partition key is "EC2SpotRequestId", which instances launched
+     * by a shared spot request use to find the server they run (see {@link #canShareLaunch()})
+     */
+    public static final String SPOT_REQUEST_INDEX_NAME = "EC2SpotRequestId";
+    /**
+     * The name of the index of the server table whose partition key is "EC2InstanceId", which is used to find the
+     * server running on an instance
+     */
+    public static final String INSTANCE_ID_INDEX_NAME = "EC2InstanceId";
+    /**
+     * The key of the time (as an ISO 8601 instant) the server agent received a spot interruption notice, which is set
+     * once the agent has tried to save the world
+     */
+    public static final String INTERRUPTED_AT_KEY = "InterruptedAt";
+    /**
+     * The key of whether the server agent saved the world before the instance was interrupted ("true" or "false")
+     */
+    public static final String INTERRUPTION_WORLD_SAVED_KEY = "InterruptionWorldSaved";
+    static final Duration INTERRUPTION_POLL_INTERVAL = Duration.ofSeconds(2);
+    /**
+     * The time a stop may take. Spot instances are interrupted two minutes after the interruption notice, so a stop
+     * started when the notice arrives finishes well before the instance is reclaimed.
+     */
+    static final Duration STOP_TIMEOUT = Duration.ofSeconds(90);
+    /**
+     * The part of {@link #STOP_TIMEOUT} kept for cancelling the spot request, terminating the instance and updating
+     * the database, which happen even if saving the world took too long
+     */
+    static final Duration STOP_CLEANUP_RESERVE = Duration.ofSeconds(15);
+    private static final SecureRandom RCON_PASSWORD_RANDOM = new SecureRandom();
+
     private final DynamoDBEntry server;
     private final Ec2Client ec2Client;
+    private final Supplier<Ec2AsyncClient> ec2AsyncClient;
+    private final Executor blockingExecutor;
     private final InfrastructureConfiguration infrastructureConfiguration;
     private final String serverInstanceProfileArn;
-    private final String subnetId;
+    private final SpotSubnetRanker subnetRanker;
+    private final InstanceTypeSelector instanceTypeSelector;
+    private final ServerImageResolver serverImageResolver;
+    private final SpotFulfillmentTracker fulfillmentTracker;
+    private final ServerStateReconciler stateReconciler;
+    private final WorldSynchronizer worldSynchronizer;
+    private final ServerLifecycle lifecycle;
     private final String serverSecurityGroup;
     private String userData = null;
+    // The time the instance of the current start was launched, which is recorded along with its fulfillment
+    private volatile Instant launchRequestedAt = null;
+    // The public IP address of an instance never changes while it is running
+    private String publicIpAddress = null;
+    private String publicIpAddressInstanceId = null;
 
+    /**
+     * Creates an EC2SpotInstanceManager. The asynchronous EC2 client is only retrieved from ec2AsyncClient once an
+     * asynchronous method is called, and the steps of asynchronous methods that need the blocking clients, such as
+     * reconciling an UNKNOWN state, run on blockingExecutor. Instances are launched from the image found by serverImageResolver, with the
+     * instance types chosen by instanceTypeSelector in the subnets chosen by subnetRanker, and fulfillmentTracker waits
+     * for the instance to be launched. UNKNOWN server states are resolved with stateReconciler, worldSynchronizer
+     * saves the world when the server is stopped, and lifecycle records the phases of starts and stops.
+     */
     public EC2SpotInstanceManager(DynamoDBEntry server,
                                   Ec2Client ec2Client,
+                                  Supplier<Ec2AsyncClient> ec2AsyncClient,
+                                  Executor blockingExecutor,
                                   InfrastructureConfiguration infrastructureConfiguration,
                                   String serverInstanceProfileArn,
-                                  String subnetId,
+                                  SpotSubnetRanker subnetRanker,
+                                  InstanceTypeSelector instanceTypeSelector,
+                                  ServerImageResolver serverImageResolver,
+                                  SpotFulfillmentTracker fulfillmentTracker,
+                                  ServerStateReconciler stateReconciler,
+                                  WorldSynchronizer worldSynchronizer,
+                                  ServerLifecycle lifecycle,
                                   String serverSecurityGroup) {
         this.server = server;
         this.ec2Client = ec2Client;
+        this.ec2AsyncClient = ec2AsyncClient;
+        this.blockingExecutor = blockingExecutor;
         this.infrastructureConfiguration = infrastructureConfiguration;
         this.serverInstanceProfileArn = serverInstanceProfileArn;
-        this.subnetId = subnetId;
+        this.subnetRanker = subnetRanker;
+        this.instanceTypeSelector = instanceTypeSelector;
+        this.serverImageResolver = serverImageResolver;
+        this.fulfillmentTracker = fulfillmentTracker;
+        this.stateReconciler = stateReconciler;
+        this.worldSynchronizer = worldSynchronizer;
+        this.lifecycle = lifecycle;
         this.serverSecurityGroup = serverSecurityGroup;
     }
 
@@ -56,6 +160,15 @@ public class EC2SpotInstanceManager implements InstanceManager {
         return ec2Client;
     }
 
+    /**
+     * Gets the executor that asynchronous methods run their blocking steps on.
+     *
+     * @return The Executor used to construct this class.
+     */
+    protected Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
     /**
      * Gets the InfrastructureConfiguration object used to construct this class.
      *
@@ -74,6 +187,51 @@ public class EC2SpotInstanceManager implements InstanceManager {
         return server.getStringValue("EC2InstanceId");
     }
 
+    /**
+     * Returns the id of the EC2 instance running the server. If the id has not been recorded yet, the spot request is
+     * described once, and if it has been fulfilled in the meantime, the instance id is recorded so that later reads do
+     * not have to describe the request again.
+     *
+     * @return The id of the EC2 instance running the server, or null if there is none yet
+     */
+    public String resolveEC2InstanceId() {
+        String instanceId = getEC2InstanceId();
+        String spotRequestId = getSpotRequestId();
+        if (instanceId != null || spotRequestId == null || spotRequestId.equals(PENDING_SPOT_REQUEST_ID)) {
+            return instanceId;
+        }
+        SpotInstanceRequest spotInstanceRequest = fulfillmentTracker.describe(spotRequestId).join();
+        if (spotInstanceRequest == null || spotInstanceRequest.instanceId() == null) {
+            return null;
+        }
+        recordFulfillment(spotInstanceRequest);
+        return spotInstanceRequest.instanceId();
+    }
+
+    /**
+     * Gets the public IP address of the instance running the server. The address is cached for as long as the instance
+     * id stays the same.
+     *
+     * @return The public IP address, or null if there is no running instance
+     */
+    @Override
+    public String getPublicIpAddress() {
+        String instanceId = resolveEC2InstanceId();
+        if (instanceId == null) {
+            return null;
+        }
+        if (!instanceId.equals(publicIpAddressInstanceId)) {
+            Instance instance = describeInstance(instanceId);
+            if (instance == null || instance.state().name() != InstanceStateName.RUNNING
+                    || instance.publicIpAddress() == null) {
+                return null;
+            }
+            publicIpAddress = instance.publicIpAddress();
+            publicIpAddressInstanceId = instanceId;
+        }
+        return publicIpAddress;
+    }
+
     /**
      * Returns the Id of the EC2 Spot Request running the server, or null if it does not exist.
      *
@@ -124,41 +282,830 @@ public class EC2SpotInstanceManager implements InstanceManager {
     }
 
     public void startServer() {
-        final String amazonLinux2AmiId = "ami-0233c2d874b811deb";
-
+        server.prefetch(getDatabaseKeys());
         if (isServerOnline()) {
             throw new IllegalStateException("The server is currently online");
         }
+        if (getServerState() == ProvisionalServerState.UNKNOWN) {
+            throw new IllegalStateException("The server is already being started");
+        }
 
         // Once the server starts, it will update the state in the database with a ONLINE state
         // If the server startup fails the database will contain an UNKNOWN state
         // and it will be checked the next time the state is read.
-        setServerState(ProvisionalServerState.UNKNOWN);
+        // The state is only changed if the entry has not been modified since it was read, so when several invocations
+        // try to start the server at the same time only one of them gets to request an instance.
+        // The spot request id is replaced in the same write, so that the request of the previous start is not
+        // mistaken for the request of this start when the UNKNOWN state is reconciled.
+        String serverStateAsString = server.getStringValue("ServerState");
+        if (!claimServer(serverStateAsString, Collections.emptyList())) {
+            throw new IllegalStateException("The server is already being started");
+        }
+        launchClaimedServer().join();
+    }
+
+    /**
+     * Claims the server for a start if it is offline, like {@link #startServer()} does before launching an instance.
+     *
+     * @param startMarkers Markers of what happened before the start, such as the time it was requested, which are
+     *                     recorded with the REQUESTED phase
+     * @return true if this caller may start the server, false if it is online or already being started
+     * @throws IllegalStateException If the claim failed only because the entry was changed since it was read, in which
+     *                               case the server is still offline and the start should be retried
+     */
+    boolean claimForStart(List<ServerLifecycle.Event> startMarkers) {
+        server.prefetch(getDatabaseKeys());
+        if (isServerOnline() || getServerState() == ProvisionalServerState.UNKNOWN) {
+            return false;
+        }
+        String serverStateAsString = server.getStringValue("ServerState");
+        if (claimServer(serverStateAsString, startMarkers)) {
+            return true;
+        }
+        // The claim also fails if anything else in the entry changed, which does not mean the server was started
+        if (Objects.equals(serverStateAsString, server.requestStringValueFromDatabase("ServerState"))) {
+            throw new IllegalStateException("The server entry changed while the server was being claimed");
+        }
+        return false;
+    }
+
+    /**
+     * Launches the instance of a server that has been claimed with {@link #claimForStart(List)} and records its spot
+     * request. Waiting for the request to be fulfilled does not block, so that the launches of many servers can wait
+     * together.
+     *
+     * @return A future that completes once the instance id has been recorded, or once waiting for it has timed out
+     */
+    CompletableFuture<Void> launchClaimedServer() {
+        // Update database with requestId
+        String spotRequestId;
+        try {
+            spotRequestId = launchInstance();
+        } catch (RuntimeException e) {
+            // No instance was launched, so the server is still offline
+            server.compareAndSet("ServerState", "UNKNOWN", "OFFLINE");
+            recordPhase(ServerLifecyclePhase.FAILED);
+            throw e;
+        }
+        recordLaunch(spotRequestId);
+
+        // Update database with the EC2 Instance Id once the request has been fulfilled
+        return awaitAndRecordFulfillment(spotRequestId);
+    }
+
+    /**
+     * Asynchronous variant of {@link #startServer()}. The database reads and writes and the spot request are made
+     * without blocking the calling thread.
+     *
+     * @return A future that completes once the spot request has been made and recorded in the database
+     */
+    public CompletableFuture<Void> startServerAsync() {
+        return server.prefetchAsync(getDatabaseKeys())
+                // Reconciling an UNKNOWN state uses the blocking clients
+                .thenApplyAsync(ignored -> isServerOnline(), blockingExecutor)
+                .thenCompose(online -> {
+                    if (online) {
+                        throw new IllegalStateException("The server is currently online");
+                    }
+                    if (getServerState() == ProvisionalServerState.UNKNOWN) {
+                        throw new IllegalStateException("The server is already being started");
+                    }
+                    String serverStateAsString = server.getStringValue("ServerState");
+                    return claimServerAsync(serverStateAsString);
+                })
+                .thenCompose(claimed -> {
+                    if (!claimed) {
+                        throw new IllegalStateException("The server is already being started");
+                    }
+                    return launchInstanceAsync()
+                            .handle((spotRequestId, throwable) -> {
+                                if (throwable == null) {
+                                    return CompletableFuture.completedFuture(spotRequestId);
+                                }
+                                // No instance was launched, so the server is still offline
+                                Throwable cause = throwable instanceof CompletionException
+                                        ? throwable.getCause()
+                                        : throwable;
+                                return server.compareAndSetAsync("ServerState", "UNKNOWN", "OFFLINE")
+                                        .thenCompose(ignored -> recordPhaseAsync(ServerLifecyclePhase.FAILED))
+                                        .<String>thenCompose(ignored -> CompletableFuture.failedFuture(cause));
+                            })
+                            .thenCompose(future -> future);
+                })
+                // Recording the launch may have to cancel it again with the blocking clients
+                .thenCompose(spotRequestId -> CompletableFuture
+                        .runAsync(() -> recordLaunch(spotRequestId), blockingExecutor)
+                        .thenCompose(ignored -> awaitAndRecordFulfillment(spotRequestId)));
+    }
+
+    /**
+     * Records a spot request that was made for this server together with the requests of other servers, see
+     * {@link ServerFleet#startServers()}, and waits for it to be fulfilled. The server must have been claimed with
+     * {@link #claimForStart(List)}.
+     *
+     * @param spotRequestId The id of the spot request
+     * @return A future that completes once the instance id has been recorded, or once waiting for it has timed out
+     */
+    CompletableFuture<Void> recordSharedLaunch(String spotRequestId) {
+        try {
+            recordLaunch(spotRequestId);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return awaitAndRecordFulfillment(spotRequestId);
+    }
+
+    /**
+     * Replaces {@link #PENDING_SPOT_REQUEST_ID} with the spot request that was made for the claimed server, along with
+     * the time it was made. The write only succeeds while the claim is still in place; if the claim expired and was
+     * cleared in the meantime (see {@link #CLAIM_TIMEOUT}), nothing would ever stop the instance, so the spot request
+     * is cancelled and its instance terminated.
+     *
+     * @param spotRequestId The id of the spot request
+     * @throws IllegalStateException If the claim no longer exists
+     */
+    private void recordLaunch(String spotRequestId) {
+        launchRequestedAt = Instant.now();
+        String claimedAt = server.getStringValue("ClaimedAt");
+        Map<String, String> launchValues = Map.of("LaunchedAt", launchRequestedAt.toString());
+        for (int attempt = 1; !compareAndSetValues(
+                "EC2SpotRequestId", PENDING_SPOT_REQUEST_ID, spotRequestId, launchValues); attempt++) {
+            // Somebody else wrote to the entry, which only matters if the claim is gone
+            server.loadAll();
+            if (!PENDING_SPOT_REQUEST_ID.equals(server.getStringValue("EC2SpotRequestId"))
+                    || !Objects.equals(claimedAt, server.getStringValue("ClaimedAt")) || attempt == 3) {
+                cancelSpotRequest(spotRequestId);
+                SpotInstanceRequest spotInstanceRequest = fulfillmentTracker.describe(spotRequestId).join();
+                if (spotInstanceRequest != null && spotInstanceRequest.instanceId() != null) {
+                    terminateInstance(spotInstanceRequest.instanceId());
+                }
+                throw new IllegalStateException("The claim of the server expired before its launch was recorded");
+            }
+        }
+    }
+
+    /**
+     * Marks a server that was claimed with {@link #claimForStart(List)} as OFFLINE again, because no instance could be
+     * launched for it.
+     */
+    void abandonClaim() {
+        server.compareAndSet("ServerState", "UNKNOWN", "OFFLINE");
+        recordPhase(ServerLifecyclePhase.FAILED);
+    }
+
+    /**
+     * Waits for the spot request of the server to be fulfilled and records the instance id. If the request takes
+     * longer to fulfil, the future completes without recording it.
+     */
+    private CompletableFuture<Void> awaitAndRecordFulfillment(String spotRequestId) {
+        return fulfillmentTracker.awaitFulfillment(spotRequestId, SpotFulfillmentTracker.DEFAULT_TIMEOUT)
+                .<CompletableFuture<Void>>handle((spotInstanceRequest, throwable) -> {
+                    if (throwable == null) {
+                        return recordFulfillmentAsync(spotInstanceRequest);
+                    }
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    // If the request takes longer to fulfil, the instance id is looked up by resolveEC2InstanceId()
+                    if (cause instanceof TimeoutException) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return CompletableFuture.<Void>failedFuture(cause);
+                })
+                .thenCompose(future -> future);
+    }
+
+    /**
+     * Sets the server state to UNKNOWN and the spot request id to {@link #PENDING_SPOT_REQUEST_ID} with a single
+     * conditional write, which only succeeds if the state is still expectedState. The write also sets a new RCON
+     * password, which the server reads when it starts. A successful claim moves the server to the REQUESTED phase, see
+     * {@link #recordRequested(List)}.
+     *
+     * @param expectedState The state the server was in when it was read
+     * @param startMarkers  The markers recorded with the REQUESTED phase
+     * @return true if this caller may start the server
+     */
+    private boolean claimServer(String expectedState, List<ServerLifecycle.Event> startMarkers) {
+        if (!compareAndSetValues("ServerState", expectedState, "UNKNOWN", getClaimValues())) {
+            return false;
+        }
+        recordRequested(startMarkers);
+        return true;
+    }
+
+    /**
+     * Asynchronous variant of {@link #claimServer(String, List)}, without markers.
+     */
+    private CompletableFuture<Boolean> claimServerAsync(String expectedState) {
+        server.deferWrites();
+        getClaimValues().forEach(server::setStringValue);
+        return server.compareAndSetAsync("ServerState", expectedState, "UNKNOWN")
+                .whenComplete((claimed, throwable) -> {
+                    if (claimed == null || !claimed) {
+                        server.discardWrites();
+                    }
+                })
+                // The claim values were written with the state, so this only stops deferring writes
+                .thenCompose(claimed -> claimed
+                        ? server.flushAsync().thenApply(ignored -> true)
+                        : CompletableFuture.completedFuture(false))
+                .thenCompose(claimed -> claimed
+                        ? recordRequestedAsync().thenApply(ignored -> true)
+                        : CompletableFuture.completedFuture(false));
+    }
+
+    /**
+     * Moves a server that has just been claimed to the REQUESTED phase. If the end of its previous run was never
+     * recorded, for example because its instance died, the server is still in a phase that may not precede REQUESTED.
+     * The claim shows that the run is over, so it is recorded as FAILED, or as OFFLINE if it had already begun to stop,
+     * before the server is moved to REQUESTED.
+     *
+     * @param startMarkers The markers recorded with the REQUESTED phase
+     * @return true if the REQUESTED phase was recorded
+     */
+    private boolean recordRequested(List<ServerLifecycle.Event> startMarkers) {
+        if (recordPhase(ServerLifecyclePhase.REQUESTED, startMarkers)) {
+            return true;
+        }
+        if (!recordPhase(ServerLifecyclePhase.FAILED)) {
+            recordPhase(ServerLifecyclePhase.OFFLINE);
+        }
+        return recordPhase(ServerLifecyclePhase.REQUESTED, startMarkers);
+    }
+
+    /**
+     * Asynchronous variant of {@link #recordRequested(List)}, without markers.
+     */
+    private CompletableFuture<Boolean> recordRequestedAsync() {
+        return recordPhaseAsync(ServerLifecyclePhase.REQUESTED).thenCompose(recorded -> recorded
+                ? CompletableFuture.completedFuture(true)
+                : recordPhaseAsync(ServerLifecyclePhase.FAILED)
+                        .thenCompose(failed -> failed
+                                ? CompletableFuture.completedFuture(true)
+                                : recordPhaseAsync(ServerLifecyclePhase.OFFLINE))
+                        .thenCompose(ignored -> recordPhaseAsync(ServerLifecyclePhase.REQUESTED)));
+    }
+
+    private static Map<String, String> getClaimValues() {
+        byte[] rconPassword = new byte[24];
+        RCON_PASSWORD_RANDOM.nextBytes(rconPassword);
+        Map<String, String> claimValues = new LinkedHashMap<>();
+        claimValues.put("EC2SpotRequestId", PENDING_SPOT_REQUEST_ID);
+        claimValues.put("ClaimedAt", Instant.now().toString());
+        claimValues.put("RconPassword", Base64.getUrlEncoder().withoutPadding().encodeToString(rconPassword));
+        return claimValues;
+    }
+
+    /**
+     * Changes a value and other values with a single conditional write, which only succeeds if the value is still
+     * expectedValue and nobody else has written to the entry since it was read.
+     *
+     * @param key           The key of the value to compare, such as "ServerState"
+     * @param expectedValue The value the key had when it was read
+     * @param newValue      The value to set
+     * @param otherValues   The other values to write, in the format ("nameOfKey", "newValue"), where a null value
+     *                      removes the key
+     * @return true if the values were written
+     */
+    private boolean compareAndSetValues(String key,
+                                        String expectedValue,
+                                        String newValue,
+                                        Map<String, String> otherValues) {
+        server.deferWrites();
+        otherValues.forEach((otherKey, value) -> {
+            if (value == null) {
+                server.removeValue(otherKey);
+            } else {
+                server.setStringValue(otherKey, value);
+            }
+        });
+        boolean written = false;
+        try {
+            written = server.compareAndSet(key, expectedValue, newValue);
+        } finally {
+            if (written) {
+                server.flush();
+            } else {
+                server.discardWrites();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * <p>
+     * Stops the server. The world is saved and the Minecraft server is stopped by the server agent, the server files
+     * are uploaded to the world bucket, the spot request is cancelled, the instance is terminated and finally the
+     * server is marked OFFLINE, with its instance and spot request ids removed, in a single conditional write. If the
+     * Minecraft server cannot be stopped in time, the files are uploaded as they are.
+     * </p>
+     *
+     * <p>
+     * Every step tolerates having already been done, so a stop that failed part way can simply be retried. The whole
+     * stop is bounded by {@link #getStopTimeout()}: if saving or uploading the world fails or takes too long, the stop
+     * is abandoned with the instance still running and the server in the STOPPING phase, so that the world is not lost
+     * and the stop can be retried.
+     * </p>
+     *
+     * @return true if the server was stopped, false if it was already offline
+     * @throws IllegalStateException If the server is being started, was started again while it was being stopped, or
+     *                               its world could not be saved
+     */
+    public boolean stopServer() {
+        return stopServer(true);
+    }
+
+    /**
+     * Stops the server, see {@link #stopServer()}.
+     *
+     * @param saveWorld false if the world has already been saved, for example by the server agent
+     */
+    private boolean stopServer(boolean saveWorld) {
+        Instant deadline = Instant.now().plus(getStopTimeout());
+        server.prefetch(getDatabaseKeys());
+        String serverStateAsString = server.getStringValue("ServerState");
+        if ("OFFLINE".equals(serverStateAsString)) {
+            return false;
+        }
+        String spotRequestId = getSpotRequestId();
+        if (PENDING_SPOT_REQUEST_ID.equals(spotRequestId)) {
+            if (!isClaimExpired()) {
+                throw new IllegalStateException("The server is being started");
+            }
+            // The start died before it recorded a spot request, so there is nothing to stop
+            if (!clearExpiredClaim()) {
+                throw new IllegalStateException("The server entry changed while the expired start was being cleared");
+            }
+            return true;
+        }
+        recordPhase(ServerLifecyclePhase.STOPPING);
+
+        String instanceId = resolveEC2InstanceId();
+        Instance instance = instanceId == null ? null : describeInstance(instanceId);
+        boolean savingWorld = saveWorld && instance != null && instance.state().name() == InstanceStateName.RUNNING;
+        Instant saveDeadline = deadline.minus(STOP_CLEANUP_RESERVE);
+        if (savingWorld) {
+            // If the Minecraft server cannot be stopped, its files are saved as they are
+            worldSynchronizer.stopMinecraftServer(instanceId, saveDeadline);
+        }
+        if (savingWorld && !saveWorld(instanceId, saveDeadline)) {
+            // Terminating the instance would lose the world, so it is left running for the stop to be retried
+            throw new IllegalStateException("The world could not be saved, so the server was not stopped");
+        }
+        // The world has been saved, or is snapshotted once the instance has been terminated
+        recordPhase(ServerLifecyclePhase.SNAPSHOTTING);
+
+        if (spotRequestId != null) {
+            cancelSpotRequest(spotRequestId);
+        }
+        if (instanceId != null) {
+            terminateInstance(instanceId);
+        }
+
+        Map<String, String> removedValues = new LinkedHashMap<>(afterInstanceTerminated(instance, deadline));
+        removedValues.put("EC2InstanceId", null);
+        removedValues.put("EC2SpotRequestId", null);
+        removedValues.put("EC2SpotRequestState", null);
+        removedValues.put("RconPassword", null);
+        removedValues.put("ClaimedAt", null);
+        removedValues.put("LaunchedAt", null);
+        removedValues.put(IdleServerMonitor.EMPTY_SINCE_KEY, null);
+        removedValues.put(INTERRUPTED_AT_KEY, null);
+        removedValues.put(INTERRUPTION_WORLD_SAVED_KEY, null);
+        // If the write fails, the entry was changed while the server was stopping, so it is read again to see how
+        for (int attempt = 1; !compareAndSetValues("ServerState", serverStateAsString, "OFFLINE", removedValues);
+             attempt++) {
+            serverStateAsString = server.requestStringValueFromDatabase("ServerState");
+            if ("OFFLINE".equals(serverStateAsString)) {
+                break;
+            }
+            if (!Objects.equals(server.requestStringValueFromDatabase("EC2SpotRequestId"), spotRequestId)) {
+                throw new IllegalStateException("The server was started again while it was being stopped");
+            }
+            if (attempt == 3) {
+                throw new IllegalStateException("The server entry kept changing while the server was being stopped");
+            }
+        }
+        recordPhase(ServerLifecyclePhase.OFFLINE);
+        if (spotRequestId != null) {
+            stateReconciler.invalidate(spotRequestId);
+        }
+        return true;
+    }
+
+    /**
+     * Relaunches the server after its spot instance received an interruption notice. The server agent on the instance
+     * saves the world when the notice arrives, so this method waits until the agent has recorded the interruption, or
+     * until the instance is interrupted, before stopping the server and starting it again. The instance type and
+     * subnet of the interrupted instance are recorded as a capacity error, so the new instance is launched elsewhere.
+     * <p>
+     * The wait happens inside the caller, polling the database every {@link #INTERRUPTION_POLL_INTERVAL}, and lasts at
+     * most until the interruption time, which is two minutes after the notice. It is not handed to a delayed queue
+     * because EventBridge delivers the notice only once, and the agent usually records the interruption within seconds
+     * of it. Callers must allow for the wait followed by a stop and a start, which is why the interruption handler has a
+     * longer timeout than the other functions.
+     *
+     * @param instanceId       The id of the instance that is being interrupted
+     * @param interruptionTime The time the instance will be interrupted at
+     * @return true if the server was relaunched, false if the instance no longer runs the server
+     */
+    boolean relaunchAfterInterruption(@NotNull String instanceId, @NotNull Instant interruptionTime) {
+        server.prefetch(getDatabaseKeys());
+        if (!instanceId.equals(resolveEC2InstanceId())) {
+            return false;
+        }
+        Instance instance = describeInstance(instanceId);
+        if (instance != null && instance.subnetId() != null) {
+            subnetRanker.recordCapacityError(instance.instanceTypeAsString(), instance.subnetId());
+        }
+
+        boolean worldSaved = false;
+        while (Instant.now().isBefore(interruptionTime)) {
+            if (server.requestStringValueFromDatabase(INTERRUPTED_AT_KEY) != null) {
+                worldSaved = "true".equals(server.requestStringValueFromDatabase(INTERRUPTION_WORLD_SAVED_KEY));
+                break;
+            }
+            try {
+                Thread.sleep(INTERRUPTION_POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the world to be saved", e);
+            }
+        }
+
+        // If the agent could not save the world and the instance is still running, the world is saved the usual way
+        stopServer(!worldSaved);
+        startServer();
+        return true;
+    }
+
+    /**
+     * Gets the keys in the database entry that are read while starting, stopping or checking the state of the server.
+     * Subclasses that read more keys add them here, so that they are downloaded together with the others.
+     *
+     * @return The keys
+     */
+    protected Set<String> getDatabaseKeys() {
+        return DATABASE_KEYS;
+    }
+
+    /**
+     * Gets the time a stop may take, see {@link #stopServer()}.
+     *
+     * @return The time
+     */
+    protected Duration getStopTimeout() {
+        return STOP_TIMEOUT;
+    }
+
+    /**
+     * Saves the server files while the instance is still running and the Minecraft server has been stopped. By
+     * default, the files are uploaded to the world bucket with the {@link WorldSynchronizer}.
+     *
+     * @param instanceId The id of the instance running the server
+     * @param deadline   The time by which the files must have been saved
+     * @return true if the files were saved
+     */
+    protected boolean saveWorld(String instanceId, Instant deadline) {
+        return worldSynchronizer.uploadWorld(instanceId, server.id, deadline);
+    }
 
+    /**
+     * Called while the server is being stopped, once its instance has been terminated. Like the rest of the stop, this
+     * must tolerate having already been done. Does nothing by default.
+     *
+     * @param instance The instance as it was before it was terminated, or null if it no longer existed
+     * @param deadline The time by which the stop must be complete
+     * @return The values written together with the OFFLINE state, in the format ("nameOfKey", "newValue"), where a
+     * null value removes the key
+     */
+    protected Map<String, String> afterInstanceTerminated(Instance instance, Instant deadline) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Launches the instance that will run the server. By default, a new spot instance is requested with
+     * {@link #requestSpotInstance()}.
+     *
+     * @return The id of the spot request of the instance, which is recorded and waited on until it has an instance
+     */
+    protected String launchInstance() {
+        return requestSpotInstance();
+    }
+
+    /**
+     * Asynchronous variant of {@link #launchInstance()}.
+     *
+     * @return A future that completes with the id of the spot request of the instance
+     */
+    protected CompletableFuture<String> launchInstanceAsync() {
+        // Choosing the placements describes images, subnets and spot prices with the blocking clients
+        return CompletableFuture.supplyAsync(this::getLaunchPlacements, blockingExecutor)
+                .thenCompose(placements -> requestSpotInstanceAsync(placements.iterator(), null));
+    }
+
+    /**
+     * Gets whether the instance of the server can be requested with the same spot request as the instances of other
+     * servers, see {@link ServerFleet#startServers()}. Such instances are launched with user data that does not
+     * contain the server id, which startup.sh then looks up through the spot request id. Subclasses that override
+     * {@link #launchInstance()}, {@link #customizeLaunchSpecification(RequestSpotLaunchSpecification.Builder)} or
+     * {@link #getAdditionalEnvironmentVariables()} must return false.
+     *
+     * @return true by default
+     */
+    protected boolean canShareLaunch() {
+        return true;
+    }
+
+    /**
+     * Adds to the launch specification of the instances that run the server. Does nothing by default.
+     *
+     * @param launchSpecification The launch specification, which already contains the image, instance type, subnet,
+     *                            instance profile, security group and user data
+     */
+    protected void customizeLaunchSpecification(RequestSpotLaunchSpecification.Builder launchSpecification) {
+    }
+
+    /**
+     * Gets the environment variables the user data exports for startup.sh, in addition to the infrastructure
+     * settings and SERVER_ID. There are none by default.
+     *
+     * @return The environment variables, in the format (name, value)
+     */
+    protected Map<String, String> getAdditionalEnvironmentVariables() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Gets an instance.
+     *
+     * @param instanceId The id of the instance
+     * @return The instance, or null if it no longer exists
+     */
+    protected Instance describeInstance(String instanceId) {
+        try {
+            return ec2Client.describeInstances(DescribeInstancesRequest.builder().instanceIds(instanceId).build())
+                    .reservations().stream()
+                    .flatMap(reservation -> reservation.instances().stream())
+                    .findFirst()
+                    .orElse(null);
+        } catch (Ec2Exception e) {
+            if (hasErrorCode(e, "InvalidInstanceID.NotFound")) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private void cancelSpotRequest(String spotRequestId) {
+        try {
+            ec2Client.cancelSpotInstanceRequests(CancelSpotInstanceRequestsRequest.builder()
+                    .spotInstanceRequestIds(spotRequestId)
+                    .build());
+        } catch (Ec2Exception e) {
+            // Requests that have already ended are eventually forgotten by EC2
+            if (!hasErrorCode(e, "InvalidSpotInstanceRequestID.NotFound")) {
+                throw e;
+            }
+        }
+    }
+
+    private void terminateInstance(String instanceId) {
+        try {
+            // Terminating an instance that is already terminated succeeds
+            ec2Client.terminateInstances(TerminateInstancesRequest.builder().instanceIds(instanceId).build());
+        } catch (Ec2Exception e) {
+            if (!hasErrorCode(e, "InvalidInstanceID.NotFound")) {
+                throw e;
+            }
+        }
+    }
+
+    protected static boolean hasErrorCode(Ec2Exception exception, String errorCode) {
+        AwsErrorDetails errorDetails = exception.awsErrorDetails();
+        return errorDetails != null && errorCode.equals(errorDetails.errorCode());
+    }
+
+    /**
+     * Moves the server to a lifecycle phase. The phase is only recorded if the server is in a phase that may precede
+     * it, which is not the case if, for example, a stop is retried after it has already recorded SNAPSHOTTING.
+     *
+     * @param phase The new phase
+     * @return true if the phase was recorded, false if the server is in a phase that may not precede it
+     */
+    private boolean recordPhase(ServerLifecyclePhase phase) {
+        return recordPhase(phase, Collections.emptyList());
+    }
+
+    /**
+     * Moves the server to a lifecycle phase like {@link #recordPhase(ServerLifecyclePhase)}, recording markers that
+     * happened since the previous phase in the same write.
+     */
+    private boolean recordPhase(ServerLifecyclePhase phase, List<ServerLifecycle.Event> markers) {
+        return lifecycle.transition(server.id, phase, markers);
+    }
+
+    private CompletableFuture<Boolean> recordPhaseAsync(ServerLifecyclePhase phase) {
+        return recordPhaseAsync(phase, Collections.emptyList());
+    }
+
+    /**
+     * Asynchronous variant of {@link #recordPhase(ServerLifecyclePhase, List)}.
+     */
+    private CompletableFuture<Boolean> recordPhaseAsync(ServerLifecyclePhase phase,
+                                                        List<ServerLifecycle.Event> markers) {
+        return lifecycle.transitionAsync(server.id, phase, markers);
+    }
+
+    /**
+     * Records the instance that fulfilled the server's spot request, along with the state of the request, with a
+     * single write.
+     *
+     * @param spotInstanceRequest The fulfilled spot request
+     */
+    private void recordFulfillment(SpotInstanceRequest spotInstanceRequest) {
+        server.deferWrites();
+        server.setStringValue("EC2InstanceId", spotInstanceRequest.instanceId());
+        server.setStringValue("EC2SpotRequestState", spotInstanceRequest.stateAsString());
+        server.flush();
+        recordPhase(ServerLifecyclePhase.FULFILLED, getLaunchMarkers());
+    }
+
+    /**
+     * Asynchronous variant of {@link #recordFulfillment(SpotInstanceRequest)}.
+     */
+    private CompletableFuture<Void> recordFulfillmentAsync(SpotInstanceRequest spotInstanceRequest) {
+        server.deferWrites();
+        server.setStringValue("EC2InstanceId", spotInstanceRequest.instanceId());
+        server.setStringValue("EC2SpotRequestState", spotInstanceRequest.stateAsString());
+        return server.flushAsync()
+                .thenCompose(ignored -> recordPhaseAsync(ServerLifecyclePhase.FULFILLED, getLaunchMarkers()))
+                .thenApply(ignored -> null);
+    }
+
+    /**
+     * Gets the marker of the time the instance was launched, see {@link StartLatencyMetrics#LAUNCH_REQUESTED}.
+     */
+    private List<ServerLifecycle.Event> getLaunchMarkers() {
+        Instant launchTime = launchRequestedAt;
+        return launchTime == null
+                ? Collections.emptyList()
+                : List.of(ServerLifecycle.Event.marker(StartLatencyMetrics.LAUNCH_REQUESTED, launchTime));
+    }
+
+    /**
+     * Gets the requirements of the server, which can be set in the database entry with the keys "RequiredVCpus" and
+     * "RequiredMemoryMiB".
+     *
+     * @param serverImage The image the server will be launched from
+     * @return The requirements of the server
+     * @throws IllegalStateException If one of the requirements is set but is not a positive integer, in which case the
+     *                               server is not launched rather than launched on an instance that may be too small
+     */
+    public InstanceRequirements getInstanceRequirements(ServerImageResolver.ServerImage serverImage) {
+        return new InstanceRequirements(
+                parseRequirement("RequiredVCpus", DEFAULT_REQUIRED_VCPUS),
+                parseRequirement("RequiredMemoryMiB", DEFAULT_REQUIRED_MEMORY_MIB),
+                Set.of(serverImage.getArchitecture()));
+    }
+
+    private int parseRequirement(String key, int defaultValue) {
+        String requirementAsString = server.getStringValue(key);
+        if (requirementAsString == null) {
+            return defaultValue;
+        }
+        int requirement;
+        try {
+            requirement = Integer.parseInt(requirementAsString);
+        } catch (NumberFormatException e) {
+            requirement = 0;
+        }
+        if (requirement <= 0) {
+            throw new IllegalStateException(
+                    key + " of server " + server.id + " is not a positive integer: " + requirementAsString);
+        }
+        return requirement;
+    }
+
+    /**
+     * Gets the combinations of instance type and subnet a launch should be attempted with, in the order they should be
+     * attempted: every subnet of the preferred instance type, then every subnet of the next instance type, and so on.
+     *
+     * @return The launch placements
+     */
+    List<LaunchPlacement> getLaunchPlacements() {
+        ServerImageResolver.ServerImage serverImage = serverImageResolver.getServerImage();
+        List<LaunchPlacement> launchPlacements = new ArrayList<>();
+        for (String instanceType : instanceTypeSelector.selectInstanceTypes(getInstanceRequirements(serverImage))) {
+            for (String subnetId : subnetRanker.rankSubnets(instanceType)) {
+                launchPlacements.add(new LaunchPlacement(serverImage.getImageId(), instanceType, subnetId));
+            }
+        }
+        return launchPlacements;
+    }
+
+    /**
+     * Requests a spot instance that will run the server. The launch placements are tried in turn, moving on to the
+     * next one whenever a launch fails because of missing capacity.
+     *
+     * @return The id of the spot request that was made
+     * @throws Ec2Exception If the launch failed with every placement, or failed for a reason other than capacity
+     */
+    private String requestSpotInstance() {
+        return requestSpotInstances(getLaunchPlacements(), 1, getUserData()).get(0);
+    }
+
+    /**
+     * Requests the spot instances of several servers whose instances can share a launch (see
+     * {@link #canShareLaunch()}) with a single request, trying the launch placements in turn like
+     * {@link #requestSpotInstance()}.
+     *
+     * @param launchPlacements The placements to try, in the order they should be tried
+     * @param instanceCount    The number of instances
+     * @return The ids of the spot requests that were made, one per instance
+     * @throws Ec2Exception If the launch failed with every placement, or failed for a reason other than capacity
+     */
+    List<String> requestSharedSpotInstances(List<LaunchPlacement> launchPlacements, int instanceCount) {
+        return requestSpotInstances(launchPlacements, instanceCount,
+                buildUserData(infrastructureConfiguration, Collections.emptyMap(), "startup.sh"));
+    }
+
+    private List<String> requestSpotInstances(List<LaunchPlacement> launchPlacements, int instanceCount,
+                                              String userData) {
+        Ec2Exception lastCapacityError = null;
+        for (LaunchPlacement launchPlacement : launchPlacements) {
+            try {
+                List<String> spotRequestIds = getSpotRequestIds(ec2Client.requestSpotInstances(
+                        buildSpotInstancesRequest(launchPlacement, instanceCount, userData)));
+                subnetRanker.recordSuccess(launchPlacement.instanceType, launchPlacement.subnetId);
+                return spotRequestIds;
+            } catch (Ec2Exception e) {
+                if (!SpotSubnetRanker.isCapacityError(e)) {
+                    throw e;
+                }
+                subnetRanker.recordCapacityError(launchPlacement.instanceType, launchPlacement.subnetId);
+                lastCapacityError = e;
+            }
+        }
+        if (lastCapacityError == null) {
+            throw new IllegalStateException("There are no instance types or subnets to launch the server with");
+        }
+        throw lastCapacityError;
+    }
+
+    /**
+     * Asynchronous variant of {@link #requestSpotInstance()}.
+     *
+     * @param launchPlacements  The placements that have not been tried yet, in the order they should be tried
+     * @param lastCapacityError The capacity error of the previous placement, or null if none has been tried yet
+     * @return A future that completes with the id of the spot request that was made
+     */
+    private CompletableFuture<String> requestSpotInstanceAsync(Iterator<LaunchPlacement> launchPlacements,
+                                                               Throwable lastCapacityError) {
+        if (!launchPlacements.hasNext()) {
+            return CompletableFuture.failedFuture(lastCapacityError != null
+                    ? lastCapacityError
+                    : new IllegalStateException("There are no instance types or subnets to launch the server with"));
+        }
+        LaunchPlacement launchPlacement = launchPlacements.next();
+        return ec2AsyncClient.get().requestSpotInstances(buildSpotInstancesRequest(launchPlacement, 1, getUserData()))
+                .handle((requestResult, throwable) -> {
+                    if (throwable == null) {
+                        subnetRanker.recordSuccess(launchPlacement.instanceType, launchPlacement.subnetId);
+                        return CompletableFuture.completedFuture(getSpotRequestIds(requestResult).get(0));
+                    }
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (!SpotSubnetRanker.isCapacityError(cause)) {
+                        return CompletableFuture.<String>failedFuture(cause);
+                    }
+                    subnetRanker.recordCapacityError(launchPlacement.instanceType, launchPlacement.subnetId);
+                    return requestSpotInstanceAsync(launchPlacements, cause);
+                })
+                .thenCompose(future -> future);
+    }
+
+    private RequestSpotInstancesRequest buildSpotInstancesRequest(LaunchPlacement launchPlacement, int instanceCount,
+                                                                  String userData) {
         // Request EC2 Instance
-        RequestSpotLaunchSpecification launchSpecification = RequestSpotLaunchSpecification.builder()
-                .instanceType(InstanceType.M5_LARGE)
-                .subnetId(subnetId)
-                .imageId(amazonLinux2AmiId)
+        RequestSpotLaunchSpecification.Builder launchSpecification = RequestSpotLaunchSpecification.builder()
+                .instanceType(launchPlacement.instanceType)
+                .subnetId(launchPlacement.subnetId)
+                .imageId(launchPlacement.imageId)
                 .iamInstanceProfile(IamInstanceProfileSpecification.builder().arn(serverInstanceProfileArn).build())
                 .securityGroupIds(serverSecurityGroup)
-                .userData(Base64.getEncoder().encodeToString(getUserData().getBytes()))
+                .userData(Base64.getEncoder().encodeToString(userData.getBytes()));
+        customizeLaunchSpecification(launchSpecification);
+        return RequestSpotInstancesRequest.builder()
+                .instanceCount(instanceCount)
+                .launchSpecification(launchSpecification.build())
                 .build();
-        RequestSpotInstancesRequest spotInstancesRequest = RequestSpotInstancesRequest.builder()
-                .instanceCount(1)
-                .launchSpecification(launchSpecification)
-                .build();
-        RequestSpotInstancesResponse requestResult = ec2Client.requestSpotInstances(spotInstancesRequest);
-
-        List<SpotInstanceRequest> requestResponses = requestResult.spotInstanceRequests();
-        // requestResponses should only contain one request
-        assert requestResponses.size() == 1;
-        String spotInstanceId = requestResponses.get(0).spotInstanceRequestId();
-
-        // Update database with requestId
-        server.setStringValue("EC2SpotRequestId", spotInstanceId);
+    }
 
-        // TODO: Update database with the EC2 Instance Id once the server has started
+    private static List<String> getSpotRequestIds(RequestSpotInstancesResponse requestResult) {
+        List<String> spotRequestIds = new ArrayList<>();
+        // EC2 makes one request per instance
+        for (SpotInstanceRequest spotInstanceRequest : requestResult.spotInstanceRequests()) {
+            spotRequestIds.add(spotInstanceRequest.spotInstanceRequestId());
+        }
+        return spotRequestIds;
     }
 
     /**
@@ -168,8 +1115,79 @@ public class EC2SpotInstanceManager implements InstanceManager {
      * @return True if the server is online, false otherwise.
      */
     public boolean isServerOnline() {
-        // TODO: Verify the server state if the server state is UNKNOWN
-        return getServerState() == ProvisionalServerState.ONLINE;
+        ProvisionalServerState serverState = getServerState();
+        if (serverState == ProvisionalServerState.UNKNOWN) {
+            serverState = reconcileServerState();
+        }
+        return serverState == ProvisionalServerState.ONLINE;
+    }
+
+    /**
+     * Works out the real state of a server whose state is UNKNOWN and writes it back to the database. The state is
+     * only written if the entry has not been modified since it was read, so a start that happens in the meantime is
+     * never overwritten.
+     *
+     * @return The state of the server
+     */
+    private ProvisionalServerState reconcileServerState() {
+        String spotRequestId = getSpotRequestId();
+        if (spotRequestId == null || spotRequestId.equals(PENDING_SPOT_REQUEST_ID)) {
+            // The server is being claimed or the spot request is being made, unless the start died before that
+            if (!isClaimExpired()) {
+                return ProvisionalServerState.UNKNOWN;
+            }
+            return clearExpiredClaim() ? ProvisionalServerState.OFFLINE : getServerState();
+        }
+        ProvisionalServerState reconciledState = stateReconciler.reconcile(spotRequestId, getLaunchedAt());
+        if (reconciledState == ProvisionalServerState.UNKNOWN) {
+            return reconciledState;
+        }
+        if (server.compareAndSet("ServerState", "UNKNOWN", reconciledState.name())) {
+            if (reconciledState == ProvisionalServerState.OFFLINE) {
+                // The instance ended without the server having been stopped
+                recordPhase(ServerLifecyclePhase.FAILED);
+            }
+            return reconciledState;
+        }
+        return getServerState();
+    }
+
+    /**
+     * Gets whether the claim of a server whose spot request id is {@link #PENDING_SPOT_REQUEST_ID} is older than
+     * {@link #CLAIM_TIMEOUT}. Claims made without a time are treated as expired.
+     */
+    private boolean isClaimExpired() {
+        String claimedAt = server.getStringValue("ClaimedAt");
+        return claimedAt == null || Instant.parse(claimedAt).plus(CLAIM_TIMEOUT).isBefore(Instant.now());
+    }
+
+    /**
+     * Marks a server whose claim expired OFFLINE again and records the FAILED phase. The write only succeeds if nobody
+     * has written to the entry since it was read, so a start that records its spot request in the meantime wins.
+     *
+     * @return true if the claim was cleared
+     */
+    private boolean clearExpiredClaim() {
+        Map<String, String> removedValues = new LinkedHashMap<>();
+        removedValues.put("EC2SpotRequestId", null);
+        removedValues.put("RconPassword", null);
+        removedValues.put("ClaimedAt", null);
+        removedValues.put("LaunchedAt", null);
+        if (!compareAndSetValues("ServerState", "UNKNOWN", "OFFLINE", removedValues)) {
+            return false;
+        }
+        recordPhase(ServerLifecyclePhase.FAILED);
+        return true;
+    }
+
+    /**
+     * Gets the time the spot request of the current start was recorded.
+     *
+     * @return The time, or null if it has not been recorded
+     */
+    @Nullable Instant getLaunchedAt() {
+        String launchedAt = server.getStringValue("LaunchedAt");
+        return launchedAt == null ? null : Instant.parse(launchedAt);
     }
 
     /**
@@ -179,52 +1197,128 @@ public class EC2SpotInstanceManager implements InstanceManager {
      *
      * @return The generated user data
      */
-    private String getUserData() {
+    protected String getUserData() {
         if (userData == null) {
-            // Strings not matching this regex may contain values that are not interpreted literally by bash
-            // (i.e. they need to be escaped)
-            final String allowedCharactersPattern = "^[a-zA-Z0-9,._+:@%/-]+$";
-
-            String resourceBucketName = infrastructureConfiguration.getValue(InfrastructureSetting.RESOURCEBUCKETNAME);
-            if (!resourceBucketName.matches(allowedCharactersPattern)) {
-                throw new IllegalStateException(
-                        "The resource bucket name stored inside the provided infrastructure data contains invalid characters");
-            }
-
-            StringBuilder builder = new StringBuilder();
-            // Lets server know that the remaining commands should be run with bash
-            builder.append("#!/bin/bash\n");
-            builder.append("cd /home/ec2-user\n");
-            // Set environment variables to the values in infrastructureData
-            for (Map.Entry<String, String> entry : infrastructureConfiguration.toEnvironmentVariableMap().entrySet()) {
-                if (!entry.getKey().matches(allowedCharactersPattern) || !entry.getValue().matches(allowedCharactersPattern)) {
-                    // TODO: Log warning
-                    continue;
-                }
-                builder.append(String.format("export %s=%s\n", entry.getKey(), entry.getValue()));
-            }
-            builder.append(String.format("export SERVER_ID=%s\n", server.id));
-            // Download and invoke script (the hyphen at the end of the s3 command tells it to print to stdout)
-            String s3command = "aws s3 cp s3://" + resourceBucketName + "/server-startup/startup.sh -";
-            builder.append("su -c '").append(s3command).append(" | bash' ec2-user\n");
-            userData = builder.toString();
+            Map<String, String> environmentVariables = new LinkedHashMap<>();
+            environmentVariables.put("SERVER_ID", server.id.toString());
+            environmentVariables.putAll(getAdditionalEnvironmentVariables());
+            userData = buildUserData(infrastructureConfiguration, environmentVariables, "startup.sh");
         }
         return userData;
     }
 
+    /**
+     * Generates user data that exports the infrastructure settings and runs a script of the server-startup folder of
+     * the resource bucket as ec2-user.
+     *
+     * @param infrastructureConfiguration The infrastructure settings
+     * @param environmentVariables        The environment variables exported in addition to the infrastructure settings
+     * @param scriptName                  The name of the script in the server-startup folder
+     * @return The generated user data
+     * @throws IllegalStateException If the resource bucket name or one of environmentVariables contains characters
+     *                               that would have to be escaped
+     */
+    static String buildUserData(InfrastructureConfiguration infrastructureConfiguration,
+                                Map<String, String> environmentVariables,
+                                String scriptName) {
+        // Strings not matching this regex may contain values that are not interpreted literally by bash
+        // (i.e. they need to be escaped)
+        final String allowedCharactersPattern = "^[a-zA-Z0-9,._+:@%/-]+$";
+
+        String resourceBucketName = infrastructureConfiguration.getValue(InfrastructureSetting.RESOURCEBUCKETNAME);
+        if (!resourceBucketName.matches(allowedCharactersPattern)) {
+            throw new IllegalStateException(
+                    "The resource bucket name stored inside the provided infrastructure data contains invalid characters");
+        }
+
+        StringBuilder builder = new StringBuilder();
+        // Lets server know that the remaining commands should be run with bash
+        builder.append("#!/bin/bash\n");
+        builder.append("cd /home/ec2-user\n");
+        // Set environment variables to the values in infrastructureData
+        for (Map.Entry<String, String> entry : infrastructureConfiguration.toEnvironmentVariableMap().entrySet()) {
+            if (!entry.getKey().matches(allowedCharactersPattern) || !entry.getValue().matches(allowedCharactersPattern)) {
+                // TODO: Log warning
+                continue;
+            }
+            builder.append(String.format("export %s=%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : environmentVariables.entrySet()) {
+            if (!entry.getKey().matches(allowedCharactersPattern) || !entry.getValue().matches(allowedCharactersPattern)) {
+                throw new IllegalStateException("The environment variable " + entry.getKey()
+                        + " contains invalid characters");
+            }
+            builder.append(String.format("export %s=%s\n", entry.getKey(), entry.getValue()));
+        }
+        // Download and invoke script (the hyphen at the end of the s3 command tells it to print to stdout)
+        String s3command = "aws s3 cp s3://" + resourceBucketName + "/server-startup/" + scriptName + " -";
+        builder.append("su -c '").append(s3command).append(" | bash' ec2-user\n");
+        return builder.toString();
+    }
+
     @Override
     public boolean setState(@NotNull ServerState state) {
-        if (isServerOnline() && state == ServerState.OFFLINE) {
-            this.startServer();
-            return true;
-        } else if (!isServerOnline() && state == ServerState.OFFLINE) {
-            // TODO Stop Server
-            return true;
-        } else return false;
+        if (state == ServerState.OFFLINE) {
+            return stopServer();
+        }
+        if (isServerOnline()) {
+            return false;
+        }
+        startServer();
+        return true;
+    }
+
+    /**
+     * Asynchronous variant of {@link #setState(ServerState)}. Stopping the server mostly consists of waiting for the
+     * world to be saved, so it is run on the blocking executor with the blocking clients.
+     */
+    @Override
+    public @NotNull CompletableFuture<Boolean> setStateAsync(@NotNull ServerState state) {
+        if (state == ServerState.OFFLINE) {
+            return CompletableFuture.supplyAsync(this::stopServer, blockingExecutor);
+        }
+        return server.prefetchAsync(getDatabaseKeys())
+                .thenApplyAsync(ignored -> isServerOnline(), blockingExecutor)
+                .thenCompose(online -> online
+                        ? CompletableFuture.completedFuture(false)
+                        : startServerAsync().thenApply(started -> true));
     }
 
     @Override
     public ServerState getState() {
         return isServerOnline() ? ServerState.ONLINE : ServerState.OFFLINE;
     }
+
+    /**
+     * An image, instance type and subnet a launch can be attempted with
+     */
+    static final class LaunchPlacement {
+        private final String imageId;
+        private final String instanceType;
+        private final String subnetId;
+
+        private LaunchPlacement(String imageId, String instanceType, String subnetId) {
+            this.imageId = imageId;
+            this.instanceType = instanceType;
+            this.subnetId = subnetId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LaunchPlacement)) {
+                return false;
+            }
+            LaunchPlacement that = (LaunchPlacement) o;
+            return imageId.equals(that.imageId) && instanceType.equals(that.instanceType)
+                    && subnetId.equals(that.subnetId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageId, instanceType, subnetId);
+        }
+    }
 }
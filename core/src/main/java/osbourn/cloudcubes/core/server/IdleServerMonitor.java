@@ -0,0 +1,161 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
+import osbourn.cloudcubes.core.minecraft.ServerStatus;
+import software.amazon.awssdk.services.ec2.model.Instance;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * Stops servers that nobody has played on for a while. Every ONLINE server is pinged with the Server List Ping protocol
+ * and the time it was first seen empty is stored in its database entry, under {@link #EMPTY_SINCE_KEY}, so that the
+ * idle time is tracked across checks. Once a server has been empty for the idle timeout, it is stopped.
+ * </p>
+ *
+ * <p>
+ * A server that does not answer pings is counted as empty once its instance has been running for longer than the idle
+ * timeout, so a Minecraft server that crashed does not keep its instance running forever.
+ * </p>
+ */
+public class IdleServerMonitor {
+    /**
+     * The key of the time (as an ISO 8601 instant) since which a server has been empty
+     */
+    public static final String EMPTY_SINCE_KEY = "EmptySince";
+
+    private static final Duration PING_TIMEOUT = Duration.ofSeconds(5);
+
+    private final ServerListPinger pinger;
+    private final Duration idleTimeout;
+
+    /**
+     * Creates an IdleServerMonitor.
+     *
+     * @param pinger      The pinger used to query the player counts
+     * @param idleTimeout How long a server may be empty before it is stopped
+     */
+    public IdleServerMonitor(@NotNull ServerListPinger pinger, @NotNull Duration idleTimeout) {
+        this.pinger = pinger;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Checks every server in the fleet and stops the ones that have been empty for the idle timeout. All servers are
+     * pinged at the same time, and the idle servers are stopped at the same time, each on its own thread because a stop
+     * mostly consists of waiting for the world to be saved.
+     *
+     * @param fleet The servers to check
+     * @return The servers that were stopped and the stops that failed
+     */
+    public @NotNull CheckResult checkServers(@NotNull ServerFleet fleet) {
+        Instant now = Instant.now();
+        Map<UUID, ProvisionalServerState> states = fleet.getServerStates();
+        Map<UUID, Instance> instances = fleet.describeInstances();
+
+        Map<UUID, CompletableFuture<ServerStatus>> pings = new LinkedHashMap<>();
+        for (Map.Entry<UUID, Instance> entry : instances.entrySet()) {
+            String publicIpAddress = entry.getValue().publicIpAddress();
+            if (states.get(entry.getKey()) == ProvisionalServerState.ONLINE && publicIpAddress != null) {
+                pings.put(entry.getKey(),
+                        pinger.ping(new InetSocketAddress(publicIpAddress, CloudCubesServer.MINECRAFT_PORT), PING_TIMEOUT));
+            }
+        }
+
+        ExecutorService stopExecutor = Executors.newCachedThreadPool();
+        Map<UUID, CompletableFuture<Boolean>> stops = new LinkedHashMap<>();
+        for (Map.Entry<UUID, CompletableFuture<ServerStatus>> entry : pings.entrySet()) {
+            UUID serverId = entry.getKey();
+            EC2SpotInstanceManager instanceManager = fleet.getInstanceManager(serverId);
+            DynamoDBEntry databaseEntry = instanceManager.getServer();
+
+            boolean empty;
+            try {
+                empty = entry.getValue().join().getOnlinePlayers() == 0;
+            } catch (RuntimeException e) {
+                Instant launchTime = instances.get(serverId).launchTime();
+                empty = launchTime != null && launchTime.plus(idleTimeout).isBefore(now);
+            }
+
+            String emptySinceAsString = databaseEntry.getStringValue(EMPTY_SINCE_KEY);
+            if (!empty) {
+                if (emptySinceAsString != null) {
+                    databaseEntry.removeValue(EMPTY_SINCE_KEY);
+                }
+            } else if (emptySinceAsString == null || parseInstant(emptySinceAsString) == null) {
+                // A time that cannot be read is replaced, so the server counts as empty from now on
+                databaseEntry.setStringValue(EMPTY_SINCE_KEY, now.toString());
+            } else if (!parseInstant(emptySinceAsString).plus(idleTimeout).isAfter(now)) {
+                stops.put(serverId, CompletableFuture.supplyAsync(
+                        () -> instanceManager.setState(ServerState.OFFLINE), stopExecutor));
+            }
+        }
+
+        List<UUID> stoppedServers = new ArrayList<>();
+        Map<UUID, RuntimeException> failedStops = new LinkedHashMap<>();
+        for (Map.Entry<UUID, CompletableFuture<Boolean>> entry : stops.entrySet()) {
+            try {
+                if (entry.getValue().join()) {
+                    stoppedServers.add(entry.getKey());
+                }
+            } catch (CompletionException e) {
+                // The server stays empty, so the stop is retried by the next check
+                failedStops.put(entry.getKey(), e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : e);
+            }
+        }
+        stopExecutor.shutdown();
+        return new CheckResult(stoppedServers, failedStops);
+    }
+
+    private static Instant parseInstant(String instantAsString) {
+        try {
+            return Instant.parse(instantAsString);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The outcome of {@link #checkServers(ServerFleet)}.
+     */
+    public static final class CheckResult {
+        private final List<UUID> stoppedServers;
+        private final Map<UUID, RuntimeException> failedStops;
+
+        private CheckResult(List<UUID> stoppedServers, Map<UUID, RuntimeException> failedStops) {
+            this.stoppedServers = Collections.unmodifiableList(stoppedServers);
+            this.failedStops = Collections.unmodifiableMap(failedStops);
+        }
+
+        /**
+         * Gets the idle servers that were stopped.
+         *
+         * @return The ids of the servers
+         */
+        public @NotNull List<UUID> getStoppedServers() {
+            return stoppedServers;
+        }
+
+        /**
+         * Gets the idle servers that could not be stopped, for example because their world could not be saved. They
+         * are still empty, so the next check tries to stop them again.
+         *
+         * @return The reason each stop failed, in the format (id, exception)
+         */
+        public @NotNull Map<UUID, RuntimeException> getFailedStops() {
+            return failedStops;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Manages the launching and stopping of an AWS server, such as an EC2 instance or an EC2 spot instance
@@ -14,6 +17,18 @@ public interface InstanceManager {
      */
     boolean setState(@NotNull ServerState state);
 
+    /**
+     * Asynchronous variant of {@link #setState(ServerState)}. The default implementation runs setState on the common
+     * fork-join pool, so implementations backed by asynchronous clients should override it.
+     *
+     * @param state The state to set the server to
+     * @return A future that completes with true if the server was launched or stopped, or false if it was already in
+     * the requested state
+     */
+    default @NotNull CompletableFuture<Boolean> setStateAsync(@NotNull ServerState state) {
+        return CompletableFuture.supplyAsync(() -> setState(state));
+    }
+
     /**
      * Gets whether the server is online or offline. Note that this method may perform additional calculations if the
      * server state is unknown at the time.
@@ -21,4 +36,11 @@ public interface InstanceManager {
      * @return ONLINE if the server is online, OFFLINE if it is offline
      */
     ServerState getState();
+
+    /**
+     * Gets the public IP address of the instance running the server.
+     *
+     * @return The public IP address, or null if there is no running instance
+     */
+    @Nullable String getPublicIpAddress();
 }
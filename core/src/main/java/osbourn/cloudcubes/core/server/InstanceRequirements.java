@@ -0,0 +1,40 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Set;
+
+/**
+ * The resources a server needs from the instance it runs on, along with the processor architectures the server's
+ * machine image can run on.
+ */
+public final class InstanceRequirements {
+    private final int vCpus;
+    private final int memoryMiB;
+    private final Set<String> architectures;
+
+    /**
+     * Creates an InstanceRequirements object.
+     *
+     * @param vCpus         The minimum number of vCPUs
+     * @param memoryMiB     The minimum amount of memory in MiB
+     * @param architectures The architectures the machine image supports, as named by EC2 (e.g. "x86_64", "arm64")
+     */
+    public InstanceRequirements(int vCpus, int memoryMiB, @NotNull Set<String> architectures) {
+        this.vCpus = vCpus;
+        this.memoryMiB = memoryMiB;
+        this.architectures = Set.copyOf(architectures);
+    }
+
+    public int getVCpus() {
+        return vCpus;
+    }
+
+    public int getMemoryMiB() {
+        return memoryMiB;
+    }
+
+    public @NotNull Set<String> getArchitectures() {
+        return architectures;
+    }
+}
@@ -0,0 +1,19 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Decides which EC2 instance types a server may be launched on
+ */
+public interface InstanceTypeSelector {
+    /**
+     * Gets the instance types that satisfy the requirements, the preferred instance type first. Launches are attempted
+     * with each instance type in turn until one of them has capacity.
+     *
+     * @param requirements The requirements of the server
+     * @return The API names of the instance types (e.g. "m5.large") in order of preference
+     */
+    @NotNull List<String> selectInstanceTypes(@NotNull InstanceRequirements requirements);
+}
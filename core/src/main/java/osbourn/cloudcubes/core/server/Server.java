@@ -1,9 +1,12 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.util.Identifiable;
 
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public interface Server extends Identifiable {
     /**
@@ -27,6 +30,23 @@ public interface Server extends Identifiable {
      */
     ProvisionalServerState getServerState();
 
+    /**
+     * Gets how far the latest start or stop of the server has got, as recorded by {@link ServerLifecycle}. Unlike
+     * {@link #getServerState()}, this method never checks the instance of the server.
+     *
+     * @return The phase of the server, or null if it has never been recorded
+     */
+    @Nullable ServerLifecyclePhase getLifecyclePhase();
+
+    /**
+     * Gets whether the Minecraft server accepts players. A server is reported ONLINE by {@link #getServerState()} as
+     * soon as its instance has booted, but the world may still be loading at that point, so this method pings the
+     * Minecraft server itself.
+     *
+     * @return true if the Minecraft server answered a status request
+     */
+    boolean isWorldReady();
+
     /**
      * Launches the server if it is offline. If the server is not in an OFFLINE state, an IllegalStateException may be
      * thrown.
@@ -35,6 +55,66 @@ public interface Server extends Identifiable {
      */
     void startServer();
 
+    /**
+     * Asynchronous variant of {@link #startServer()}.
+     *
+     * @return A future that completes once the server has been launched, or completes exceptionally with an
+     * IllegalStateException if the server is currently online
+     */
+    @NotNull CompletableFuture<Void> startServerAsync();
+
+    /**
+     * Saves the world and stops the server if it is running. Stopping a server that is already offline does nothing.
+     *
+     * @throws java.lang.IllegalStateException If the server is currently being started
+     */
+    void stopServer();
+
+    /**
+     * Asynchronous variant of {@link #stopServer()}.
+     *
+     * @return A future that completes once the server has been stopped
+     */
+    @NotNull CompletableFuture<Void> stopServerAsync();
+
+    /**
+     * Runs a command on the Minecraft server through RCON, as if it was typed into the server console. RCON is only
+     * open to the server security group, so the command must be sent from inside the server VPC.
+     *
+     * @param command The command, without a leading slash
+     * @return The output of the command
+     * @throws java.lang.IllegalStateException If the server is not running
+     * @throws java.io.UncheckedIOException    If the command could not be sent
+     */
+    @NotNull String executeCommand(@NotNull String command);
+
+    /**
+     * Asynchronous variant of {@link #executeCommand(String)}.
+     *
+     * @param command The command, without a leading slash
+     * @return A future that completes with the output of the command
+     */
+    @NotNull CompletableFuture<String> executeCommandAsync(@NotNull String command);
+
+    /**
+     * Runs several commands on the Minecraft server, in the order they are given. The commands are sent without
+     * waiting for the output of the previous ones.
+     *
+     * @param commands The commands, without leading slashes
+     * @return The output of each command, in the same order as the commands
+     * @throws java.lang.IllegalStateException If the server is not running
+     * @throws java.io.UncheckedIOException    If the commands could not be sent
+     */
+    @NotNull List<String> executeCommands(@NotNull List<String> commands);
+
+    /**
+     * Asynchronous variant of {@link #executeCommands(List)}.
+     *
+     * @param commands The commands, without leading slashes
+     * @return A future that completes with the output of each command, in the same order as the commands
+     */
+    @NotNull CompletableFuture<List<String>> executeCommandsAsync(@NotNull List<String> commands);
+
     /**
      * Gets the display name of the server.
      *
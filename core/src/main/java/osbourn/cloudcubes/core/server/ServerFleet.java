@@ -0,0 +1,324 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.minecraft.RconClient;
+import osbourn.cloudcubes.core.minecraft.RconConnectionPool;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
+import osbourn.cloudcubes.core.minecraft.ServerStatus;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A group of servers loaded together by a {@link ServerRepository}. The status of every server in the fleet can be
+ * refreshed with a constant number of EC2 requests, regardless of the number of servers, and the servers can be
+ * started with a spot request per group of servers that launch the same way.
+ */
+public class ServerFleet {
+    /**
+     * The maximum number of instances requested with a single spot request, so that a failing request only affects a
+     * limited number of servers
+     */
+    private static final int MAXIMUM_SHARED_LAUNCH_SIZE = 20;
+
+    private final Map<UUID, CloudCubesServer> servers;
+    private final Map<UUID, EC2SpotInstanceManager> instanceManagers;
+    private final Ec2Client ec2Client;
+    private final ServerStateReconciler stateReconciler;
+    private final ServerListPinger serverListPinger;
+    private final RconConnectionPool rconConnectionPool;
+    private final String serverSecurityGroup;
+
+    ServerFleet(Map<UUID, CloudCubesServer> servers,
+                Map<UUID, EC2SpotInstanceManager> instanceManagers,
+                Ec2Client ec2Client,
+                ServerStateReconciler stateReconciler,
+                ServerListPinger serverListPinger,
+                RconConnectionPool rconConnectionPool,
+                String serverSecurityGroup) {
+        this.servers = servers;
+        this.instanceManagers = instanceManagers;
+        this.ec2Client = ec2Client;
+        this.stateReconciler = stateReconciler;
+        this.serverListPinger = serverListPinger;
+        this.rconConnectionPool = rconConnectionPool;
+        this.serverSecurityGroup = serverSecurityGroup;
+    }
+
+    /**
+     * Gets the servers in the fleet, in the order they were loaded.
+     *
+     * @return The servers
+     */
+    public @NotNull Collection<CloudCubesServer> getServers() {
+        return Collections.unmodifiableCollection(servers.values());
+    }
+
+    /**
+     * Gets a server in the fleet.
+     *
+     * @param id The id of the server
+     * @return The server, or null if it is not part of the fleet
+     */
+    public @Nullable CloudCubesServer getServer(@NotNull UUID id) {
+        return servers.get(id);
+    }
+
+    /**
+     * Gets the instance manager of a server in the fleet.
+     *
+     * @param id The id of the server
+     * @return The instance manager, or null if the server is not part of the fleet
+     */
+    EC2SpotInstanceManager getInstanceManager(UUID id) {
+        return instanceManagers.get(id);
+    }
+
+    /**
+     * Gets the verified state of every server. The servers whose state is UNKNOWN are reconciled together (see
+     * {@link ServerStateReconciler#reconcile(Map)}), and the corrected states are written back to the
+     * database.
+     *
+     * @return The state of each server in the format (id, state)
+     */
+    public @NotNull Map<UUID, ProvisionalServerState> getServerStates() {
+        // Reconciling every UNKNOWN server in one batch caches the verdicts that isServerOnline() then uses
+        Map<String, Instant> unknownLaunchTimes = new HashMap<>();
+        for (EC2SpotInstanceManager instanceManager : instanceManagers.values()) {
+            String spotRequestId = instanceManager.getSpotRequestId();
+            if (instanceManager.getServerState() == ProvisionalServerState.UNKNOWN
+                    && spotRequestId != null
+                    && !spotRequestId.equals(EC2SpotInstanceManager.PENDING_SPOT_REQUEST_ID)) {
+                unknownLaunchTimes.put(spotRequestId, instanceManager.getLaunchedAt());
+            }
+        }
+        if (!unknownLaunchTimes.isEmpty()) {
+            stateReconciler.reconcile(unknownLaunchTimes);
+        }
+
+        Map<UUID, ProvisionalServerState> states = new LinkedHashMap<>();
+        for (Map.Entry<UUID, EC2SpotInstanceManager> entry : instanceManagers.entrySet()) {
+            EC2SpotInstanceManager instanceManager = entry.getValue();
+            states.put(entry.getKey(), instanceManager.isServerOnline()
+                    ? ProvisionalServerState.ONLINE
+                    : instanceManager.getServerState());
+        }
+        return states;
+    }
+
+    /**
+     * Pings the Minecraft server of every server that has a running instance. The instances are looked up with
+     * {@link #describeInstances()} and all servers are pinged at the same time, so the sweep takes about as long as
+     * the slowest ping.
+     *
+     * @param timeout The time each ping may take
+     * @return The status of each server whose world is ready, in the format (id, status)
+     */
+    public @NotNull Map<UUID, ServerStatus> getWorldStatuses(@NotNull Duration timeout) {
+        Map<UUID, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (Map.Entry<UUID, Instance> entry : describeInstances().entrySet()) {
+            String publicIpAddress = entry.getValue().publicIpAddress();
+            if (publicIpAddress != null) {
+                addresses.put(entry.getKey(), new InetSocketAddress(publicIpAddress, CloudCubesServer.MINECRAFT_PORT));
+            }
+        }
+
+        Map<UUID, ServerStatus> statuses = new LinkedHashMap<>();
+        for (Map.Entry<UUID, CompletableFuture<ServerStatus>> entry :
+                serverListPinger.pingAll(addresses, timeout).entrySet()) {
+            try {
+                statuses.put(entry.getKey(), entry.getValue().join());
+            } catch (RuntimeException e) {
+                // The world is not ready
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Runs a command on every running server, for example "save-all" before a deploy. The instances are looked up with
+     * {@link #describeInstances()} and the command is sent to all servers at the same time, over the pooled RCON
+     * connection of each server.
+     *
+     * @param command The command, without a leading slash
+     * @return The output of the command on each running server, in the format (id, output). A future fails if the
+     * command could not be run on that server.
+     */
+    public @NotNull Map<UUID, CompletableFuture<String>> executeCommand(@NotNull String command) {
+        Map<UUID, CompletableFuture<String>> outputs = new LinkedHashMap<>();
+        for (Map.Entry<UUID, Instance> entry : describeInstances().entrySet()) {
+            String publicIpAddress = entry.getValue().publicIpAddress();
+            String rconPassword = instanceManagers.get(entry.getKey()).getServer().getStringValue("RconPassword");
+            if (publicIpAddress != null && rconPassword != null) {
+                outputs.put(entry.getKey(), rconConnectionPool.executeCommand(
+                        publicIpAddress, RconClient.DEFAULT_PORT, rconPassword, command));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * <p>
+     * Starts every server in the fleet that is offline. Servers that are online or already being started are left
+     * alone, so a server that appears several times in a burst of start requests is only started once.
+     * </p>
+     *
+     * <p>
+     * Every server is claimed with its own conditional write first. The claimed servers whose instances can share a
+     * launch (see {@link EC2SpotInstanceManager#canShareLaunch()}) are then grouped by the instance types and subnets
+     * they would be launched with, and the instances of each group are requested with a single spot request for
+     * several instances. The other servers are launched one by one. This method then waits for all spot requests at once,
+     * until they have been fulfilled or {@link SpotFulfillmentTracker#DEFAULT_TIMEOUT} has passed.
+     * </p>
+     *
+     * <p>
+     * A server whose claim failed only because its entry changed after the fleet was loaded is reported as a failure,
+     * so that its start can be retried.
+     * </p>
+     *
+     * @return The servers that could not be started, in the format (id, exception)
+     */
+    public @NotNull Map<UUID, RuntimeException> startServers() {
+        return startServers(Collections.emptyMap());
+    }
+
+    /**
+     * Starts every server in the fleet that is offline, like {@link #startServers()}, and records markers of what
+     * happened before the start of each server along with its REQUESTED phase (see {@link StartLatencyMetrics}).
+     *
+     * @param startMarkers The markers of each server, in the format (id, markers)
+     * @return The servers that could not be started, in the format (id, exception)
+     */
+    public @NotNull Map<UUID, RuntimeException> startServers(
+            @NotNull Map<UUID, List<ServerLifecycle.Event>> startMarkers) {
+        Map<UUID, RuntimeException> failures = new LinkedHashMap<>();
+        Map<List<EC2SpotInstanceManager.LaunchPlacement>, List<UUID>> launchGroups = new LinkedHashMap<>();
+        // Every launch waits for its spot request at the same time, so the batch waits about as long as one launch
+        Map<UUID, CompletableFuture<Void>> fulfillments = new LinkedHashMap<>();
+        for (Map.Entry<UUID, EC2SpotInstanceManager> entry : instanceManagers.entrySet()) {
+            EC2SpotInstanceManager instanceManager = entry.getValue();
+            boolean claimed = false;
+            try {
+                claimed = instanceManager.claimForStart(
+                        startMarkers.getOrDefault(entry.getKey(), Collections.emptyList()));
+                if (!claimed) {
+                    continue;
+                }
+                if (instanceManager.canShareLaunch()) {
+                    launchGroups.computeIfAbsent(instanceManager.getLaunchPlacements(), placements -> new ArrayList<>())
+                            .add(entry.getKey());
+                } else {
+                    fulfillments.put(entry.getKey(), instanceManager.launchClaimedServer());
+                }
+            } catch (RuntimeException e) {
+                if (claimed && instanceManager.canShareLaunch()) {
+                    instanceManager.abandonClaim();
+                }
+                failures.put(entry.getKey(), e);
+            }
+        }
+
+        for (Map.Entry<List<EC2SpotInstanceManager.LaunchPlacement>, List<UUID>> launchGroup : launchGroups.entrySet()) {
+            List<UUID> serverIds = launchGroup.getValue();
+            for (int start = 0; start < serverIds.size(); start += MAXIMUM_SHARED_LAUNCH_SIZE) {
+                List<UUID> launchedIds = serverIds.subList(start,
+                        Math.min(serverIds.size(), start + MAXIMUM_SHARED_LAUNCH_SIZE));
+                List<String> spotRequestIds;
+                try {
+                    spotRequestIds = instanceManagers.get(launchedIds.get(0))
+                            .requestSharedSpotInstances(launchGroup.getKey(), launchedIds.size());
+                } catch (RuntimeException e) {
+                    // No instance was launched, so the servers are still offline
+                    for (UUID serverId : launchedIds) {
+                        instanceManagers.get(serverId).abandonClaim();
+                        failures.put(serverId, e);
+                    }
+                    continue;
+                }
+                // The instances find their server through the spot request id, so any request can go to any server
+                for (int i = 0; i < launchedIds.size(); i++) {
+                    UUID serverId = launchedIds.get(i);
+                    fulfillments.put(serverId, instanceManagers.get(serverId).recordSharedLaunch(spotRequestIds.get(i)));
+                }
+            }
+        }
+        for (Map.Entry<UUID, CompletableFuture<Void>> fulfillment : fulfillments.entrySet()) {
+            try {
+                fulfillment.getValue().join();
+            } catch (CompletionException e) {
+                failures.put(fulfillment.getKey(), e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Relaunches the server running on a spot instance that received an interruption notice, see
+     * {@link EC2SpotInstanceManager#relaunchAfterInterruption(String, Instant)}. This method blocks until the world
+     * has been saved, which can take until the interruption time.
+     *
+     * @param instanceId       The id of the instance that is being interrupted
+     * @param interruptionTime The time the instance will be interrupted at
+     * @return The id of the server that was relaunched, or null if no server in the fleet runs on the instance
+     */
+    public @Nullable UUID relaunchInterruptedServer(@NotNull String instanceId, @NotNull Instant interruptionTime) {
+        for (Map.Entry<UUID, EC2SpotInstanceManager> entry : instanceManagers.entrySet()) {
+            EC2SpotInstanceManager instanceManager = entry.getValue();
+            String spotRequestId = instanceManager.getSpotRequestId();
+            // The instance id may not have been recorded yet if the request took long to fulfil
+            boolean mayRunOnInstance = instanceId.equals(instanceManager.getEC2InstanceId())
+                    || (instanceManager.getEC2InstanceId() == null && spotRequestId != null
+                    && !spotRequestId.equals(EC2SpotInstanceManager.PENDING_SPOT_REQUEST_ID));
+            if (mayRunOnInstance && instanceManager.relaunchAfterInterruption(instanceId, interruptionTime)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the EC2 instances of every server with a single paginated DescribeInstances request. Instances are
+     * found through the server security group rather than by id, so the request does not grow with the fleet and
+     * does not fail if an instance has already disappeared.
+     *
+     * @return The instance of each server that has a recorded instance which still exists, in the format (id, instance)
+     */
+    public @NotNull Map<UUID, Instance> describeInstances() {
+        Map<String, UUID> instanceServers = new HashMap<>();
+        for (Map.Entry<UUID, EC2SpotInstanceManager> entry : instanceManagers.entrySet()) {
+            String instanceId = entry.getValue().getEC2InstanceId();
+            if (instanceId != null) {
+                instanceServers.put(instanceId, entry.getKey());
+            }
+        }
+
+        Map<UUID, Instance> instances = new LinkedHashMap<>();
+        if (instanceServers.isEmpty()) {
+            return instances;
+        }
+        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
+                .filters(Filter.builder().name("instance.group-id").values(serverSecurityGroup).build())
+                .build();
+        for (Reservation reservation : ec2Client.describeInstancesPaginator(request).reservations()) {
+            for (Instance instance : reservation.instances()) {
+                UUID serverId = instanceServers.get(instance.instanceId());
+                if (serverId != null) {
+                    instances.put(serverId, instance);
+                }
+            }
+        }
+        return instances;
+    }
+}
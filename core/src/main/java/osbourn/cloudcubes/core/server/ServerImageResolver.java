@@ -0,0 +1,115 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeImagesRequest;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.Image;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Optional;
+
+/**
+ * <p>
+ * Finds the machine image servers are launched from. The CloudCubes stack contains an EC2 Image Builder pipeline that
+ * bakes the AWS CLI, a JDK and the Minecraft server into images whose names start with a common prefix, and the most
+ * recently created of those images is used. Until the pipeline has produced an image, servers are launched from stock
+ * Amazon Linux 2, in which case the startup script installs what it needs itself.
+ * </p>
+ *
+ * <p>
+ * The result is cached for a few minutes, so looking up the image does not add a request to every start. This class is
+ * thread safe.
+ * </p>
+ */
+public class ServerImageResolver {
+    /**
+     * Stock Amazon Linux 2, used when no baked image exists
+     */
+    public static final ServerImage FALLBACK_IMAGE = new ServerImage("ami-0233c2d874b811deb", "x86_64");
+
+    private static final Duration SERVER_IMAGE_MAX_AGE = Duration.ofMinutes(10);
+
+    private final Ec2Client ec2Client;
+    private final String imageNamePrefix;
+    private volatile ServerImage serverImage = null;
+    private volatile Instant serverImageLookupTime = Instant.MIN;
+
+    /**
+     * Creates a ServerImageResolver.
+     *
+     * @param ec2Client       The EC2 client used to look up images
+     * @param imageNamePrefix The prefix of the names of the baked images
+     */
+    public ServerImageResolver(@NotNull Ec2Client ec2Client, @NotNull String imageNamePrefix) {
+        this.ec2Client = ec2Client;
+        this.imageNamePrefix = imageNamePrefix;
+    }
+
+    /**
+     * Gets the image servers should be launched from: the latest baked image, or {@link #FALLBACK_IMAGE} if there is
+     * none. If the lookup fails, the previously found image is used.
+     *
+     * @return The image servers should be launched from
+     */
+    public @NotNull ServerImage getServerImage() {
+        if (serverImage == null || serverImageLookupTime.isBefore(Instant.now().minus(SERVER_IMAGE_MAX_AGE))) {
+            synchronized (this) {
+                if (serverImage == null || serverImageLookupTime.isBefore(Instant.now().minus(SERVER_IMAGE_MAX_AGE))) {
+                    try {
+                        serverImage = findLatestBakedImage().orElse(FALLBACK_IMAGE);
+                    } catch (SdkException e) {
+                        if (serverImage == null) {
+                            serverImage = FALLBACK_IMAGE;
+                        }
+                    }
+                    serverImageLookupTime = Instant.now();
+                }
+            }
+        }
+        return serverImage;
+    }
+
+    private Optional<ServerImage> findLatestBakedImage() {
+        DescribeImagesRequest request = DescribeImagesRequest.builder()
+                .owners("self")
+                .filters(
+                        Filter.builder().name("name").values(imageNamePrefix + "*").build(),
+                        Filter.builder().name("state").values("available").build())
+                .build();
+        // Creation dates are ISO 8601 timestamps, so they sort chronologically as strings
+        return ec2Client.describeImages(request).images().stream()
+                .max(Comparator.comparing(Image::creationDate))
+                .map(image -> new ServerImage(image.imageId(), image.architectureAsString()));
+    }
+
+    /**
+     * A machine image servers can be launched from
+     */
+    public static final class ServerImage {
+        private final String imageId;
+        private final String architecture;
+
+        /**
+         * Creates a ServerImage object.
+         *
+         * @param imageId      The id of the image
+         * @param architecture The architecture of the image, as named by EC2 (e.g. "x86_64")
+         */
+        public ServerImage(@NotNull String imageId, @NotNull String architecture) {
+            this.imageId = imageId;
+            this.architecture = architecture;
+        }
+
+        public @NotNull String getImageId() {
+            return imageId;
+        }
+
+        public @NotNull String getArchitecture() {
+            return architecture;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Records the {@link ServerLifecyclePhase} of servers in the server table, so that the phase of a server can be read
+ * without looking at its instance. Every transition is a single conditional UpdateItem request, which sets
+ * "LifecyclePhase" and appends the transition to "LifecycleEvents", and which only succeeds if the server is in one of
+ * the phases that may precede the new phase. The event log is a list of strings such as "READY@1700000000000" (the
+ * phase and the time it was entered in epoch milliseconds), and is started again whenever the server is REQUESTED, so
+ * it only holds the events of the latest run of the server.
+ * </p>
+ *
+ * <p>
+ * Besides transitions, the log holds markers, which are events with a lowercase name that do not change the phase,
+ * such as "world-loaded@1700000000000". They record the steps within a phase that a start spends its time on, see
+ * {@link StartLatencyMetrics}. Markers are mostly recorded in the same write as the next transition.
+ * </p>
+ *
+ * <p>
+ * The phase is kept apart from "ServerState", which is used to claim servers with the version checked writes of
+ * {@link osbourn.cloudcubes.core.database.DynamoDBEntry}. Transitions therefore do not change the version of the
+ * entry, so that recording a phase never makes a claim fail. startup.sh writes BOOTING and READY in the same format.
+ * This class is thread safe.
+ * </p>
+ */
+public class ServerLifecycle {
+    /**
+     * The key of the current phase of a server
+     */
+    public static final String PHASE_KEY = "LifecyclePhase";
+    /**
+     * The key of the list of transitions of the latest run of a server
+     */
+    public static final String EVENTS_KEY = "LifecycleEvents";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final Supplier<DynamoDbAsyncClient> dynamoDbAsyncClient;
+    private final String tableName;
+    private final BiConsumer<UUID, List<Event>> completedRunListener;
+
+    /**
+     * Creates a ServerLifecycle. The asynchronous client is only retrieved from dynamoDbAsyncClient once
+     * {@link #transitionAsync(UUID, ServerLifecyclePhase, List)} is called.
+     *
+     * @param dynamoDbClient       The client used to access the server table
+     * @param dynamoDbAsyncClient  Supplies the client used by asynchronous transitions
+     * @param tableName            The name of the server table
+     * @param completedRunListener Called with the id of a server and the events of its run whenever this object
+     *                             moves a server to OFFLINE, or null. The events are returned by the write
+     *                             that records the transition, so this costs no extra request.
+     */
+    public ServerLifecycle(@NotNull DynamoDbClient dynamoDbClient,
+                           @NotNull Supplier<DynamoDbAsyncClient> dynamoDbAsyncClient,
+                           @NotNull String tableName,
+                           @Nullable BiConsumer<UUID, List<Event>> completedRunListener) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.dynamoDbAsyncClient = dynamoDbAsyncClient;
+        this.tableName = tableName;
+        this.completedRunListener = completedRunListener;
+    }
+
+    /**
+     * Moves a server to a phase, if it is in a phase that may precede it (see
+     * {@link ServerLifecyclePhase#canFollow(ServerLifecyclePhase)}).
+     *
+     * @param serverId The id of the server
+     * @param phase    The new phase
+     * @return true if the transition was recorded, false if the server does not exist or is in a phase that may not
+     * precede the new phase
+     */
+    public boolean transition(@NotNull UUID serverId, @NotNull ServerLifecyclePhase phase) {
+        return transition(serverId, phase, Collections.emptyList());
+    }
+
+    /**
+     * Moves a server to a phase like {@link #transition(UUID, ServerLifecyclePhase)}, and records markers that happened
+     * since the previous transition in the same write.
+     *
+     * @param serverId The id of the server
+     * @param phase    The new phase
+     * @param markers  The markers, which are recorded before the transition
+     * @return true if the transition and markers were recorded
+     * @throws IllegalStateException If the server was moved to OFFLINE but its event log cannot be read, in which case
+     *                               the transition has still been recorded
+     */
+    public boolean transition(@NotNull UUID serverId, @NotNull ServerLifecyclePhase phase,
+                              @NotNull List<Event> markers) {
+        UpdateItemResponse response;
+        try {
+            response = dynamoDbClient.updateItem(buildTransitionRequest(serverId, phase, markers, Instant.now()));
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+        notifyIfCompleted(serverId, phase, response);
+        return true;
+    }
+
+    /**
+     * Asynchronous variant of {@link #transition(UUID, ServerLifecyclePhase, List)}.
+     *
+     * @param serverId The id of the server
+     * @param phase    The new phase
+     * @param markers  The markers, which are recorded before the transition
+     * @return A future that completes with whether the transition was recorded
+     */
+    public @NotNull CompletableFuture<Boolean> transitionAsync(@NotNull UUID serverId,
+                                                               @NotNull ServerLifecyclePhase phase,
+                                                               @NotNull List<Event> markers) {
+        return dynamoDbAsyncClient.get()
+                .updateItem(buildTransitionRequest(serverId, phase, markers, Instant.now()))
+                .handle((response, throwable) -> {
+                    if (throwable == null) {
+                        notifyIfCompleted(serverId, phase, response);
+                        return true;
+                    }
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (cause instanceof ConditionalCheckFailedException) {
+                        return false;
+                    }
+                    throw new CompletionException(cause);
+                });
+    }
+
+    private UpdateItemRequest buildTransitionRequest(UUID serverId, ServerLifecyclePhase phase, List<Event> markers,
+                                                     Instant time) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#id", "Id");
+        expressionAttributeNames.put("#phase", PHASE_KEY);
+        expressionAttributeNames.put("#events", EVENTS_KEY);
+        List<Event> events = new ArrayList<>(markers);
+        events.add(new Event(phase, time));
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":phase", AttributeValue.builder().s(phase.name()).build());
+        expressionAttributeValues.put(":event", toAttributeValue(events));
+
+        String updateExpression;
+        if (phase == ServerLifecyclePhase.REQUESTED) {
+            // A new run of the server starts a new log, which keeps the log short
+            updateExpression = "SET #phase = :phase, #events = :event";
+        } else {
+            expressionAttributeValues.put(":noEvents", AttributeValue.builder().l(Collections.emptyList()).build());
+            updateExpression = "SET #phase = :phase, #events = list_append(if_not_exists(#events, :noEvents), :event)";
+        }
+
+        StringJoiner previousPhases = new StringJoiner(", ", "#phase IN (", ")");
+        for (ServerLifecyclePhase previousPhase : phase.getPreviousPhases()) {
+            String placeholder = ":previous" + previousPhase.ordinal();
+            expressionAttributeValues.put(placeholder, AttributeValue.builder().s(previousPhase.name()).build());
+            previousPhases.add(placeholder);
+        }
+        // Without the check for the id, the update would create an entry for a server that has been deleted
+        String conditionExpression = phase.canBeFirstPhase()
+                ? "attribute_exists(#id) AND (attribute_not_exists(#phase) OR " + previousPhases + ")"
+                : "attribute_exists(#id) AND " + previousPhases;
+
+        return UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of("Id", AttributeValue.builder().s(serverId.toString()).build()))
+                .updateExpression(updateExpression)
+                .conditionExpression(conditionExpression)
+                .expressionAttributeNames(expressionAttributeNames)
+                .expressionAttributeValues(expressionAttributeValues)
+                // The log of a run that has ended is handed to the completed run listener
+                .returnValues(phase == ServerLifecyclePhase.OFFLINE && completedRunListener != null
+                        ? ReturnValue.UPDATED_NEW
+                        : ReturnValue.NONE)
+                .build();
+    }
+
+    private void notifyIfCompleted(UUID serverId, ServerLifecyclePhase phase, UpdateItemResponse response) {
+        if (phase != ServerLifecyclePhase.OFFLINE || completedRunListener == null) {
+            return;
+        }
+        AttributeValue events = response.attributes().get(EVENTS_KEY);
+        if (events != null && events.hasL()) {
+            completedRunListener.accept(serverId, parseEvents(serverId, events));
+        }
+    }
+
+    /**
+     * Records markers without changing the phase of a server, for steps that are not followed by a transition of
+     * this object, like the time a start request spent in the {@link ServerStartQueue}.
+     *
+     * @param serverId The id of the server
+     * @param markers  The markers
+     * @return true if the markers were recorded, false if the server does not exist
+     */
+    public boolean recordMarkers(@NotNull UUID serverId, @NotNull List<Event> markers) {
+        if (markers.isEmpty()) {
+            return true;
+        }
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":markers", toAttributeValue(markers));
+        expressionAttributeValues.put(":noEvents", AttributeValue.builder().l(Collections.emptyList()).build());
+        try {
+            dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(tableName)
+                    .key(Map.of("Id", AttributeValue.builder().s(serverId.toString()).build()))
+                    .updateExpression("SET #events = list_append(if_not_exists(#events, :noEvents), :markers)")
+                    .conditionExpression("attribute_exists(#id)")
+                    .expressionAttributeNames(Map.of("#id", "Id", "#events", EVENTS_KEY))
+                    .expressionAttributeValues(expressionAttributeValues)
+                    .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    private static AttributeValue toAttributeValue(List<Event> events) {
+        List<AttributeValue> eventsAsAttributes = new ArrayList<>();
+        for (Event event : events) {
+            eventsAsAttributes.add(AttributeValue.builder().s(event.toString()).build());
+        }
+        return AttributeValue.builder().l(eventsAsAttributes).build();
+    }
+
+    /**
+     * Parses the event log of a server. An event that cannot be parsed fails the whole log, as the times of the steps
+     * around it would be attributed to the wrong steps if it were left out.
+     *
+     * @throws IllegalStateException If an event cannot be parsed
+     */
+    private static List<Event> parseEvents(UUID serverId, AttributeValue eventsAsAttribute) {
+        List<Event> events = new ArrayList<>();
+        for (AttributeValue eventAsAttribute : eventsAsAttribute.l()) {
+            Event event = Event.parse(eventAsAttribute.s());
+            if (event == null) {
+                throw new IllegalStateException("The lifecycle event " + eventAsAttribute + " of server " + serverId
+                        + " cannot be parsed");
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Gets the current phase of a server.
+     *
+     * @param serverId The id of the server
+     * @return The phase, or null if the server does not exist or its phase has never been recorded
+     * @throws IllegalStateException If the recorded phase is not a phase
+     */
+    public @Nullable ServerLifecyclePhase getPhase(@NotNull UUID serverId) {
+        String phaseAsString = getAttribute(serverId, PHASE_KEY).s();
+        ServerLifecyclePhase phase = parsePhase(phaseAsString);
+        if (phase == null && phaseAsString != null) {
+            throw new IllegalStateException("The lifecycle phase " + phaseAsString + " of server " + serverId
+                    + " is not a phase");
+        }
+        return phase;
+    }
+
+    /**
+     * Gets the transitions of the latest run of a server, in the order they happened.
+     *
+     * @param serverId The id of the server
+     * @return The events, which are empty if the server does not exist or its phase has never been recorded
+     * @throws IllegalStateException If one of the events cannot be parsed
+     */
+    public @NotNull List<Event> getEvents(@NotNull UUID serverId) {
+        AttributeValue eventsAsAttribute = getAttribute(serverId, EVENTS_KEY);
+        return eventsAsAttribute.hasL() ? parseEvents(serverId, eventsAsAttribute) : new ArrayList<>();
+    }
+
+    /**
+     * Gets the events of the latest run of every server, with a paginated Scan of the server table.
+     *
+     * @return The events of each server whose phase has been recorded, in the format (id, events)
+     * @throws IllegalStateException If one of the events cannot be parsed
+     */
+    public @NotNull Map<UUID, List<Event>> getAllEvents() {
+        ScanRequest request = ScanRequest.builder()
+                .tableName(tableName)
+                .projectionExpression("#id, #events")
+                .expressionAttributeNames(Map.of("#id", "Id", "#events", EVENTS_KEY))
+                .build();
+        Map<UUID, List<Event>> allEvents = new LinkedHashMap<>();
+        for (Map<String, AttributeValue> item : dynamoDbClient.scanPaginator(request).items()) {
+            AttributeValue eventsAsAttribute = item.get(EVENTS_KEY);
+            if (item.get("Id") != null && eventsAsAttribute != null && eventsAsAttribute.hasL()) {
+                UUID serverId = UUID.fromString(item.get("Id").s());
+                allEvents.put(serverId, parseEvents(serverId, eventsAsAttribute));
+            }
+        }
+        return allEvents;
+    }
+
+    private AttributeValue getAttribute(UUID serverId, String key) {
+        AttributeValue value = dynamoDbClient.getItem(GetItemRequest.builder()
+                        .tableName(tableName)
+                        .key(Map.of("Id", AttributeValue.builder().s(serverId.toString()).build()))
+                        .projectionExpression("#key")
+                        .expressionAttributeNames(Map.of("#key", key))
+                        .build())
+                .item()
+                .get(key);
+        return value != null ? value : AttributeValue.builder().build();
+    }
+
+    /**
+     * Parses a phase as it is stored in the database.
+     *
+     * @param phaseAsString The stored phase
+     * @return The phase, or null if phaseAsString is null or not a phase, which the caller reports if it matters
+     */
+    public static @Nullable ServerLifecyclePhase parsePhase(@Nullable String phaseAsString) {
+        if (phaseAsString == null) {
+            return null;
+        }
+        try {
+            return ServerLifecyclePhase.valueOf(phaseAsString);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Works out how long a server spent in each phase it has left, which is the time until the next transition.
+     * Markers are ignored.
+     *
+     * @param events The events of a run of a server, in the order they happened
+     * @return The time spent in each phase, in the order the phases were entered
+     */
+    public static @NotNull Map<ServerLifecyclePhase, Duration> getPhaseDurations(@NotNull List<Event> events) {
+        List<Event> transitions = new ArrayList<>();
+        for (Event event : events) {
+            if (event.getPhase() != null) {
+                transitions.add(event);
+            }
+        }
+        Map<ServerLifecyclePhase, Duration> phaseDurations = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < transitions.size(); i++) {
+            Duration duration = Duration.between(transitions.get(i).getTime(), transitions.get(i + 1).getTime());
+            phaseDurations.merge(transitions.get(i).getPhase(), duration, Duration::plus);
+        }
+        return phaseDurations;
+    }
+
+    /**
+     * A transition of a server to a phase, or a marker
+     */
+    public static final class Event {
+        /**
+         * The names of markers, which are lowercase so that they cannot be mistaken for phases
+         */
+        private static final Pattern MARKER_NAME_PATTERN = Pattern.compile("^[a-z][a-z0-9-]*$");
+
+        private final String name;
+        private final Instant time;
+
+        public Event(@NotNull ServerLifecyclePhase phase, @NotNull Instant time) {
+            this.name = phase.name();
+            this.time = time;
+        }
+
+        private Event(String name, Instant time) {
+            this.name = name;
+            this.time = time;
+        }
+
+        /**
+         * Creates a marker.
+         *
+         * @param name The name of the marker, such as "world-loaded"
+         * @param time The time of the marker
+         * @return The marker
+         * @throws IllegalArgumentException If the name is not lowercase letters, digits and hyphens
+         */
+        public static @NotNull Event marker(@NotNull String name, @NotNull Instant time) {
+            if (!MARKER_NAME_PATTERN.matcher(name).matches()) {
+                throw new IllegalArgumentException("Invalid marker name " + name);
+            }
+            return new Event(name, time);
+        }
+
+        /**
+         * Parses an event as it is stored in the database, such as "READY@1700000000000".
+         *
+         * @param eventAsString The stored event
+         * @return The event, or null if eventAsString is null or not an event, which the caller reports if it matters
+         */
+        public static @Nullable Event parse(@Nullable String eventAsString) {
+            if (eventAsString == null) {
+                return null;
+            }
+            int separator = eventAsString.indexOf('@');
+            if (separator < 0) {
+                return null;
+            }
+            String name = eventAsString.substring(0, separator);
+            if (parsePhase(name) == null && !MARKER_NAME_PATTERN.matcher(name).matches()) {
+                return null;
+            }
+            try {
+                return new Event(name, Instant.ofEpochMilli(Long.parseLong(eventAsString.substring(separator + 1))));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Gets the name of the event, which is the name of the phase for transitions.
+         *
+         * @return The name
+         */
+        public @NotNull String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the phase the server moved to.
+         *
+         * @return The phase, or null if the event is a marker
+         */
+        public @Nullable ServerLifecyclePhase getPhase() {
+            return MARKER_NAME_PATTERN.matcher(name).matches() ? null : parsePhase(name);
+        }
+
+        public @NotNull Instant getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + time.toEpochMilli();
+        }
+    }
+}
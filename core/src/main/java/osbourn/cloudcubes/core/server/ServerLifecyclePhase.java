@@ -0,0 +1,108 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * The phase of a server in its lifecycle, which is recorded by {@link ServerLifecycle}. Unlike the
+ * {@link ProvisionalServerState}, which only tells whether the server is running and is used to claim the server for a
+ * start or stop, the phase tells how far a start or stop has got:
+ * </p>
+ *
+ * <p>
+ * REQUESTED &rarr; FULFILLED &rarr; BOOTING &rarr; READY &rarr; STOPPING &rarr; SNAPSHOTTING &rarr; OFFLINE
+ * </p>
+ *
+ * <p>
+ * Phases of a start may be skipped, since the instance writes BOOTING and READY itself and may do so before the spot
+ * request has been recorded as fulfilled. A start that failed is FAILED until the server is started or stopped again.
+ * Servers whose phase has never been recorded (because they were created before phases were) can be started, stopped
+ * or marked FAILED.
+ * </p>
+ */
+public enum ServerLifecyclePhase {
+    /**
+     * The server has been claimed for a start and its instance is being requested
+     */
+    REQUESTED,
+    /**
+     * The spot request of the server has been fulfilled with an instance
+     */
+    FULFILLED,
+    /**
+     * The instance is running startup.sh, which restores the world and starts the Minecraft server
+     */
+    BOOTING,
+    /**
+     * The server is ONLINE
+     */
+    READY,
+    /**
+     * The server is being stopped, and the Minecraft server is saving the world, which is then uploaded to the world
+     * bucket. A stop that could not save the world leaves the server in this phase.
+     */
+    STOPPING,
+    /**
+     * The world has been saved or is being snapshotted, and the instance is being terminated
+     */
+    SNAPSHOTTING,
+    /**
+     * The server is OFFLINE
+     */
+    OFFLINE,
+    /**
+     * No instance could be launched for the server, or its instance ended before the server was ONLINE
+     */
+    FAILED;
+
+    /**
+     * Gets the phases the server may be in when it enters this phase.
+     *
+     * @return The previous phases
+     */
+    public @NotNull Set<ServerLifecyclePhase> getPreviousPhases() {
+        switch (this) {
+            case REQUESTED:
+                return EnumSet.of(OFFLINE, FAILED);
+            case FULFILLED:
+                return EnumSet.of(REQUESTED);
+            case BOOTING:
+                return EnumSet.of(REQUESTED, FULFILLED);
+            case READY:
+                return EnumSet.of(REQUESTED, FULFILLED, BOOTING);
+            case STOPPING:
+                return EnumSet.of(REQUESTED, FULFILLED, BOOTING, READY, FAILED);
+            case SNAPSHOTTING:
+                return EnumSet.of(STOPPING);
+            case OFFLINE:
+                return EnumSet.of(STOPPING, SNAPSHOTTING);
+            case FAILED:
+                return EnumSet.of(REQUESTED, FULFILLED, BOOTING, READY);
+            default:
+                throw new IllegalStateException("Unknown phase " + this);
+        }
+    }
+
+    /**
+     * Gets whether a server whose phase has never been recorded may enter this phase.
+     *
+     * @return true for REQUESTED, STOPPING and FAILED
+     */
+    public boolean canBeFirstPhase() {
+        return this == REQUESTED || this == STOPPING || this == FAILED;
+    }
+
+    /**
+     * Gets whether a server may move from one phase to this phase.
+     *
+     * @param previousPhase The current phase of the server, or null if it has never been recorded
+     * @return true if the transition is allowed
+     */
+    public boolean canFollow(@Nullable ServerLifecyclePhase previousPhase) {
+        return previousPhase == null ? canBeFirstPhase() : getPreviousPhases().contains(previousPhase);
+    }
+}
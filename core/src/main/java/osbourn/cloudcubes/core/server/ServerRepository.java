@@ -0,0 +1,257 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+import software.amazon.awssdk.services.ec2.model.Instance;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Loads many servers from the server database at once. Servers loaded through this class have the values needed to
+ * report their status already downloaded, so reading the status of N servers costs a few Scan or BatchGetItem requests
+ * in total instead of at least one GetItem request per server.
+ * </p>
+ *
+ * <p>
+ * The loaded servers are returned as a {@link ServerFleet}, which can also look up the EC2 instances of all the
+ * servers at once.
+ * </p>
+ */
+public class ServerRepository {
+    /**
+     * The values downloaded for every server
+     */
+    public static final Set<String> STATUS_KEYS;
+
+    static {
+        Set<String> statusKeys = new HashSet<>(EC2SpotInstanceManager.DATABASE_KEYS);
+        statusKeys.add("Id");
+        statusKeys.add("DisplayName");
+        statusKeys.add(IdleServerMonitor.EMPTY_SINCE_KEY);
+        statusKeys.add(ServerLifecycle.PHASE_KEY);
+        // Needed to run commands on the servers
+        statusKeys.add("RconPassword");
+        STATUS_KEYS = Collections.unmodifiableSet(statusKeys);
+    }
+
+    /**
+     * The maximum number of keys in a BatchGetItem request
+     */
+    private static final int BATCH_GET_ITEM_LIMIT = 100;
+    private static final int MAXIMUM_BATCH_GET_ITEM_ATTEMPTS = 8;
+    private static final long BASE_RETRY_DELAY_MILLIS = 50;
+
+    private final InfrastructureConstructor infrastructureConstructor;
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+
+    /**
+     * Creates a ServerRepository for the server database of the given InfrastructureConstructor.
+     *
+     * @param infrastructureConstructor The InfrastructureConstructor providing the SDK clients
+     */
+    public ServerRepository(@NotNull InfrastructureConstructor infrastructureConstructor) {
+        this.infrastructureConstructor = infrastructureConstructor;
+        this.dynamoDbClient = infrastructureConstructor.getDynamoDBClient();
+        this.tableName = infrastructureConstructor.getInfrastructureConfiguration()
+                .getValue(InfrastructureSetting.SERVERDATABASENAME);
+    }
+
+    /**
+     * Loads every server in the database with a paginated Scan.
+     *
+     * @return The servers
+     */
+    public @NotNull ServerFleet loadAllServers() {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        String projectionExpression = buildProjectionExpression(expressionAttributeNames);
+        ScanRequest request = ScanRequest.builder()
+                .tableName(tableName)
+                .projectionExpression(projectionExpression)
+                .expressionAttributeNames(expressionAttributeNames)
+                .build();
+
+        List<DynamoDBEntry> entries = new ArrayList<>();
+        for (Map<String, AttributeValue> item : dynamoDbClient.scanPaginator(request).items()) {
+            entries.add(createEntry(item));
+        }
+        return createFleet(entries);
+    }
+
+    /**
+     * Loads the servers with the given ids using BatchGetItem requests of up to 100 keys each. Ids that do not exist in
+     * the database are left out of the result.
+     *
+     * @param ids The ids of the servers
+     * @return The servers
+     * @throws IllegalStateException If DynamoDB kept returning unprocessed keys
+     */
+    public @NotNull ServerFleet loadServers(@NotNull Collection<UUID> ids) {
+        return loadServers(ids, false);
+    }
+
+    /**
+     * Loads the servers with the given ids like {@link #loadServers(Collection)}. Strongly consistent reads cost twice
+     * as much, but return every write that finished before the read, so that servers about to be claimed are not
+     * loaded with an outdated version.
+     *
+     * @param ids            The ids of the servers
+     * @param consistentRead Whether to use strongly consistent reads
+     * @return The servers
+     * @throws IllegalStateException If DynamoDB kept returning unprocessed keys
+     */
+    public @NotNull ServerFleet loadServers(@NotNull Collection<UUID> ids, boolean consistentRead) {
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (UUID id : new LinkedHashSet<>(ids)) {
+            keys.add(Map.of("Id", AttributeValue.builder().s(id.toString()).build()));
+        }
+
+        List<DynamoDBEntry> entries = new ArrayList<>();
+        for (int start = 0; start < keys.size(); start += BATCH_GET_ITEM_LIMIT) {
+            int end = Math.min(keys.size(), start + BATCH_GET_ITEM_LIMIT);
+            for (Map<String, AttributeValue> item : batchGetItems(keys.subList(start, end), consistentRead)) {
+                entries.add(createEntry(item));
+            }
+        }
+        return createFleet(entries);
+    }
+
+    /**
+     * Loads the servers that may run on the given EC2 instance by querying the {@value
+     * EC2SpotInstanceManager#INSTANCE_ID_INDEX_NAME} index. If no server has recorded the instance id yet, because the
+     * spot request took long to fulfil, the instance is described and the servers are found through the spot request
+     * it was launched by instead. The items of the indexes are eventually consistent, so the servers are then loaded
+     * with strongly consistent reads.
+     *
+     * @param instanceId The id of the instance
+     * @return The servers, which are usually at most one, or an empty fleet if no server was started on the instance
+     */
+    public @NotNull ServerFleet loadServersByInstanceId(@NotNull String instanceId) {
+        Set<UUID> ids = queryIds(EC2SpotInstanceManager.INSTANCE_ID_INDEX_NAME, "EC2InstanceId", instanceId);
+        if (ids.isEmpty()) {
+            String spotRequestId = infrastructureConstructor.getEc2Client()
+                    .describeInstances(request -> request.instanceIds(instanceId))
+                    .reservations().stream()
+                    .flatMap(reservation -> reservation.instances().stream())
+                    .map(Instance::spotInstanceRequestId)
+                    .filter(Objects::nonNull)
+                    .findFirst()
+                    .orElse(null);
+            if (spotRequestId != null) {
+                ids = queryIds(EC2SpotInstanceManager.SPOT_REQUEST_INDEX_NAME, "EC2SpotRequestId", spotRequestId);
+            }
+        }
+        return loadServers(ids, true);
+    }
+
+    /**
+     * Gets the ids of the servers whose value of the given key is the given value, using an index of the server table
+     * partitioned by that key.
+     */
+    private Set<UUID> queryIds(String indexName, String key, String value) {
+        QueryRequest request = QueryRequest.builder()
+                .tableName(tableName)
+                .indexName(indexName)
+                .keyConditionExpression("#k = :v")
+                .expressionAttributeNames(Map.of("#k", key))
+                .expressionAttributeValues(Map.of(":v", AttributeValue.builder().s(value).build()))
+                .build();
+        Set<UUID> ids = new LinkedHashSet<>();
+        for (Map<String, AttributeValue> item : dynamoDbClient.queryPaginator(request).items()) {
+            ids.add(UUID.fromString(item.get("Id").s()));
+        }
+        return ids;
+    }
+
+    /**
+     * Downloads up to 100 items, retrying the keys DynamoDB did not process (because of throttling or the 16 MB
+     * response limit) with exponential backoff.
+     */
+    private List<Map<String, AttributeValue>> batchGetItems(List<Map<String, AttributeValue>> keys,
+                                                            boolean consistentRead) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        String projectionExpression = buildProjectionExpression(expressionAttributeNames);
+        Map<String, KeysAndAttributes> requestItems = Map.of(tableName, KeysAndAttributes.builder()
+                .keys(keys)
+                .projectionExpression(projectionExpression)
+                .expressionAttributeNames(expressionAttributeNames)
+                .consistentRead(consistentRead)
+                .build());
+
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (int attempt = 0; attempt < MAXIMUM_BATCH_GET_ITEM_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                sleepBeforeRetry(attempt);
+            }
+            BatchGetItemResponse response = dynamoDbClient.batchGetItem(
+                    BatchGetItemRequest.builder().requestItems(requestItems).build());
+            items.addAll(response.responses().getOrDefault(tableName, Collections.emptyList()));
+            if (!response.hasUnprocessedKeys() || response.unprocessedKeys().isEmpty()) {
+                return items;
+            }
+            requestItems = response.unprocessedKeys();
+        }
+        throw new IllegalStateException("DynamoDB did not process every key after "
+                + MAXIMUM_BATCH_GET_ITEM_ATTEMPTS + " attempts");
+    }
+
+    private static void sleepBeforeRetry(int attempt) {
+        // Full jitter, so that concurrent loads do not retry in lockstep
+        long maximumDelayMillis = BASE_RETRY_DELAY_MILLIS << Math.min(attempt, 10);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maximumDelayMillis + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading servers", e);
+        }
+    }
+
+    /**
+     * Builds a projection of {@link #STATUS_KEYS} and the version of each entry. Attribute names are substituted with
+     * placeholders so that names which happen to be DynamoDB reserved words can still be projected.
+     *
+     * @param expressionAttributeNames The map the placeholders are added to
+     * @return The projection expression
+     */
+    private static String buildProjectionExpression(Map<String, String> expressionAttributeNames) {
+        Set<String> keysToProject = new HashSet<>(STATUS_KEYS);
+        keysToProject.add(DynamoDBEntry.VERSION_KEY);
+        StringJoiner projectionExpression = new StringJoiner(", ");
+        for (String key : keysToProject) {
+            String placeholder = "#a" + expressionAttributeNames.size();
+            expressionAttributeNames.put(placeholder, key);
+            projectionExpression.add(placeholder);
+        }
+        return projectionExpression.toString();
+    }
+
+    private DynamoDBEntry createEntry(Map<String, AttributeValue> item) {
+        return DynamoDBEntry.fromItem(item, STATUS_KEYS, dynamoDbClient,
+                infrastructureConstructor::getDynamoDBAsyncClient, tableName);
+    }
+
+    private ServerFleet createFleet(List<DynamoDBEntry> entries) {
+        Map<UUID, CloudCubesServer> servers = new LinkedHashMap<>();
+        Map<UUID, EC2SpotInstanceManager> instanceManagers = new LinkedHashMap<>();
+        for (DynamoDBEntry entry : entries) {
+            EC2SpotInstanceManager instanceManager =
+                    CloudCubesServer.createInstanceManager(entry, infrastructureConstructor);
+            servers.put(entry.getId(), new CloudCubesServer(entry.getId(), entry, instanceManager,
+                    infrastructureConstructor.getServerListPinger(), infrastructureConstructor.getRconConnectionPool()));
+            instanceManagers.put(entry.getId(), instanceManager);
+        }
+        return new ServerFleet(servers, instanceManagers,
+                infrastructureConstructor.getEc2Client(),
+                infrastructureConstructor.getServerStateReconciler(),
+                infrastructureConstructor.getServerListPinger(),
+                infrastructureConstructor.getRconConnectionPool(),
+                infrastructureConstructor.getInfrastructureConfiguration()
+                        .getValue(InfrastructureSetting.SERVERSECURITYGROUPID));
+    }
+}
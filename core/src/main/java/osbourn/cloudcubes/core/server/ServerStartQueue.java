@@ -0,0 +1,79 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+import java.util.UUID;
+
+/**
+ * <p>
+ * The SQS queue that requests to start servers are sent to. Starting a server takes several EC2 requests and waiting
+ * for a spot request to be fulfilled, so the requests are not handled where they are made: the server launcher
+ * function receives them in batches, drops the duplicates of each batch and starts the servers with
+ * {@link ServerFleet#startServers()}, which requests the instances of servers that launch the same way together.
+ * </p>
+ *
+ * <p>
+ * Each message contains the id of a server and nothing else. This class is thread safe.
+ * </p>
+ */
+public class ServerStartQueue {
+    private final SqsClient sqsClient;
+    private final String queueUrl;
+
+    /**
+     * Creates a ServerStartQueue.
+     *
+     * @param sqsClient The client used to send the requests
+     * @param queueUrl  The URL of the queue
+     */
+    public ServerStartQueue(@NotNull SqsClient sqsClient, @NotNull String queueUrl) {
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+    }
+
+    /**
+     * Requests a server to be started. Requesting a server that is online or already being started has no effect.
+     *
+     * @param serverId The id of the server
+     */
+    public void requestStart(@NotNull UUID serverId) {
+        sqsClient.sendMessage(SendMessageRequest.builder()
+                .queueUrl(queueUrl)
+                .messageBody(serverId.toString())
+                .build());
+    }
+
+    /**
+     * Gets the approximate number of requests that have not been received by the server launcher yet.
+     *
+     * @return The number of requests
+     */
+    public int getApproximateLength() {
+        String length = sqsClient.getQueueAttributes(GetQueueAttributesRequest.builder()
+                        .queueUrl(queueUrl)
+                        .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                        .build())
+                .attributes()
+                .get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES);
+        return length == null ? 0 : Integer.parseInt(length);
+    }
+
+    /**
+     * Reads the server id of a request.
+     *
+     * @param messageBody The body of a message received from the queue
+     * @return The id of the server, or null if the message is not a start request
+     */
+    public static @Nullable UUID parseRequest(@NotNull String messageBody) {
+        try {
+            return UUID.fromString(messageBody.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
+import osbourn.cloudcubes.core.minecraft.ServerStatus;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Works out the real state of servers whose state in the database is UNKNOWN, which is the case while a server is
+ * starting and also when a start failed without the server noticing. The spot request of each server is checked
+ * first, then the instance that fulfilled it and finally whether the Minecraft server on that instance answers a
+ * Server List Ping. A server is ONLINE once it answers and OFFLINE once its spot request or instance has ended;
+ * otherwise it is still starting and stays UNKNOWN. DescribeSpotInstanceRequests is eventually consistent, so a request
+ * it does not return yet only counts as ended once {@link #MISSING_SPOT_REQUEST_GRACE_PERIOD} has passed since the
+ * launch.
+ * </p>
+ *
+ * <p>
+ * The servers passed to {@link #reconcile(Map)} are checked together, with one DescribeSpotInstanceRequests and
+ * one DescribeInstances call in total, the running instances are pinged at the same time, and each verdict is cached
+ * for a short time so that repeated status queries do not call EC2 again. This class does not write to the database;
+ * that is left to the owner of each server entry (see {@link EC2SpotInstanceManager#isServerOnline()}). This class is
+ * thread safe.
+ * </p>
+ */
+public class ServerStateReconciler {
+    /**
+     * How long a verdict is reused for
+     */
+    private static final Duration VERDICT_MAX_AGE = Duration.ofSeconds(30);
+    /**
+     * How long after a launch a spot request that EC2 does not return is still assumed to be propagating
+     */
+    static final Duration MISSING_SPOT_REQUEST_GRACE_PERIOD = Duration.ofMinutes(2);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(1);
+    private static final Duration PING_TIMEOUT = Duration.ofSeconds(2);
+    /**
+     * Spot request states in which the request will never launch an instance
+     */
+    private static final Set<String> ENDED_SPOT_REQUEST_STATES = Set.of("failed", "cancelled", "closed");
+    /**
+     * Instance states in which the instance is not running and will not run again
+     */
+    private static final Set<String> ENDED_INSTANCE_STATES = Set.of("shutting-down", "terminated", "stopping", "stopped");
+
+    private final Ec2Client ec2Client;
+    private final ServerListPinger serverListPinger;
+    /**
+     * The cached verdicts in the format ("spotRequestId", verdict)
+     */
+    private final Map<String, Verdict> verdicts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a ServerStateReconciler.
+     *
+     * @param ec2Client        The EC2 client used to describe spot requests and instances
+     * @param serverListPinger The pinger used to check whether the Minecraft servers of running instances answer
+     */
+    public ServerStateReconciler(@NotNull Ec2Client ec2Client, @NotNull ServerListPinger serverListPinger) {
+        this.ec2Client = ec2Client;
+        this.serverListPinger = serverListPinger;
+    }
+
+    /**
+     * Works out the state of a single server.
+     *
+     * @param spotRequestId The id of the spot request the server was last started with
+     * @param launchedAt    The time the spot request was made, or null if it is not known
+     * @return The state of the server, which is UNKNOWN if it is still starting
+     * @see #reconcile(Map)
+     */
+    public @NotNull ProvisionalServerState reconcile(@NotNull String spotRequestId, @Nullable Instant launchedAt) {
+        Map<String, Instant> launchTimes = new HashMap<>();
+        launchTimes.put(spotRequestId, launchedAt);
+        return reconcile(launchTimes).get(spotRequestId);
+    }
+
+    /**
+     * Works out the state of several servers at once.
+     *
+     * @param launchTimes The ids of the spot requests the servers were last started with and the times the requests
+     *                    were made, in the format ("spotRequestId", time), where the time is null if it is not known
+     * @return The state of each server in the format ("spotRequestId", state), containing every id that was passed
+     */
+    public @NotNull Map<String, ProvisionalServerState> reconcile(@NotNull Map<String, Instant> launchTimes) {
+        Instant now = Instant.now();
+        Map<String, ProvisionalServerState> states = new HashMap<>();
+        Set<String> uncheckedSpotRequestIds = new HashSet<>();
+        for (String spotRequestId : launchTimes.keySet()) {
+            Verdict verdict = verdicts.get(spotRequestId);
+            if (verdict != null && verdict.time.isAfter(now.minus(VERDICT_MAX_AGE))) {
+                states.put(spotRequestId, verdict.state);
+            } else {
+                uncheckedSpotRequestIds.add(spotRequestId);
+            }
+        }
+        if (uncheckedSpotRequestIds.isEmpty()) {
+            return states;
+        }
+
+        // Spot requests that are not returned have either ended long enough ago for EC2 to have forgotten them, or
+        // were made so recently that they are not visible yet
+        Map<String, ProvisionalServerState> checkedStates = new HashMap<>();
+        Map<String, String> spotRequestInstanceIds = new HashMap<>();
+        for (SpotInstanceRequest spotInstanceRequest : describeSpotRequests(uncheckedSpotRequestIds)) {
+            String spotRequestId = spotInstanceRequest.spotInstanceRequestId();
+            if (spotInstanceRequest.instanceId() != null) {
+                spotRequestInstanceIds.put(spotRequestId, spotInstanceRequest.instanceId());
+            } else if (!ENDED_SPOT_REQUEST_STATES.contains(spotInstanceRequest.stateAsString())) {
+                checkedStates.put(spotRequestId, ProvisionalServerState.UNKNOWN);
+            }
+        }
+
+        Map<String, Instance> instances = describeInstances(spotRequestInstanceIds.values());
+        Map<String, CompletableFuture<ServerStatus>> pings = new HashMap<>();
+        for (Map.Entry<String, String> entry : spotRequestInstanceIds.entrySet()) {
+            Instance instance = instances.get(entry.getValue());
+            if (instance == null || ENDED_INSTANCE_STATES.contains(instance.state().nameAsString())) {
+                continue;
+            }
+            if (!"running".equals(instance.state().nameAsString()) || instance.publicIpAddress() == null) {
+                checkedStates.put(entry.getKey(), ProvisionalServerState.UNKNOWN);
+            } else {
+                InetSocketAddress address =
+                        new InetSocketAddress(instance.publicIpAddress(), CloudCubesServer.MINECRAFT_PORT);
+                pings.put(entry.getKey(), serverListPinger.ping(address, CONNECT_TIMEOUT, PING_TIMEOUT));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<ServerStatus>> entry : pings.entrySet()) {
+            // A server that does not answer yet is still starting, or is still loading its world
+            boolean answered = entry.getValue().handle((status, throwable) -> throwable == null).join();
+            checkedStates.put(entry.getKey(), answered
+                    ? ProvisionalServerState.ONLINE
+                    : ProvisionalServerState.UNKNOWN);
+        }
+
+        for (String spotRequestId : uncheckedSpotRequestIds) {
+            Instant launchedAt = launchTimes.get(spotRequestId);
+            boolean mayBePropagating = launchedAt != null
+                    && launchedAt.plus(MISSING_SPOT_REQUEST_GRACE_PERIOD).isAfter(now);
+            ProvisionalServerState state = checkedStates.getOrDefault(spotRequestId, mayBePropagating
+                    ? ProvisionalServerState.UNKNOWN
+                    : ProvisionalServerState.OFFLINE);
+            verdicts.put(spotRequestId, new Verdict(state, now));
+            states.put(spotRequestId, state);
+        }
+        return states;
+    }
+
+    /**
+     * Forgets the cached verdict of a spot request, for example because the server has been stopped.
+     *
+     * @param spotRequestId The id of the spot request
+     */
+    public void invalidate(@NotNull String spotRequestId) {
+        verdicts.remove(spotRequestId);
+    }
+
+    private List<SpotInstanceRequest> describeSpotRequests(Collection<String> spotRequestIds) {
+        // A filter is used instead of listing the ids because EC2 rejects the whole request if any id is unknown
+        DescribeSpotInstanceRequestsRequest request = DescribeSpotInstanceRequestsRequest.builder()
+                .filters(Filter.builder().name("spot-instance-request-id").values(spotRequestIds).build())
+                .build();
+        List<SpotInstanceRequest> spotInstanceRequests = new ArrayList<>();
+        ec2Client.describeSpotInstanceRequestsPaginator(request)
+                .forEach(response -> spotInstanceRequests.addAll(response.spotInstanceRequests()));
+        return spotInstanceRequests;
+    }
+
+    private Map<String, Instance> describeInstances(Collection<String> instanceIds) {
+        Map<String, Instance> instances = new HashMap<>();
+        if (instanceIds.isEmpty()) {
+            return instances;
+        }
+        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
+                .filters(Filter.builder().name("instance-id").values(instanceIds).build())
+                .build();
+        for (Reservation reservation : ec2Client.describeInstancesPaginator(request).reservations()) {
+            for (Instance instance : reservation.instances()) {
+                instances.put(instance.instanceId(), instance);
+            }
+        }
+        return instances;
+    }
+
+    private static final class Verdict {
+        private final ProvisionalServerState state;
+        private final Instant time;
+
+        private Verdict(ProvisionalServerState state, Instant time) {
+            this.state = state;
+            this.time = time;
+        }
+    }
+}
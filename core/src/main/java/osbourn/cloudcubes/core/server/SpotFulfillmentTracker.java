@@ -0,0 +1,149 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Waits for spot requests to be fulfilled by polling DescribeSpotInstanceRequests. Polls start shortly after the
+ * request is made and back off exponentially while EC2 is still evaluating the request, but drop back to the shortest
+ * interval as soon as EC2 reports that it is launching the instance, so the instance id is usually found within one
+ * short poll of the launch.
+ * </p>
+ *
+ * <p>
+ * Waiting does not block any thread: polls are scheduled with {@link CompletableFuture#delayedExecutor} and made with
+ * the asynchronous EC2 client. This class is thread safe.
+ * </p>
+ */
+public class SpotFulfillmentTracker {
+    /**
+     * The default time to wait for a request to be fulfilled
+     */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(20);
+
+    private static final long MINIMUM_POLL_INTERVAL_MILLIS = 250;
+    private static final long MAXIMUM_POLL_INTERVAL_MILLIS = 4000;
+    /**
+     * Spot request states in which the request will never be fulfilled
+     */
+    private static final Set<String> FAILED_STATES = Set.of("failed", "cancelled", "closed");
+    /**
+     * Status codes which mean that EC2 has found capacity and is about to launch the instance
+     */
+    private static final Set<String> LAUNCHING_STATUS_CODES = Set.of("pending-fulfillment", "fulfilled");
+
+    private final Supplier<Ec2AsyncClient> ec2AsyncClient;
+
+    /**
+     * Creates a SpotFulfillmentTracker. The EC2 client is only retrieved from ec2AsyncClient once a request is tracked.
+     *
+     * @param ec2AsyncClient Supplies the EC2 client used to describe the spot requests
+     */
+    public SpotFulfillmentTracker(@NotNull Supplier<Ec2AsyncClient> ec2AsyncClient) {
+        this.ec2AsyncClient = ec2AsyncClient;
+    }
+
+    /**
+     * Waits for a spot request to be fulfilled with an instance.
+     *
+     * @param spotRequestId The id of the spot request
+     * @param timeout       How long to wait before giving up
+     * @return A future that completes with the fulfilled spot request, whose instance id is set. The future fails with
+     * a TimeoutException if the request was not fulfilled in time, or with an IllegalStateException if the request
+     * failed or was cancelled.
+     */
+    public @NotNull CompletableFuture<SpotInstanceRequest> awaitFulfillment(@NotNull String spotRequestId,
+                                                                            @NotNull Duration timeout) {
+        return poll(spotRequestId, Instant.now().plus(timeout), MINIMUM_POLL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Describes a spot request once, without waiting for it to be fulfilled.
+     *
+     * @param spotRequestId The id of the spot request
+     * @return A future that completes with the spot request, or with null if EC2 does not know the request (yet)
+     */
+    public @NotNull CompletableFuture<SpotInstanceRequest> describe(@NotNull String spotRequestId) {
+        DescribeSpotInstanceRequestsRequest request = DescribeSpotInstanceRequestsRequest.builder()
+                .spotInstanceRequestIds(spotRequestId)
+                .build();
+        return ec2AsyncClient.get().describeSpotInstanceRequests(request)
+                .handle((response, throwable) -> {
+                    if (throwable == null) {
+                        List<SpotInstanceRequest> spotInstanceRequests = response.spotInstanceRequests();
+                        return spotInstanceRequests.isEmpty() ? null : spotInstanceRequests.get(0);
+                    }
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    // Spot requests are eventually consistent, so a request made moments ago may not be found yet
+                    if (isNotFoundError(cause)) {
+                        return null;
+                    }
+                    throw new CompletionException(cause);
+                });
+    }
+
+    private CompletableFuture<SpotInstanceRequest> poll(String spotRequestId, Instant deadline, long intervalMillis) {
+        return describe(spotRequestId).thenCompose(spotInstanceRequest -> {
+            if (spotInstanceRequest != null && spotInstanceRequest.instanceId() != null) {
+                return CompletableFuture.completedFuture(spotInstanceRequest);
+            }
+            if (spotInstanceRequest != null && FAILED_STATES.contains(spotInstanceRequest.stateAsString())) {
+                String statusCode = spotInstanceRequest.status() == null
+                        ? spotInstanceRequest.stateAsString()
+                        : spotInstanceRequest.status().code();
+                return CompletableFuture.failedFuture(new IllegalStateException(
+                        "Spot request " + spotRequestId + " will not be fulfilled: " + statusCode));
+            }
+
+            long nextIntervalMillis = nextPollInterval(spotInstanceRequest, intervalMillis);
+            long remainingMillis = Duration.between(Instant.now(), deadline).toMillis();
+            if (remainingMillis <= 0) {
+                return CompletableFuture.failedFuture(new TimeoutException(
+                        "Spot request " + spotRequestId + " was not fulfilled in time"));
+            }
+            return CompletableFuture.supplyAsync(() -> null,
+                            CompletableFuture.delayedExecutor(
+                                    Math.min(nextIntervalMillis, remainingMillis), TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> poll(spotRequestId, deadline, nextIntervalMillis));
+        });
+    }
+
+    /**
+     * Decides how long to wait before polling again.
+     *
+     * @param spotInstanceRequest The spot request returned by the last poll, or null if it was not found
+     * @param intervalMillis      The interval used before the last poll
+     * @return The interval to use before the next poll
+     */
+    private static long nextPollInterval(SpotInstanceRequest spotInstanceRequest, long intervalMillis) {
+        if (spotInstanceRequest != null
+                && spotInstanceRequest.status() != null
+                && LAUNCHING_STATUS_CODES.contains(spotInstanceRequest.status().code())) {
+            return MINIMUM_POLL_INTERVAL_MILLIS;
+        }
+        return Math.min(intervalMillis * 2, MAXIMUM_POLL_INTERVAL_MILLIS);
+    }
+
+    private static boolean isNotFoundError(Throwable exception) {
+        if (!(exception instanceof Ec2Exception)) {
+            return false;
+        }
+        AwsErrorDetails errorDetails = ((Ec2Exception) exception).awsErrorDetails();
+        return errorDetails != null && "InvalidSpotInstanceRequestID.NotFound".equals(errorDetails.errorCode());
+    }
+}
@@ -0,0 +1,109 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotPriceHistoryRequest;
+import software.amazon.awssdk.services.ec2.model.SpotPrice;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the current spot prices of instance types in every availability zone of the region. Prices are
+ * downloaded with DescribeSpotPriceHistory, several instance types at a time, and are reused for a few minutes so that
+ * starting servers does not require a price lookup every time. This class is thread safe.
+ */
+public class SpotPriceHistory {
+    /**
+     * How long downloaded spot prices are used before they are downloaded again
+     */
+    private static final Duration SPOT_PRICE_MAX_AGE = Duration.ofMinutes(5);
+
+    private final Ec2Client ec2Client;
+    /**
+     * The latest spot prices of each instance type, in the format ("instanceType", spotPrices)
+     */
+    private final Map<String, SpotPrices> spotPriceCache = new ConcurrentHashMap<>();
+
+    public SpotPriceHistory(@NotNull Ec2Client ec2Client) {
+        this.ec2Client = ec2Client;
+    }
+
+    /**
+     * Gets the current spot prices of an instance type.
+     *
+     * @param instanceType The API name of the instance type, e.g. "m5.large"
+     * @return The prices in the format ("availabilityZone", pricePerHour), which is empty if the prices are unknown
+     */
+    public @NotNull Map<String, Double> getSpotPrices(@NotNull String instanceType) {
+        return getSpotPrices(Collections.singleton(instanceType)).getOrDefault(instanceType, Collections.emptyMap());
+    }
+
+    /**
+     * Gets the current spot prices of several instance types. Prices that are not cached yet, or whose cache has
+     * expired, are downloaded with a single request. If the download fails, the prices that are still cached are
+     * returned, even if they have expired.
+     *
+     * @param instanceTypes The API names of the instance types, e.g. "m5.large"
+     * @return The prices in the format ("instanceType", ("availabilityZone", pricePerHour)). Instance types whose
+     * prices are unknown are left out.
+     */
+    public @NotNull Map<String, Map<String, Double>> getSpotPrices(@NotNull Collection<String> instanceTypes) {
+        Instant oldestUsablePrice = Instant.now().minus(SPOT_PRICE_MAX_AGE);
+        List<String> instanceTypesToDownload = new ArrayList<>();
+        for (String instanceType : instanceTypes) {
+            SpotPrices spotPrices = spotPriceCache.get(instanceType);
+            if (spotPrices == null || spotPrices.downloadTime.isBefore(oldestUsablePrice)) {
+                instanceTypesToDownload.add(instanceType);
+            }
+        }
+        if (!instanceTypesToDownload.isEmpty()) {
+            try {
+                downloadSpotPrices(instanceTypesToDownload);
+            } catch (SdkException e) {
+                // Prices only influence which launch is attempted first, so stale or missing prices are acceptable
+            }
+        }
+
+        Map<String, Map<String, Double>> prices = new HashMap<>();
+        for (String instanceType : instanceTypes) {
+            SpotPrices spotPrices = spotPriceCache.get(instanceType);
+            if (spotPrices != null) {
+                prices.put(instanceType, spotPrices.availabilityZonePrices);
+            }
+        }
+        return prices;
+    }
+
+    private void downloadSpotPrices(List<String> instanceTypes) {
+        // Asking for the prices starting now returns the current price in every availability zone
+        DescribeSpotPriceHistoryRequest request = DescribeSpotPriceHistoryRequest.builder()
+                .instanceTypesWithStrings(instanceTypes)
+                .productDescriptions("Linux/UNIX")
+                .startTime(Instant.now())
+                .build();
+        Map<String, Map<String, Double>> downloadedPrices = new HashMap<>();
+        for (String instanceType : instanceTypes) {
+            downloadedPrices.put(instanceType, new HashMap<>());
+        }
+        for (SpotPrice spotPrice : ec2Client.describeSpotPriceHistoryPaginator(request).spotPriceHistory()) {
+            downloadedPrices.computeIfAbsent(spotPrice.instanceTypeAsString(), instanceType -> new HashMap<>())
+                    .put(spotPrice.availabilityZone(), Double.parseDouble(spotPrice.spotPrice()));
+        }
+        for (Map.Entry<String, Map<String, Double>> entry : downloadedPrices.entrySet()) {
+            spotPriceCache.put(entry.getKey(), new SpotPrices(Collections.unmodifiableMap(entry.getValue())));
+        }
+    }
+
+    private static class SpotPrices {
+        private final Instant downloadTime = Instant.now();
+        private final Map<String, Double> availabilityZonePrices;
+
+        private SpotPrices(Map<String, Double> availabilityZonePrices) {
+            this.availabilityZonePrices = availabilityZonePrices;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * <p>
+ * Selects the cheapest instance types that satisfy a server's requirements. Candidates are the general purpose, compute
+ * optimized and memory optimized sizes of the allowed instance families, including Graviton (arm64) families when the
+ * server's machine image supports arm64. Candidates are ordered by their lowest current spot price in the region, and
+ * instance types with unknown prices are ordered by size after the ones with known prices.
+ * </p>
+ *
+ * <p>
+ * Only the cheapest few candidates are returned, which bounds the number of launches attempted when capacity is short.
+ * </p>
+ */
+public class SpotPriceInstanceTypeSelector implements InstanceTypeSelector {
+    /**
+     * The families servers are launched on by default
+     */
+    public static final List<String> DEFAULT_FAMILIES = List.of("m5", "m6i", "m6a", "c6i", "r6i", "m6g", "c6g", "r6g");
+
+    private static final int MAXIMUM_CANDIDATES = 6;
+    private static final Map<String, Integer> SIZE_VCPUS = Map.of(
+            "large", 2,
+            "xlarge", 4,
+            "2xlarge", 8,
+            "4xlarge", 16
+    );
+
+    private final SpotPriceHistory spotPriceHistory;
+    private final List<InstanceFamily> allowedFamilies = new ArrayList<>();
+
+    /**
+     * Creates a selector that chooses between the {@link #DEFAULT_FAMILIES}.
+     *
+     * @param spotPriceHistory The source of spot prices
+     */
+    public SpotPriceInstanceTypeSelector(@NotNull SpotPriceHistory spotPriceHistory) {
+        this(spotPriceHistory, DEFAULT_FAMILIES);
+    }
+
+    /**
+     * Creates a selector that chooses between the given instance families.
+     *
+     * @param spotPriceHistory The source of spot prices
+     * @param allowedFamilies  The names of the allowed families, e.g. "m6i"
+     * @throws IllegalArgumentException If a family is not known to this class
+     */
+    public SpotPriceInstanceTypeSelector(@NotNull SpotPriceHistory spotPriceHistory,
+                                         @NotNull List<String> allowedFamilies) {
+        this.spotPriceHistory = spotPriceHistory;
+        for (String familyName : allowedFamilies) {
+            this.allowedFamilies.add(InstanceFamily.fromName(familyName));
+        }
+    }
+
+    @Override
+    public @NotNull List<String> selectInstanceTypes(@NotNull InstanceRequirements requirements) {
+        // Every size of every allowed family that satisfies the requirements, in the format ("instanceType", vCpus)
+        Map<String, Integer> candidates = new HashMap<>();
+        for (InstanceFamily family : allowedFamilies) {
+            if (!requirements.getArchitectures().contains(family.architecture)) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> size : SIZE_VCPUS.entrySet()) {
+                int vCpus = size.getValue();
+                if (vCpus >= requirements.getVCpus() && vCpus * family.memoryMiBPerVCpu >= requirements.getMemoryMiB()) {
+                    candidates.put(family.name + "." + size.getKey(), vCpus);
+                }
+            }
+        }
+
+        Map<String, Map<String, Double>> spotPrices = spotPriceHistory.getSpotPrices(candidates.keySet());
+        List<String> instanceTypes = new ArrayList<>(candidates.keySet());
+        instanceTypes.sort(Comparator
+                .comparingDouble((String instanceType) -> lowestPrice(spotPrices.get(instanceType)))
+                .thenComparing(candidates::get)
+                .thenComparing(Comparator.naturalOrder()));
+        return instanceTypes.subList(0, Math.min(MAXIMUM_CANDIDATES, instanceTypes.size()));
+    }
+
+    private static double lowestPrice(Map<String, Double> availabilityZonePrices) {
+        if (availabilityZonePrices == null || availabilityZonePrices.isEmpty()) {
+            return Double.MAX_VALUE;
+        }
+        return Collections.min(availabilityZonePrices.values());
+    }
+
+    private enum InstanceFamily {
+        M5("m5", "x86_64", 4096),
+        M6I("m6i", "x86_64", 4096),
+        M6A("m6a", "x86_64", 4096),
+        C6I("c6i", "x86_64", 2048),
+        R6I("r6i", "x86_64", 8192),
+        M6G("m6g", "arm64", 4096),
+        C6G("c6g", "arm64", 2048),
+        R6G("r6g", "arm64", 8192);
+
+        private final String name;
+        private final String architecture;
+        private final int memoryMiBPerVCpu;
+
+        InstanceFamily(String name, String architecture, int memoryMiBPerVCpu) {
+            this.name = name;
+            this.architecture = architecture;
+            this.memoryMiBPerVCpu = memoryMiBPerVCpu;
+        }
+
+        private static InstanceFamily fromName(String name) {
+            for (InstanceFamily family : values()) {
+                if (family.name.equals(name)) {
+                    return family;
+                }
+            }
+            throw new IllegalArgumentException("Unknown instance family " + name);
+        }
+    }
+}
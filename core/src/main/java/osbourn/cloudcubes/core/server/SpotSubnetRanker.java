@@ -0,0 +1,166 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSubnetsRequest;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Subnet;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Decides which subnet a spot instance should be launched in. Subnets whose availability zone recently ran out of
+ * spot capacity are tried last, and the remaining subnets are ordered by the current spot price in their availability
+ * zone, so that launches keep succeeding quickly while one availability zone is short on capacity.
+ * </p>
+ *
+ * <p>
+ * A single SpotSubnetRanker is meant to be shared by every server in the process (see
+ * {@link osbourn.cloudcubes.core.constructs.InfrastructureConstructor#getSpotSubnetRanker()}) so that a capacity error
+ * seen while starting one server affects where the next server is launched. This class is thread safe.
+ * </p>
+ */
+public class SpotSubnetRanker {
+    /**
+     * How long a capacity error counts against a subnet
+     */
+    private static final Duration CAPACITY_ERROR_PENALTY = Duration.ofMinutes(15);
+    /**
+     * Error codes returned by EC2 when a launch failed because of the capacity available in a subnet or availability
+     * zone, which means that the launch may succeed in another subnet
+     */
+    private static final Set<String> CAPACITY_ERROR_CODES = Set.of(
+            "InsufficientInstanceCapacity",
+            "InsufficientCapacity",
+            "InsufficientFreeAddressesInSubnet",
+            "SpotMaxPriceTooLow",
+            "Unsupported"
+    );
+
+    private final Ec2Client ec2Client;
+    private final SpotPriceHistory spotPriceHistory;
+    private final List<String> subnetIds;
+    /**
+     * The time of the last capacity error of each instance type in each subnet, in the format
+     * ("instanceType subnetId", lastCapacityError)
+     */
+    private final Map<String, Instant> lastCapacityErrors = new ConcurrentHashMap<>();
+    private volatile Map<String, String> subnetAvailabilityZones = null;
+
+    /**
+     * Creates a SpotSubnetRanker.
+     *
+     * @param ec2Client        The EC2 client used to look up availability zones
+     * @param spotPriceHistory The source of spot prices
+     * @param subnetIds        The subnets servers can be launched in, in the order they should be tried if nothing is
+     *                         known about them
+     */
+    public SpotSubnetRanker(@NotNull Ec2Client ec2Client,
+                            @NotNull SpotPriceHistory spotPriceHistory,
+                            @NotNull List<String> subnetIds) {
+        this.ec2Client = ec2Client;
+        this.spotPriceHistory = spotPriceHistory;
+        this.subnetIds = List.copyOf(subnetIds);
+    }
+
+    /**
+     * Determines whether an exception thrown while launching an instance means that the launch could succeed in a
+     * different subnet or with a different instance type.
+     *
+     * @param exception The exception thrown by the EC2 client
+     * @return true if the launch failed because of missing capacity
+     */
+    public static boolean isCapacityError(@NotNull Throwable exception) {
+        if (!(exception instanceof Ec2Exception)) {
+            return false;
+        }
+        AwsErrorDetails errorDetails = ((Ec2Exception) exception).awsErrorDetails();
+        return errorDetails != null && CAPACITY_ERROR_CODES.contains(errorDetails.errorCode());
+    }
+
+    /**
+     * Orders the subnets by how likely a spot launch of the given instance type is to succeed and how cheap it is.
+     * Subnets without a recent capacity error come first, ordered by spot price, followed by the subnets with
+     * capacity errors, the most recent error last.
+     *
+     * @param instanceType The API name of the instance type that will be launched, e.g. "m5.large"
+     * @return Every subnet, in the order they should be tried
+     */
+    public @NotNull List<String> rankSubnets(@NotNull String instanceType) {
+        Instant penaltyCutoff = Instant.now().minus(CAPACITY_ERROR_PENALTY);
+        Map<String, Double> subnetPrices = getSubnetSpotPrices(instanceType);
+
+        List<String> rankedSubnets = new ArrayList<>(subnetIds);
+        rankedSubnets.sort(Comparator
+                .comparing((String subnetId) -> {
+                    Instant lastCapacityError = lastCapacityErrors.get(instanceType + " " + subnetId);
+                    return lastCapacityError == null || lastCapacityError.isBefore(penaltyCutoff)
+                            ? Instant.MIN
+                            : lastCapacityError;
+                })
+                .thenComparing(subnetId -> subnetPrices.getOrDefault(subnetId, Double.MAX_VALUE)));
+        return rankedSubnets;
+    }
+
+    /**
+     * Records that a launch in a subnet failed because of missing capacity.
+     *
+     * @param instanceType The instance type that was launched
+     * @param subnetId     The subnet the launch was attempted in
+     */
+    public void recordCapacityError(@NotNull String instanceType, @NotNull String subnetId) {
+        lastCapacityErrors.put(instanceType + " " + subnetId, Instant.now());
+    }
+
+    /**
+     * Records that a launch in a subnet succeeded, which clears any capacity error of the instance type in the subnet.
+     *
+     * @param instanceType The instance type that was launched
+     * @param subnetId     The subnet the instance was launched in
+     */
+    public void recordSuccess(@NotNull String instanceType, @NotNull String subnetId) {
+        lastCapacityErrors.remove(instanceType + " " + subnetId);
+    }
+
+    /**
+     * Gets the current spot price of an instance type in the availability zone of each subnet. If the prices or
+     * availability zones cannot be downloaded, an empty map is returned so that the subnets are ranked by capacity
+     * errors only.
+     *
+     * @param instanceType The API name of the instance type
+     * @return The spot prices in the format ("subnetId", price)
+     */
+    private Map<String, Double> getSubnetSpotPrices(String instanceType) {
+        Map<String, Double> availabilityZonePrices = spotPriceHistory.getSpotPrices(instanceType);
+        Map<String, Double> subnetPrices = new HashMap<>();
+        try {
+            for (Map.Entry<String, String> entry : getSubnetAvailabilityZones().entrySet()) {
+                Double price = availabilityZonePrices.get(entry.getValue());
+                if (price != null) {
+                    subnetPrices.put(entry.getKey(), price);
+                }
+            }
+        } catch (SdkException e) {
+            return Collections.emptyMap();
+        }
+        return subnetPrices;
+    }
+
+    private Map<String, String> getSubnetAvailabilityZones() {
+        if (subnetAvailabilityZones == null) {
+            Map<String, String> availabilityZones = new HashMap<>();
+            DescribeSubnetsRequest request = DescribeSubnetsRequest.builder().subnetIds(subnetIds).build();
+            for (Subnet subnet : ec2Client.describeSubnets(request).subnets()) {
+                availabilityZones.put(subnet.subnetId(), subnet.availabilityZone());
+            }
+            subnetAvailabilityZones = availabilityZones;
+        }
+        return subnetAvailabilityZones;
+    }
+}
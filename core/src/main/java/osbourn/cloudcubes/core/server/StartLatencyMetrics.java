@@ -0,0 +1,139 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.util.EmbeddedMetricFormat;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * <p>
+ * Works out where the time of a start goes from the events recorded by {@link ServerLifecycle}. Besides the
+ * transitions, a start records these markers:
+ * </p>
+ *
+ * <ul>
+ * <li>{@value #QUEUED} and {@value #DEQUEUED}: the request was sent to and received from the
+ * {@link ServerStartQueue}, recorded by the server launcher function</li>
+ * <li>{@value #LAUNCH_REQUESTED}: the spot request was made or the warm pool instance was started, recorded with
+ * FULFILLED</li>
+ * <li>{@value #INSTANCE_BOOTED}, {@value #SCRIPT_STARTED}, {@value #CLI_INSTALLED} and {@value #FILES_DOWNLOADED}:
+ * the kernel of the instance booted, startup.sh started, the AWS CLI was installed and the server-startup folder was
+ * downloaded, recorded by startup.sh with BOOTING</li>
+ * <li>{@value #WORLD_RESTORED} and {@value #MINECRAFT_LAUNCHED}: recorded by startup.sh with READY</li>
+ * <li>{@value #WORLD_LOADED}: the Minecraft server finished loading the world and accepts players, recorded by
+ * startup.sh once the server logs it</li>
+ * </ul>
+ *
+ * <p>
+ * The time of each step is the time between its event and the event before it, so it is attributed to the step that
+ * ends with the event. Steps that did not happen, such as installing the AWS CLI on images that already contain it,
+ * are simply missing.
+ * </p>
+ *
+ * <p>
+ * The time until READY is published as "TimeToOnline" by startup.sh as soon as it records READY, so that it does not
+ * wait for the server to be stopped. The rest of the metrics are only known once the start is over and are logged
+ * when the run ends, see {@link #toEmbeddedMetricFormat(UUID, List)}.
+ * </p>
+ */
+public final class StartLatencyMetrics {
+    public static final String QUEUED = "queued";
+    public static final String DEQUEUED = "dequeued";
+    public static final String LAUNCH_REQUESTED = "launch-requested";
+    public static final String INSTANCE_BOOTED = "instance-booted";
+    public static final String SCRIPT_STARTED = "script-started";
+    public static final String CLI_INSTALLED = "cli-installed";
+    public static final String FILES_DOWNLOADED = "files-downloaded";
+    public static final String WORLD_RESTORED = "world-restored";
+    public static final String MINECRAFT_LAUNCHED = "minecraft-launched";
+    public static final String WORLD_LOADED = "world-loaded";
+    /**
+     * The phases that end a start
+     */
+    private static final Set<ServerLifecyclePhase> END_PHASES = EnumSet.of(ServerLifecyclePhase.STOPPING,
+            ServerLifecyclePhase.SNAPSHOTTING, ServerLifecyclePhase.OFFLINE, ServerLifecyclePhase.FAILED);
+
+    private StartLatencyMetrics() {
+    }
+
+    /**
+     * Gets the events of a run that belong to its start, which are those before the server was stopped or failed, in
+     * the order they happened.
+     *
+     * @param events The events of a run
+     * @return The events of the start
+     */
+    public static @NotNull List<ServerLifecycle.Event> getStartEvents(@NotNull List<ServerLifecycle.Event> events) {
+        // Markers are not always recorded in the order they happened, for example those of the launcher function
+        List<ServerLifecycle.Event> sortedEvents = new ArrayList<>(events);
+        sortedEvents.sort(Comparator.comparing(ServerLifecycle.Event::getTime));
+        List<ServerLifecycle.Event> startEvents = new ArrayList<>();
+        for (ServerLifecycle.Event event : sortedEvents) {
+            if (END_PHASES.contains(event.getPhase())) {
+                break;
+            }
+            startEvents.add(event);
+        }
+        return startEvents;
+    }
+
+    /**
+     * Gets the time of each step of a start.
+     *
+     * @param events The events of a run
+     * @return The time of each step, in the format (name of the event that ends the step, time), in the order the
+     * steps happened
+     */
+    public static @NotNull Map<String, Duration> getStepDurations(@NotNull List<ServerLifecycle.Event> events) {
+        List<ServerLifecycle.Event> startEvents = getStartEvents(events);
+        Map<String, Duration> stepDurations = new LinkedHashMap<>();
+        for (int i = 1; i < startEvents.size(); i++) {
+            stepDurations.merge(startEvents.get(i).getName(),
+                    Duration.between(startEvents.get(i - 1).getTime(), startEvents.get(i).getTime()), Duration::plus);
+        }
+        return stepDurations;
+    }
+
+    /**
+     * Gets the time from the first event of a start until an event.
+     *
+     * @param events The events of a run
+     * @param name   The name of the event, such as "READY" or {@value #WORLD_LOADED}
+     * @return The time, or null if the start did not reach the event
+     */
+    public static @Nullable Duration getTimeUntil(@NotNull List<ServerLifecycle.Event> events, @NotNull String name) {
+        List<ServerLifecycle.Event> startEvents = getStartEvents(events);
+        for (ServerLifecycle.Event event : startEvents) {
+            if (event.getName().equals(name)) {
+                return Duration.between(startEvents.get(0).getTime(), event.getTime());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Formats the latencies of a start in the CloudWatch embedded metric format, as "TimeToWorldLoaded" and one
+     * "Start.&lt;event&gt;" metric per step. "TimeToOnline" is left out, since startup.sh has already published it.
+     *
+     * @param serverId The id of the server, which is logged as a property
+     * @param events   The events of a run
+     * @return The log line, or null if the server never became READY
+     */
+    public static @Nullable String toEmbeddedMetricFormat(@NotNull UUID serverId,
+                                                          @NotNull List<ServerLifecycle.Event> events) {
+        if (getTimeUntil(events, ServerLifecyclePhase.READY.name()) == null) {
+            return null;
+        }
+        Map<String, Duration> metrics = new LinkedHashMap<>();
+        Duration timeToWorldLoaded = getTimeUntil(events, WORLD_LOADED);
+        if (timeToWorldLoaded != null) {
+            metrics.put("TimeToWorldLoaded", timeToWorldLoaded);
+        }
+        getStepDurations(events).forEach((name, duration) -> metrics.put("Start." + name, duration));
+        return EmbeddedMetricFormat.formatDurations(Collections.emptyMap(), metrics,
+                Map.of("ServerId", serverId.toString()), Instant.now());
+    }
+}
@@ -0,0 +1,544 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * <p>
+ * A pool of spot instances that have booted once and have been stopped again, so that a server can be started by
+ * starting one of them instead of waiting for a spot request to be fulfilled and for a new instance to boot. On its
+ * first boot, a pool instance runs warm-up.sh, which reads the files the server needs while starting so that the
+ * blocks of the root volume are loaded from the image, and then shuts the instance down. A stopped instance is only
+ * billed for its volume.
+ * </p>
+ *
+ * <p>
+ * The pool instances are persistent spot requests that stop their instance when it is interrupted, so that the
+ * request keeps its instance while it is stopped. Each instance has an entry in the warm pool table, which is created
+ * in the WARMING state and moved to AVAILABLE once the instance has stopped. A server claims an instance by deleting
+ * its AVAILABLE entry with a conditional write, so an instance is never given to two servers. Claimed instances belong
+ * to the server from then on and are terminated with it, the pool never reuses them.
+ * </p>
+ *
+ * <p>
+ * {@link #replenish()} keeps {@link InfrastructureSetting#WARMPOOLSIZEPERSUBNET} instances in every server subnet,
+ * launched from the latest server image with the cheapest instance type that meets the default requirements of a
+ * server, and is meant to run on a schedule. This class is thread safe.
+ * </p>
+ */
+public class WarmPool {
+    /**
+     * The tag of the instances that are in the pool. The tag is removed when an instance is claimed.
+     */
+    public static final String POOL_TAG_KEY = "CloudCubesWarmPool";
+    private static final String WARMING = "WARMING";
+    private static final String AVAILABLE = "AVAILABLE";
+    /**
+     * The time an instance may take to warm up and stop, after which it is assumed to be stuck and is replaced
+     */
+    private static final Duration WARM_UP_TIMEOUT = Duration.ofMinutes(30);
+    /**
+     * The age after which tagged instances without an entry are terminated. Such instances are left behind when the
+     * entry could not be written after launching the instance.
+     */
+    private static final Duration ORPHAN_GRACE_PERIOD = Duration.ofMinutes(10);
+    /**
+     * The boundary of the multipart user data, which must not appear in the parts
+     */
+    private static final String USER_DATA_BOUNDARY = "==CloudCubesUserData==";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final Ec2Client ec2Client;
+    private final InfrastructureConfiguration infrastructureConfiguration;
+    private final InstanceTypeSelector instanceTypeSelector;
+    private final ServerImageResolver serverImageResolver;
+    private final int sizePerSubnet;
+    private final Statistics statistics = new Statistics();
+
+    /**
+     * Creates a WarmPool.
+     *
+     * @param dynamoDbClient              The client used to access the warm pool table
+     * @param tableName                   The name of the warm pool table
+     * @param ec2Client                   The client used to launch, start and terminate the pool instances
+     * @param infrastructureConfiguration The configuration containing the server subnets, security group and instance
+     *                                    profile
+     * @param instanceTypeSelector        Chooses the instance type of new pool instances
+     * @param serverImageResolver         Finds the image new pool instances are launched from
+     * @param sizePerSubnet               The number of instances kept in every subnet, where 0 disables the pool
+     */
+    public WarmPool(@NotNull DynamoDbClient dynamoDbClient,
+                    @NotNull String tableName,
+                    @NotNull Ec2Client ec2Client,
+                    @NotNull InfrastructureConfiguration infrastructureConfiguration,
+                    @NotNull InstanceTypeSelector instanceTypeSelector,
+                    @NotNull ServerImageResolver serverImageResolver,
+                    int sizePerSubnet) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.ec2Client = ec2Client;
+        this.infrastructureConfiguration = infrastructureConfiguration;
+        this.instanceTypeSelector = instanceTypeSelector;
+        this.serverImageResolver = serverImageResolver;
+        this.sizePerSubnet = sizePerSubnet;
+    }
+
+    /**
+     * Gets whether servers are started from the pool, which is the case if it keeps at least one instance per subnet.
+     *
+     * @return true if the pool is enabled
+     */
+    public boolean isEnabled() {
+        return sizePerSubnet > 0;
+    }
+
+    /**
+     * Gets the hits, misses and start latencies of the servers started by this process.
+     *
+     * @return The statistics
+     */
+    public @NotNull Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Claims an available instance that was launched from the given image with one of the given instance types. The
+     * instance is removed from the pool, so the caller is responsible for starting it, or for handing it back with
+     * {@link #release(PooledInstance)} if it cannot be started.
+     *
+     * @param imageId       The image the server is launched from
+     * @param instanceTypes The instance types the server can run on, in the order they are preferred
+     * @return The claimed instance, or null if the pool has no suitable instance
+     */
+    public @Nullable PooledInstance claim(@NotNull String imageId, @NotNull List<String> instanceTypes) {
+        List<PooledInstance> candidates = new ArrayList<>();
+        // Malformed entries are left for replenish() to delete
+        for (PooledInstance pooledInstance : loadInstances(new ArrayList<>())) {
+            if (pooledInstance.state.equals(AVAILABLE) && pooledInstance.spotRequestId != null
+                    && pooledInstance.imageId.equals(imageId) && instanceTypes.contains(pooledInstance.instanceType)) {
+                candidates.add(pooledInstance);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(pooledInstance -> instanceTypes.indexOf(pooledInstance.instanceType)));
+        for (PooledInstance candidate : candidates) {
+            // The tag is removed first, so that a claimed instance is never mistaken for an orphan by replenish()
+            ec2Client.deleteTags(DeleteTagsRequest.builder()
+                    .resources(candidate.instanceId)
+                    .tags(Tag.builder().key(POOL_TAG_KEY).build())
+                    .build());
+            if (deleteEntry(candidate)) {
+                return candidate;
+            }
+            // Another server claimed the instance first and removes the tag as well
+        }
+        return null;
+    }
+
+    /**
+     * Hands a claimed instance back to the pool, for example because it could not be started for lack of capacity.
+     *
+     * @param pooledInstance The instance returned by {@link #claim(String, List)}
+     */
+    public void release(@NotNull PooledInstance pooledInstance) {
+        ec2Client.createTags(CreateTagsRequest.builder()
+                .resources(pooledInstance.instanceId)
+                .tags(Tag.builder().key(POOL_TAG_KEY).value("true").build())
+                .build());
+        putEntry(pooledInstance);
+    }
+
+    /**
+     * Brings the pool back to its configured size. Entries of instances that no longer exist are removed, instances
+     * that have finished warming up are made available, instances launched from an outdated image or stuck warming up
+     * are terminated, and new instances are launched in the subnets that have too few. Malformed entries are deleted,
+     * and their instances are then terminated as orphans.
+     *
+     * @return The number of instances that were launched
+     */
+    public int replenish() {
+        ServerImageResolver.ServerImage serverImage = serverImageResolver.getServerImage();
+        Map<String, Instance> instances = describePoolInstances();
+        Instant now = Instant.now();
+
+        Map<String, Integer> poolSizes = new HashMap<>();
+        List<String> malformedEntryIds = new ArrayList<>();
+        for (PooledInstance pooledInstance : loadInstances(malformedEntryIds)) {
+            Instance instance = instances.remove(pooledInstance.instanceId);
+            if (instance == null) {
+                deleteEntry(pooledInstance);
+                continue;
+            }
+            boolean warming = pooledInstance.state.equals(WARMING);
+            if (!pooledInstance.imageId.equals(serverImage.getImageId())
+                    || (warming && pooledInstance.createdAt.plus(WARM_UP_TIMEOUT).isBefore(now))) {
+                // A server may claim the instance in the meantime, in which case it is left alone
+                if (deleteEntry(pooledInstance)) {
+                    removeInstance(instance);
+                }
+                continue;
+            }
+            if (warming && instance.state().name() == InstanceStateName.STOPPED
+                    && instance.spotInstanceRequestId() != null) {
+                putEntry(new PooledInstance(pooledInstance.instanceId, pooledInstance.subnetId,
+                        pooledInstance.instanceType, pooledInstance.imageId, instance.spotInstanceRequestId(),
+                        AVAILABLE, pooledInstance.createdAt));
+            }
+            poolSizes.merge(pooledInstance.subnetId, 1, Integer::sum);
+        }
+        for (String instanceId : malformedEntryIds) {
+            dynamoDbClient.deleteItem(DeleteItemRequest.builder()
+                    .tableName(tableName)
+                    .key(Map.of("InstanceId", AttributeValue.builder().s(instanceId).build()))
+                    .build());
+        }
+        for (Instance orphan : instances.values()) {
+            if (orphan.launchTime() != null && orphan.launchTime().plus(ORPHAN_GRACE_PERIOD).isBefore(now)) {
+                removeInstance(orphan);
+            }
+        }
+
+        int launched = 0;
+        String instanceType = null;
+        for (String subnetId : infrastructureConfiguration.getServerSubnetIds()) {
+            for (int size = poolSizes.getOrDefault(subnetId, 0); size < sizePerSubnet; size++) {
+                if (instanceType == null) {
+                    instanceType = selectInstanceType(serverImage);
+                }
+                try {
+                    launchInstance(serverImage.getImageId(), instanceType, subnetId);
+                    launched++;
+                } catch (Ec2Exception e) {
+                    if (!SpotSubnetRanker.isCapacityError(e)) {
+                        throw e;
+                    }
+                    // The subnet is tried again the next time the pool is replenished
+                    break;
+                }
+            }
+        }
+        return launched;
+    }
+
+    /**
+     * Wraps user data in a multipart document that tells cloud-init to run it on every boot instead of only on the
+     * first boot, since pool instances boot once to warm up and again when they are claimed.
+     *
+     * @param userData The user data, a shell script
+     * @return The wrapped user data
+     */
+    static @NotNull String runOnEveryBoot(@NotNull String userData) {
+        return "Content-Type: multipart/mixed; boundary=\"" + USER_DATA_BOUNDARY + "\"\n"
+                + "MIME-Version: 1.0\n"
+                + "\n"
+                + "--" + USER_DATA_BOUNDARY + "\n"
+                + "Content-Type: text/cloud-config; charset=\"us-ascii\"\n"
+                + "MIME-Version: 1.0\n"
+                + "Content-Transfer-Encoding: 7bit\n"
+                + "Content-Disposition: attachment; filename=\"cloud-config.txt\"\n"
+                + "\n"
+                + "#cloud-config\n"
+                + "cloud_final_modules:\n"
+                + "- [scripts-user, always]\n"
+                + "\n"
+                + "--" + USER_DATA_BOUNDARY + "\n"
+                + "Content-Type: text/x-shellscript; charset=\"us-ascii\"\n"
+                + "MIME-Version: 1.0\n"
+                + "Content-Transfer-Encoding: 7bit\n"
+                + "Content-Disposition: attachment; filename=\"userdata.txt\"\n"
+                + "\n"
+                + userData
+                + "--" + USER_DATA_BOUNDARY + "--\n";
+    }
+
+    private String selectInstanceType(ServerImageResolver.ServerImage serverImage) {
+        List<String> instanceTypes = instanceTypeSelector.selectInstanceTypes(new InstanceRequirements(
+                EC2SpotInstanceManager.DEFAULT_REQUIRED_VCPUS,
+                EC2SpotInstanceManager.DEFAULT_REQUIRED_MEMORY_MIB,
+                Set.of(serverImage.getArchitecture())));
+        if (instanceTypes.isEmpty()) {
+            throw new IllegalStateException("There are no instance types to launch the warm pool with");
+        }
+        return instanceTypes.get(0);
+    }
+
+    private void launchInstance(String imageId, String instanceType, String subnetId) {
+        String userData = runOnEveryBoot(EC2SpotInstanceManager.buildUserData(
+                infrastructureConfiguration, Collections.emptyMap(), "warm-up.sh"));
+        RunInstancesResponse response = ec2Client.runInstances(RunInstancesRequest.builder()
+                .minCount(1)
+                .maxCount(1)
+                .imageId(imageId)
+                .instanceType(instanceType)
+                .subnetId(subnetId)
+                .iamInstanceProfile(IamInstanceProfileSpecification.builder()
+                        .arn(infrastructureConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN))
+                        .build())
+                .securityGroupIds(infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID))
+                .userData(Base64.getEncoder().encodeToString(userData.getBytes()))
+                .instanceMarketOptions(InstanceMarketOptionsRequest.builder()
+                        .marketType(MarketType.SPOT)
+                        .spotOptions(SpotMarketOptions.builder()
+                                .spotInstanceType(SpotInstanceType.PERSISTENT)
+                                .instanceInterruptionBehavior(InstanceInterruptionBehavior.STOP)
+                                .build())
+                        .build())
+                .tagSpecifications(TagSpecification.builder()
+                        .resourceType(ResourceType.INSTANCE)
+                        .tags(Tag.builder().key(POOL_TAG_KEY).value("true").build())
+                        .build())
+                .build());
+        Instance instance = response.instances().get(0);
+        putEntry(new PooledInstance(instance.instanceId(), subnetId, instanceType, imageId,
+                instance.spotInstanceRequestId(), WARMING, Instant.now()));
+    }
+
+    /**
+     * Cancels the spot request of an instance and terminates it. The request is cancelled first, as a persistent
+     * request would otherwise launch a new instance.
+     */
+    private void removeInstance(Instance instance) {
+        if (instance.spotInstanceRequestId() != null) {
+            try {
+                ec2Client.cancelSpotInstanceRequests(CancelSpotInstanceRequestsRequest.builder()
+                        .spotInstanceRequestIds(instance.spotInstanceRequestId())
+                        .build());
+            } catch (Ec2Exception e) {
+                if (!EC2SpotInstanceManager.hasErrorCode(e, "InvalidSpotInstanceRequestID.NotFound")) {
+                    throw e;
+                }
+            }
+        }
+        try {
+            ec2Client.terminateInstances(TerminateInstancesRequest.builder().instanceIds(instance.instanceId()).build());
+        } catch (Ec2Exception e) {
+            if (!EC2SpotInstanceManager.hasErrorCode(e, "InvalidInstanceID.NotFound")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Describes the tagged instances that have not been terminated.
+     *
+     * @return The instances in the format ("instanceId", instance)
+     */
+    private Map<String, Instance> describePoolInstances() {
+        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
+                .filters(
+                        Filter.builder().name("tag-key").values(POOL_TAG_KEY).build(),
+                        Filter.builder().name("instance-state-name")
+                                .values("pending", "running", "stopping", "stopped")
+                                .build())
+                .build();
+        Map<String, Instance> instances = new HashMap<>();
+        for (Reservation reservation : ec2Client.describeInstancesPaginator(request).reservations()) {
+            for (Instance instance : reservation.instances()) {
+                instances.put(instance.instanceId(), instance);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Reads the entries of the warm pool table.
+     *
+     * @param malformedEntryIds The list the instance ids of entries that cannot be read are added to
+     * @return The instances of the entries that could be read
+     */
+    private List<PooledInstance> loadInstances(List<String> malformedEntryIds) {
+        List<PooledInstance> pooledInstances = new ArrayList<>();
+        ScanRequest request = ScanRequest.builder().tableName(tableName).consistentRead(true).build();
+        for (Map<String, AttributeValue> item : dynamoDbClient.scanPaginator(request).items()) {
+            PooledInstance pooledInstance = PooledInstance.fromItem(item);
+            if (pooledInstance != null) {
+                pooledInstances.add(pooledInstance);
+            } else if (PooledInstance.getString(item, "InstanceId") != null) {
+                malformedEntryIds.add(PooledInstance.getString(item, "InstanceId"));
+            }
+        }
+        return pooledInstances;
+    }
+
+    private void putEntry(PooledInstance pooledInstance) {
+        dynamoDbClient.putItem(PutItemRequest.builder().tableName(tableName).item(pooledInstance.toItem()).build());
+    }
+
+    /**
+     * Deletes the entry of an instance if it is still in the state it was read in.
+     *
+     * @return true if the entry was deleted by this call
+     */
+    private boolean deleteEntry(PooledInstance pooledInstance) {
+        try {
+            dynamoDbClient.deleteItem(DeleteItemRequest.builder()
+                    .tableName(tableName)
+                    .key(Map.of("InstanceId", AttributeValue.builder().s(pooledInstance.instanceId).build()))
+                    .conditionExpression("PoolState = :state")
+                    .expressionAttributeValues(Map.of(":state", AttributeValue.builder().s(pooledInstance.state).build()))
+                    .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An instance of the pool, as recorded in the warm pool table
+     */
+    public static final class PooledInstance {
+        private final String instanceId;
+        private final String subnetId;
+        private final String instanceType;
+        private final String imageId;
+        private final String spotRequestId;
+        private final String state;
+        private final Instant createdAt;
+
+        private PooledInstance(String instanceId, String subnetId, String instanceType, String imageId,
+                               String spotRequestId, String state, Instant createdAt) {
+            this.instanceId = instanceId;
+            this.subnetId = subnetId;
+            this.instanceType = instanceType;
+            this.imageId = imageId;
+            this.spotRequestId = spotRequestId;
+            this.state = state;
+            this.createdAt = createdAt;
+        }
+
+        public @NotNull String getInstanceId() {
+            return instanceId;
+        }
+
+        public @NotNull String getSubnetId() {
+            return subnetId;
+        }
+
+        public @NotNull String getInstanceType() {
+            return instanceType;
+        }
+
+        /**
+         * Gets the id of the persistent spot request of the instance, which stays the same when the instance is
+         * started.
+         *
+         * @return The spot request id, which is only null for instances that are still warming up
+         */
+        public String getSpotRequestId() {
+            return spotRequestId;
+        }
+
+        private static PooledInstance fromItem(Map<String, AttributeValue> item) {
+            String instanceId = getString(item, "InstanceId");
+            String subnetId = getString(item, "SubnetId");
+            String instanceType = getString(item, "InstanceType");
+            String imageId = getString(item, "ImageId");
+            String state = getString(item, "PoolState");
+            String createdAt = getString(item, "CreatedAt");
+            if (instanceId == null || subnetId == null || instanceType == null || imageId == null || state == null
+                    || createdAt == null) {
+                return null;
+            }
+            try {
+                return new PooledInstance(instanceId, subnetId, instanceType, imageId, getString(item, "SpotRequestId"),
+                        state, Instant.parse(createdAt));
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+
+        private static String getString(Map<String, AttributeValue> item, String key) {
+            AttributeValue value = item.get(key);
+            return value == null ? null : value.s();
+        }
+
+        private Map<String, AttributeValue> toItem() {
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("InstanceId", AttributeValue.builder().s(instanceId).build());
+            item.put("SubnetId", AttributeValue.builder().s(subnetId).build());
+            item.put("InstanceType", AttributeValue.builder().s(instanceType).build());
+            item.put("ImageId", AttributeValue.builder().s(imageId).build());
+            item.put("PoolState", AttributeValue.builder().s(state).build());
+            item.put("CreatedAt", AttributeValue.builder().s(createdAt.toString()).build());
+            if (spotRequestId != null) {
+                item.put("SpotRequestId", AttributeValue.builder().s(spotRequestId).build());
+            }
+            return item;
+        }
+    }
+
+    /**
+     * Counts how many server starts were served by the pool (hits) and how many had to request a new spot instance
+     * (misses), along with how long the starts took on each path. A start is timed until the instance id of the server
+     * is known, which for a hit is as soon as the pool instance has been started.
+     */
+    public static final class Statistics {
+        private long hits = 0;
+        private long misses = 0;
+        private long totalHitMillis = 0;
+        private long totalMissMillis = 0;
+
+        private Statistics() {
+        }
+
+        /**
+         * Records a server start.
+         *
+         * @param hit     true if the server was started with an instance of the pool
+         * @param latency The time the start took
+         */
+        public synchronized void recordStart(boolean hit, @NotNull Duration latency) {
+            if (hit) {
+                hits++;
+                totalHitMillis += latency.toMillis();
+            } else {
+                misses++;
+                totalMissMillis += latency.toMillis();
+            }
+        }
+
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        public synchronized long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Gets the average time the starts on one of the paths took.
+         *
+         * @param hit true for the starts served by the pool, false for the others
+         * @return The average time, or null if there has been no such start
+         */
+        public synchronized @Nullable Duration getAverageStartLatency(boolean hit) {
+            long starts = hit ? hits : misses;
+            if (starts == 0) {
+                return null;
+            }
+            return Duration.ofMillis((hit ? totalHitMillis : totalMissMillis) / starts);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d hits (average %s ms), %d misses (average %s ms)",
+                    hits, hits == 0 ? "-" : String.valueOf(totalHitMillis / hits),
+                    misses, misses == 0 ? "-" : String.valueOf(totalMissMillis / misses));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package osbourn.cloudcubes.core.server;
+
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.BlobAttributeValue;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.ModifyInstanceAttributeRequest;
+import software.amazon.awssdk.services.ec2.model.StartInstancesRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * An {@link EC2SpotInstanceManager} that starts the server on an instance of the {@link WarmPool} when the pool has one
+ * that was launched from the latest image with a suitable instance type. The user data of the pool instance is
+ * replaced with that of the server before it is started, and the persistent spot request of the instance is recorded
+ * like a request made for the server, so the server is stopped the usual way. If the pool has no suitable instance,
+ * or the instance cannot be started for lack of capacity, a new spot instance is requested instead. Every start is
+ * recorded in the {@link WarmPool.Statistics} of the pool.
+ */
+public class WarmPoolInstanceManager extends EC2SpotInstanceManager {
+    private final InstanceTypeSelector instanceTypeSelector;
+    private final ServerImageResolver serverImageResolver;
+    private final WarmPool warmPool;
+    /**
+     * Whether the latest launch started an instance of the pool
+     */
+    private volatile boolean launchedFromPool = false;
+
+    /**
+     * Creates a WarmPoolInstanceManager. The arguments are the same as those of an {@link EC2SpotInstanceManager},
+     * with the pool the instances are taken from.
+     */
+    public WarmPoolInstanceManager(DynamoDBEntry server,
+                                   Ec2Client ec2Client,
+                                   Supplier<Ec2AsyncClient> ec2AsyncClient,
+                                   Executor blockingExecutor,
+                                   InfrastructureConfiguration infrastructureConfiguration,
+                                   String serverInstanceProfileArn,
+                                   SpotSubnetRanker subnetRanker,
+                                   InstanceTypeSelector instanceTypeSelector,
+                                   ServerImageResolver serverImageResolver,
+                                   SpotFulfillmentTracker fulfillmentTracker,
+                                   ServerStateReconciler stateReconciler,
+                                   WorldSynchronizer worldSynchronizer,
+                                   ServerLifecycle lifecycle,
+                                   String serverSecurityGroup,
+                                   WarmPool warmPool) {
+        super(server, ec2Client, ec2AsyncClient, blockingExecutor, infrastructureConfiguration, serverInstanceProfileArn,
+                subnetRanker, instanceTypeSelector, serverImageResolver, fulfillmentTracker, stateReconciler,
+                worldSynchronizer, lifecycle, serverSecurityGroup);
+        this.instanceTypeSelector = instanceTypeSelector;
+        this.serverImageResolver = serverImageResolver;
+        this.warmPool = warmPool;
+    }
+
+    /**
+     * Launches the instance of a claimed server like {@link EC2SpotInstanceManager} does, which both
+     * {@link #startServer()} and {@link ServerFleet#startServers()} go through, and records the start.
+     */
+    @Override
+    CompletableFuture<Void> launchClaimedServer() {
+        Instant start = Instant.now();
+        return super.launchClaimedServer().thenRun(() ->
+                warmPool.getStatistics().recordStart(launchedFromPool, Duration.between(start, Instant.now())));
+    }
+
+    @Override
+    public CompletableFuture<Void> startServerAsync() {
+        Instant start = Instant.now();
+        return super.startServerAsync().thenRun(() ->
+                warmPool.getStatistics().recordStart(launchedFromPool, Duration.between(start, Instant.now())));
+    }
+
+    /**
+     * Returns false, as servers are launched one by one so that each can be given an instance of the pool.
+     */
+    @Override
+    protected boolean canShareLaunch() {
+        return false;
+    }
+
+    @Override
+    protected String launchInstance() {
+        String spotRequestId = launchFromPool();
+        launchedFromPool = spotRequestId != null;
+        return spotRequestId != null ? spotRequestId : super.launchInstance();
+    }
+
+    /**
+     * Asynchronous variant of {@link #launchInstance()}. Claiming and starting a pool instance takes a few short
+     * requests, which are made with the blocking clients on the blocking executor.
+     */
+    @Override
+    protected CompletableFuture<String> launchInstanceAsync() {
+        return CompletableFuture.supplyAsync(this::launchFromPool, getBlockingExecutor()).thenCompose(spotRequestId -> {
+            launchedFromPool = spotRequestId != null;
+            return spotRequestId != null
+                    ? CompletableFuture.completedFuture(spotRequestId)
+                    : super.launchInstanceAsync();
+        });
+    }
+
+    /**
+     * Claims an instance of the pool, gives it the user data of the server and starts it.
+     *
+     * @return The id of the spot request of the started instance, or null if no pool instance could be started
+     */
+    private String launchFromPool() {
+        ServerImageResolver.ServerImage serverImage = serverImageResolver.getServerImage();
+        List<String> instanceTypes = instanceTypeSelector.selectInstanceTypes(getInstanceRequirements(serverImage));
+        WarmPool.PooledInstance pooledInstance = warmPool.claim(serverImage.getImageId(), instanceTypes);
+        if (pooledInstance == null) {
+            return null;
+        }
+        try {
+            // The user data of a stopped instance can be replaced, and is run again when the instance starts
+            getEC2Client().modifyInstanceAttribute(ModifyInstanceAttributeRequest.builder()
+                    .instanceId(pooledInstance.getInstanceId())
+                    .userData(BlobAttributeValue.builder()
+                            .value(SdkBytes.fromUtf8String(WarmPool.runOnEveryBoot(getUserData())))
+                            .build())
+                    .build());
+            getEC2Client().startInstances(StartInstancesRequest.builder()
+                    .instanceIds(pooledInstance.getInstanceId())
+                    .build());
+        } catch (Ec2Exception e) {
+            warmPool.release(pooledInstance);
+            if (SpotSubnetRanker.isCapacityError(e)) {
+                return null;
+            }
+            throw e;
+        }
+        return pooledInstance.getSpotRequestId();
+    }
+}
@@ -0,0 +1,154 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ssm.SsmClient;
+import software.amazon.awssdk.services.ssm.model.CommandInvocationStatus;
+import software.amazon.awssdk.services.ssm.model.GetCommandInvocationRequest;
+import software.amazon.awssdk.services.ssm.model.GetCommandInvocationResponse;
+import software.amazon.awssdk.services.ssm.model.InvocationDoesNotExistException;
+import software.amazon.awssdk.services.ssm.model.SendCommandRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Copies the files of a running server to the world bucket, so that the world survives the instance being terminated.
+ * The copy is made by the instance itself, which is told to run a backup with the server agent through Systems Manager
+ * Run Command. The backup is incremental, so only the parts of the world that changed since the last backup are
+ * uploaded. The Minecraft server is stopped the same way before the backup, with the agent connecting to RCON on the
+ * instance, so that the RCON port does not have to be reachable from outside the instance.
+ */
+public class WorldSynchronizer {
+    /**
+     * The directory on the instance that the Minecraft server runs in
+     */
+    public static final String SERVER_DIRECTORY = "/home/ec2-user/server";
+    /**
+     * The location on the instance that startup.sh downloads the server agent to
+     */
+    public static final String SERVER_AGENT_JAR = "/home/ec2-user/server-agent.jar";
+
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+    private static final Set<CommandInvocationStatus> PENDING_STATUSES = Set.of(
+            CommandInvocationStatus.PENDING,
+            CommandInvocationStatus.IN_PROGRESS,
+            CommandInvocationStatus.DELAYED);
+
+    private final SsmClient ssmClient;
+    private final String worldBucketName;
+
+    /**
+     * Creates a WorldSynchronizer.
+     *
+     * @param ssmClient       The Systems Manager client used to run commands on the instances
+     * @param worldBucketName The name of the bucket the worlds are stored in
+     */
+    public WorldSynchronizer(@NotNull SsmClient ssmClient, @NotNull String worldBucketName) {
+        this.ssmClient = ssmClient;
+        this.worldBucketName = worldBucketName;
+    }
+
+    /**
+     * Gets the location the server's files were stored at before they were backed up in chunks. startup.sh still
+     * restores the files from there if the server has never been backed up.
+     *
+     * @param serverId The id of the server
+     * @return The S3 URI of the server's files
+     */
+    public @NotNull String getWorldLocation(@NotNull UUID serverId) {
+        return getWorldLocation(worldBucketName, serverId);
+    }
+
+    /**
+     * Gets the location the server's files were stored at in a world bucket before they were backed up in chunks.
+     *
+     * @param worldBucketName The name of the bucket the worlds are stored in
+     * @param serverId        The id of the server
+     * @return The S3 URI of the server's files
+     */
+    public static @NotNull String getWorldLocation(@NotNull String worldBucketName, @NotNull UUID serverId) {
+        return "s3://" + worldBucketName + "/worlds/" + serverId + "/";
+    }
+
+    /**
+     * Saves the world and stops the Minecraft server, then waits for it to exit so that every file has been written
+     * before the files are uploaded. A server that is not running counts as stopped.
+     *
+     * @param instanceId The id of the instance running the server
+     * @param deadline   The time by which the server must have exited
+     * @return true if the server exited before the deadline
+     */
+    public boolean stopMinecraftServer(@NotNull String instanceId, @NotNull Instant deadline) {
+        return runAgentCommand(instanceId, String.format("java -jar %s stop %s %d",
+                SERVER_AGENT_JAR, SERVER_DIRECTORY, deadline.getEpochSecond()), deadline);
+    }
+
+    /**
+     * Uploads the files of a server to the world bucket and waits for the upload to finish.
+     *
+     * @param instanceId The id of the instance running the server
+     * @param serverId   The id of the server
+     * @param deadline   The time by which the upload must have finished
+     * @return true if the upload finished successfully before the deadline
+     */
+    public boolean uploadWorld(@NotNull String instanceId, @NotNull UUID serverId, @NotNull Instant deadline) {
+        return runAgentCommand(instanceId, String.format("java -jar %s backup %s %s %s %d",
+                SERVER_AGENT_JAR, worldBucketName, serverId, SERVER_DIRECTORY, deadline.getEpochSecond()), deadline);
+    }
+
+    /**
+     * Runs a command of the server agent on an instance and waits for it to finish.
+     *
+     * @return true if the command finished successfully before the deadline
+     */
+    private boolean runAgentCommand(String instanceId, String command, Instant deadline) {
+        long timeoutSeconds = Duration.between(Instant.now(), deadline).getSeconds();
+        // Run Command does not accept timeouts below 30 seconds
+        if (timeoutSeconds < 30) {
+            return false;
+        }
+        String commandId;
+        try {
+            commandId = ssmClient.sendCommand(SendCommandRequest.builder()
+                            .instanceIds(instanceId)
+                            .documentName("AWS-RunShellScript")
+                            .timeoutSeconds((int) timeoutSeconds)
+                            .parameters(Map.of(
+                                    "commands", List.of(command),
+                                    "executionTimeout", List.of(Long.toString(timeoutSeconds))))
+                            .build())
+                    .command()
+                    .commandId();
+        } catch (SdkException e) {
+            return false;
+        }
+
+        while (Instant.now().isBefore(deadline)) {
+            try {
+                Thread.sleep(POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            GetCommandInvocationResponse invocation;
+            try {
+                invocation = ssmClient.getCommandInvocation(GetCommandInvocationRequest.builder()
+                        .commandId(commandId)
+                        .instanceId(instanceId)
+                        .build());
+            } catch (InvocationDoesNotExistException e) {
+                // The invocation is only visible shortly after the command was sent
+                continue;
+            }
+            if (!PENDING_STATUSES.contains(invocation.status())) {
+                return invocation.status() == CommandInvocationStatus.SUCCESS;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+package osbourn.cloudcubes.core.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Formats metrics in the CloudWatch embedded metric format. A Lambda function that prints such a line has the metrics
+ * extracted from its log by CloudWatch, so publishing them costs no request to the CloudWatch API. Outside Lambda, the
+ * lines are only useful if the log is shipped to CloudWatch Logs.
+ *
+ * @see <a href="https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html">
+ * Embedded metric format specification</a>
+ */
+public final class EmbeddedMetricFormat {
+    /**
+     * The namespace of the metrics of CloudCubes
+     */
+    public static final String NAMESPACE = "CloudCubes";
+
+    private EmbeddedMetricFormat() {
+    }
+
+    /**
+     * Formats durations as metrics in milliseconds.
+     *
+     * @param dimensions The dimensions of the metrics, in the format (name, value)
+     * @param metrics    The metrics, in the format (name, value)
+     * @param properties Values that are logged with the metrics without being dimensions, such as a server id, in the
+     *                   format (name, value)
+     * @param timestamp  The time the metrics were measured at
+     * @return The log line, without a line break
+     */
+    public static @NotNull String formatDurations(@NotNull Map<String, String> dimensions,
+                                                  @NotNull Map<String, Duration> metrics,
+                                                  @NotNull Map<String, String> properties,
+                                                  @NotNull Instant timestamp) {
+        StringJoiner dimensionNames = new StringJoiner(",", "[", "]");
+        StringJoiner metricDefinitions = new StringJoiner(",", "[", "]");
+        StringJoiner members = new StringJoiner(",");
+        dimensions.forEach((name, value) -> {
+            dimensionNames.add(quote(name));
+            members.add(quote(name) + ":" + quote(value));
+        });
+        metrics.forEach((name, value) -> {
+            metricDefinitions.add("{\"Name\":" + quote(name) + ",\"Unit\":\"Milliseconds\"}");
+            members.add(quote(name) + ":" + value.toMillis());
+        });
+        properties.forEach((name, value) -> members.add(quote(name) + ":" + quote(value)));
+        return "{\"_aws\":{\"Timestamp\":" + timestamp.toEpochMilli()
+                + ",\"CloudWatchMetrics\":[{\"Namespace\":" + quote(NAMESPACE)
+                + ",\"Dimensions\":[" + dimensionNames + "]"
+                + ",\"Metrics\":" + metricDefinitions + "}]}"
+                + (members.length() > 0 ? "," + members : "") + "}";
+    }
+
+    private static String quote(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char character : value.toCharArray()) {
+            if (character == '"' || character == '\\') {
+                builder.append('\\').append(character);
+            } else if (character < 0x20) {
+                builder.append(String.format("\\u%04x", (int) character));
+            } else {
+                builder.append(character);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,208 @@
+package osbourn.cloudcubes.core.constructs;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveRateLimiterTest {
+    private static final String ACTION = "Ec2:RequestSpotInstances";
+
+    @Test
+    void actionIsNotLimitedUntilThrottled() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        for (int i = 0; i < 1000; i++) {
+            rateLimiter.acquire(ACTION);
+        }
+        AdaptiveRateLimiter.ActionMetrics metrics = rateLimiter.getMetrics().get(ACTION);
+        assertEquals(1000, metrics.getRequests());
+        assertNull(metrics.getRate());
+        assertEquals(Duration.ZERO, metrics.getWaitTime());
+    }
+
+    @Test
+    void throttlingHalvesTheRateTheActionWasCalledAt() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        for (int i = 0; i < 20; i++) {
+            rateLimiter.acquire(ACTION);
+        }
+        rateLimiter.recordThrottle(ACTION);
+        Double rate = rateLimiter.getMetrics().get(ACTION).getRate();
+        assertNotNull(rate);
+        // The throttle counts as a request of the window, and the window may have rolled over once
+        assertTrue(rate >= AdaptiveRateLimiter.MINIMUM_RATE && rate <= 10.5, "rate " + rate);
+    }
+
+    @Test
+    void throttlesInQuickSuccessionDecreaseTheRateOnce() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        for (int i = 0; i < 40; i++) {
+            rateLimiter.acquire(ACTION);
+        }
+        rateLimiter.recordThrottle(ACTION);
+        double rate = rateLimiter.getMetrics().get(ACTION).getRate();
+        rateLimiter.recordThrottle(ACTION);
+        rateLimiter.recordThrottle(ACTION);
+        AdaptiveRateLimiter.ActionMetrics metrics = rateLimiter.getMetrics().get(ACTION);
+        assertEquals(rate, metrics.getRate());
+        assertEquals(3, metrics.getThrottles());
+    }
+
+    @Test
+    void successesRaiseTheRateAdditivelyUntilTheActionIsNoLongerLimited() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        rateLimiter.acquire(ACTION);
+        rateLimiter.recordThrottle(ACTION);
+        double rate = rateLimiter.getMetrics().get(ACTION).getRate();
+
+        // At a rate of r, r successes raise the rate by about one request per second
+        for (int i = 0; i < Math.ceil(rate); i++) {
+            rateLimiter.recordSuccess(ACTION);
+        }
+        double raisedRate = rateLimiter.getMetrics().get(ACTION).getRate();
+        assertTrue(raisedRate > rate + 0.9 && raisedRate < rate + 1.5, rate + " -> " + raisedRate);
+
+        for (int i = 0; i < 10000 && rateLimiter.getMetrics().get(ACTION).getRate() != null; i++) {
+            rateLimiter.recordSuccess(ACTION);
+        }
+        assertNull(rateLimiter.getMetrics().get(ACTION).getRate());
+    }
+
+    @Test
+    void limitedRequestsWaitForTokensAtTheCurrentRate() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        for (int i = 0; i < 20; i++) {
+            rateLimiter.acquire(ACTION);
+        }
+        rateLimiter.recordThrottle(ACTION);
+        double rate = rateLimiter.getMetrics().get(ACTION).getRate();
+
+        long start = System.nanoTime();
+        int requests = (int) Math.ceil(rate) * 2;
+        for (int i = 0; i < requests; i++) {
+            rateLimiter.acquire(ACTION);
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        // The bucket starts empty, so the requests take about requests / rate seconds
+        assertTrue(elapsedSeconds > requests / rate * 0.8, "took " + elapsedSeconds + " s at " + rate + "/s");
+        assertTrue(rateLimiter.getMetrics().get(ACTION).getWaitTime().toMillis() > 0);
+    }
+
+    @Test
+    void asynchronousClientsWaitWithoutBlockingTheCaller() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        AtomicInteger sentRequests = new AtomicInteger();
+        FakeAsyncClient client = rateLimiter.limitAsyncClient(FakeAsyncClient.class, request -> {
+            sentRequests.incrementAndGet();
+            return CompletableFuture.completedFuture(request);
+        });
+        String action = "Fake:DescribeThings";
+        rateLimiter.acquire(action);
+        rateLimiter.recordThrottle(action);
+        assertEquals(1, rateLimiter.getMetrics().get(action).getRate());
+
+        // The bucket is empty, so the requests would block the caller for one and then two seconds
+        long start = System.nanoTime();
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            responses.add(client.describeThings("request " + i));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, sentRequests.get());
+
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals("request 1", responses.get(1).join());
+        assertEquals(2, sentRequests.get());
+        AdaptiveRateLimiter.ActionMetrics metrics = rateLimiter.getMetrics().get(action);
+        assertEquals(3, metrics.getRequests());
+        assertTrue(metrics.getWaitTime().toMillis() >= 2500, "waited " + metrics.getWaitTime());
+    }
+
+    /**
+     * Sends requests from many threads to a fake endpoint that throttles everything above its capacity, and checks
+     * that the limiter settles below the capacity instead of letting most requests be throttled.
+     */
+    @Test
+    void loadAboveCapacityConvergesToTheCapacity() throws Exception {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        FakeEndpoint endpoint = new FakeEndpoint(20);
+        int threads = 16;
+        long startNanos = System.nanoTime();
+        long settleNanos = startNanos + TimeUnit.SECONDS.toNanos(3);
+        long endNanos = settleNanos + TimeUnit.SECONDS.toNanos(3);
+        AtomicInteger settledRequests = new AtomicInteger();
+        AtomicInteger settledThrottles = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(executor.submit(() -> {
+                while (System.nanoTime() < endNanos) {
+                    rateLimiter.acquire(ACTION);
+                    boolean accepted = endpoint.send();
+                    if (accepted) {
+                        rateLimiter.recordSuccess(ACTION);
+                    } else {
+                        rateLimiter.recordThrottle(ACTION);
+                    }
+                    if (System.nanoTime() >= settleNanos) {
+                        settledRequests.incrementAndGet();
+                        if (!accepted) {
+                            settledThrottles.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // Unlimited, the threads send thousands of requests per second, nearly all of which would be throttled
+        double throttledFraction = settledThrottles.get() / (double) settledRequests.get();
+        assertTrue(throttledFraction < 0.2, settledThrottles + " of " + settledRequests + " requests throttled");
+        double acceptedRate = (settledRequests.get() - settledThrottles.get()) / 3.0;
+        assertTrue(acceptedRate > 20 * 0.6, "accepted " + acceptedRate + " requests per second");
+        assertNotNull(rateLimiter.getMetrics().get(ACTION).getRate());
+    }
+
+    interface FakeAsyncClient {
+        CompletableFuture<String> describeThings(String request);
+    }
+
+    /**
+     * An endpoint that accepts a fixed number of requests per second, with bursts of up to a second of requests like
+     * the token buckets EC2 throttles with
+     */
+    private static final class FakeEndpoint {
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        private FakeEndpoint(double capacity) {
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        private synchronized boolean send() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * capacity);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package osbourn.cloudcubes.core.constructs;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfrastructureConstructorTest {
+    @Test
+    void blockingClientsAreCreatedOnceAndReused() {
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(
+                TestInfrastructureConstructor.createConfiguration(0));
+        assertSame(infrastructureConstructor.getDynamoDBClient(), infrastructureConstructor.getDynamoDBClient());
+        assertSame(infrastructureConstructor.getEc2Client(), infrastructureConstructor.getEc2Client());
+        assertSame(infrastructureConstructor.getSsmClient(), infrastructureConstructor.getSsmClient());
+        assertSame(infrastructureConstructor.getSqsClient(), infrastructureConstructor.getSqsClient());
+    }
+
+    @Test
+    void asynchronousClientsAreCreatedOnceAndReused() {
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(
+                TestInfrastructureConstructor.createConfiguration(0));
+        assertSame(infrastructureConstructor.getDynamoDBAsyncClient(),
+                infrastructureConstructor.getDynamoDBAsyncClient());
+        assertSame(infrastructureConstructor.getEc2AsyncClient(), infrastructureConstructor.getEc2AsyncClient());
+    }
+
+    @Test
+    void helpersHoldingStateAcrossInvocationsAreReused() {
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(
+                TestInfrastructureConstructor.createConfiguration(0));
+        assertSame(infrastructureConstructor.getSpotSubnetRanker(), infrastructureConstructor.getSpotSubnetRanker());
+        assertSame(infrastructureConstructor.getSpotFulfillmentTracker(),
+                infrastructureConstructor.getSpotFulfillmentTracker());
+        assertSame(infrastructureConstructor.getServerStateReconciler(),
+                infrastructureConstructor.getServerStateReconciler());
+        assertSame(infrastructureConstructor.getBlockingExecutor(), infrastructureConstructor.getBlockingExecutor());
+    }
+
+    @Test
+    void concurrentCallersShareOneClient() throws Exception {
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(
+                TestInfrastructureConstructor.createConfiguration(0));
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<DynamoDbClient>> clients = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            clients.add(executor.submit(() -> {
+                start.await();
+                return infrastructureConstructor.getDynamoDBClient();
+            }));
+        }
+        start.countDown();
+        DynamoDbClient firstClient = clients.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<DynamoDbClient> client : clients) {
+            assertSame(firstClient, client.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Starts an HTTP server that answers every request with an internal server error, which clients retry.
+     *
+     * @param requests Counts the requests the server received
+     */
+    private static HttpServer startFailingServer(AtomicInteger requests) throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "{\"__type\":\"InternalServerError\",\"message\":\"Try again\"}"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.0");
+            exchange.sendResponseHeaders(500, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        httpServer.start();
+        return httpServer;
+    }
+
+    @Test
+    void dynamoDbClientsKeepTheRetriesOfTheirService() throws IOException {
+        RetryPolicy retryPolicy = InfrastructureConstructor.createDynamoDbRetryPolicy();
+        assertEquals(InfrastructureConstructor.DYNAMODB_MAX_RETRIES, retryPolicy.numRetries());
+
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer httpServer = startFailingServer(requests);
+        try (DynamoDbClient dynamoDbClient = DynamoDbClient.builder()
+                .region(Region.US_EAST_2)
+                .endpointOverride(URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort()))
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("id", "secret")))
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .overrideConfiguration(
+                        InfrastructureConstructor.createThrottledOverrideConfiguration(true, retryPolicy))
+                .build()) {
+            assertThrows(DynamoDbException.class, () -> dynamoDbClient.getItem(request -> request
+                    .tableName("Servers")
+                    .key(Map.of("Id", AttributeValue.builder().s("id").build()))));
+        } finally {
+            httpServer.stop(0);
+        }
+        // The first attempt and 8 retries, as for a DynamoDB client without a configured retry policy
+        assertEquals(InfrastructureConstructor.DYNAMODB_MAX_RETRIES + 1, requests.get());
+    }
+
+    @Test
+    void otherClientsKeepTheDefaultRetries() throws IOException {
+        RetryPolicy retryPolicy = InfrastructureConstructor.createDefaultRetryPolicy();
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer httpServer = startFailingServer(requests);
+        try (SqsClient sqsClient = SqsClient.builder()
+                .region(Region.US_EAST_2)
+                .endpointOverride(URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort()))
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("id", "secret")))
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .overrideConfiguration(
+                        InfrastructureConstructor.createThrottledOverrideConfiguration(true, retryPolicy))
+                .build()) {
+            assertThrows(SqsException.class, () -> sqsClient.getQueueUrl(request -> request.queueName("queue")));
+        } finally {
+            httpServer.stop(0);
+        }
+        assertEquals(retryPolicy.numRetries() + 1, requests.get());
+        assertTrue(retryPolicy.numRetries() < InfrastructureConstructor.DYNAMODB_MAX_RETRIES);
+    }
+}
@@ -0,0 +1,99 @@
+package osbourn.cloudcubes.core.constructs;
+
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import osbourn.cloudcubes.core.server.FakeSsmClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+
+import java.util.List;
+
+/**
+ * An InfrastructureConstructor for tests, whose DynamoDB tables are kept in memory and whose EC2 clients are supplied
+ * by the test, and whose commands sent through Systems Manager go to a {@link FakeSsmClient}. Every object built from
+ * the clients, such as the SpotSubnetRanker or the ServerLifecycle, is created by InfrastructureConstructor as usual.
+ */
+public class TestInfrastructureConstructor extends InfrastructureConstructor {
+    public static final String SERVER_TABLE_NAME = "Servers";
+    public static final String WARM_POOL_TABLE_NAME = "WarmPool";
+    public static final List<String> SUBNET_IDS = List.of("subnet-a", "subnet-b");
+
+    private final InMemoryDynamoDbClient dynamoDbClient;
+    private final DynamoDbAsyncClient dynamoDbAsyncClient;
+    private final Ec2Client ec2Client;
+    private final Ec2AsyncClient ec2AsyncClient;
+    private final FakeSsmClient ssmClient = new FakeSsmClient();
+
+    /**
+     * Creates a TestInfrastructureConstructor with the warm pool disabled.
+     *
+     * @param dynamoDbClient The client keeping the tables
+     * @param ec2Client      The EC2 client
+     * @param ec2AsyncClient The asynchronous EC2 client, or null if the test makes no asynchronous EC2 requests
+     */
+    public TestInfrastructureConstructor(InMemoryDynamoDbClient dynamoDbClient,
+                                         Ec2Client ec2Client,
+                                         Ec2AsyncClient ec2AsyncClient) {
+        this(createConfiguration(0), dynamoDbClient, ec2Client, ec2AsyncClient);
+    }
+
+    public TestInfrastructureConstructor(InfrastructureConfiguration infrastructureConfiguration,
+                                         InMemoryDynamoDbClient dynamoDbClient,
+                                         Ec2Client ec2Client,
+                                         Ec2AsyncClient ec2AsyncClient) {
+        super(infrastructureConfiguration);
+        this.dynamoDbClient = dynamoDbClient;
+        this.dynamoDbAsyncClient = dynamoDbClient.asAsyncClient();
+        this.ec2Client = ec2Client;
+        this.ec2AsyncClient = ec2AsyncClient;
+    }
+
+    /**
+     * Creates a complete configuration with placeholder values.
+     *
+     * @param warmPoolSizePerSubnet The size of the warm pool in each subnet, 0 to disable the warm pool
+     */
+    public static InfrastructureConfiguration createConfiguration(int warmPoolSizePerSubnet) {
+        InfrastructureConfiguration configuration = new InfrastructureConfiguration();
+        for (InfrastructureSetting setting : InfrastructureSetting.values()) {
+            configuration.setValue(setting, "test");
+        }
+        configuration.setValue(InfrastructureSetting.REGIONASSTRING, "us-east-1");
+        configuration.setValue(InfrastructureSetting.SERVERDATABASENAME, SERVER_TABLE_NAME);
+        configuration.setValue(InfrastructureSetting.WARMPOOLTABLENAME, WARM_POOL_TABLE_NAME);
+        configuration.setValue(InfrastructureSetting.WARMPOOLSIZEPERSUBNET, Integer.toString(warmPoolSizePerSubnet));
+        configuration.setValue(InfrastructureSetting.SERVERIDLETIMEOUTMINUTES, "15");
+        configuration.setServerSubnetIds(SUBNET_IDS);
+        return configuration;
+    }
+
+    @Override
+    public synchronized DynamoDbClient getDynamoDBClient() {
+        return dynamoDbClient;
+    }
+
+    @Override
+    public synchronized DynamoDbAsyncClient getDynamoDBAsyncClient() {
+        return dynamoDbAsyncClient;
+    }
+
+    @Override
+    public synchronized Ec2Client getEc2Client() {
+        return ec2Client;
+    }
+
+    @Override
+    public synchronized Ec2AsyncClient getEc2AsyncClient() {
+        if (ec2AsyncClient == null) {
+            throw new UnsupportedOperationException("The test did not supply an asynchronous EC2 client");
+        }
+        return ec2AsyncClient;
+    }
+
+    @Override
+    public synchronized FakeSsmClient getSsmClient() {
+        return ssmClient;
+    }
+}
@@ -0,0 +1,313 @@
+package osbourn.cloudcubes.core.database;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamoDBEntryTest {
+    private static final String TABLE_NAME = "Servers";
+
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final UUID id = UUID.randomUUID();
+
+    private DynamoDBEntry createEntry() {
+        return DynamoDBEntry.fromId(id, dynamoDbClient, dynamoDbClient::asAsyncClient, TABLE_NAME);
+    }
+
+    private void putServer(String serverState) {
+        dynamoDbClient.putItem(TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(id.toString()).build(),
+                "ServerState", AttributeValue.builder().s(serverState).build(),
+                "RconPassword", AttributeValue.builder().s("old password").build()));
+    }
+
+    private String getStoredValue(String key) {
+        AttributeValue value = dynamoDbClient.getItem(TABLE_NAME, id.toString()).get(key);
+        return value == null ? null : value.s();
+    }
+
+    @Test
+    void deferredWritesAreCoalescedIntoOneUpdateItem() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.setStringValue("EC2InstanceId", "i-0123456789");
+        entry.setStringValue("EC2SpotRequestState", "active");
+        entry.removeValue("RconPassword");
+        assertTrue(dynamoDbClient.getRequests().isEmpty());
+        // Deferred values can be read before they are written
+        assertEquals("i-0123456789", entry.getStringValue("EC2InstanceId"));
+
+        entry.flush();
+        assertEquals(1, dynamoDbClient.getRequests(UpdateItemRequest.class).size());
+        assertEquals("i-0123456789", getStoredValue("EC2InstanceId"));
+        assertEquals("active", getStoredValue("EC2SpotRequestState"));
+        assertNull(getStoredValue("RconPassword"));
+
+        // Writes are no longer deferred after a flush
+        entry.setStringValue("DisplayName", "Survival");
+        assertEquals(2, dynamoDbClient.getRequests(UpdateItemRequest.class).size());
+    }
+
+    @Test
+    void flushWithoutDeferredWritesMakesNoRequest() {
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.flush();
+        entry.flushAsync().join();
+        assertTrue(dynamoDbClient.getRequests().isEmpty());
+    }
+
+    @Test
+    void deferredWritesAreCoalescedIntoOneAsynchronousUpdateItem() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.setStringValueAsync("EC2InstanceId", "i-0123456789").join();
+        entry.setStringValueAsync("EC2SpotRequestState", "active").join();
+        assertTrue(dynamoDbClient.getRequests().isEmpty());
+
+        entry.flushAsync().join();
+        assertEquals(1, dynamoDbClient.getRequests(UpdateItemRequest.class).size());
+        assertEquals("i-0123456789", getStoredValue("EC2InstanceId"));
+        assertEquals("active", getStoredValue("EC2SpotRequestState"));
+    }
+
+    /**
+     * A start claims a server by writing its state together with the values the start needs, the way
+     * EC2SpotInstanceManager does, so that a claim costs one write instead of one write per value.
+     */
+    @Test
+    void deferredWritesAreSentWithACompareAndSet() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.setStringValue("EC2SpotRequestId", "PENDING");
+        entry.setStringValue("RconPassword", "new password");
+
+        assertTrue(entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN"));
+        entry.flush();
+        assertEquals(1, dynamoDbClient.getRequests().size());
+        assertEquals("UNKNOWN", getStoredValue("ServerState"));
+        assertEquals("PENDING", getStoredValue("EC2SpotRequestId"));
+        assertEquals("new password", getStoredValue("RconPassword"));
+    }
+
+    @Test
+    void deferredWritesAreSentWithAnAsynchronousCompareAndSet() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.setStringValue("EC2SpotRequestId", "PENDING");
+
+        assertTrue(entry.compareAndSetAsync("ServerState", "OFFLINE", "UNKNOWN").join());
+        entry.flushAsync().join();
+        assertEquals(1, dynamoDbClient.getRequests().size());
+        assertEquals("PENDING", getStoredValue("EC2SpotRequestId"));
+    }
+
+    @Test
+    void loadAllDownloadsEveryValueWithOneRequest() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.loadAll();
+        assertEquals("OFFLINE", entry.getStringValue("ServerState"));
+        assertEquals("old password", entry.getStringValue("RconPassword"));
+        // Keys the entry does not contain are known to be null
+        assertNull(entry.getStringValue("EC2InstanceId"));
+        assertEquals(1, dynamoDbClient.getRequests().size());
+    }
+
+    @Test
+    void prefetchDownloadsOnlyUncachedKeysAndCachesMissingKeysAsNull() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.prefetch(Set.of("ServerState", "EC2InstanceId"));
+        entry.prefetch(Set.of("ServerState", "RconPassword"));
+        assertEquals("OFFLINE", entry.getStringValue("ServerState"));
+        assertNull(entry.getStringValue("EC2InstanceId"));
+        assertEquals("old password", entry.getStringValue("RconPassword"));
+
+        List<GetItemRequest> requests = dynamoDbClient.getRequests(GetItemRequest.class);
+        assertEquals(2, requests.size());
+        // The second request only projects the key that was not cached yet, along with the version
+        assertEquals(Set.of("RconPassword", DynamoDBEntry.VERSION_KEY),
+                Set.copyOf(requests.get(1).expressionAttributeNames().values()));
+    }
+
+    @Test
+    void prefetchAsyncCachesTheValues() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.prefetchAsync(Set.of("ServerState", "EC2InstanceId")).join();
+        assertEquals("OFFLINE", entry.getStringValue("ServerState"));
+        assertNull(entry.getStringValue("EC2InstanceId"));
+        assertEquals(1, dynamoDbClient.getRequests().size());
+    }
+
+    @Test
+    void entriesCreatedFromDownloadedItemsMakeNoRequests() {
+        Map<String, AttributeValue> item = Map.of(
+                "Id", AttributeValue.builder().s(id.toString()).build(),
+                "ServerState", AttributeValue.builder().s("ONLINE").build());
+        DynamoDBEntry entry = DynamoDBEntry.fromItem(item, Set.of("ServerState", "EC2InstanceId"),
+                dynamoDbClient, dynamoDbClient::asAsyncClient, TABLE_NAME);
+        assertEquals(id, entry.getId());
+        assertEquals("ONLINE", entry.getStringValue("ServerState"));
+        assertNull(entry.getStringValue("EC2InstanceId"));
+        assertTrue(dynamoDbClient.getRequests().isEmpty());
+    }
+
+    @Test
+    void reloadingTheWholeEntryForgetsRemovedValues() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.loadAll();
+        assertEquals("old password", entry.getStringValue("RconPassword"));
+
+        createEntry().removeValue("RconPassword");
+        entry.loadAll();
+        assertNull(entry.getStringValue("RconPassword"));
+    }
+
+    @Test
+    void reloadingTheEntryKeepsDeferredValuesThatHaveNotBeenWritten() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.setStringValue("ServerState", "UNKNOWN");
+        entry.setStringValue("EC2InstanceId", "i-0123456789");
+        entry.removeValue("RconPassword");
+
+        entry.loadAll();
+        assertEquals("UNKNOWN", entry.getStringValue("ServerState"));
+        assertEquals("i-0123456789", entry.getStringValue("EC2InstanceId"));
+        assertNull(entry.getStringValue("RconPassword"));
+        entry.prefetchAsync(Set.of("ServerState", "DisplayName")).join();
+        entry.requestStringValueFromDatabase("ServerState");
+        assertEquals("UNKNOWN", entry.getStringValue("ServerState"));
+
+        entry.flush();
+        assertEquals("UNKNOWN", getStoredValue("ServerState"));
+        assertNull(getStoredValue("RconPassword"));
+    }
+
+    @Test
+    void compareAndSetFailsIfTheValueChanged() {
+        putServer("ONLINE");
+        DynamoDBEntry entry = createEntry();
+        assertFalse(entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN"));
+        assertEquals("ONLINE", getStoredValue("ServerState"));
+        // The cached value is discarded, so the current value is read again
+        assertEquals("ONLINE", entry.getStringValue("ServerState"));
+    }
+
+    @Test
+    void compareAndSetOfAMissingValueOnlySucceedsOnce() {
+        putServer("OFFLINE");
+        assertTrue(createEntry().compareAndSet("EC2SpotRequestId", null, "sir-1"));
+        assertFalse(createEntry().compareAndSet("EC2SpotRequestId", null, "sir-2"));
+        assertEquals("sir-1", getStoredValue("EC2SpotRequestId"));
+    }
+
+    @Test
+    void compareAndSetFailsIfTheEntryWasWrittenSinceItWasRead() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.loadAll();
+
+        // Another writer changes a different value, which still bumps the version
+        createEntry().setStringValue("RconPassword", "other password");
+        assertFalse(entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN"));
+        assertEquals("OFFLINE", getStoredValue("ServerState"));
+
+        // Once the version is forgotten or re-read, the comparison can succeed again
+        entry.loadAll();
+        assertTrue(entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN"));
+        assertEquals("UNKNOWN", getStoredValue("ServerState"));
+    }
+
+    @Test
+    void compareAndSetFollowsTheEntrysOwnWrites() {
+        putServer("OFFLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.loadAll();
+        entry.setStringValue("DisplayName", "Survival");
+        assertTrue(entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN"));
+        assertTrue(entry.compareAndSet("ServerState", "UNKNOWN", "ONLINE"));
+    }
+
+    @Test
+    void failedCompareAndSetWritesNoDeferredValues() {
+        putServer("ONLINE");
+        DynamoDBEntry entry = createEntry();
+        entry.deferWrites();
+        entry.setStringValue("RconPassword", "new password");
+        assertFalse(entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN"));
+        assertEquals("old password", getStoredValue("RconPassword"));
+
+        entry.discardWrites();
+        assertEquals("old password", entry.getStringValue("RconPassword"));
+        entry.flush();
+        assertEquals(1, dynamoDbClient.getRequests(UpdateItemRequest.class).size());
+    }
+
+    @Test
+    void asynchronousCompareAndSetFailsIfTheValueChanged() {
+        putServer("ONLINE");
+        assertFalse(createEntry().compareAndSetAsync("ServerState", "OFFLINE", "UNKNOWN").join());
+        assertEquals("ONLINE", getStoredValue("ServerState"));
+    }
+
+    @Test
+    void onlyOneOfManyRacingClaimsSucceeds() throws Exception {
+        putServer("OFFLINE");
+        int claimants = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(claimants);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> claims = new ArrayList<>();
+        for (int i = 0; i < claimants; i++) {
+            String password = "password " + i;
+            claims.add(executor.submit(() -> {
+                DynamoDBEntry entry = createEntry();
+                entry.loadAll();
+                start.await();
+                entry.deferWrites();
+                entry.setStringValue("RconPassword", password);
+                boolean claimed = entry.compareAndSet("ServerState", "OFFLINE", "UNKNOWN");
+                if (claimed) {
+                    entry.flush();
+                } else {
+                    entry.discardWrites();
+                }
+                return claimed;
+            }));
+        }
+        start.countDown();
+        int successfulClaims = 0;
+        for (Future<Boolean> claim : claims) {
+            if (claim.get(10, TimeUnit.SECONDS)) {
+                successfulClaims++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(1, successfulClaims);
+        assertEquals("UNKNOWN", getStoredValue("ServerState"));
+        assertNotEquals("old password", getStoredValue("RconPassword"));
+    }
+}
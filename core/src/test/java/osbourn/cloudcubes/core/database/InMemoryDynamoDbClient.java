@@ -0,0 +1,541 @@
+package osbourn.cloudcubes.core.database;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+import software.amazon.awssdk.services.dynamodb.paginators.QueryIterable;
+import software.amazon.awssdk.services.dynamodb.paginators.ScanIterable;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * A DynamoDB client that keeps the items of every table in memory, for testing code that makes DynamoDB requests. It
+ * evaluates the subset of update and condition expressions the project uses: SET (with list_append and
+ * if_not_exists), ADD on numbers, REMOVE, comparisons, IN, AND, OR, NOT, attribute_exists and attribute_not_exists.
+ * Tables are keyed by their "Id" attribute unless another key is set with {@link #setKeyName(String, String)}, and the
+ * indexes queried are assumed to be keys-only.
+ * </p>
+ *
+ * <p>
+ * Every request is recorded, so that tests can check how many requests some code made. The client is thread safe and
+ * requests are applied one at a time, like conditional writes to a single item are in DynamoDB.
+ * </p>
+ */
+public class InMemoryDynamoDbClient implements DynamoDbClient {
+    private static final Pattern TOKEN = Pattern.compile("\\s*(#\\w+|:\\w+|<>|<=|>=|[=<>(),]|[A-Za-z_]\\w*)");
+
+    private final Map<String, Map<String, Map<String, AttributeValue>>> tables = new HashMap<>();
+    private final Map<String, String> keyNames = new HashMap<>();
+    private final List<DynamoDbRequest> requests = new ArrayList<>();
+    private int maximumBatchGetItems = Integer.MAX_VALUE;
+
+    /**
+     * Sets the name of the partition key of a table, which is "Id" by default.
+     */
+    public synchronized void setKeyName(String tableName, String keyName) {
+        keyNames.put(tableName, keyName);
+    }
+
+    /**
+     * Stores an item, replacing the item with the same id.
+     *
+     * @param tableName The name of the table
+     * @param item      The item, which must contain the key of the table
+     */
+    public synchronized void putItem(String tableName, Map<String, AttributeValue> item) {
+        getTable(tableName).put(item.get(getKeyName(tableName)).s(), new HashMap<>(item));
+    }
+
+    /**
+     * Gets a copy of an item.
+     *
+     * @return The item, or null if the table does not contain it
+     */
+    public synchronized Map<String, AttributeValue> getItem(String tableName, String id) {
+        Map<String, AttributeValue> item = getTable(tableName).get(id);
+        return item == null ? null : new HashMap<>(item);
+    }
+
+    /**
+     * Makes BatchGetItem requests return at most the given number of items, returning the other keys as unprocessed
+     * like DynamoDB does when it is throttled or the response is too large.
+     */
+    public synchronized void setMaximumBatchGetItems(int maximumBatchGetItems) {
+        this.maximumBatchGetItems = maximumBatchGetItems;
+    }
+
+    /**
+     * Gets the requests made so far, in the order they were made.
+     */
+    public synchronized List<DynamoDbRequest> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * Gets the requests of the given type made so far.
+     */
+    public synchronized <T extends DynamoDbRequest> List<T> getRequests(Class<T> requestClass) {
+        List<T> matchingRequests = new ArrayList<>();
+        for (DynamoDbRequest request : requests) {
+            if (requestClass.isInstance(request)) {
+                matchingRequests.add(requestClass.cast(request));
+            }
+        }
+        return matchingRequests;
+    }
+
+    public synchronized void clearRequests() {
+        requests.clear();
+    }
+
+    /**
+     * Creates an asynchronous client backed by the same tables. Its futures complete on another thread, like those of
+     * the real client.
+     */
+    public DynamoDbAsyncClient asAsyncClient() {
+        InMemoryDynamoDbClient syncClient = this;
+        return new DynamoDbAsyncClient() {
+            @Override
+            public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+                return complete(() -> syncClient.getItem(request));
+            }
+
+            @Override
+            public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+                return complete(() -> syncClient.updateItem(request));
+            }
+
+            @Override
+            public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+                return complete(() -> syncClient.batchGetItem(request));
+            }
+
+            @Override
+            public String serviceName() {
+                return syncClient.serviceName();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static <T> CompletableFuture<T> complete(Supplier<T> request) {
+        return CompletableFuture.supplyAsync(request);
+    }
+
+    @Override
+    public synchronized GetItemResponse getItem(GetItemRequest request) {
+        requests.add(request);
+        Map<String, AttributeValue> item = getTable(request.tableName()).get(getKeyValue(request.key()));
+        if (item == null) {
+            return GetItemResponse.builder().build();
+        }
+        return GetItemResponse.builder()
+                .item(project(item, request.projectionExpression(), request.expressionAttributeNames()))
+                .build();
+    }
+
+    @Override
+    public synchronized UpdateItemResponse updateItem(UpdateItemRequest request) {
+        requests.add(request);
+        Map<String, Map<String, AttributeValue>> table = getTable(request.tableName());
+        String id = getKeyValue(request.key());
+        Map<String, AttributeValue> oldItem = table.getOrDefault(id, Collections.emptyMap());
+        Map<String, String> names = request.expressionAttributeNames();
+        Map<String, AttributeValue> values = request.expressionAttributeValues();
+        checkCondition(request.conditionExpression(), oldItem, names, values);
+
+        Map<String, AttributeValue> newItem = new HashMap<>(oldItem);
+        newItem.putAll(request.key());
+        Set<String> updatedNames = new Parser(request.updateExpression(), oldItem, names, values).applyUpdate(newItem);
+        table.put(id, newItem);
+
+        Map<String, AttributeValue> returned = new HashMap<>();
+        if (request.returnValues() == ReturnValue.ALL_NEW) {
+            returned.putAll(newItem);
+        } else if (request.returnValues() == ReturnValue.UPDATED_NEW) {
+            for (String name : updatedNames) {
+                if (newItem.containsKey(name)) {
+                    returned.put(name, newItem.get(name));
+                }
+            }
+        } else if (request.returnValues() != null && request.returnValues() != ReturnValue.NONE) {
+            throw new UnsupportedOperationException("Unsupported return values " + request.returnValues());
+        }
+        return UpdateItemResponse.builder().attributes(returned).build();
+    }
+
+    @Override
+    public synchronized PutItemResponse putItem(PutItemRequest request) {
+        requests.add(request);
+        Map<String, Map<String, AttributeValue>> table = getTable(request.tableName());
+        String id = request.item().get(getKeyName(request.tableName())).s();
+        checkCondition(request.conditionExpression(), table.getOrDefault(id, Collections.emptyMap()),
+                request.expressionAttributeNames(), request.expressionAttributeValues());
+        table.put(id, new HashMap<>(request.item()));
+        return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public synchronized DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        requests.add(request);
+        Map<String, Map<String, AttributeValue>> table = getTable(request.tableName());
+        String id = getKeyValue(request.key());
+        checkCondition(request.conditionExpression(), table.getOrDefault(id, Collections.emptyMap()),
+                request.expressionAttributeNames(), request.expressionAttributeValues());
+        table.remove(id);
+        return DeleteItemResponse.builder().build();
+    }
+
+    @Override
+    public synchronized BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        requests.add(request);
+        int keyCount = 0;
+        for (KeysAndAttributes keysAndAttributes : request.requestItems().values()) {
+            keyCount += keysAndAttributes.keys().size();
+        }
+        if (keyCount > 100) {
+            throw DynamoDbException.builder().message("Too many items requested for the BatchGetItem call").build();
+        }
+
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        Map<String, KeysAndAttributes> unprocessedKeys = new HashMap<>();
+        int returnedItems = 0;
+        for (Map.Entry<String, KeysAndAttributes> entry : request.requestItems().entrySet()) {
+            KeysAndAttributes keysAndAttributes = entry.getValue();
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            List<Map<String, AttributeValue>> unprocessed = new ArrayList<>();
+            for (Map<String, AttributeValue> key : keysAndAttributes.keys()) {
+                if (returnedItems >= maximumBatchGetItems) {
+                    unprocessed.add(key);
+                    continue;
+                }
+                returnedItems++;
+                Map<String, AttributeValue> item = getTable(entry.getKey()).get(getKeyValue(key));
+                if (item != null) {
+                    items.add(project(item, keysAndAttributes.projectionExpression(),
+                            keysAndAttributes.expressionAttributeNames()));
+                }
+            }
+            responses.put(entry.getKey(), items);
+            if (!unprocessed.isEmpty()) {
+                unprocessedKeys.put(entry.getKey(), keysAndAttributes.toBuilder().keys(unprocessed).build());
+            }
+        }
+        return BatchGetItemResponse.builder().responses(responses).unprocessedKeys(unprocessedKeys).build();
+    }
+
+    @Override
+    public synchronized ScanResponse scan(ScanRequest request) {
+        requests.add(request);
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (Map<String, AttributeValue> item : getTable(request.tableName()).values()) {
+            items.add(project(item, request.projectionExpression(), request.expressionAttributeNames()));
+        }
+        return ScanResponse.builder().items(items).count(items.size()).build();
+    }
+
+    @Override
+    public ScanIterable scanPaginator(ScanRequest request) {
+        return new ScanIterable(this, request);
+    }
+
+    @Override
+    public synchronized QueryResponse query(QueryRequest request) {
+        requests.add(request);
+        Set<String> indexKeys = new HashSet<>();
+        indexKeys.add(getKeyName(request.tableName()));
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (Map<String, AttributeValue> item : getTable(request.tableName()).values()) {
+            Parser keyCondition = new Parser(request.keyConditionExpression(), item,
+                    request.expressionAttributeNames(), request.expressionAttributeValues());
+            if (keyCondition.parseCondition()) {
+                indexKeys.addAll(keyCondition.referencedNames);
+                Map<String, AttributeValue> projected = new HashMap<>(item);
+                projected.keySet().retainAll(indexKeys);
+                items.add(projected);
+            }
+        }
+        return QueryResponse.builder().items(items).count(items.size()).build();
+    }
+
+    @Override
+    public QueryIterable queryPaginator(QueryRequest request) {
+        return new QueryIterable(this, request);
+    }
+
+    @Override
+    public String serviceName() {
+        return "dynamodb";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Map<String, Map<String, AttributeValue>> getTable(String tableName) {
+        return tables.computeIfAbsent(tableName, name -> new HashMap<>());
+    }
+
+    private String getKeyName(String tableName) {
+        return keyNames.getOrDefault(tableName, "Id");
+    }
+
+    private static String getKeyValue(Map<String, AttributeValue> key) {
+        if (key.size() != 1) {
+            throw new UnsupportedOperationException("Only tables with a partition key and no sort key are supported");
+        }
+        return key.values().iterator().next().s();
+    }
+
+    /**
+     * Throws a ConditionalCheckFailedException if an item does not meet a condition expression.
+     *
+     * @param conditionExpression The condition, or null if the request has none
+     * @param item                The item, which is empty if it does not exist
+     */
+    private static void checkCondition(String conditionExpression,
+                                       Map<String, AttributeValue> item,
+                                       Map<String, String> names,
+                                       Map<String, AttributeValue> values) {
+        if (conditionExpression == null) {
+            return;
+        }
+        Parser condition = new Parser(conditionExpression, item, names, values);
+        if (!condition.parseCondition() || !condition.isAtEnd()) {
+            throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+        }
+    }
+
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item,
+                                                       String projectionExpression,
+                                                       Map<String, String> names) {
+        if (projectionExpression == null) {
+            return new HashMap<>(item);
+        }
+        Map<String, AttributeValue> projected = new HashMap<>();
+        for (String placeholder : projectionExpression.split("\\s*,\\s*")) {
+            String name = names.getOrDefault(placeholder.trim(), placeholder.trim());
+            if (item.containsKey(name)) {
+                projected.put(name, item.get(name));
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Evaluates a condition expression against an item, or applies an update expression to it.
+     */
+    private static final class Parser {
+        private final List<String> tokens = new ArrayList<>();
+        private final Map<String, AttributeValue> item;
+        private final Map<String, String> names;
+        private final Map<String, AttributeValue> values;
+        private final Set<String> referencedNames = new HashSet<>();
+        private int position = 0;
+
+        private Parser(String expression,
+                       Map<String, AttributeValue> item,
+                       Map<String, String> names,
+                       Map<String, AttributeValue> values) {
+            Matcher matcher = TOKEN.matcher(expression);
+            int end = 0;
+            while (matcher.find() && matcher.start() == end) {
+                tokens.add(matcher.group(1));
+                end = matcher.end();
+            }
+            if (!expression.substring(end).isBlank()) {
+                throw new UnsupportedOperationException("Cannot parse the expression " + expression);
+            }
+            this.item = item;
+            this.names = names == null ? Collections.emptyMap() : names;
+            this.values = values == null ? Collections.emptyMap() : values;
+        }
+
+        private boolean isAtEnd() {
+            return position == tokens.size();
+        }
+
+        private String peek() {
+            return isAtEnd() ? "" : tokens.get(position);
+        }
+
+        private boolean accept(String token) {
+            if (peek().equalsIgnoreCase(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw new UnsupportedOperationException("Expected " + token + " but found " + peek());
+            }
+        }
+
+        private boolean parseCondition() {
+            boolean result = parseConjunction();
+            while (accept("OR")) {
+                result |= parseConjunction();
+            }
+            return result;
+        }
+
+        private boolean parseConjunction() {
+            boolean result = parseUnaryCondition();
+            while (accept("AND")) {
+                result &= parseUnaryCondition();
+            }
+            return result;
+        }
+
+        private boolean parseUnaryCondition() {
+            if (accept("NOT")) {
+                return !parseUnaryCondition();
+            }
+            if (accept("(")) {
+                boolean result = parseCondition();
+                expect(")");
+                return result;
+            }
+            if (accept("attribute_exists") || accept("attribute_not_exists")) {
+                boolean exists = tokens.get(position - 1).equals("attribute_exists");
+                expect("(");
+                String name = parseName();
+                expect(")");
+                return item.containsKey(name) == exists;
+            }
+
+            AttributeValue left = parseOperand();
+            if (accept("IN")) {
+                expect("(");
+                boolean found = false;
+                do {
+                    AttributeValue candidate = parseOperand();
+                    found |= left != null && left.equals(candidate);
+                } while (accept(","));
+                expect(")");
+                return found;
+            }
+            String comparator = tokens.get(position++);
+            AttributeValue right = parseOperand();
+            if (comparator.equals("=")) {
+                return left != null && left.equals(right);
+            }
+            if (comparator.equals("<>")) {
+                return left == null || !left.equals(right);
+            }
+            if (left == null || right == null) {
+                return false;
+            }
+            int comparison = left.n() != null
+                    ? new BigDecimal(left.n()).compareTo(new BigDecimal(right.n()))
+                    : left.s().compareTo(right.s());
+            switch (comparator) {
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                case ">=":
+                    return comparison >= 0;
+                default:
+                    throw new UnsupportedOperationException("Unsupported comparator " + comparator);
+            }
+        }
+
+        private String parseName() {
+            String token = tokens.get(position++);
+            String name = token.startsWith("#") ? names.get(token) : token;
+            if (name == null) {
+                throw new IllegalArgumentException("Missing expression attribute name " + token);
+            }
+            referencedNames.add(name);
+            return name;
+        }
+
+        /**
+         * Parses an attribute name, a value placeholder or one of the functions that can be used in SET actions.
+         *
+         * @return The value, or null if it refers to an attribute the item does not contain
+         */
+        private AttributeValue parseOperand() {
+            if (accept("if_not_exists")) {
+                expect("(");
+                AttributeValue existing = parseOperand();
+                expect(",");
+                AttributeValue fallback = parseOperand();
+                expect(")");
+                return existing != null ? existing : fallback;
+            }
+            if (accept("list_append")) {
+                expect("(");
+                AttributeValue first = parseOperand();
+                expect(",");
+                AttributeValue second = parseOperand();
+                expect(")");
+                List<AttributeValue> list = new ArrayList<>(first.l());
+                list.addAll(second.l());
+                return AttributeValue.builder().l(list).build();
+            }
+            if (peek().startsWith(":")) {
+                String placeholder = tokens.get(position++);
+                AttributeValue value = values.get(placeholder);
+                if (value == null) {
+                    throw new IllegalArgumentException("Missing expression attribute value " + placeholder);
+                }
+                return value;
+            }
+            return item.get(parseName());
+        }
+
+        /**
+         * Applies the SET, ADD and REMOVE actions of an update expression.
+         *
+         * @param newItem The item to change
+         * @return The names of the attributes that were set or added to
+         */
+        private Set<String> applyUpdate(Map<String, AttributeValue> newItem) {
+            Set<String> updatedNames = new HashSet<>();
+            while (!isAtEnd()) {
+                String clause = tokens.get(position++).toUpperCase(Locale.ROOT);
+                do {
+                    String name = parseName();
+                    switch (clause) {
+                        case "SET":
+                            expect("=");
+                            newItem.put(name, parseOperand());
+                            updatedNames.add(name);
+                            break;
+                        case "ADD":
+                            AttributeValue amount = parseOperand();
+                            AttributeValue current = item.get(name);
+                            BigDecimal sum = new BigDecimal(amount.n());
+                            if (current != null) {
+                                sum = sum.add(new BigDecimal(current.n()));
+                            }
+                            newItem.put(name, AttributeValue.builder().n(sum.toPlainString()).build());
+                            updatedNames.add(name);
+                            break;
+                        case "REMOVE":
+                            newItem.remove(name);
+                            break;
+                        default:
+                            throw new UnsupportedOperationException("Unsupported update clause " + clause);
+                    }
+                } while (accept(","));
+            }
+            return updatedNames;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package osbourn.cloudcubes.core.minecraft;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RconConnectionPoolTest {
+    private static final String HOST = "127.0.0.1";
+    private static final String PASSWORD = "password";
+
+    private final FakeRconServer server = new FakeRconServer();
+    private final RconConnectionPool pool = new RconConnectionPool(2000);
+
+    RconConnectionPoolTest() throws IOException {
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    private static Throwable getCause(CompletableFuture<?> future) {
+        CompletionException exception = assertThrows(CompletionException.class, future::join);
+        return exception.getCause();
+    }
+
+    @Test
+    void commandsArePipelinedOverOneConnection() {
+        // The server only answers once every command has arrived, so the commands cannot have waited for each other,
+        // and it answers them in reverse order
+        server.batchSize = 3;
+        List<String> outputs = pool.executeCommands(HOST, server.getPort(), PASSWORD,
+                List.of("list", "seed", "time query daytime")).join();
+
+        assertEquals(List.of("ran list", "ran seed", "ran time query daytime"), outputs);
+        assertEquals(1, server.connections.get());
+        assertEquals(1, server.logins.get());
+    }
+
+    @Test
+    void moreCommandsThanMayBePendingAreSentAsEarlierOnesAreAnswered() {
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < RconClient.MAXIMUM_PENDING_COMMANDS * 3; i++) {
+            commands.add("say " + i);
+        }
+        List<String> outputs = pool.executeCommands(HOST, server.getPort(), PASSWORD, commands).join();
+        assertEquals(commands.size(), outputs.size());
+        assertEquals("ran say 47", outputs.get(47));
+        assertEquals(commands, server.receivedCommands);
+    }
+
+    @Test
+    void connectionsAreReused() {
+        assertEquals("ran list", pool.executeCommand(HOST, server.getPort(), PASSWORD, "list").join());
+        assertEquals("ran seed", pool.executeCommand(HOST, server.getPort(), PASSWORD, "seed").join());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    void concurrentCallersShareTheConnectionBeingOpened() {
+        List<CompletableFuture<String>> outputs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            outputs.add(pool.executeCommand(HOST, server.getPort(), PASSWORD, "say " + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("ran say " + i, outputs.get(i).join());
+        }
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    void longOutputsSplitIntoSeveralPacketsAreJoined() {
+        String output = String.join("", Collections.nCopies(3000, "ab"));
+        server.outputOverride = output;
+        assertEquals(output, pool.executeCommand(HOST, server.getPort(), PASSWORD, "help").join());
+    }
+
+    @Test
+    void failedConnectionsAreReplaced() throws IOException, InterruptedException {
+        pool.executeCommand(HOST, server.getPort(), PASSWORD, "list").join();
+        server.dropConnections();
+
+        // The pool notices the failure once the reader thread of the connection has seen the end of the stream
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        CompletableFuture<String> output;
+        do {
+            Thread.sleep(20);
+            output = pool.executeCommand(HOST, server.getPort(), PASSWORD, "seed");
+        } while (output.handle((result, throwable) -> throwable != null).join() && System.nanoTime() < deadline);
+        assertEquals("ran seed", output.join());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    void aChangedPasswordOpensANewConnection() {
+        pool.executeCommand(HOST, server.getPort(), PASSWORD, "list").join();
+        server.password = "new password";
+        assertEquals("ran seed", pool.executeCommand(HOST, server.getPort(), "new password", "seed").join());
+        assertEquals(2, server.logins.get());
+    }
+
+    @Test
+    void rejectedPasswordsFailWithAnIOExceptionAndAreNotPooled() {
+        assertInstanceOf(IOException.class,
+                getCause(pool.executeCommand(HOST, server.getPort(), "wrong password", "list")));
+        assertEquals("ran list", pool.executeCommand(HOST, server.getPort(), PASSWORD, "list").join());
+    }
+
+    @Test
+    void commandsThatAreNotAnsweredTimeOut() {
+        server.batchSize = 1000;
+        try (RconConnectionPool impatientPool = new RconConnectionPool(300)) {
+            assertInstanceOf(TimeoutException.class,
+                    getCause(impatientPool.executeCommand(HOST, server.getPort(), PASSWORD, "list")));
+        }
+    }
+
+    @Test
+    void idleConnectionsAreClosed() throws InterruptedException {
+        try (RconConnectionPool shortLivedPool = new RconConnectionPool(2000, Duration.ofMillis(1))) {
+            shortLivedPool.executeCommand(HOST, server.getPort(), PASSWORD, "list").join();
+            Thread.sleep(10);
+            shortLivedPool.executeCommand(HOST, server.getPort(), PASSWORD, "seed").join();
+        }
+        assertEquals(2, server.connections.get());
+    }
+
+    /**
+     * An RCON server that answers every command with "ran " followed by the command. Like a Minecraft server, it
+     * splits outputs into packets of at most 4096 bytes and answers a packet of an unknown type after everything sent
+     * before it.
+     */
+    private static final class FakeRconServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger logins = new AtomicInteger();
+        private final List<String> receivedCommands = new CopyOnWriteArrayList<>();
+        private volatile String password = PASSWORD;
+        /**
+         * The number of commands that are received before any of them is answered, in reverse order
+         */
+        private volatile int batchSize = 1;
+        /**
+         * If not null, every command is answered with this output
+         */
+        private volatile String outputOverride = null;
+
+        private FakeRconServer() throws IOException {
+            Thread acceptThread = new Thread(this::acceptConnections, "fake-rcon-server");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void acceptConnections() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    sockets.add(socket);
+                    Thread connectionThread = new Thread(() -> serve(socket), "fake-rcon-connection");
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                } catch (IOException e) {
+                    // The server has been closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                OutputStream outputStream = socket.getOutputStream();
+                List<int[]> unansweredCommands = new ArrayList<>();
+                List<String> unansweredBodies = new ArrayList<>();
+                while (true) {
+                    int length = Integer.reverseBytes(inputStream.readInt());
+                    byte[] packet = new byte[length];
+                    inputStream.readFully(packet);
+                    ByteBuffer buffer = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+                    int requestId = buffer.getInt();
+                    int type = buffer.getInt();
+                    String body = new String(packet, 8, length - 10, StandardCharsets.US_ASCII);
+
+                    if (type == 3) {
+                        logins.incrementAndGet();
+                        writePacket(outputStream, body.equals(password) ? requestId : -1, 2, "");
+                        continue;
+                    }
+                    if (type == 2) {
+                        receivedCommands.add(body);
+                    }
+                    // The command and the packet marking the end of its response are answered together
+                    unansweredCommands.add(new int[]{requestId, type});
+                    unansweredBodies.add(body);
+                    if (type == 2 || unansweredCommands.size() < batchSize * 2) {
+                        continue;
+                    }
+                    for (int i = unansweredCommands.size() - 2; i >= 0; i -= 2) {
+                        String output = outputOverride != null ? outputOverride : "ran " + unansweredBodies.get(i);
+                        for (int start = 0; start < output.length(); start += 4096) {
+                            writePacket(outputStream, unansweredCommands.get(i)[0], 0,
+                                    output.substring(start, Math.min(output.length(), start + 4096)));
+                        }
+                        writePacket(outputStream, unansweredCommands.get(i + 1)[0], 0, "");
+                    }
+                    unansweredCommands.clear();
+                    unansweredBodies.clear();
+                }
+            } catch (IOException e) {
+                // The connection has been closed
+            }
+        }
+
+        private static void writePacket(OutputStream outputStream, int requestId, int type, String body)
+                throws IOException {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer packet = ByteBuffer.allocate(4 + 4 + 4 + bodyBytes.length + 2).order(ByteOrder.LITTLE_ENDIAN);
+            packet.putInt(4 + 4 + bodyBytes.length + 2).putInt(requestId).putInt(type).put(bodyBytes);
+            outputStream.write(packet.array());
+            outputStream.flush();
+        }
+
+        private void dropConnections() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            dropConnections();
+        }
+    }
+}
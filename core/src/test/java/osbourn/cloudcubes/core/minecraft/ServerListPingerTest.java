@@ -0,0 +1,355 @@
+package osbourn.cloudcubes.core.minecraft;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerListPingerTest {
+    private static final String HOST = "127.0.0.1";
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final FakeServer server = new FakeServer();
+    private final ServerListPinger pinger = new ServerListPinger(2);
+
+    ServerListPingerTest() throws IOException {
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        pinger.close();
+        server.close();
+    }
+
+    private static Throwable getCause(CompletableFuture<?> future) {
+        CompletionException exception = assertThrows(CompletionException.class, future::join);
+        return exception.getCause();
+    }
+
+    private static String createStatus(int onlinePlayers, String description) {
+        return "{\"version\":{\"name\":\"1.20.1\",\"protocol\":763},\"players\":{\"max\":20,\"online\":"
+                + onlinePlayers + "},\"description\":{\"text\":\"" + description + "\"}}";
+    }
+
+    @Test
+    void theStatusIsRequestedWithAHandshakeAndThePlayerCountsAreRead() {
+        ServerStatus status = pinger.ping(server.getAddress(), TIMEOUT).join();
+
+        assertEquals(3, status.getOnlinePlayers());
+        assertEquals(20, status.getMaximumPlayers());
+        assertEquals(createStatus(3, "A Minecraft Server"), status.getJson());
+        assertFalse(status.getLatency().isNegative());
+        // Handshake: protocol version 47, the address as it was given, and the next state "status"
+        Handshake handshake = server.handshakes.get(0);
+        assertEquals(47, handshake.protocolVersion);
+        assertEquals(HOST, handshake.host);
+        assertEquals(server.getAddress().getPort(), handshake.port);
+        assertEquals(1, handshake.nextState);
+        assertEquals(1, server.pingPackets.get());
+    }
+
+    @Test
+    void statusesWithMultiByteLengthsThatArriveOneByteAtATimeAreReassembled() {
+        // 300 bytes of description make the lengths two-byte VarInts, which are also split between reads
+        String description = String.join("", Collections.nCopies(300, "a"));
+        server.status = createStatus(7, description);
+        server.bytesPerWrite = 1;
+
+        ServerStatus status = pinger.ping(server.getAddress(), TIMEOUT).join();
+        assertEquals(7, status.getOnlinePlayers());
+        assertEquals(server.status, status.getJson());
+    }
+
+    @Test
+    void statusesLargerThanAPooledBufferAreRead() {
+        // Server icons are sent as base64 in the status, which makes it larger than the pooled buffers
+        String icon = String.join("", Collections.nCopies(40 * 1024, "Q"));
+        server.status = createStatus(1, icon);
+        server.bytesPerWrite = 4096;
+
+        ServerStatus status = pinger.ping(server.getAddress(), TIMEOUT).join();
+        assertEquals(1, status.getOnlinePlayers());
+        assertEquals(server.status.length(), status.getJson().length());
+        // The pooled buffer is still usable afterwards
+        server.status = createStatus(2, "small");
+        assertEquals(2, pinger.ping(server.getAddress(), TIMEOUT).join().getOnlinePlayers());
+    }
+
+    @Test
+    void serversThatCloseTheConnectionInsteadOfAnsweringThePingStillReportTheirStatus() {
+        server.answerPings = false;
+        assertEquals(3, pinger.ping(server.getAddress(), TIMEOUT).join().getOnlinePlayers());
+    }
+
+    @Test
+    void serversThatDoNotAnswerTimeOut() {
+        server.answerStatusRequests = false;
+        long start = System.nanoTime();
+        assertInstanceOf(TimeoutException.class, getCause(pinger.ping(server.getAddress(), Duration.ofMillis(300))));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(3)) < 0);
+    }
+
+    @Test
+    void serversThatCannotBeReachedFailWithAnIOException() throws IOException {
+        InetSocketAddress closedAddress;
+        try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName(HOST))) {
+            closedAddress = new InetSocketAddress(HOST, socket.getLocalPort());
+        }
+        assertInstanceOf(IOException.class, getCause(pinger.ping(closedAddress, TIMEOUT)));
+    }
+
+    @Test
+    void malformedResponsesFailWithAnIOException() {
+        // A VarInt may not be longer than five bytes
+        server.rawResponse = new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+        assertInstanceOf(IOException.class, getCause(pinger.ping(server.getAddress(), TIMEOUT)));
+
+        // A packet of id 1 in place of the status response
+        server.rawResponse = new byte[]{2, 0x01, 0x00};
+        assertInstanceOf(IOException.class, getCause(pinger.ping(server.getAddress(), TIMEOUT)));
+    }
+
+    @Test
+    void pingAllPingsEveryServerWithoutExceedingTheMaximumNumberOfConcurrentPings() {
+        // Every response is held back for a while, so the pings would overlap if the pinger let them
+        server.responseDelayMillis = 100;
+        Map<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (int i = 0; i < 8; i++) {
+            addresses.put(i, server.getAddress());
+        }
+
+        Map<Integer, CompletableFuture<ServerStatus>> pings = pinger.pingAll(addresses, TIMEOUT);
+        assertEquals(List.copyOf(addresses.keySet()), List.copyOf(pings.keySet()));
+        for (CompletableFuture<ServerStatus> ping : pings.values()) {
+            assertEquals(3, ping.join().getOnlinePlayers());
+        }
+        assertEquals(8, server.handshakes.size());
+        assertEquals(2, server.maximumConcurrentConnections.get());
+    }
+
+    @Test
+    void pingsWaitingForOthersDoNotTimeOutSooner() {
+        server.responseDelayMillis = 250;
+        Map<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (int i = 0; i < 6; i++) {
+            addresses.put(i, server.getAddress());
+        }
+        // Each ping takes 250 ms and two are made at once, so the last two wait 500 ms before they start
+        for (CompletableFuture<ServerStatus> ping : pinger.pingAll(addresses, Duration.ofMillis(600)).values()) {
+            assertEquals(3, ping.join().getOnlinePlayers());
+        }
+    }
+
+    private static final class Handshake {
+        private final int protocolVersion;
+        private final String host;
+        private final int port;
+        private final int nextState;
+
+        private Handshake(int protocolVersion, String host, int port, int nextState) {
+            this.protocolVersion = protocolVersion;
+            this.host = host;
+            this.port = port;
+            this.nextState = nextState;
+        }
+    }
+
+    /**
+     * A server that answers the Server List Ping protocol like a Minecraft server, with a configurable status. It can
+     * split its responses into small writes, delay them, or not answer at all.
+     */
+    private static final class FakeServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final List<Handshake> handshakes = new CopyOnWriteArrayList<>();
+        private final AtomicInteger pingPackets = new AtomicInteger();
+        private final AtomicInteger concurrentConnections = new AtomicInteger();
+        private final AtomicInteger maximumConcurrentConnections = new AtomicInteger();
+        private volatile String status = createStatus(3, "A Minecraft Server");
+        /**
+         * The number of bytes sent with each write, each write being flushed on its own
+         */
+        private volatile int bytesPerWrite = Integer.MAX_VALUE;
+        private volatile int responseDelayMillis = 0;
+        private volatile boolean answerStatusRequests = true;
+        private volatile boolean answerPings = true;
+        /**
+         * If not null, sent in place of the status response
+         */
+        private volatile byte[] rawResponse = null;
+
+        private FakeServer() throws IOException {
+            Thread acceptThread = new Thread(this::acceptConnections, "fake-slp-server");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(HOST, serverSocket.getLocalPort());
+        }
+
+        private void acceptConnections() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    Thread connectionThread = new Thread(() -> serve(socket), "fake-slp-connection");
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                } catch (IOException e) {
+                    // The server has been closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            maximumConcurrentConnections.accumulateAndGet(concurrentConnections.incrementAndGet(), Math::max);
+            boolean counted = true;
+            try (socket) {
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                OutputStream outputStream = socket.getOutputStream();
+
+                // Every write is sent on its own, so the pinger sees the responses split as they were written
+                socket.setTcpNoDelay(true);
+                ByteBuffer handshake = ByteBuffer.wrap(readPacket(inputStream));
+                if (readVarInt(handshake) != 0x00) {
+                    throw new IOException("Expected a handshake");
+                }
+                int protocolVersion = readVarInt(handshake);
+                byte[] host = new byte[readVarInt(handshake)];
+                handshake.get(host);
+                int port = handshake.getShort() & 0xFFFF;
+                handshakes.add(new Handshake(protocolVersion, new String(host, StandardCharsets.UTF_8), port,
+                        readVarInt(handshake)));
+                // The status request is an empty packet with id 0
+                if (!Arrays.equals(new byte[]{0x00}, readPacket(inputStream))) {
+                    throw new IOException("Expected a status request");
+                }
+                if (!answerStatusRequests) {
+                    inputStream.read();
+                    return;
+                }
+                Thread.sleep(responseDelayMillis);
+                if (rawResponse != null) {
+                    write(outputStream, rawResponse);
+                    inputStream.read();
+                    return;
+                }
+                ByteArrayOutputStream statusPacket = new ByteArrayOutputStream();
+                byte[] json = status.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(statusPacket, 0x00);
+                writeVarInt(statusPacket, json.length);
+                statusPacket.write(json);
+                write(outputStream, frame(statusPacket.toByteArray()));
+
+                // The ping packet has id 1 and a payload of 8 bytes, which the pong packet carries back
+                byte[] pingPacket = readPacket(inputStream);
+                if (pingPacket.length != 1 + Long.BYTES || pingPacket[0] != 0x01) {
+                    throw new IOException("Expected a ping packet");
+                }
+                pingPackets.incrementAndGet();
+                // The connection no longer counts once the last response is sent, as the pinger may start the next
+                // ping as soon as it has received it
+                concurrentConnections.decrementAndGet();
+                counted = false;
+                if (answerPings) {
+                    write(outputStream, frame(pingPacket));
+                    inputStream.read();
+                }
+            } catch (IOException e) {
+                // The connection has been closed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (counted) {
+                    concurrentConnections.decrementAndGet();
+                }
+            }
+        }
+
+        private void write(OutputStream outputStream, byte[] bytes) throws IOException {
+            for (int start = 0; start < bytes.length; start += bytesPerWrite) {
+                outputStream.write(bytes, start, Math.min(bytesPerWrite, bytes.length - start));
+                outputStream.flush();
+            }
+        }
+
+        private static byte[] frame(byte[] packet) throws IOException {
+            ByteArrayOutputStream framedPacket = new ByteArrayOutputStream();
+            writeVarInt(framedPacket, packet.length);
+            framedPacket.write(packet);
+            return framedPacket.toByteArray();
+        }
+
+        private static byte[] readPacket(DataInputStream inputStream) throws IOException {
+            byte[] packet = new byte[readVarInt(inputStream)];
+            inputStream.readFully(packet);
+            return packet;
+        }
+
+        private static int readVarInt(InputStream inputStream) throws IOException {
+            int value = 0;
+            for (int position = 0; position < 5; position++) {
+                int currentByte = inputStream.read();
+                if (currentByte < 0) {
+                    throw new IOException("The connection was closed");
+                }
+                value |= (currentByte & 0x7F) << (7 * position);
+                if ((currentByte & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("VarInt is too long");
+        }
+
+        private static int readVarInt(ByteBuffer buffer) {
+            int value = 0;
+            for (int position = 0; ; position++) {
+                byte currentByte = buffer.get();
+                value |= (currentByte & 0x7F) << (7 * position);
+                if ((currentByte & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private static void writeVarInt(OutputStream outputStream, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                outputStream.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            outputStream.write(value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.ec2.model.CreateSnapshotRequest;
+import software.amazon.awssdk.services.ec2.model.DisableFastSnapshotRestoresRequest;
+import software.amazon.awssdk.services.ec2.model.EbsBlockDevice;
+import software.amazon.awssdk.services.ec2.model.EbsInstanceBlockDevice;
+import software.amazon.awssdk.services.ec2.model.EnableFastSnapshotRestoresRequest;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceBlockDeviceMapping;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.RequestSpotInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.Volume;
+import software.amazon.awssdk.services.ec2.model.VolumeAttachment;
+import software.amazon.awssdk.services.ec2.model.VolumeState;
+import software.amazon.awssdk.services.ec2.model.VolumeType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EBSWorldVolumeInstanceManagerTest {
+    private static final String INSTANCE_ID = "i-1";
+    private static final String VOLUME_ID = "vol-1";
+
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final TestInfrastructureConstructor infrastructureConstructor =
+            new TestInfrastructureConstructor(dynamoDbClient, ec2Client, ec2Client.asAsyncClient());
+    private final ServerRepository repository = new ServerRepository(infrastructureConstructor);
+
+    EBSWorldVolumeInstanceManagerTest() {
+        ec2Client.subnetAvailabilityZones.put("subnet-a", "us-east-1a");
+        ec2Client.subnetAvailabilityZones.put("subnet-b", "us-east-1b");
+        infrastructureConstructor.setInstanceTypeSelector(requirements -> List.of("m6g.large"));
+    }
+
+    /**
+     * Puts a server whose world is kept on an EBS volume.
+     *
+     * @param values The values of the entry in addition to the id and the world storage
+     */
+    private UUID putServer(Map<String, String> values) {
+        UUID id = UUID.randomUUID();
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("Id", AttributeValue.builder().s(id.toString()).build());
+        item.put(EC2SpotInstanceManager.WORLD_STORAGE_KEY,
+                AttributeValue.builder().s(EBSWorldVolumeInstanceManager.WORLD_STORAGE).build());
+        values.forEach((key, value) -> item.put(key, AttributeValue.builder().s(value).build()));
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+        return id;
+    }
+
+    /**
+     * Puts an ONLINE server running on {@link #INSTANCE_ID}, with its world on {@link #VOLUME_ID}.
+     */
+    private UUID putOnlineServer(Map<String, String> values) {
+        Map<String, String> allValues = new HashMap<>(values);
+        allValues.put("ServerState", "ONLINE");
+        allValues.put("EC2InstanceId", INSTANCE_ID);
+        allValues.put("EC2SpotRequestId", "sir-1");
+        UUID id = putServer(allValues);
+
+        ec2Client.instances.put(INSTANCE_ID, Instance.builder()
+                .instanceId(INSTANCE_ID)
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .blockDeviceMappings(InstanceBlockDeviceMapping.builder()
+                        .deviceName(EBSWorldVolumeInstanceManager.WORLD_VOLUME_DEVICE)
+                        .ebs(EbsInstanceBlockDevice.builder().volumeId(VOLUME_ID).build())
+                        .build())
+                .build());
+        ec2Client.volumes.put(VOLUME_ID, Volume.builder()
+                .volumeId(VOLUME_ID)
+                .state(VolumeState.IN_USE)
+                .attachments(VolumeAttachment.builder().instanceId(INSTANCE_ID).volumeId(VOLUME_ID).build())
+                .build());
+        return id;
+    }
+
+    private String getStoredValue(UUID id, String key) {
+        AttributeValue value = dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, id.toString())
+                .get(key);
+        return value == null ? null : value.s();
+    }
+
+    private EbsBlockDevice getWorldVolume(RequestSpotInstancesRequest request) {
+        assertEquals(1, request.launchSpecification().blockDeviceMappings().size());
+        assertEquals(EBSWorldVolumeInstanceManager.WORLD_VOLUME_DEVICE,
+                request.launchSpecification().blockDeviceMappings().get(0).deviceName());
+        return request.launchSpecification().blockDeviceMappings().get(0).ebs();
+    }
+
+    private void stopServer(UUID id) {
+        CloudCubesServer server = repository.loadServers(List.of(id)).getServer(id);
+        assertNotNull(server);
+        server.stopServer();
+    }
+
+    @Test
+    void everyServerIsLaunchedWithAVolumeCreatedFromItsLatestSnapshot() {
+        UUID firstServer = putServer(Map.of("ServerState", "OFFLINE",
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-first"));
+        UUID secondServer = putServer(Map.of("ServerState", "OFFLINE",
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-second"));
+
+        assertEquals(Map.of(), repository.loadServers(List.of(firstServer, secondServer), true).startServers());
+        // The launches cannot be shared, as every instance needs a volume of its own
+        assertEquals(2, ec2Client.requestSpotInstancesRequests.size());
+        for (RequestSpotInstancesRequest request : ec2Client.requestSpotInstancesRequests) {
+            assertEquals(1, request.instanceCount());
+            EbsBlockDevice volume = getWorldVolume(request);
+            assertEquals(VolumeType.GP3, volume.volumeType());
+            assertFalse(volume.deleteOnTermination());
+
+            String userData = new String(Base64.getDecoder().decode(request.launchSpecification().userData()),
+                    StandardCharsets.UTF_8);
+            assertTrue(userData.contains("export WORLD_VOLUME_DEVICE=/dev/sdf\n"), userData);
+            UUID serverId = userData.contains(firstServer.toString()) ? firstServer : secondServer;
+            assertTrue(userData.contains("export SERVER_ID=" + serverId + "\n"), userData);
+            assertEquals(serverId.equals(firstServer) ? "snap-first" : "snap-second", volume.snapshotId());
+        }
+        assertEquals("UNKNOWN", getStoredValue(firstServer, "ServerState"));
+    }
+
+    @Test
+    void serversThatHaveNeverBeenStoppedAreLaunchedWithAnEmptyVolumeOfTheirSize() {
+        UUID defaultSizeServer = putServer(Map.of("ServerState", "OFFLINE"));
+        UUID largeServer = putServer(Map.of("ServerState", "OFFLINE", "WorldVolumeSizeGiB", "50"));
+
+        repository.loadServers(List.of(defaultSizeServer), true).startServers();
+        repository.loadServers(List.of(largeServer), true).startServers();
+        EbsBlockDevice defaultSizeVolume = getWorldVolume(ec2Client.requestSpotInstancesRequests.get(0));
+        assertNull(defaultSizeVolume.snapshotId());
+        assertEquals(8, defaultSizeVolume.volumeSize());
+        assertEquals(50, getWorldVolume(ec2Client.requestSpotInstancesRequests.get(1)).volumeSize());
+    }
+
+    @Test
+    void stoppingSnapshotsTheReleasedVolumeAndKeepsThePreviousSnapshot() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_VOLUME_ID_KEY, VOLUME_ID,
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-previous",
+                EBSWorldVolumeInstanceManager.PREVIOUS_WORLD_SNAPSHOT_ID_KEY, "snap-oldest"));
+
+        stopServer(id);
+        assertEquals(1, ec2Client.createSnapshotRequests.size());
+        CreateSnapshotRequest snapshotRequest = ec2Client.createSnapshotRequests.get(0);
+        assertEquals(VOLUME_ID, snapshotRequest.volumeId());
+        assertEquals(id.toString(), snapshotRequest.tagSpecifications().get(0).tags().get(0).value());
+
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+        assertEquals("snap-created-1", getStoredValue(id, EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY));
+        assertEquals("snap-previous",
+                getStoredValue(id, EBSWorldVolumeInstanceManager.PREVIOUS_WORLD_SNAPSHOT_ID_KEY));
+        assertNull(getStoredValue(id, EBSWorldVolumeInstanceManager.WORLD_VOLUME_ID_KEY));
+        assertFalse(ec2Client.volumes.containsKey(VOLUME_ID));
+        assertEquals(Set.of("snap-oldest"), ec2Client.deletedSnapshotIds);
+        assertEquals(List.of(), ec2Client.fastSnapshotRestoreRequests);
+    }
+
+    @Test
+    void theVolumeOfAServerStoppedForTheFirstTimeIsFoundThroughItsInstance() {
+        UUID id = putOnlineServer(Map.of());
+
+        stopServer(id);
+        assertEquals(VOLUME_ID, ec2Client.createSnapshotRequests.get(0).volumeId());
+        assertEquals("snap-created-1", getStoredValue(id, EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY));
+        assertNull(getStoredValue(id, EBSWorldVolumeInstanceManager.PREVIOUS_WORLD_SNAPSHOT_ID_KEY));
+        assertEquals(Set.of(), ec2Client.deletedSnapshotIds);
+    }
+
+    @Test
+    void aRetriedStopDoesNotSnapshotAVolumeThatHasAlreadyBeenDeleted() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_VOLUME_ID_KEY, VOLUME_ID,
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-latest"));
+        // The previous attempt snapshotted and deleted the volume, but failed before the server was marked OFFLINE
+        ec2Client.volumes.remove(VOLUME_ID);
+        ec2Client.setInstanceState(INSTANCE_ID, InstanceStateName.TERMINATED);
+
+        stopServer(id);
+        assertEquals(List.of(), ec2Client.createSnapshotRequests);
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+        assertEquals("snap-latest", getStoredValue(id, EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY));
+        assertNull(getStoredValue(id, EBSWorldVolumeInstanceManager.WORLD_VOLUME_ID_KEY));
+    }
+
+    @Test
+    void fastSnapshotRestoreIsMovedToTheLatestSnapshot() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-previous",
+                "FastSnapshotRestore", "true"));
+
+        stopServer(id);
+        assertEquals(2, ec2Client.fastSnapshotRestoreRequests.size());
+        EnableFastSnapshotRestoresRequest enableRequest =
+                assertInstanceOf(EnableFastSnapshotRestoresRequest.class, ec2Client.fastSnapshotRestoreRequests.get(0));
+        assertEquals(List.of("snap-created-1"), enableRequest.sourceSnapshotIds());
+        assertEquals(List.of("us-east-1a", "us-east-1b"), enableRequest.availabilityZones());
+        DisableFastSnapshotRestoresRequest disableRequest = assertInstanceOf(DisableFastSnapshotRestoresRequest.class,
+                ec2Client.fastSnapshotRestoreRequests.get(1));
+        assertEquals(List.of("snap-previous"), disableRequest.sourceSnapshotIds());
+        assertEquals(List.of("us-east-1a", "us-east-1b"), disableRequest.availabilityZones());
+    }
+
+    @Test
+    void serversWithAMalformedVolumeSizeAreNotLaunched() {
+        UUID id = putServer(Map.of("ServerState", "OFFLINE", "WorldVolumeSizeGiB", "50 GiB"));
+
+        Map<UUID, RuntimeException> failures = repository.loadServers(List.of(id), true).startServers();
+        assertInstanceOf(IllegalStateException.class, failures.get(id));
+        assertTrue(failures.get(id).getMessage().contains("WorldVolumeSizeGiB"));
+        assertEquals(List.of(), ec2Client.requestSpotInstancesRequests);
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+    }
+
+    @Test
+    void snapshotsThatCannotBeDeletedAreRecordedWithoutFailingTheStop() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-previous",
+                EBSWorldVolumeInstanceManager.PREVIOUS_WORLD_SNAPSHOT_ID_KEY, "snap-oldest"));
+        ec2Client.snapshotDeletionErrorCodes.put("snap-oldest", "RequestLimitExceeded");
+
+        stopServer(id);
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+        assertEquals(Set.of(), ec2Client.deletedSnapshotIds);
+        assertEquals("snap-oldest",
+                getStoredValue(id, EBSWorldVolumeInstanceManager.UNDELETED_WORLD_SNAPSHOT_IDS_KEY));
+    }
+
+    @Test
+    void snapshotsThatEarlierStopsCouldNotDeleteAreDeletedByTheNextStop() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-previous",
+                EBSWorldVolumeInstanceManager.PREVIOUS_WORLD_SNAPSHOT_ID_KEY, "snap-oldest",
+                EBSWorldVolumeInstanceManager.UNDELETED_WORLD_SNAPSHOT_IDS_KEY, "snap-stale-1,snap-stale-2"));
+        ec2Client.snapshotDeletionErrorCodes.put("snap-stale-2", "InvalidSnapshot.InUse");
+
+        stopServer(id);
+        assertEquals(Set.of("snap-stale-1", "snap-oldest"), ec2Client.deletedSnapshotIds);
+        // Snapshots that still cannot be deleted stay recorded
+        assertEquals("snap-stale-2",
+                getStoredValue(id, EBSWorldVolumeInstanceManager.UNDELETED_WORLD_SNAPSHOT_IDS_KEY));
+    }
+
+    @Test
+    void snapshotsThatHaveAlreadyBeenDeletedAreNotRecorded() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-previous",
+                EBSWorldVolumeInstanceManager.PREVIOUS_WORLD_SNAPSHOT_ID_KEY, "snap-oldest"));
+        ec2Client.snapshotDeletionErrorCodes.put("snap-oldest", "InvalidSnapshot.NotFound");
+
+        stopServer(id);
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+        assertNull(getStoredValue(id, EBSWorldVolumeInstanceManager.UNDELETED_WORLD_SNAPSHOT_IDS_KEY));
+    }
+
+    @Test
+    void failedMovesOfFastSnapshotRestoreAreRecorded() {
+        UUID id = putOnlineServer(Map.of(
+                EBSWorldVolumeInstanceManager.WORLD_SNAPSHOT_ID_KEY, "snap-previous",
+                "FastSnapshotRestore", "true"));
+        ec2Client.fastSnapshotRestoreErrorCode = "InvalidRequest";
+
+        stopServer(id);
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+        assertEquals("InvalidRequest",
+                getStoredValue(id, EBSWorldVolumeInstanceManager.FAST_SNAPSHOT_RESTORE_ERROR_KEY));
+    }
+}
@@ -0,0 +1,243 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ssm.model.CommandInvocationStatus;
+import software.amazon.awssdk.services.ssm.model.SendCommandRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EC2SpotInstanceManagerTest {
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final TestInfrastructureConstructor infrastructureConstructor =
+            new TestInfrastructureConstructor(dynamoDbClient, ec2Client, ec2Client.asAsyncClient());
+    private final ServerRepository repository = new ServerRepository(infrastructureConstructor);
+    private final List<InstanceRequirements> selectedRequirements = new ArrayList<>();
+
+    EC2SpotInstanceManagerTest() {
+        ec2Client.subnetAvailabilityZones.put("subnet-a", "us-east-1a");
+        ec2Client.subnetAvailabilityZones.put("subnet-b", "us-east-1b");
+        infrastructureConstructor.setInstanceTypeSelector(requirements -> {
+            selectedRequirements.add(requirements);
+            return List.of("m6g.large");
+        });
+    }
+
+    private UUID putServer(Map<String, String> values) {
+        UUID id = UUID.randomUUID();
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("Id", AttributeValue.builder().s(id.toString()).build());
+        values.forEach((key, value) -> item.put(key, AttributeValue.builder().s(value).build()));
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+        return id;
+    }
+
+    /**
+     * Puts an ONLINE server running on instance i-1, which was launched by spot request sir-1.
+     */
+    private UUID putOnlineServer() {
+        UUID id = putServer(Map.of("ServerState", "ONLINE", "EC2InstanceId", "i-1", "EC2SpotRequestId", "sir-1",
+                "RconPassword", "password"));
+        ec2Client.instances.put("i-1", Instance.builder()
+                .instanceId("i-1")
+                .spotInstanceRequestId("sir-1")
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .publicIpAddress("192.0.2.1")
+                .build());
+        return id;
+    }
+
+    private void stopServer(UUID id) {
+        CloudCubesServer server = repository.loadServers(List.of(id)).getServer(id);
+        assertNotNull(server);
+        server.stopServer();
+    }
+
+    private String getStoredValue(UUID id, String key) {
+        AttributeValue value = dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, id.toString())
+                .get(key);
+        return value == null ? null : value.s();
+    }
+
+    @Test
+    void serversAreLaunchedOnInstancesThatMeetTheirRequirements() {
+        UUID defaultServer = putServer(Map.of("ServerState", "OFFLINE"));
+        UUID largeServer = putServer(Map.of("ServerState", "OFFLINE",
+                "RequiredVCpus", "8", "RequiredMemoryMiB", "32768"));
+
+        assertEquals(Map.of(), repository.loadServers(List.of(defaultServer), true).startServers());
+        assertEquals(Map.of(), repository.loadServers(List.of(largeServer), true).startServers());
+        assertEquals(EC2SpotInstanceManager.DEFAULT_REQUIRED_VCPUS, selectedRequirements.get(0).getVCpus());
+        assertEquals(EC2SpotInstanceManager.DEFAULT_REQUIRED_MEMORY_MIB, selectedRequirements.get(0).getMemoryMiB());
+        assertEquals(8, selectedRequirements.get(1).getVCpus());
+        assertEquals(32768, selectedRequirements.get(1).getMemoryMiB());
+    }
+
+    @Test
+    void serversWithMalformedRequirementsAreNotLaunched() {
+        UUID textServer = putServer(Map.of("ServerState", "OFFLINE", "RequiredMemoryMiB", "8 GiB"));
+        UUID zeroServer = putServer(Map.of("ServerState", "OFFLINE", "RequiredVCpus", "0"));
+
+        Map<UUID, RuntimeException> failures =
+                repository.loadServers(List.of(textServer, zeroServer), true).startServers();
+        assertEquals(2, failures.size());
+        assertInstanceOf(IllegalStateException.class, failures.get(textServer));
+        assertTrue(failures.get(textServer).getMessage().contains("RequiredMemoryMiB"));
+        assertTrue(failures.get(zeroServer).getMessage().contains("RequiredVCpus"));
+        assertEquals(0, ec2Client.getRequestCount("RequestSpotInstances"));
+        // The claims are given up, so the servers can be started once the requirements have been corrected
+        assertEquals("OFFLINE", getStoredValue(textServer, "ServerState"));
+        assertEquals("OFFLINE", getStoredValue(zeroServer, "ServerState"));
+    }
+
+    @Test
+    void serversWhoseLastRunNeverEndedInTheLifecycleStartANewRun() {
+        ServerLifecycle lifecycle = infrastructureConstructor.getServerLifecycle();
+        UUID readyServer = putServer(Map.of("ServerState", "OFFLINE", ServerLifecycle.PHASE_KEY, "READY"));
+        UUID snapshottingServer = putServer(Map.of("ServerState", "OFFLINE",
+                ServerLifecycle.PHASE_KEY, "SNAPSHOTTING"));
+
+        assertEquals(Map.of(), repository.loadServers(List.of(readyServer, snapshottingServer), true).startServers());
+        for (UUID id : List.of(readyServer, snapshottingServer)) {
+            assertEquals(ServerLifecyclePhase.FULFILLED, lifecycle.getPhase(id));
+            assertEquals(ServerLifecyclePhase.REQUESTED, lifecycle.getEvents(id).get(0).getPhase());
+        }
+    }
+
+    @Test
+    void theWorldIsSavedThroughTheServerAgentWhileTheCleanupTimeIsKept() {
+        UUID id = putOnlineServer();
+        Instant stopStartedAt = Instant.now();
+        stopServer(id);
+
+        List<SendCommandRequest> requests = infrastructureConstructor.getSsmClient().sendCommandRequests;
+        assertEquals(List.of("stop", "backup"), List.of(FakeSsmClient.getAgentCommand(requests.get(0)),
+                FakeSsmClient.getAgentCommand(requests.get(1))));
+        // Both steps end before the reserve for cleaning up, so the whole stop fits into the stop timeout
+        Instant saveDeadline = stopStartedAt.plus(EC2SpotInstanceManager.STOP_TIMEOUT)
+                .minus(EC2SpotInstanceManager.STOP_CLEANUP_RESERVE);
+        for (SendCommandRequest request : requests) {
+            List<String> arguments = FakeSsmClient.getAgentArguments(request);
+            Instant deadline = Instant.ofEpochSecond(Long.parseLong(arguments.get(arguments.size() - 1)));
+            assertFalse(deadline.isAfter(saveDeadline), deadline + " is after " + saveDeadline);
+            assertTrue(deadline.isAfter(saveDeadline.minusSeconds(5)), deadline + " is long before " + saveDeadline);
+            assertTrue(request.timeoutSeconds() <= saveDeadline.getEpochSecond() - stopStartedAt.getEpochSecond());
+        }
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-1").state().name());
+        assertEquals(1, ec2Client.getRequestCount("CancelSpotInstanceRequests"));
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+        assertNull(getStoredValue(id, "RconPassword"));
+    }
+
+    @Test
+    void serversAreStillStoppedIfTheMinecraftServerCannotBeStopped() {
+        UUID id = putOnlineServer();
+        infrastructureConstructor.getSsmClient().agentCommandStatuses.put("stop", CommandInvocationStatus.FAILED);
+        stopServer(id);
+
+        // The files are uploaded as they are, and the instance is terminated once they have been
+        assertEquals(2, infrastructureConstructor.getSsmClient().sendCommandRequests.size());
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-1").state().name());
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+    }
+
+    @Test
+    void serversAreNotTerminatedIfTheirWorldCannotBeSaved() {
+        UUID id = putOnlineServer();
+        infrastructureConstructor.getSsmClient().unmanagedInstanceIds.add("i-1");
+
+        assertThrows(IllegalStateException.class, () -> stopServer(id));
+        assertEquals(InstanceStateName.RUNNING, ec2Client.instances.get("i-1").state().name());
+        assertEquals(0, ec2Client.getRequestCount("CancelSpotInstanceRequests"));
+        assertEquals("ONLINE", getStoredValue(id, "ServerState"));
+        // The stop can be retried once the world can be saved
+        infrastructureConstructor.getSsmClient().unmanagedInstanceIds.clear();
+        stopServer(id);
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-1").state().name());
+        assertEquals("OFFLINE", getStoredValue(id, "ServerState"));
+    }
+
+    /**
+     * Records the interruption the way the server agent does once it has tried to save the world.
+     */
+    private void recordInterruption(UUID id, boolean worldSaved) {
+        Map<String, AttributeValue> item = new HashMap<>(
+                dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, id.toString()));
+        item.put(EC2SpotInstanceManager.INTERRUPTED_AT_KEY,
+                AttributeValue.builder().s(Instant.now().toString()).build());
+        item.put(EC2SpotInstanceManager.INTERRUPTION_WORLD_SAVED_KEY,
+                AttributeValue.builder().s(Boolean.toString(worldSaved)).build());
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+    }
+
+    private UUID relaunchInterruptedServer(Instant interruptionTime) {
+        return repository.loadServersByInstanceId("i-1").relaunchInterruptedServer("i-1", interruptionTime);
+    }
+
+    @Test
+    void interruptedServersWhoseWorldTheAgentSavedAreRelaunchedAtOnce() {
+        UUID id = putOnlineServer();
+        recordInterruption(id, true);
+
+        Instant handledAt = Instant.now();
+        assertEquals(id, relaunchInterruptedServer(handledAt.plus(Duration.ofMinutes(2))));
+        Duration handlingTime = Duration.between(handledAt, Instant.now());
+        assertTrue(handlingTime.compareTo(EC2SpotInstanceManager.INTERRUPTION_POLL_INTERVAL) < 0);
+        // The world is not saved a second time
+        assertEquals(List.of(), infrastructureConstructor.getSsmClient().sendCommandRequests);
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-1").state().name());
+        assertEquals(1, ec2Client.getRequestCount("RequestSpotInstances"));
+        assertNull(getStoredValue(id, EC2SpotInstanceManager.INTERRUPTED_AT_KEY));
+    }
+
+    @Test
+    void theRelaunchWaitsUntilTheAgentHasRecordedTheInterruption() throws Exception {
+        UUID id = putOnlineServer();
+        CompletableFuture<Void> agent = CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(EC2SpotInstanceManager.INTERRUPTION_POLL_INTERVAL.toMillis() + 500);
+            } catch (InterruptedException e) {
+                throw new CompletionException(e);
+            }
+            recordInterruption(id, true);
+        });
+
+        Instant interruptionTime = Instant.now().plus(Duration.ofMinutes(2));
+        assertEquals(id, relaunchInterruptedServer(interruptionTime));
+        assertTrue(agent.isDone());
+        // The wait ends with the first poll that sees the record, long before the interruption
+        assertTrue(Instant.now().isBefore(interruptionTime.minus(Duration.ofMinutes(1))));
+        assertEquals(List.of(), infrastructureConstructor.getSsmClient().sendCommandRequests);
+        assertEquals(1, ec2Client.getRequestCount("RequestSpotInstances"));
+    }
+
+    @Test
+    void theWorldIsSavedByTheRelaunchIfTheAgentNeverRecordsTheInterruption() {
+        UUID id = putOnlineServer();
+        Instant interruptionTime = Instant.now().plusSeconds(3);
+
+        assertEquals(id, relaunchInterruptedServer(interruptionTime));
+        // The wait is bounded by the interruption time, after which the world is saved the usual way
+        assertFalse(Instant.now().isBefore(interruptionTime));
+        List<SendCommandRequest> requests = infrastructureConstructor.getSsmClient().sendCommandRequests;
+        assertEquals(List.of("stop", "backup"), List.of(FakeSsmClient.getAgentCommand(requests.get(0)),
+                FakeSsmClient.getAgentCommand(requests.get(1))));
+        assertEquals(1, ec2Client.getRequestCount("RequestSpotInstances"));
+    }
+}
@@ -0,0 +1,523 @@
+package osbourn.cloudcubes.core.server;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+import software.amazon.awssdk.services.ec2.paginators.DescribeInstancesIterable;
+import software.amazon.awssdk.services.ec2.paginators.DescribeSpotInstanceRequestsIterable;
+import software.amazon.awssdk.services.ec2.paginators.DescribeSpotPriceHistoryIterable;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An EC2 client for tests, which answers requests from data set up by the test and counts the requests that were made.
+ * Requests that a test has not set up data for fail like the default methods of {@link Ec2Client} do. The client is
+ * public so that the tests of the Lambda functions can launch servers with it.
+ */
+public class FakeEc2Client implements Ec2Client {
+    /**
+     * The availability zone of each subnet, in the format ("subnetId", "availabilityZone")
+     */
+    public final Map<String, String> subnetAvailabilityZones = new LinkedHashMap<>();
+    /**
+     * The current spot prices, in the format ("instanceType", ("availabilityZone", price))
+     */
+    final Map<String, Map<String, Double>> spotPrices = new HashMap<>();
+    /**
+     * If not null, DescribeSpotPriceHistory requests fail with this exception
+     */
+    volatile RuntimeException spotPriceHistoryException = null;
+    /**
+     * The images owned by the account
+     */
+    final List<Image> images = new ArrayList<>();
+    /**
+     * If not null, DescribeImages requests fail with this exception
+     */
+    volatile RuntimeException describeImagesException = null;
+    /**
+     * The instances of the account, in the format ("instanceId", instance)
+     */
+    final Map<String, Instance> instances = Collections.synchronizedMap(new LinkedHashMap<>());
+    /**
+     * The ids of the spot requests that were cancelled
+     */
+    final Set<String> cancelledSpotRequestIds = Collections.synchronizedSet(new LinkedHashSet<>());
+    /**
+     * The subnets in which RunInstances and RequestSpotInstances requests fail with an InsufficientInstanceCapacity
+     * error
+     */
+    public final Set<String> subnetsWithoutCapacity = Collections.synchronizedSet(new HashSet<>());
+    /**
+     * The RunInstances requests that launched an instance
+     */
+    final List<RunInstancesRequest> runInstancesRequests = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The RequestSpotInstances requests that made spot requests
+     */
+    final List<RequestSpotInstancesRequest> requestSpotInstancesRequests =
+            Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The volumes of the account, in the format ("volumeId", volume). Volumes attached to an instance are detached
+     * when it is terminated.
+     */
+    final Map<String, Volume> volumes = Collections.synchronizedMap(new LinkedHashMap<>());
+    /**
+     * The CreateSnapshot requests that were made
+     */
+    final List<CreateSnapshotRequest> createSnapshotRequests = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The ids of the snapshots that were deleted
+     */
+    final Set<String> deletedSnapshotIds = Collections.synchronizedSet(new LinkedHashSet<>());
+    /**
+     * The error codes that deleting snapshots fails with, in the format ("snapshotId", "errorCode")
+     */
+    final Map<String, String> snapshotDeletionErrorCodes = new ConcurrentHashMap<>();
+    /**
+     * The EnableFastSnapshotRestores and DisableFastSnapshotRestores requests that were made
+     */
+    final List<Ec2Request> fastSnapshotRestoreRequests = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The error code that enabling fast snapshot restore fails with, or null if it succeeds
+     */
+    volatile String fastSnapshotRestoreErrorCode = null;
+    /**
+     * The spot requests that were made, which are fulfilled right away, in the format ("spotRequestId", request)
+     */
+    public final Map<String, SpotInstanceRequest> spotInstanceRequests =
+            Collections.synchronizedMap(new LinkedHashMap<>());
+    private int launchedInstances = 0;
+    private int requestedSpotInstances = 0;
+    private int createdSnapshots = 0;
+    private final Map<String, Integer> requestCounts = new HashMap<>();
+
+    /**
+     * Gets how many requests of an operation were made.
+     *
+     * @param operationName The name of the operation, e.g. "DescribeSubnets"
+     */
+    public synchronized int getRequestCount(String operationName) {
+        return requestCounts.getOrDefault(operationName, 0);
+    }
+
+    synchronized void countRequest(String operationName) {
+        requestCounts.merge(operationName, 1, Integer::sum);
+    }
+
+    @Override
+    public DescribeSubnetsResponse describeSubnets(DescribeSubnetsRequest request) {
+        countRequest("DescribeSubnets");
+        List<Subnet> subnets = new ArrayList<>();
+        for (String subnetId : request.subnetIds()) {
+            String availabilityZone = subnetAvailabilityZones.get(subnetId);
+            if (availabilityZone == null) {
+                throw Ec2Exception.builder().message("The subnet ID '" + subnetId + "' does not exist").build();
+            }
+            subnets.add(Subnet.builder().subnetId(subnetId).availabilityZone(availabilityZone).build());
+        }
+        return DescribeSubnetsResponse.builder().subnets(subnets).build();
+    }
+
+    @Override
+    public DescribeSpotPriceHistoryResponse describeSpotPriceHistory(DescribeSpotPriceHistoryRequest request) {
+        countRequest("DescribeSpotPriceHistory");
+        if (spotPriceHistoryException != null) {
+            throw spotPriceHistoryException;
+        }
+        List<SpotPrice> prices = new ArrayList<>();
+        for (String instanceType : request.instanceTypesAsStrings()) {
+            spotPrices.getOrDefault(instanceType, Collections.emptyMap()).forEach((availabilityZone, price) ->
+                    prices.add(SpotPrice.builder()
+                            .instanceType(instanceType)
+                            .availabilityZone(availabilityZone)
+                            .spotPrice(Double.toString(price))
+                            .build()));
+        }
+        return DescribeSpotPriceHistoryResponse.builder().spotPriceHistory(prices).build();
+    }
+
+    @Override
+    public DescribeSpotPriceHistoryIterable describeSpotPriceHistoryPaginator(DescribeSpotPriceHistoryRequest request) {
+        return new DescribeSpotPriceHistoryIterable(this, request);
+    }
+
+    @Override
+    public DescribeImagesResponse describeImages(DescribeImagesRequest request) {
+        countRequest("DescribeImages");
+        if (describeImagesException != null) {
+            throw describeImagesException;
+        }
+        List<Image> matchingImages = new ArrayList<>();
+        for (Image image : images) {
+            boolean matches = true;
+            for (Filter filter : request.filters()) {
+                String value = filter.name().equals("name") ? image.name() : image.stateAsString();
+                matches &= filter.values().stream().anyMatch(pattern -> pattern.endsWith("*")
+                        ? value.startsWith(pattern.substring(0, pattern.length() - 1))
+                        : value.equals(pattern));
+            }
+            if (matches) {
+                matchingImages.add(image);
+            }
+        }
+        return DescribeImagesResponse.builder().images(matchingImages).build();
+    }
+
+    @Override
+    public DescribeInstancesResponse describeInstances(DescribeInstancesRequest request) {
+        countRequest("DescribeInstances");
+        List<Instance> matchingInstances = new ArrayList<>();
+        synchronized (instances) {
+            for (Instance instance : instances.values()) {
+                boolean matches = !request.hasInstanceIds() || request.instanceIds().contains(instance.instanceId());
+                for (Filter filter : request.filters()) {
+                    switch (filter.name()) {
+                        case "instance-id":
+                            matches &= filter.values().contains(instance.instanceId());
+                            break;
+                        case "instance.group-id":
+                            matches &= instance.securityGroups().stream()
+                                    .anyMatch(group -> filter.values().contains(group.groupId()));
+                            break;
+                        case "tag-key":
+                            matches &= instance.tags().stream().anyMatch(tag -> filter.values().contains(tag.key()));
+                            break;
+                        case "instance-state-name":
+                            matches &= filter.values().contains(instance.state().nameAsString());
+                            break;
+                        default:
+                            throw new UnsupportedOperationException("Unsupported filter " + filter.name());
+                    }
+                }
+                if (matches) {
+                    matchingInstances.add(instance);
+                }
+            }
+        }
+        return DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(matchingInstances).build())
+                .build();
+    }
+
+    @Override
+    public DescribeInstancesIterable describeInstancesPaginator(DescribeInstancesRequest request) {
+        return new DescribeInstancesIterable(this, request);
+    }
+
+    /**
+     * Launches the instance with the state PENDING. Spot instances get a spot request id derived from their instance
+     * id.
+     */
+    @Override
+    public RunInstancesResponse runInstances(RunInstancesRequest request) {
+        countRequest("RunInstances");
+        if (subnetsWithoutCapacity.contains(request.subnetId())) {
+            throw Ec2Exception.builder()
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode("InsufficientInstanceCapacity").build())
+                    .build();
+        }
+        String instanceId;
+        synchronized (this) {
+            launchedInstances++;
+            instanceId = "i-launched-" + launchedInstances;
+        }
+        boolean spot = request.instanceMarketOptions() != null
+                && request.instanceMarketOptions().marketType() == MarketType.SPOT;
+        List<Tag> tags = new ArrayList<>();
+        for (TagSpecification tagSpecification : request.tagSpecifications()) {
+            tags.addAll(tagSpecification.tags());
+        }
+        List<GroupIdentifier> securityGroups = new ArrayList<>();
+        for (String groupId : request.securityGroupIds()) {
+            securityGroups.add(GroupIdentifier.builder().groupId(groupId).build());
+        }
+        Instance instance = Instance.builder()
+                .instanceId(instanceId)
+                .imageId(request.imageId())
+                .instanceType(request.instanceTypeAsString())
+                .subnetId(request.subnetId())
+                .spotInstanceRequestId(spot ? "sir-" + instanceId.substring(2) : null)
+                .state(InstanceState.builder().name(InstanceStateName.PENDING).build())
+                .launchTime(Instant.now())
+                .securityGroups(securityGroups)
+                .tags(tags)
+                .build();
+        instances.put(instanceId, instance);
+        runInstancesRequests.add(request);
+        return RunInstancesResponse.builder().instances(instance).build();
+    }
+
+    /**
+     * Makes one spot request per instance, which is fulfilled right away with a PENDING instance. Like RunInstances,
+     * the requests fail with an InsufficientInstanceCapacity error in the subnets without capacity.
+     */
+    @Override
+    public RequestSpotInstancesResponse requestSpotInstances(RequestSpotInstancesRequest request) {
+        countRequest("RequestSpotInstances");
+        String subnetId = request.launchSpecification().subnetId();
+        if (subnetsWithoutCapacity.contains(subnetId)) {
+            throw Ec2Exception.builder()
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode("InsufficientInstanceCapacity").build())
+                    .build();
+        }
+        requestSpotInstancesRequests.add(request);
+        List<SpotInstanceRequest> madeRequests = new ArrayList<>();
+        int instanceCount = request.instanceCount() == null ? 1 : request.instanceCount();
+        for (int i = 0; i < instanceCount; i++) {
+            int requestNumber;
+            synchronized (this) {
+                requestedSpotInstances++;
+                requestNumber = requestedSpotInstances;
+            }
+            SpotInstanceRequest spotInstanceRequest = SpotInstanceRequest.builder()
+                    .spotInstanceRequestId("sir-requested-" + requestNumber)
+                    .instanceId("i-requested-" + requestNumber)
+                    .launchedAvailabilityZone(subnetAvailabilityZones.get(subnetId))
+                    .state(SpotInstanceState.ACTIVE)
+                    .status(SpotInstanceStatus.builder().code("fulfilled").build())
+                    .build();
+            spotInstanceRequests.put(spotInstanceRequest.spotInstanceRequestId(), spotInstanceRequest);
+            madeRequests.add(spotInstanceRequest);
+            List<GroupIdentifier> securityGroups = new ArrayList<>();
+            for (String groupId : request.launchSpecification().securityGroupIds()) {
+                securityGroups.add(GroupIdentifier.builder().groupId(groupId).build());
+            }
+            instances.put(spotInstanceRequest.instanceId(), Instance.builder()
+                    .instanceId(spotInstanceRequest.instanceId())
+                    .imageId(request.launchSpecification().imageId())
+                    .instanceType(request.launchSpecification().instanceTypeAsString())
+                    .subnetId(subnetId)
+                    .spotInstanceRequestId(spotInstanceRequest.spotInstanceRequestId())
+                    .state(InstanceState.builder().name(InstanceStateName.PENDING).build())
+                    .launchTime(Instant.now())
+                    .securityGroups(securityGroups)
+                    .build());
+        }
+        return RequestSpotInstancesResponse.builder().spotInstanceRequests(madeRequests).build();
+    }
+
+    /**
+     * Describes the spot requests listed by id, which fails if any of them is unknown like it does in EC2, or those
+     * matching a "spot-instance-request-id" filter.
+     */
+    @Override
+    public DescribeSpotInstanceRequestsResponse describeSpotInstanceRequests(
+            DescribeSpotInstanceRequestsRequest request) {
+        countRequest("DescribeSpotInstanceRequests");
+        List<SpotInstanceRequest> matchingRequests = new ArrayList<>();
+        for (String spotRequestId : request.spotInstanceRequestIds()) {
+            SpotInstanceRequest spotInstanceRequest = spotInstanceRequests.get(spotRequestId);
+            if (spotInstanceRequest == null) {
+                throw Ec2Exception.builder()
+                        .awsErrorDetails(AwsErrorDetails.builder()
+                                .errorCode("InvalidSpotInstanceRequestID.NotFound")
+                                .build())
+                        .build();
+            }
+            matchingRequests.add(spotInstanceRequest);
+        }
+        for (Filter filter : request.filters()) {
+            if (!filter.name().equals("spot-instance-request-id")) {
+                throw new UnsupportedOperationException("Unsupported filter " + filter.name());
+            }
+            for (String spotRequestId : filter.values()) {
+                SpotInstanceRequest spotInstanceRequest = spotInstanceRequests.get(spotRequestId);
+                if (spotInstanceRequest != null) {
+                    matchingRequests.add(spotInstanceRequest);
+                }
+            }
+        }
+        return DescribeSpotInstanceRequestsResponse.builder().spotInstanceRequests(matchingRequests).build();
+    }
+
+    @Override
+    public DescribeSpotInstanceRequestsIterable describeSpotInstanceRequestsPaginator(
+            DescribeSpotInstanceRequestsRequest request) {
+        return new DescribeSpotInstanceRequestsIterable(this, request);
+    }
+
+    /**
+     * Gets an asynchronous client that answers DescribeSpotInstanceRequests requests from the same data, on another
+     * thread like the real client.
+     */
+    public Ec2AsyncClient asAsyncClient() {
+        return new Ec2AsyncClient() {
+            @Override
+            public CompletableFuture<DescribeSpotInstanceRequestsResponse> describeSpotInstanceRequests(
+                    DescribeSpotInstanceRequestsRequest request) {
+                return CompletableFuture.supplyAsync(() -> FakeEc2Client.this.describeSpotInstanceRequests(request));
+            }
+
+            @Override
+            public String serviceName() {
+                return "ec2";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Changes the state of an instance, for example to simulate it stopping after warming up.
+     */
+    void setInstanceState(String instanceId, InstanceStateName state) {
+        instances.computeIfPresent(instanceId, (id, instance) -> instance.toBuilder()
+                .state(InstanceState.builder().name(state).build())
+                .build());
+    }
+
+    @Override
+    public CreateTagsResponse createTags(CreateTagsRequest request) {
+        countRequest("CreateTags");
+        for (String instanceId : request.resources()) {
+            instances.computeIfPresent(instanceId, (id, instance) -> {
+                List<Tag> tags = new ArrayList<>(instance.tags());
+                for (Tag tag : request.tags()) {
+                    tags.removeIf(existingTag -> existingTag.key().equals(tag.key()));
+                    tags.add(tag);
+                }
+                return instance.toBuilder().tags(tags).build();
+            });
+        }
+        return CreateTagsResponse.builder().build();
+    }
+
+    @Override
+    public DeleteTagsResponse deleteTags(DeleteTagsRequest request) {
+        countRequest("DeleteTags");
+        for (String instanceId : request.resources()) {
+            instances.computeIfPresent(instanceId, (id, instance) -> {
+                List<Tag> tags = new ArrayList<>(instance.tags());
+                for (Tag tag : request.tags()) {
+                    tags.removeIf(existingTag -> existingTag.key().equals(tag.key()));
+                }
+                return instance.toBuilder().tags(tags).build();
+            });
+        }
+        return DeleteTagsResponse.builder().build();
+    }
+
+    @Override
+    public CancelSpotInstanceRequestsResponse cancelSpotInstanceRequests(CancelSpotInstanceRequestsRequest request) {
+        countRequest("CancelSpotInstanceRequests");
+        cancelledSpotRequestIds.addAll(request.spotInstanceRequestIds());
+        return CancelSpotInstanceRequestsResponse.builder().build();
+    }
+
+    @Override
+    public TerminateInstancesResponse terminateInstances(TerminateInstancesRequest request) {
+        countRequest("TerminateInstances");
+        for (String instanceId : request.instanceIds()) {
+            instances.computeIfPresent(instanceId, (id, instance) -> instance.toBuilder()
+                    .state(InstanceState.builder().name(InstanceStateName.TERMINATED).build())
+                    .publicIpAddress(null)
+                    .build());
+            synchronized (volumes) {
+                volumes.replaceAll((volumeId, volume) -> volume.attachments().stream()
+                        .anyMatch(attachment -> instanceId.equals(attachment.instanceId()))
+                        ? volume.toBuilder().state(VolumeState.AVAILABLE).attachments(List.of()).build()
+                        : volume);
+            }
+        }
+        return TerminateInstancesResponse.builder().build();
+    }
+
+    @Override
+    public DescribeVolumesResponse describeVolumes(DescribeVolumesRequest request) {
+        countRequest("DescribeVolumes");
+        List<Volume> matchingVolumes = new ArrayList<>();
+        for (String volumeId : request.volumeIds()) {
+            Volume volume = volumes.get(volumeId);
+            if (volume == null) {
+                throw volumeNotFound(volumeId);
+            }
+            matchingVolumes.add(volume);
+        }
+        return DescribeVolumesResponse.builder().volumes(matchingVolumes).build();
+    }
+
+    @Override
+    public DeleteVolumeResponse deleteVolume(DeleteVolumeRequest request) {
+        countRequest("DeleteVolume");
+        if (volumes.remove(request.volumeId()) == null) {
+            throw volumeNotFound(request.volumeId());
+        }
+        return DeleteVolumeResponse.builder().build();
+    }
+
+    private static Ec2Exception volumeNotFound(String volumeId) {
+        return (Ec2Exception) Ec2Exception.builder()
+                .message("The volume '" + volumeId + "' does not exist.")
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("InvalidVolume.NotFound").build())
+                .build();
+    }
+
+    @Override
+    public CreateSnapshotResponse createSnapshot(CreateSnapshotRequest request) {
+        countRequest("CreateSnapshot");
+        String snapshotId;
+        synchronized (this) {
+            createdSnapshots++;
+            snapshotId = "snap-created-" + createdSnapshots;
+        }
+        createSnapshotRequests.add(request);
+        return CreateSnapshotResponse.builder()
+                .snapshotId(snapshotId)
+                .volumeId(request.volumeId())
+                .state(SnapshotState.PENDING)
+                .build();
+    }
+
+    @Override
+    public DeleteSnapshotResponse deleteSnapshot(DeleteSnapshotRequest request) {
+        countRequest("DeleteSnapshot");
+        String errorCode = deletedSnapshotIds.contains(request.snapshotId())
+                ? "InvalidSnapshot.NotFound"
+                : snapshotDeletionErrorCodes.get(request.snapshotId());
+        if (errorCode != null) {
+            throw (Ec2Exception) Ec2Exception.builder()
+                    .message("The snapshot '" + request.snapshotId() + "' cannot be deleted.")
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build())
+                    .build();
+        }
+        deletedSnapshotIds.add(request.snapshotId());
+        return DeleteSnapshotResponse.builder().build();
+    }
+
+    @Override
+    public EnableFastSnapshotRestoresResponse enableFastSnapshotRestores(EnableFastSnapshotRestoresRequest request) {
+        countRequest("EnableFastSnapshotRestores");
+        fastSnapshotRestoreRequests.add(request);
+        if (fastSnapshotRestoreErrorCode != null) {
+            throw (Ec2Exception) Ec2Exception.builder()
+                    .message("Fast snapshot restore cannot be enabled.")
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode(fastSnapshotRestoreErrorCode).build())
+                    .build();
+        }
+        return EnableFastSnapshotRestoresResponse.builder().build();
+    }
+
+    @Override
+    public DisableFastSnapshotRestoresResponse disableFastSnapshotRestores(
+            DisableFastSnapshotRestoresRequest request) {
+        countRequest("DisableFastSnapshotRestores");
+        fastSnapshotRestoreRequests.add(request);
+        return DisableFastSnapshotRestoresResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return "ec2";
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,106 @@
+package osbourn.cloudcubes.core.server;
+
+import software.amazon.awssdk.services.ssm.SsmClient;
+import software.amazon.awssdk.services.ssm.model.Command;
+import software.amazon.awssdk.services.ssm.model.CommandInvocationStatus;
+import software.amazon.awssdk.services.ssm.model.GetCommandInvocationRequest;
+import software.amazon.awssdk.services.ssm.model.GetCommandInvocationResponse;
+import software.amazon.awssdk.services.ssm.model.InvalidInstanceIdException;
+import software.amazon.awssdk.services.ssm.model.InvocationDoesNotExistException;
+import software.amazon.awssdk.services.ssm.model.SendCommandRequest;
+import software.amazon.awssdk.services.ssm.model.SendCommandResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Systems Manager client for tests, which records the commands sent to instances and lets every server agent command
+ * finish at once with the status set up by the test. The client is public so that the tests of the Lambda functions
+ * can stop servers with it.
+ */
+public class FakeSsmClient implements SsmClient {
+    /**
+     * The status that each server agent command finishes with, in the format ("agentCommand", status), where the
+     * agent command is for example "backup". Commands that are not listed succeed.
+     */
+    public final Map<String, CommandInvocationStatus> agentCommandStatuses = new ConcurrentHashMap<>();
+    /**
+     * The instances that are not managed by Systems Manager, to which commands cannot be sent
+     */
+    public final Set<String> unmanagedInstanceIds = Collections.synchronizedSet(new HashSet<>());
+    /**
+     * The SendCommand requests that were accepted
+     */
+    public final List<SendCommandRequest> sendCommandRequests = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The status of each command that was sent, in the format ("commandId", status)
+     */
+    private final Map<String, CommandInvocationStatus> commandStatuses = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the server agent command that a request runs, for example "backup".
+     *
+     * @param request The request
+     * @return The agent command
+     */
+    public static String getAgentCommand(SendCommandRequest request) {
+        // The commands have the form "java -jar <jar> <agent command> <arguments...>"
+        return request.parameters().get("commands").get(0).split(" ")[3];
+    }
+
+    /**
+     * Gets the arguments of the server agent command that a request runs.
+     *
+     * @param request The request
+     * @return The arguments, without the agent command itself
+     */
+    public static List<String> getAgentArguments(SendCommandRequest request) {
+        String[] words = request.parameters().get("commands").get(0).split(" ");
+        return List.of(words).subList(4, words.length);
+    }
+
+    @Override
+    public SendCommandResponse sendCommand(SendCommandRequest request) {
+        for (String instanceId : request.instanceIds()) {
+            if (unmanagedInstanceIds.contains(instanceId)) {
+                throw InvalidInstanceIdException.builder()
+                        .message("Instance " + instanceId + " is not managed by Systems Manager")
+                        .build();
+            }
+        }
+        sendCommandRequests.add(request);
+        String commandId = "command-" + sendCommandRequests.size();
+        commandStatuses.put(commandId,
+                agentCommandStatuses.getOrDefault(getAgentCommand(request), CommandInvocationStatus.SUCCESS));
+        return SendCommandResponse.builder()
+                .command(Command.builder().commandId(commandId).instanceIds(request.instanceIds()).build())
+                .build();
+    }
+
+    @Override
+    public GetCommandInvocationResponse getCommandInvocation(GetCommandInvocationRequest request) {
+        CommandInvocationStatus status = commandStatuses.get(request.commandId());
+        if (status == null) {
+            throw InvocationDoesNotExistException.builder().message("Unknown command " + request.commandId()).build();
+        }
+        return GetCommandInvocationResponse.builder()
+                .commandId(request.commandId())
+                .instanceId(request.instanceId())
+                .status(status)
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return "ssm";
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,245 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
+import osbourn.cloudcubes.core.minecraft.ServerStatus;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.ec2.model.GroupIdentifier;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdleServerMonitorTest {
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(15);
+
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final Set<UUID> uploadedWorlds = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> unsavableWorlds = ConcurrentHashMap.newKeySet();
+    private final ServerRepository repository = new ServerRepository(
+            new TestInfrastructureConstructor(dynamoDbClient, ec2Client, null) {
+                @Override
+                public synchronized WorldSynchronizer getWorldSynchronizer() {
+                    return new UploadRecordingWorldSynchronizer();
+                }
+            });
+    private final ScriptedPinger pinger = new ScriptedPinger();
+    private final IdleServerMonitor monitor = new IdleServerMonitor(pinger, IDLE_TIMEOUT);
+    private int instanceCount = 0;
+
+    IdleServerMonitorTest() throws IOException {
+    }
+
+    @AfterEach
+    void closePinger() throws IOException {
+        pinger.close();
+    }
+
+    /**
+     * Puts an ONLINE server whose instance has been running since launchTime.
+     *
+     * @param onlinePlayers The players the server reports, or null if it does not answer pings
+     * @param emptySince    The time the server has been empty since, or null if it has not been seen empty
+     */
+    private UUID putOnlineServer(Integer onlinePlayers, Instant launchTime, Instant emptySince) {
+        instanceCount++;
+        UUID id = UUID.randomUUID();
+        String instanceId = "i-" + instanceCount;
+        String publicIpAddress = "192.0.2." + instanceCount;
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("Id", AttributeValue.builder().s(id.toString()).build());
+        item.put("ServerState", AttributeValue.builder().s("ONLINE").build());
+        item.put("EC2InstanceId", AttributeValue.builder().s(instanceId).build());
+        item.put("EC2SpotRequestId", AttributeValue.builder().s("sir-" + instanceCount).build());
+        if (emptySince != null) {
+            item.put(IdleServerMonitor.EMPTY_SINCE_KEY, AttributeValue.builder().s(emptySince.toString()).build());
+        }
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+
+        ec2Client.instances.put(instanceId, Instance.builder()
+                .instanceId(instanceId)
+                .publicIpAddress(publicIpAddress)
+                .launchTime(launchTime)
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .securityGroups(GroupIdentifier.builder().groupId("test").build())
+                .build());
+        if (onlinePlayers != null) {
+            pinger.onlinePlayers.put(publicIpAddress, onlinePlayers);
+        }
+        return id;
+    }
+
+    private List<UUID> checkServers(UUID... ids) {
+        IdleServerMonitor.CheckResult result = monitor.checkServers(repository.loadServers(List.of(ids)));
+        assertEquals(Map.of(), result.getFailedStops());
+        return result.getStoppedServers();
+    }
+
+    private String getStoredValue(UUID id, String key) {
+        AttributeValue value = dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, id.toString())
+                .get(key);
+        return value == null ? null : value.s();
+    }
+
+    @Test
+    void emptyServersAreRememberedAsEmptyWithoutBeingStopped() {
+        Instant start = Instant.now();
+        UUID id = putOnlineServer(0, start.minus(Duration.ofHours(1)), null);
+
+        assertEquals(List.of(), checkServers(id));
+        Instant emptySince = Instant.parse(getStoredValue(id, IdleServerMonitor.EMPTY_SINCE_KEY));
+        assertFalse(emptySince.isBefore(start));
+        assertEquals("ONLINE", getStoredValue(id, "ServerState"));
+
+        // A later check keeps the time the server was first seen empty
+        checkServers(id);
+        assertEquals(emptySince.toString(), getStoredValue(id, IdleServerMonitor.EMPTY_SINCE_KEY));
+    }
+
+    @Test
+    void serversThatStayEmptyForTheIdleTimeoutAreStopped() {
+        Instant now = Instant.now();
+        UUID idleServer = putOnlineServer(0, now.minus(Duration.ofHours(1)), now.minus(Duration.ofMinutes(20)));
+        UUID recentlyEmptyServer = putOnlineServer(0, now.minus(Duration.ofHours(1)), now.minus(Duration.ofMinutes(5)));
+
+        assertEquals(List.of(idleServer), checkServers(idleServer, recentlyEmptyServer));
+        assertEquals("OFFLINE", getStoredValue(idleServer, "ServerState"));
+        assertNull(getStoredValue(idleServer, IdleServerMonitor.EMPTY_SINCE_KEY));
+        assertEquals(Set.of(idleServer), uploadedWorlds);
+        assertEquals(Set.of("sir-1"), ec2Client.cancelledSpotRequestIds);
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-1").state().name());
+
+        assertEquals("ONLINE", getStoredValue(recentlyEmptyServer, "ServerState"));
+        assertEquals(InstanceStateName.RUNNING, ec2Client.instances.get("i-2").state().name());
+    }
+
+    @Test
+    void failedStopsAreReportedAndRetriedByTheNextCheck() {
+        Instant now = Instant.now();
+        UUID unsavableServer = putOnlineServer(0, now.minus(Duration.ofHours(1)), now.minus(Duration.ofMinutes(20)));
+        UUID idleServer = putOnlineServer(0, now.minus(Duration.ofHours(1)), now.minus(Duration.ofMinutes(20)));
+        unsavableWorlds.add(unsavableServer);
+
+        IdleServerMonitor.CheckResult result = monitor.checkServers(
+                repository.loadServers(List.of(unsavableServer, idleServer)));
+        assertEquals(List.of(idleServer), result.getStoppedServers());
+        assertEquals(Set.of(unsavableServer), result.getFailedStops().keySet());
+        assertInstanceOf(IllegalStateException.class, result.getFailedStops().get(unsavableServer));
+        assertEquals(InstanceStateName.RUNNING, ec2Client.instances.get("i-1").state().name());
+        assertNotNull(getStoredValue(unsavableServer, IdleServerMonitor.EMPTY_SINCE_KEY));
+
+        unsavableWorlds.clear();
+        assertEquals(List.of(unsavableServer), checkServers(unsavableServer));
+        assertEquals("OFFLINE", getStoredValue(unsavableServer, "ServerState"));
+    }
+
+    @Test
+    void unreadableEmptyTimesAreReplacedInsteadOfStoppingTheServer() {
+        Instant start = Instant.now();
+        UUID id = putOnlineServer(0, start.minus(Duration.ofHours(1)), null);
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(id.toString()).build(),
+                "ServerState", AttributeValue.builder().s("ONLINE").build(),
+                "EC2InstanceId", AttributeValue.builder().s("i-1").build(),
+                "EC2SpotRequestId", AttributeValue.builder().s("sir-1").build(),
+                IdleServerMonitor.EMPTY_SINCE_KEY, AttributeValue.builder().s("yesterday").build()));
+
+        assertEquals(List.of(), checkServers(id));
+        assertFalse(Instant.parse(getStoredValue(id, IdleServerMonitor.EMPTY_SINCE_KEY)).isBefore(start));
+        assertEquals("ONLINE", getStoredValue(id, "ServerState"));
+    }
+
+    @Test
+    void serversWithPlayersAreNoLongerRememberedAsEmpty() {
+        Instant now = Instant.now();
+        UUID id = putOnlineServer(3, now.minus(Duration.ofHours(1)), now.minus(Duration.ofMinutes(20)));
+
+        assertEquals(List.of(), checkServers(id));
+        assertNull(getStoredValue(id, IdleServerMonitor.EMPTY_SINCE_KEY));
+        assertEquals("ONLINE", getStoredValue(id, "ServerState"));
+    }
+
+    @Test
+    void serversThatDoNotAnswerCountAsEmptyOnceTheirInstanceIsOlderThanTheIdleTimeout() {
+        Instant now = Instant.now();
+        UUID crashedServer = putOnlineServer(null, now.minus(Duration.ofHours(1)), null);
+        UUID startingServer = putOnlineServer(null, now.minus(Duration.ofMinutes(2)), null);
+
+        checkServers(crashedServer, startingServer);
+        assertNotNull(getStoredValue(crashedServer, IdleServerMonitor.EMPTY_SINCE_KEY));
+        assertNull(getStoredValue(startingServer, IdleServerMonitor.EMPTY_SINCE_KEY));
+    }
+
+    @Test
+    void onlyOnlineServersArePinged() {
+        Instant now = Instant.now();
+        UUID onlineServer = putOnlineServer(0, now.minus(Duration.ofHours(1)), null);
+        UUID offlineServer = UUID.randomUUID();
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(offlineServer.toString()).build(),
+                "ServerState", AttributeValue.builder().s("OFFLINE").build()));
+
+        checkServers(onlineServer, offlineServer);
+        assertEquals(List.of("192.0.2.1"), pinger.pingedAddresses);
+        assertNull(getStoredValue(offlineServer, IdleServerMonitor.EMPTY_SINCE_KEY));
+    }
+
+    /**
+     * A pinger that answers with the player counts set up by the test, and fails to connect to other addresses
+     */
+    private static final class ScriptedPinger extends ServerListPinger {
+        private final Map<String, Integer> onlinePlayers = new ConcurrentHashMap<>();
+        private final List<String> pingedAddresses = new CopyOnWriteArrayList<>();
+
+        private ScriptedPinger() throws IOException {
+        }
+
+        @Override
+        public CompletableFuture<ServerStatus> ping(InetSocketAddress address, Duration timeout) {
+            pingedAddresses.add(address.getHostString());
+            Integer players = onlinePlayers.get(address.getHostString());
+            if (players == null) {
+                return CompletableFuture.failedFuture(new ConnectException("Connection refused"));
+            }
+            return CompletableFuture.completedFuture(ServerStatus.fromJson(
+                    "{\"players\":{\"max\":20,\"online\":" + players + "}}", Duration.ofMillis(20)));
+        }
+    }
+
+    /**
+     * A WorldSynchronizer that records the uploads instead of running the server agent on the instance
+     */
+    private final class UploadRecordingWorldSynchronizer extends WorldSynchronizer {
+        private UploadRecordingWorldSynchronizer() {
+            super(new FakeSsmClient(), "test");
+        }
+
+        @Override
+        public boolean uploadWorld(String instanceId, UUID serverId, Instant deadline) {
+            if (unsavableWorlds.contains(serverId)) {
+                return false;
+            }
+            uploadedWorlds.add(serverId);
+            return true;
+        }
+    }
+}
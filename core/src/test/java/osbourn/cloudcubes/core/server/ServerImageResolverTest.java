@@ -0,0 +1,54 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Image;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerImageResolverTest {
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final ServerImageResolver resolver = new ServerImageResolver(ec2Client, "cloudcubes-server-");
+
+    private void addImage(String imageId, String name, String creationDate, String state) {
+        ec2Client.images.add(Image.builder()
+                .imageId(imageId)
+                .name(name)
+                .creationDate(creationDate)
+                .state(state)
+                .architecture("arm64")
+                .build());
+    }
+
+    @Test
+    void theLatestAvailableBakedImageIsUsed() {
+        addImage("ami-old", "cloudcubes-server-2026-01-01", "2026-01-01T00:00:00.000Z", "available");
+        addImage("ami-new", "cloudcubes-server-2026-02-01", "2026-02-01T00:00:00.000Z", "available");
+        addImage("ami-pending", "cloudcubes-server-2026-03-01", "2026-03-01T00:00:00.000Z", "pending");
+        addImage("ami-other", "other-image", "2026-04-01T00:00:00.000Z", "available");
+
+        ServerImageResolver.ServerImage image = resolver.getServerImage();
+        assertEquals("ami-new", image.getImageId());
+        assertEquals("arm64", image.getArchitecture());
+    }
+
+    @Test
+    void stockAmazonLinuxIsUsedUntilAnImageHasBeenBaked() {
+        assertSame(ServerImageResolver.FALLBACK_IMAGE, resolver.getServerImage());
+    }
+
+    @Test
+    void stockAmazonLinuxIsUsedIfTheImagesCannotBeLookedUp() {
+        ec2Client.describeImagesException = Ec2Exception.builder().message("Rate exceeded").build();
+        assertSame(ServerImageResolver.FALLBACK_IMAGE, resolver.getServerImage());
+    }
+
+    @Test
+    void theImageIsLookedUpOnceForManyStarts() {
+        addImage("ami-new", "cloudcubes-server-2026-02-01", "2026-02-01T00:00:00.000Z", "available");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("ami-new", resolver.getServerImage().getImageId());
+        }
+        assertEquals(1, ec2Client.getRequestCount("DescribeImages"));
+    }
+}
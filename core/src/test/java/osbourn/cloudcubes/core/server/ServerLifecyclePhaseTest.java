@@ -0,0 +1,80 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static osbourn.cloudcubes.core.server.ServerLifecyclePhase.*;
+
+class ServerLifecyclePhaseTest {
+    @Test
+    void aStartCanSkipThePhasesTheInstanceRecordsItself() {
+        assertTrue(FULFILLED.canFollow(REQUESTED));
+        assertTrue(BOOTING.canFollow(REQUESTED));
+        assertTrue(BOOTING.canFollow(FULFILLED));
+        assertTrue(READY.canFollow(REQUESTED));
+        assertTrue(READY.canFollow(BOOTING));
+        // A start never goes back
+        assertFalse(FULFILLED.canFollow(BOOTING));
+        assertFalse(BOOTING.canFollow(READY));
+    }
+
+    @Test
+    void aStopPassesThroughEveryPhase() {
+        assertTrue(STOPPING.canFollow(READY));
+        assertTrue(SNAPSHOTTING.canFollow(STOPPING));
+        assertTrue(OFFLINE.canFollow(SNAPSHOTTING));
+        assertFalse(SNAPSHOTTING.canFollow(READY));
+        assertFalse(OFFLINE.canFollow(READY));
+    }
+
+    @Test
+    void aStopSkipsSnapshottingOnlyIfItSavedNothing() {
+        assertTrue(OFFLINE.canFollow(STOPPING));
+        assertFalse(OFFLINE.canFollow(OFFLINE));
+        assertFalse(OFFLINE.canFollow(FAILED));
+    }
+
+    @Test
+    void serversCanOnlyBeStartedWhenTheyAreNotRunning() {
+        assertEquals(EnumSet.of(OFFLINE, FAILED), REQUESTED.getPreviousPhases());
+        for (ServerLifecyclePhase phase : List.of(REQUESTED, FULFILLED, BOOTING, READY, STOPPING, SNAPSHOTTING)) {
+            assertFalse(REQUESTED.canFollow(phase), phase.name());
+        }
+    }
+
+    @Test
+    void failedStartsCanBeStoppedButOnlyStartsCanFail() {
+        assertTrue(STOPPING.canFollow(FAILED));
+        assertEquals(EnumSet.of(REQUESTED, FULFILLED, BOOTING, READY), FAILED.getPreviousPhases());
+        assertFalse(FAILED.canFollow(STOPPING));
+        assertFalse(FAILED.canFollow(FAILED));
+    }
+
+    @Test
+    void serversWithoutARecordedPhaseCanBeStartedStoppedOrMarkedFailed() {
+        Set<ServerLifecyclePhase> firstPhases = EnumSet.noneOf(ServerLifecyclePhase.class);
+        for (ServerLifecyclePhase phase : values()) {
+            assertEquals(phase.canBeFirstPhase(), phase.canFollow(null), phase.name());
+            if (phase.canBeFirstPhase()) {
+                firstPhases.add(phase);
+            }
+        }
+        assertEquals(EnumSet.of(REQUESTED, STOPPING, FAILED), firstPhases);
+    }
+
+    @Test
+    void everyPhaseCanBeReachedAndLeft() {
+        Set<ServerLifecyclePhase> phasesWithSuccessors = EnumSet.noneOf(ServerLifecyclePhase.class);
+        for (ServerLifecyclePhase phase : values()) {
+            Set<ServerLifecyclePhase> previousPhases = phase.getPreviousPhases();
+            assertFalse(previousPhases.isEmpty(), phase.name());
+            assertFalse(previousPhases.contains(phase), phase.name());
+            phasesWithSuccessors.addAll(previousPhases);
+        }
+        assertEquals(EnumSet.allOf(ServerLifecyclePhase.class), phasesWithSuccessors);
+    }
+}
@@ -0,0 +1,164 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerLifecycleTest {
+    private static final String TABLE_NAME = "Servers";
+
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final List<List<ServerLifecycle.Event>> completedRuns = new ArrayList<>();
+    private final ServerLifecycle lifecycle = new ServerLifecycle(dynamoDbClient, dynamoDbClient::asAsyncClient,
+            TABLE_NAME, (serverId, events) -> completedRuns.add(events));
+    private final UUID id = UUID.randomUUID();
+
+    ServerLifecycleTest() {
+        dynamoDbClient.putItem(TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(id.toString()).build(),
+                "ServerState", AttributeValue.builder().s("OFFLINE").build()));
+    }
+
+    private static List<String> getNames(List<ServerLifecycle.Event> events) {
+        return events.stream().map(ServerLifecycle.Event::getName).collect(Collectors.toList());
+    }
+
+    @Test
+    void transitionsAreRecordedInOrder() {
+        assertNull(lifecycle.getPhase(id));
+        assertTrue(lifecycle.transition(id, ServerLifecyclePhase.REQUESTED));
+        assertTrue(lifecycle.transition(id, ServerLifecyclePhase.FULFILLED));
+        assertTrue(lifecycle.transition(id, ServerLifecyclePhase.READY));
+
+        assertEquals(ServerLifecyclePhase.READY, lifecycle.getPhase(id));
+        assertEquals(List.of("REQUESTED", "FULFILLED", "READY"), getNames(lifecycle.getEvents(id)));
+    }
+
+    @Test
+    void transitionsFromPhasesThatMayNotPrecedeThemAreRejected() {
+        assertTrue(lifecycle.transition(id, ServerLifecyclePhase.REQUESTED));
+        assertFalse(lifecycle.transition(id, ServerLifecyclePhase.OFFLINE));
+        assertFalse(lifecycle.transition(id, ServerLifecyclePhase.REQUESTED));
+        assertEquals(ServerLifecyclePhase.REQUESTED, lifecycle.getPhase(id));
+        assertEquals(List.of("REQUESTED"), getNames(lifecycle.getEvents(id)));
+    }
+
+    @Test
+    void onlyPhasesThatCanBeFirstAreRecordedForServersWithoutAPhase() {
+        assertFalse(lifecycle.transition(id, ServerLifecyclePhase.READY));
+        assertFalse(lifecycle.transition(id, ServerLifecyclePhase.OFFLINE));
+        assertTrue(lifecycle.transition(id, ServerLifecyclePhase.STOPPING));
+    }
+
+    @Test
+    void transitionsDoNotCreateEntriesForDeletedServers() {
+        UUID deletedServer = UUID.randomUUID();
+        assertFalse(lifecycle.transition(deletedServer, ServerLifecyclePhase.REQUESTED));
+        assertNull(dynamoDbClient.getItem(TABLE_NAME, deletedServer.toString()));
+    }
+
+    @Test
+    void transitionsAreSingleWritesThatDoNotChangeTheVersion() {
+        lifecycle.transition(id, ServerLifecyclePhase.REQUESTED);
+        assertEquals(1, dynamoDbClient.getRequests().size());
+        assertInstanceOf(UpdateItemRequest.class, dynamoDbClient.getRequests().get(0));
+        assertNull(dynamoDbClient.getItem(TABLE_NAME, id.toString()).get(DynamoDBEntry.VERSION_KEY));
+    }
+
+    @Test
+    void markersAreRecordedBeforeTheTransitionTheyAreSentWith() {
+        lifecycle.transition(id, ServerLifecyclePhase.REQUESTED);
+        Instant loadedAt = Instant.now();
+        assertTrue(lifecycle.transition(id, ServerLifecyclePhase.READY,
+                List.of(ServerLifecycle.Event.marker("world-loaded", loadedAt))));
+
+        List<ServerLifecycle.Event> events = lifecycle.getEvents(id);
+        assertEquals(List.of("REQUESTED", "world-loaded", "READY"), getNames(events));
+        assertNull(events.get(1).getPhase());
+        assertEquals(loadedAt.toEpochMilli(), events.get(1).getTime().toEpochMilli());
+        // Markers do not change the phase
+        assertEquals(ServerLifecyclePhase.READY, lifecycle.getPhase(id));
+    }
+
+    @Test
+    void aNewRunStartsANewLog() {
+        for (ServerLifecyclePhase phase : List.of(ServerLifecyclePhase.REQUESTED, ServerLifecyclePhase.READY,
+                ServerLifecyclePhase.STOPPING, ServerLifecyclePhase.OFFLINE, ServerLifecyclePhase.REQUESTED)) {
+            assertTrue(lifecycle.transition(id, phase), phase.name());
+        }
+        assertEquals(List.of("REQUESTED"), getNames(lifecycle.getEvents(id)));
+    }
+
+    @Test
+    void theLogOfACompletedRunIsHandedToTheListener() {
+        lifecycle.transition(id, ServerLifecyclePhase.REQUESTED);
+        lifecycle.transition(id, ServerLifecyclePhase.READY);
+        lifecycle.transition(id, ServerLifecyclePhase.STOPPING);
+        assertTrue(completedRuns.isEmpty());
+
+        lifecycle.transition(id, ServerLifecyclePhase.OFFLINE);
+        assertEquals(1, completedRuns.size());
+        assertEquals(List.of("REQUESTED", "READY", "STOPPING", "OFFLINE"), getNames(completedRuns.get(0)));
+    }
+
+    @Test
+    void asynchronousTransitionsAreRejectedLikeSynchronousOnes() {
+        assertTrue(lifecycle.transitionAsync(id, ServerLifecyclePhase.REQUESTED, List.of()).join());
+        assertFalse(lifecycle.transitionAsync(id, ServerLifecyclePhase.SNAPSHOTTING, List.of()).join());
+        assertEquals(ServerLifecyclePhase.REQUESTED, lifecycle.getPhase(id));
+    }
+
+    @Test
+    void phaseDurationsAreTheTimesBetweenTransitions() {
+        Instant start = Instant.ofEpochMilli(1_700_000_000_000L);
+        List<ServerLifecycle.Event> events = List.of(
+                new ServerLifecycle.Event(ServerLifecyclePhase.REQUESTED, start),
+                ServerLifecycle.Event.marker("world-loaded", start.plusSeconds(5)),
+                new ServerLifecycle.Event(ServerLifecyclePhase.BOOTING, start.plusSeconds(20)),
+                new ServerLifecycle.Event(ServerLifecyclePhase.READY, start.plusSeconds(50)));
+
+        Map<ServerLifecyclePhase, Duration> durations = ServerLifecycle.getPhaseDurations(events);
+        assertEquals(List.of(ServerLifecyclePhase.REQUESTED, ServerLifecyclePhase.BOOTING),
+                new ArrayList<>(durations.keySet()));
+        assertEquals(20, durations.get(ServerLifecyclePhase.REQUESTED).getSeconds());
+        assertEquals(30, durations.get(ServerLifecyclePhase.BOOTING).getSeconds());
+    }
+
+    @Test
+    void storedEventsAreParsedBack() {
+        ServerLifecycle.Event event = ServerLifecycle.Event.parse("READY@1700000000000");
+        assertNotNull(event);
+        assertEquals(ServerLifecyclePhase.READY, event.getPhase());
+        assertEquals("READY@1700000000000", event.toString());
+        assertNull(ServerLifecycle.Event.parse("Ready@1700000000000"));
+        assertNull(ServerLifecycle.Event.parse("READY"));
+        assertThrows(IllegalArgumentException.class, () -> ServerLifecycle.Event.marker("World loaded", Instant.now()));
+    }
+
+    @Test
+    void malformedStoredPhasesAndEventsAreReported() {
+        dynamoDbClient.putItem(TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(id.toString()).build(),
+                ServerLifecycle.PHASE_KEY, AttributeValue.builder().s("Ready").build(),
+                ServerLifecycle.EVENTS_KEY, AttributeValue.builder().l(
+                        AttributeValue.builder().s("REQUESTED@1700000000000").build(),
+                        AttributeValue.builder().s("READY").build()).build()));
+
+        assertThrows(IllegalStateException.class, () -> lifecycle.getPhase(id));
+        IllegalStateException exception = assertThrows(IllegalStateException.class, () -> lifecycle.getEvents(id));
+        assertTrue(exception.getMessage().contains(id.toString()));
+        assertThrows(IllegalStateException.class, lifecycle::getAllEvents);
+    }
+}
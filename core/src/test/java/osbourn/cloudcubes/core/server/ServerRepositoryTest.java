@@ -0,0 +1,221 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.ec2.model.GroupIdentifier;
+import software.amazon.awssdk.services.ec2.model.Instance;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerRepositoryTest {
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final ServerRepository repository = new ServerRepository(
+            new TestInfrastructureConstructor(dynamoDbClient, ec2Client, null));
+
+    private List<UUID> putServers(int count) {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("Id", AttributeValue.builder().s(id.toString()).build());
+            item.put("DisplayName", AttributeValue.builder().s("Server " + i).build());
+            item.put("ServerState", AttributeValue.builder().s("OFFLINE").build());
+            dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private void recordInstance(UUID id, String instanceId) {
+        Map<String, AttributeValue> item = new HashMap<>(
+                dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, id.toString()));
+        item.put("ServerState", AttributeValue.builder().s("ONLINE").build());
+        item.put("EC2InstanceId", AttributeValue.builder().s(instanceId).build());
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+    }
+
+    private static int getKeyCount(BatchGetItemRequest request) {
+        int keyCount = 0;
+        for (KeysAndAttributes keysAndAttributes : request.requestItems().values()) {
+            keyCount += keysAndAttributes.keys().size();
+        }
+        return keyCount;
+    }
+
+    @Test
+    void serversAreLoadedInBatchesOfAHundred() {
+        List<UUID> ids = putServers(250);
+        ServerFleet fleet = repository.loadServers(ids);
+
+        assertEquals(250, fleet.getServers().size());
+        List<BatchGetItemRequest> requests = dynamoDbClient.getRequests(BatchGetItemRequest.class);
+        assertEquals(3, requests.size());
+        assertEquals(List.of(100, 100, 50), List.of(getKeyCount(requests.get(0)), getKeyCount(requests.get(1)),
+                getKeyCount(requests.get(2))));
+        // Every value needed to report the status of the servers was downloaded with the batches
+        assertEquals(3, dynamoDbClient.getRequests().size());
+        for (UUID id : ids) {
+            assertNotNull(fleet.getServer(id));
+        }
+    }
+
+    @Test
+    void unprocessedKeysAreRetried() {
+        List<UUID> ids = putServers(100);
+        dynamoDbClient.setMaximumBatchGetItems(30);
+        ServerFleet fleet = repository.loadServers(ids);
+
+        assertEquals(100, fleet.getServers().size());
+        List<BatchGetItemRequest> requests = dynamoDbClient.getRequests(BatchGetItemRequest.class);
+        assertEquals(4, requests.size());
+        // Only the keys DynamoDB did not process are requested again
+        assertEquals(List.of(100, 70, 40, 10), List.of(getKeyCount(requests.get(0)), getKeyCount(requests.get(1)),
+                getKeyCount(requests.get(2)), getKeyCount(requests.get(3))));
+    }
+
+    @Test
+    void missingAndDuplicateIdsAreLeftOut() {
+        List<UUID> ids = new ArrayList<>(putServers(2));
+        ids.add(ids.get(0));
+        ids.add(UUID.randomUUID());
+        ServerFleet fleet = repository.loadServers(ids);
+
+        assertEquals(2, fleet.getServers().size());
+        assertEquals(3, getKeyCount(dynamoDbClient.getRequests(BatchGetItemRequest.class).get(0)));
+    }
+
+    @Test
+    void consistentReadsAreOnlyUsedWhenRequested() {
+        List<UUID> ids = putServers(1);
+        repository.loadServers(ids);
+        repository.loadServers(ids, true);
+
+        List<BatchGetItemRequest> requests = dynamoDbClient.getRequests(BatchGetItemRequest.class);
+        assertFalse(requests.get(0).requestItems().get(TestInfrastructureConstructor.SERVER_TABLE_NAME)
+                .consistentRead());
+        assertTrue(requests.get(1).requestItems().get(TestInfrastructureConstructor.SERVER_TABLE_NAME)
+                .consistentRead());
+    }
+
+    @Test
+    void everyServerIsLoadedWithOneScan() {
+        List<UUID> ids = putServers(20);
+        ServerFleet fleet = repository.loadAllServers();
+
+        assertEquals(new HashSet<>(ids),
+                fleet.getServers().stream().map(CloudCubesServer::getId).collect(Collectors.toSet()));
+        assertEquals(1, dynamoDbClient.getRequests().size());
+        assertEquals(1, dynamoDbClient.getRequests(ScanRequest.class).size());
+    }
+
+    @Test
+    void instancesOfTheWholeFleetAreDescribedWithOneRequest() {
+        List<UUID> ids = putServers(30);
+        for (int i = 0; i < 20; i++) {
+            String instanceId = "i-" + i;
+            recordInstance(ids.get(i), instanceId);
+            ec2Client.instances.put(instanceId, Instance.builder()
+                    .instanceId(instanceId)
+                    // The configured security group of the test infrastructure
+                    .securityGroups(GroupIdentifier.builder().groupId("test").build())
+                    .build());
+        }
+        // An instance that was recorded but has disappeared since
+        recordInstance(ids.get(20), "i-terminated");
+
+        Map<UUID, Instance> instances = repository.loadServers(ids).describeInstances();
+        assertEquals(20, instances.size());
+        assertEquals("i-3", instances.get(ids.get(3)).instanceId());
+        assertEquals(1, ec2Client.getRequestCount("DescribeInstances"));
+    }
+
+    @Test
+    void aThousandServersAreRefreshedWithElevenRequests() {
+        List<UUID> ids = putServers(1000);
+        for (int i = 0; i < 1000; i += 2) {
+            String instanceId = "i-" + i;
+            recordInstance(ids.get(i), instanceId);
+            ec2Client.instances.put(instanceId, Instance.builder()
+                    .instanceId(instanceId)
+                    .securityGroups(GroupIdentifier.builder().groupId("test").build())
+                    .build());
+        }
+        dynamoDbClient.clearRequests();
+
+        ServerFleet fleet = repository.loadServers(ids);
+        Map<UUID, ProvisionalServerState> states = fleet.getServerStates();
+        Map<UUID, Instance> instances = fleet.describeInstances();
+
+        assertEquals(1000, states.size());
+        assertEquals(500, instances.size());
+        assertEquals(10, dynamoDbClient.getRequests().size());
+        assertEquals(1, ec2Client.getRequestCount("DescribeInstances"));
+    }
+
+    @Test
+    void interruptedServersAreFoundThroughTheInstanceIdIndex() {
+        List<UUID> ids = putServers(3);
+        recordInstance(ids.get(1), "i-interrupted");
+        recordInstance(ids.get(2), "i-other");
+        ServerFleet fleet = repository.loadServersByInstanceId("i-interrupted");
+
+        assertEquals(List.of(ids.get(1)),
+                fleet.getServers().stream().map(CloudCubesServer::getId).collect(Collectors.toList()));
+        List<QueryRequest> queries = dynamoDbClient.getRequests(QueryRequest.class);
+        assertEquals(1, queries.size());
+        assertEquals(EC2SpotInstanceManager.INSTANCE_ID_INDEX_NAME, queries.get(0).indexName());
+        // The server is read consistently, as it is about to be relaunched
+        assertTrue(dynamoDbClient.getRequests(BatchGetItemRequest.class).get(0).requestItems()
+                .get(TestInfrastructureConstructor.SERVER_TABLE_NAME).consistentRead());
+        assertEquals(0, ec2Client.getRequestCount("DescribeInstances"));
+    }
+
+    @Test
+    void interruptedServersWhoseInstanceWasNotRecordedAreFoundThroughTheirSpotRequest() {
+        List<UUID> ids = putServers(2);
+        Map<String, AttributeValue> item = new HashMap<>(
+                dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, ids.get(0).toString()));
+        item.put("ServerState", AttributeValue.builder().s("UNKNOWN").build());
+        item.put("EC2SpotRequestId", AttributeValue.builder().s("sir-interrupted").build());
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, item);
+        ec2Client.instances.put("i-interrupted", Instance.builder()
+                .instanceId("i-interrupted")
+                .spotInstanceRequestId("sir-interrupted")
+                .build());
+        ServerFleet fleet = repository.loadServersByInstanceId("i-interrupted");
+
+        assertEquals(List.of(ids.get(0)),
+                fleet.getServers().stream().map(CloudCubesServer::getId).collect(Collectors.toList()));
+        List<QueryRequest> queries = dynamoDbClient.getRequests(QueryRequest.class);
+        assertEquals(List.of(EC2SpotInstanceManager.INSTANCE_ID_INDEX_NAME,
+                        EC2SpotInstanceManager.SPOT_REQUEST_INDEX_NAME),
+                queries.stream().map(QueryRequest::indexName).collect(Collectors.toList()));
+        assertEquals(1, ec2Client.getRequestCount("DescribeInstances"));
+    }
+
+    @Test
+    void instancesThatRunNoServerLoadAnEmptyFleet() {
+        putServers(2);
+        ec2Client.instances.put("i-unrelated", Instance.builder().instanceId("i-unrelated").build());
+
+        ServerFleet fleet = repository.loadServersByInstanceId("i-unrelated");
+        assertTrue(fleet.getServers().isEmpty());
+        assertNull(fleet.relaunchInterruptedServer("i-unrelated", Instant.now()));
+    }
+}
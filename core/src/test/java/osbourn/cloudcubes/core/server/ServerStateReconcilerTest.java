@@ -0,0 +1,199 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.minecraft.ServerListPinger;
+import osbourn.cloudcubes.core.minecraft.ServerStatus;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerStateReconcilerTest {
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final TestPinger pinger = new TestPinger();
+    private final ServerStateReconciler reconciler = new ServerStateReconciler(ec2Client, pinger);
+    private int instanceCount = 0;
+
+    ServerStateReconcilerTest() throws IOException {
+    }
+
+    @AfterEach
+    void closePinger() throws IOException {
+        pinger.close();
+    }
+
+    /**
+     * Puts a spot request, along with the instance that fulfilled it if instanceState is not null.
+     *
+     * @return The id of the spot request
+     */
+    private String putSpotRequest(SpotInstanceState requestState, InstanceStateName instanceState) {
+        instanceCount++;
+        String spotRequestId = "sir-" + instanceCount;
+        SpotInstanceRequest.Builder spotInstanceRequest = SpotInstanceRequest.builder()
+                .spotInstanceRequestId(spotRequestId)
+                .state(requestState);
+        if (instanceState != null) {
+            String instanceId = "i-" + instanceCount;
+            spotInstanceRequest.instanceId(instanceId);
+            ec2Client.instances.put(instanceId, Instance.builder()
+                    .instanceId(instanceId)
+                    .spotInstanceRequestId(spotRequestId)
+                    .state(InstanceState.builder().name(instanceState).build())
+                    .publicIpAddress(instanceState == InstanceStateName.RUNNING ? "192.0.2." + instanceCount : null)
+                    .build());
+        }
+        ec2Client.spotInstanceRequests.put(spotRequestId, spotInstanceRequest.build());
+        return spotRequestId;
+    }
+
+    private static Map<String, Instant> withoutLaunchTimes(String... spotRequestIds) {
+        Map<String, Instant> launchTimes = new HashMap<>();
+        for (String spotRequestId : spotRequestIds) {
+            launchTimes.put(spotRequestId, null);
+        }
+        return launchTimes;
+    }
+
+    @Test
+    void serversAreOnlineOnceTheirMinecraftServerAnswers() {
+        String answering = putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.RUNNING);
+        String loading = putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.RUNNING);
+        pinger.answeringHosts.add("192.0.2.1");
+
+        assertEquals(ProvisionalServerState.ONLINE, reconciler.reconcile(answering, null));
+        // The server has not loaded its world yet, so it is still starting
+        assertEquals(ProvisionalServerState.UNKNOWN, reconciler.reconcile(loading, null));
+        assertEquals(List.of(new InetSocketAddress("192.0.2.1", CloudCubesServer.MINECRAFT_PORT),
+                new InetSocketAddress("192.0.2.2", CloudCubesServer.MINECRAFT_PORT)), pinger.pingedAddresses);
+    }
+
+    @Test
+    void serversWhoseInstanceIsNotRunningYetAreStillStartingAndAreNotPinged() {
+        String open = putSpotRequest(SpotInstanceState.OPEN, null);
+        String pending = putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.PENDING);
+
+        Map<String, ProvisionalServerState> states = reconciler.reconcile(withoutLaunchTimes(open, pending));
+        assertEquals(Map.of(open, ProvisionalServerState.UNKNOWN, pending, ProvisionalServerState.UNKNOWN), states);
+        assertEquals(List.of(), pinger.pingedAddresses);
+    }
+
+    @Test
+    void serversWhoseSpotRequestOrInstanceHasEndedAreOffline() {
+        List<String> spotRequestIds = List.of(
+                putSpotRequest(SpotInstanceState.CANCELLED, null),
+                putSpotRequest(SpotInstanceState.FAILED, null),
+                putSpotRequest(SpotInstanceState.CLOSED, null),
+                putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.SHUTTING_DOWN),
+                putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.TERMINATED),
+                putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.STOPPING),
+                putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.STOPPED));
+        // An instance that EC2 no longer returns has been terminated long ago
+        String forgottenInstance = putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.TERMINATED);
+        ec2Client.instances.remove("i-" + instanceCount);
+
+        Map<String, ProvisionalServerState> states = reconciler.reconcile(withoutLaunchTimes(
+                spotRequestIds.toArray(new String[0])));
+        for (String spotRequestId : spotRequestIds) {
+            assertEquals(ProvisionalServerState.OFFLINE, states.get(spotRequestId), spotRequestId);
+        }
+        assertEquals(ProvisionalServerState.OFFLINE, reconciler.reconcile(forgottenInstance, null));
+        assertEquals(List.of(), pinger.pingedAddresses);
+    }
+
+    @Test
+    void missingSpotRequestsAreOnlyOfflineOnceTheGracePeriodHasPassed() {
+        Instant now = Instant.now();
+        Map<String, Instant> launchTimes = new HashMap<>();
+        launchTimes.put("sir-just-made", now.minusSeconds(5));
+        launchTimes.put("sir-forgotten", now.minus(ServerStateReconciler.MISSING_SPOT_REQUEST_GRACE_PERIOD)
+                .minusSeconds(1));
+        launchTimes.put("sir-unknown-launch-time", null);
+
+        Map<String, ProvisionalServerState> states = reconciler.reconcile(launchTimes);
+        // DescribeSpotInstanceRequests is eventually consistent, so a request made moments ago may not be visible
+        assertEquals(ProvisionalServerState.UNKNOWN, states.get("sir-just-made"));
+        assertEquals(ProvisionalServerState.OFFLINE, states.get("sir-forgotten"));
+        assertEquals(ProvisionalServerState.OFFLINE, states.get("sir-unknown-launch-time"));
+    }
+
+    @Test
+    void manyServersAreCheckedWithOneRequestOfEachKind() {
+        List<String> spotRequestIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            spotRequestIds.add(putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.RUNNING));
+            pinger.answeringHosts.add("192.0.2." + instanceCount);
+        }
+        spotRequestIds.add(putSpotRequest(SpotInstanceState.CANCELLED, null));
+
+        Map<String, ProvisionalServerState> states = reconciler.reconcile(withoutLaunchTimes(
+                spotRequestIds.toArray(new String[0])));
+        assertEquals(spotRequestIds.size(), states.size());
+        assertEquals(20, states.values().stream().filter(ProvisionalServerState.ONLINE::equals).count());
+        assertEquals(1, ec2Client.getRequestCount("DescribeSpotInstanceRequests"));
+        assertEquals(1, ec2Client.getRequestCount("DescribeInstances"));
+        assertEquals(20, pinger.pingedAddresses.size());
+    }
+
+    @Test
+    void verdictsAreReusedUntilTheyAreInvalidated() {
+        String starting = putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.RUNNING);
+        String online = putSpotRequest(SpotInstanceState.ACTIVE, InstanceStateName.RUNNING);
+        pinger.answeringHosts.add("192.0.2.2");
+        reconciler.reconcile(withoutLaunchTimes(starting, online));
+
+        // The server finished starting in the meantime, which is only noticed once the verdict has expired
+        pinger.answeringHosts.add("192.0.2.1");
+        Map<String, ProvisionalServerState> states = reconciler.reconcile(withoutLaunchTimes(starting, online));
+        assertEquals(Map.of(starting, ProvisionalServerState.UNKNOWN, online, ProvisionalServerState.ONLINE), states);
+        assertEquals(1, ec2Client.getRequestCount("DescribeSpotInstanceRequests"));
+        assertEquals(2, pinger.pingedAddresses.size());
+
+        reconciler.invalidate(starting);
+        assertEquals(ProvisionalServerState.ONLINE, reconciler.reconcile(starting, null));
+        assertEquals(2, ec2Client.getRequestCount("DescribeSpotInstanceRequests"));
+        assertEquals(3, pinger.pingedAddresses.size());
+    }
+
+    /**
+     * A pinger that answers for the hosts in answeringHosts and times out for the others, without making connections.
+     */
+    private static final class TestPinger extends ServerListPinger {
+        private final Set<String> answeringHosts = Collections.synchronizedSet(new HashSet<>());
+        private final List<InetSocketAddress> pingedAddresses = Collections.synchronizedList(new ArrayList<>());
+
+        private TestPinger() throws IOException {
+            super(1);
+        }
+
+        @Override
+        public CompletableFuture<ServerStatus> ping(InetSocketAddress address,
+                                                    Duration connectTimeout,
+                                                    Duration timeout) {
+            pingedAddresses.add(address);
+            if (answeringHosts.contains(address.getHostString())) {
+                return CompletableFuture.completedFuture(
+                        ServerStatus.fromJson("{\"players\":{\"max\":20,\"online\":0}}", Duration.ZERO));
+            }
+            return CompletableFuture.failedFuture(new TimeoutException("The server did not respond in time"));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceStatus;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpotFulfillmentTrackerTest {
+    private static final String SPOT_REQUEST_ID = "sir-12345678";
+
+    private static SpotInstanceRequest spotRequest(String state, String statusCode, String instanceId) {
+        return SpotInstanceRequest.builder()
+                .spotInstanceRequestId(SPOT_REQUEST_ID)
+                .state(state)
+                .status(SpotInstanceStatus.builder().code(statusCode).build())
+                .instanceId(instanceId)
+                .build();
+    }
+
+    private static Ec2Exception ec2Exception(String errorCode) {
+        return (Ec2Exception) Ec2Exception.builder()
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build())
+                .build();
+    }
+
+    private static Throwable getFailure(CompletableFuture<?> future) {
+        CompletionException exception = assertThrows(CompletionException.class, future::join);
+        return exception.getCause();
+    }
+
+    @Test
+    void waitCompletesWithTheInstanceOnceTheRequestIsFulfilled() {
+        ScriptedEc2AsyncClient ec2AsyncClient = new ScriptedEc2AsyncClient(poll -> {
+            if (poll < 2) {
+                return spotRequest("open", "pending-evaluation", null);
+            }
+            return spotRequest("active", "fulfilled", "i-0123456789");
+        });
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+
+        SpotInstanceRequest spotInstanceRequest =
+                tracker.awaitFulfillment(SPOT_REQUEST_ID, Duration.ofSeconds(10)).join();
+        assertEquals("i-0123456789", spotInstanceRequest.instanceId());
+        assertEquals(3, ec2AsyncClient.getPollTimes().size());
+    }
+
+    @Test
+    void waitTimesOutIfTheRequestIsNotFulfilledInTime() {
+        ScriptedEc2AsyncClient ec2AsyncClient =
+                new ScriptedEc2AsyncClient(poll -> spotRequest("open", "pending-evaluation", null));
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+
+        long start = System.nanoTime();
+        Throwable failure = getFailure(tracker.awaitFulfillment(SPOT_REQUEST_ID, Duration.ofSeconds(1)));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertInstanceOf(TimeoutException.class, failure);
+        // The deadline is kept with millisecond precision, so the wait can end a moment before the second is up
+        assertTrue(elapsedMillis >= 950 && elapsedMillis < 3000, "gave up after " + elapsedMillis + " ms");
+        // The polls back off instead of hammering the API for the whole timeout
+        assertTrue(ec2AsyncClient.getPollTimes().size() <= 5, ec2AsyncClient.getPollTimes().size() + " polls");
+    }
+
+    @Test
+    void waitingDoesNotBlockTheCaller() {
+        ScriptedEc2AsyncClient ec2AsyncClient =
+                new ScriptedEc2AsyncClient(poll -> spotRequest("open", "pending-evaluation", null));
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+
+        long start = System.nanoTime();
+        CompletableFuture<SpotInstanceRequest> fulfillment =
+                tracker.awaitFulfillment(SPOT_REQUEST_ID, Duration.ofSeconds(1));
+        assertTrue(System.nanoTime() - start < 200_000_000L);
+        assertFalse(fulfillment.isDone());
+        assertInstanceOf(TimeoutException.class, getFailure(fulfillment));
+    }
+
+    @Test
+    void waitFailsIfTheRequestWillNotBeFulfilled() {
+        ScriptedEc2AsyncClient ec2AsyncClient =
+                new ScriptedEc2AsyncClient(poll -> spotRequest("closed", "capacity-not-available", null));
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+
+        Throwable failure = getFailure(tracker.awaitFulfillment(SPOT_REQUEST_ID, Duration.ofSeconds(10)));
+        assertInstanceOf(IllegalStateException.class, failure);
+        assertTrue(failure.getMessage().contains("capacity-not-available"));
+        assertEquals(1, ec2AsyncClient.getPollTimes().size());
+    }
+
+    @Test
+    void requestsThatAreNotVisibleYetAreWaitedFor() {
+        ScriptedEc2AsyncClient ec2AsyncClient = new ScriptedEc2AsyncClient(poll -> {
+            if (poll == 0) {
+                throw ec2Exception("InvalidSpotInstanceRequestID.NotFound");
+            }
+            return spotRequest("active", "fulfilled", "i-0123456789");
+        });
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+
+        assertNull(tracker.describe(SPOT_REQUEST_ID).join());
+        assertEquals("i-0123456789",
+                tracker.awaitFulfillment(SPOT_REQUEST_ID, Duration.ofSeconds(10)).join().instanceId());
+    }
+
+    @Test
+    void otherErrorsFailTheWait() {
+        ScriptedEc2AsyncClient ec2AsyncClient = new ScriptedEc2AsyncClient(poll -> {
+            throw ec2Exception("UnauthorizedOperation");
+        });
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+
+        assertInstanceOf(Ec2Exception.class, getFailure(tracker.awaitFulfillment(SPOT_REQUEST_ID,
+                Duration.ofSeconds(10))));
+    }
+
+    @Test
+    void pollsSpeedUpOnceEc2IsLaunchingTheInstance() {
+        ScriptedEc2AsyncClient ec2AsyncClient = new ScriptedEc2AsyncClient(poll -> {
+            if (poll < 2) {
+                return spotRequest("open", "pending-evaluation", null);
+            }
+            if (poll == 2) {
+                return spotRequest("open", "pending-fulfillment", null);
+            }
+            return spotRequest("active", "fulfilled", "i-0123456789");
+        });
+        SpotFulfillmentTracker tracker = new SpotFulfillmentTracker(() -> ec2AsyncClient);
+        tracker.awaitFulfillment(SPOT_REQUEST_ID, Duration.ofSeconds(10)).join();
+
+        List<Long> pollTimes = ec2AsyncClient.getPollTimes();
+        assertEquals(4, pollTimes.size());
+        long backedOffIntervalMillis = (pollTimes.get(2) - pollTimes.get(1)) / 1_000_000;
+        long launchingIntervalMillis = (pollTimes.get(3) - pollTimes.get(2)) / 1_000_000;
+        assertTrue(backedOffIntervalMillis >= 900, "backed off for " + backedOffIntervalMillis + " ms");
+        assertTrue(launchingIntervalMillis < 600, "polled again after " + launchingIntervalMillis + " ms");
+    }
+
+    /**
+     * An EC2 client that answers the nth DescribeSpotInstanceRequests request with a scripted response, and completes
+     * the response on another thread like the real client
+     */
+    private static final class ScriptedEc2AsyncClient implements Ec2AsyncClient {
+        private final IntFunction<SpotInstanceRequest> responses;
+        private final List<Long> pollTimes = new ArrayList<>();
+
+        private ScriptedEc2AsyncClient(IntFunction<SpotInstanceRequest> responses) {
+            this.responses = responses;
+        }
+
+        private synchronized List<Long> getPollTimes() {
+            return new ArrayList<>(pollTimes);
+        }
+
+        @Override
+        public CompletableFuture<DescribeSpotInstanceRequestsResponse> describeSpotInstanceRequests(
+                DescribeSpotInstanceRequestsRequest request) {
+            int poll;
+            synchronized (this) {
+                poll = pollTimes.size();
+                pollTimes.add(System.nanoTime());
+            }
+            return CompletableFuture.supplyAsync(() -> DescribeSpotInstanceRequestsResponse.builder()
+                    .spotInstanceRequests(responses.apply(poll))
+                    .build());
+        }
+
+        @Override
+        public String serviceName() {
+            return "ec2";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
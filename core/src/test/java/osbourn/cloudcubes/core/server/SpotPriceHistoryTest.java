@@ -0,0 +1,45 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpotPriceHistoryTest {
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final SpotPriceHistory spotPriceHistory = new SpotPriceHistory(ec2Client);
+
+    @Test
+    void pricesOfSeveralInstanceTypesAreDownloadedWithOneRequestAndCached() {
+        ec2Client.spotPrices.put("m5.large", Map.of("us-east-1a", 0.04, "us-east-1b", 0.05));
+        ec2Client.spotPrices.put("m6g.large", Map.of("us-east-1a", 0.03));
+
+        Map<String, Map<String, Double>> prices = spotPriceHistory.getSpotPrices(List.of("m5.large", "m6g.large"));
+        assertEquals(Map.of("us-east-1a", 0.04, "us-east-1b", 0.05), prices.get("m5.large"));
+        assertEquals(Map.of("us-east-1a", 0.03), prices.get("m6g.large"));
+
+        assertEquals(Map.of("us-east-1a", 0.03), spotPriceHistory.getSpotPrices("m6g.large"));
+        assertEquals(1, ec2Client.getRequestCount("DescribeSpotPriceHistory"));
+    }
+
+    @Test
+    void onlyInstanceTypesThatAreNotCachedAreDownloaded() {
+        ec2Client.spotPrices.put("m5.large", Map.of("us-east-1a", 0.04));
+        spotPriceHistory.getSpotPrices("m5.large");
+        // Instance types without prices are cached too, so that they are not looked up on every start
+        spotPriceHistory.getSpotPrices(List.of("m5.large", "x9.large"));
+        spotPriceHistory.getSpotPrices(List.of("m5.large", "x9.large"));
+        assertEquals(2, ec2Client.getRequestCount("DescribeSpotPriceHistory"));
+        assertTrue(spotPriceHistory.getSpotPrices("x9.large").isEmpty());
+    }
+
+    @Test
+    void failedDownloadsLeaveThePricesUnknown() {
+        ec2Client.spotPriceHistoryException = Ec2Exception.builder().message("Rate exceeded").build();
+        assertTrue(spotPriceHistory.getSpotPrices("m5.large").isEmpty());
+        assertTrue(spotPriceHistory.getSpotPrices(List.of("m5.large", "m6g.large")).isEmpty());
+    }
+}
@@ -0,0 +1,64 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpotPriceInstanceTypeSelectorTest {
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final SpotPriceInstanceTypeSelector selector =
+            new SpotPriceInstanceTypeSelector(new SpotPriceHistory(ec2Client));
+
+    @Test
+    void cheapestInstanceTypesComeFirstAndUnpricedOnesAreOrderedBySize() {
+        ec2Client.spotPrices.put("r6i.large", Map.of("us-east-1a", 0.02));
+        // The lowest price of any availability zone counts
+        ec2Client.spotPrices.put("m6i.large", Map.of("us-east-1a", 0.05, "us-east-1b", 0.03));
+
+        List<String> instanceTypes = selector.selectInstanceTypes(new InstanceRequirements(2, 8192, Set.of("x86_64")));
+        // c6i.large has too little memory, and at most six candidates are returned
+        assertEquals(List.of("r6i.large", "m6i.large", "m5.large", "m6a.large", "c6i.xlarge", "m5.xlarge"),
+                instanceTypes);
+    }
+
+    @Test
+    void pricesOfEveryCandidateAreLookedUpWithOneRequest() {
+        selector.selectInstanceTypes(new InstanceRequirements(2, 4096, Set.of("x86_64", "arm64")));
+        assertEquals(1, ec2Client.getRequestCount("DescribeSpotPriceHistory"));
+    }
+
+    @Test
+    void gravitonFamiliesAreOnlyUsedIfTheImageSupportsArm64() {
+        ec2Client.spotPrices.put("m6g.large", Map.of("us-east-1a", 0.01));
+        assertFalse(selector.selectInstanceTypes(new InstanceRequirements(2, 4096, Set.of("x86_64")))
+                .contains("m6g.large"));
+        assertEquals("m6g.large",
+                selector.selectInstanceTypes(new InstanceRequirements(2, 4096, Set.of("x86_64", "arm64"))).get(0));
+        assertTrue(selector.selectInstanceTypes(new InstanceRequirements(2, 4096, Set.of("arm64"))).stream()
+                .allMatch(instanceType -> instanceType.matches("[mcr]6g\\..*")));
+    }
+
+    @Test
+    void onlyTheAllowedFamiliesAreSelected() {
+        SpotPriceInstanceTypeSelector computeSelector =
+                new SpotPriceInstanceTypeSelector(new SpotPriceHistory(ec2Client), List.of("c6i"));
+        assertEquals(List.of("c6i.xlarge", "c6i.2xlarge", "c6i.4xlarge"),
+                computeSelector.selectInstanceTypes(new InstanceRequirements(4, 8192, Set.of("x86_64"))));
+    }
+
+    @Test
+    void requirementsNoInstanceTypeSatisfiesSelectNothing() {
+        assertTrue(selector.selectInstanceTypes(new InstanceRequirements(64, 8192, Set.of("x86_64"))).isEmpty());
+    }
+
+    @Test
+    void unknownFamiliesAreRejected() {
+        SpotPriceHistory spotPriceHistory = new SpotPriceHistory(ec2Client);
+        assertThrows(IllegalArgumentException.class,
+                () -> new SpotPriceInstanceTypeSelector(spotPriceHistory, List.of("t3")));
+    }
+}
@@ -0,0 +1,96 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpotSubnetRankerTest {
+    private static final String INSTANCE_TYPE = "m6i.large";
+    private static final List<String> SUBNETS = List.of("subnet-a", "subnet-b", "subnet-c");
+
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final SpotSubnetRanker ranker;
+
+    SpotSubnetRankerTest() {
+        ec2Client.subnetAvailabilityZones.putAll(Map.of(
+                "subnet-a", "us-east-1a",
+                "subnet-b", "us-east-1b",
+                "subnet-c", "us-east-1c"));
+        ranker = new SpotSubnetRanker(ec2Client, new SpotPriceHistory(ec2Client), SUBNETS);
+    }
+
+    private static Ec2Exception ec2Exception(String errorCode) {
+        return (Ec2Exception) Ec2Exception.builder()
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build())
+                .build();
+    }
+
+    @Test
+    void subnetsAreOrderedByTheSpotPriceOfTheirAvailabilityZone() {
+        ec2Client.spotPrices.put(INSTANCE_TYPE, Map.of(
+                "us-east-1a", 0.05,
+                "us-east-1b", 0.03,
+                "us-east-1c", 0.04));
+        assertEquals(List.of("subnet-b", "subnet-c", "subnet-a"), ranker.rankSubnets(INSTANCE_TYPE));
+    }
+
+    @Test
+    void subnetsWithoutPricesKeepTheirOrderAfterThoseWithPrices() {
+        ec2Client.spotPrices.put(INSTANCE_TYPE, Map.of("us-east-1c", 0.04));
+        assertEquals(List.of("subnet-c", "subnet-a", "subnet-b"), ranker.rankSubnets(INSTANCE_TYPE));
+    }
+
+    @Test
+    void subnetsWithCapacityErrorsAreTriedLastWithTheMostRecentErrorLast() throws InterruptedException {
+        ec2Client.spotPrices.put(INSTANCE_TYPE, Map.of(
+                "us-east-1a", 0.03,
+                "us-east-1b", 0.04,
+                "us-east-1c", 0.05));
+        ranker.recordCapacityError(INSTANCE_TYPE, "subnet-b");
+        Thread.sleep(5);
+        ranker.recordCapacityError(INSTANCE_TYPE, "subnet-a");
+        assertEquals(List.of("subnet-c", "subnet-b", "subnet-a"), ranker.rankSubnets(INSTANCE_TYPE));
+    }
+
+    @Test
+    void capacityErrorsOnlyAffectTheirInstanceType() {
+        ranker.recordCapacityError(INSTANCE_TYPE, "subnet-a");
+        assertEquals(List.of("subnet-b", "subnet-c", "subnet-a"), ranker.rankSubnets(INSTANCE_TYPE));
+        assertEquals(SUBNETS, ranker.rankSubnets("m6g.large"));
+    }
+
+    @Test
+    void successfulLaunchesClearCapacityErrors() {
+        ranker.recordCapacityError(INSTANCE_TYPE, "subnet-a");
+        ranker.recordSuccess(INSTANCE_TYPE, "subnet-a");
+        assertEquals(SUBNETS, ranker.rankSubnets(INSTANCE_TYPE));
+    }
+
+    @Test
+    void subnetsAreRankedByCapacityErrorsWhenPricesCannotBeLookedUp() {
+        ec2Client.spotPriceHistoryException = ec2Exception("UnauthorizedOperation");
+        ranker.recordCapacityError(INSTANCE_TYPE, "subnet-b");
+        assertEquals(List.of("subnet-a", "subnet-c", "subnet-b"), ranker.rankSubnets(INSTANCE_TYPE));
+    }
+
+    @Test
+    void availabilityZonesAreOnlyLookedUpOnce() {
+        ec2Client.spotPrices.put(INSTANCE_TYPE, Map.of("us-east-1a", 0.05));
+        ranker.rankSubnets(INSTANCE_TYPE);
+        ranker.rankSubnets(INSTANCE_TYPE);
+        assertEquals(1, ec2Client.getRequestCount("DescribeSubnets"));
+    }
+
+    @Test
+    void capacityErrorsAreRecognizedByTheirErrorCode() {
+        assertTrue(SpotSubnetRanker.isCapacityError(ec2Exception("InsufficientInstanceCapacity")));
+        assertTrue(SpotSubnetRanker.isCapacityError(ec2Exception("SpotMaxPriceTooLow")));
+        assertFalse(SpotSubnetRanker.isCapacityError(ec2Exception("UnauthorizedOperation")));
+        assertFalse(SpotSubnetRanker.isCapacityError(new IllegalStateException("InsufficientInstanceCapacity")));
+    }
+}
@@ -0,0 +1,101 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StartLatencyMetricsTest {
+    private static final Instant START = Instant.ofEpochMilli(1700000000000L);
+
+    private static ServerLifecycle.Event transition(ServerLifecyclePhase phase, long millis) {
+        return new ServerLifecycle.Event(phase, START.plusMillis(millis));
+    }
+
+    private static ServerLifecycle.Event marker(String name, long millis) {
+        return ServerLifecycle.Event.marker(name, START.plusMillis(millis));
+    }
+
+    /**
+     * The events of a run that was queued, started and stopped again, in the order they were recorded
+     */
+    private static List<ServerLifecycle.Event> getStoppedRun() {
+        List<ServerLifecycle.Event> events = new ArrayList<>();
+        // The launcher function records its markers with REQUESTED, after it has received the request
+        events.add(marker(StartLatencyMetrics.QUEUED, 0));
+        events.add(marker(StartLatencyMetrics.DEQUEUED, 200));
+        events.add(transition(ServerLifecyclePhase.REQUESTED, 300));
+        events.add(marker(StartLatencyMetrics.LAUNCH_REQUESTED, 500));
+        events.add(transition(ServerLifecyclePhase.FULFILLED, 4500));
+        events.add(transition(ServerLifecyclePhase.BOOTING, 30000));
+        events.add(transition(ServerLifecyclePhase.READY, 40000));
+        events.add(marker(StartLatencyMetrics.WORLD_LOADED, 55000));
+        events.add(transition(ServerLifecyclePhase.STOPPING, 3600000));
+        events.add(transition(ServerLifecyclePhase.OFFLINE, 3660000));
+        return events;
+    }
+
+    @Test
+    void theStartEndsWhenTheServerIsStopped() {
+        List<ServerLifecycle.Event> events = getStoppedRun();
+        // Markers may be recorded after the events that followed them
+        events.add(0, events.remove(1));
+
+        List<String> names = StartLatencyMetrics.getStartEvents(events).stream()
+                .map(ServerLifecycle.Event::getName)
+                .collect(Collectors.toList());
+        assertEquals(List.of("queued", "dequeued", "REQUESTED", "launch-requested", "FULFILLED", "BOOTING", "READY",
+                "world-loaded"), names);
+    }
+
+    @Test
+    void eachStepTakesTheTimeSinceThePreviousEvent() {
+        Map<String, Duration> stepDurations = StartLatencyMetrics.getStepDurations(getStoppedRun());
+
+        assertEquals(List.of("dequeued", "REQUESTED", "launch-requested", "FULFILLED", "BOOTING", "READY",
+                "world-loaded"), new ArrayList<>(stepDurations.keySet()));
+        assertEquals(Duration.ofMillis(200), stepDurations.get(StartLatencyMetrics.DEQUEUED));
+        assertEquals(Duration.ofMillis(4000), stepDurations.get("FULFILLED"));
+        assertEquals(Duration.ofMillis(15000), stepDurations.get(StartLatencyMetrics.WORLD_LOADED));
+    }
+
+    @Test
+    void timesUntilAnEventAreMeasuredFromTheFirstEvent() {
+        List<ServerLifecycle.Event> events = getStoppedRun();
+
+        assertEquals(Duration.ofSeconds(40), StartLatencyMetrics.getTimeUntil(events, "READY"));
+        assertEquals(Duration.ofSeconds(55),
+                StartLatencyMetrics.getTimeUntil(events, StartLatencyMetrics.WORLD_LOADED));
+        // The events of the stop are not part of the start
+        assertNull(StartLatencyMetrics.getTimeUntil(events, "OFFLINE"));
+    }
+
+    @Test
+    void theMetricsOfAStartLeaveTheTimeToOnlineToTheStartupScript() {
+        UUID serverId = UUID.randomUUID();
+
+        String line = StartLatencyMetrics.toEmbeddedMetricFormat(serverId, getStoppedRun());
+
+        assertNotNull(line);
+        assertTrue(line.contains("\"TimeToWorldLoaded\":55000"), line);
+        assertTrue(line.contains("\"Start.FULFILLED\":4000"), line);
+        assertTrue(line.contains("\"ServerId\":\"" + serverId + "\""), line);
+        assertFalse(line.contains("TimeToOnline"), line);
+    }
+
+    @Test
+    void startsThatNeverBecameReadyHaveNoMetrics() {
+        List<ServerLifecycle.Event> events = List.of(transition(ServerLifecyclePhase.REQUESTED, 0),
+                transition(ServerLifecyclePhase.FULFILLED, 4000), transition(ServerLifecyclePhase.FAILED, 300000),
+                transition(ServerLifecyclePhase.STOPPING, 300100), transition(ServerLifecyclePhase.OFFLINE, 301000));
+
+        assertNull(StartLatencyMetrics.toEmbeddedMetricFormat(UUID.randomUUID(), events));
+    }
+}
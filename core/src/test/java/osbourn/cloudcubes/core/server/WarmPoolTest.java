@@ -0,0 +1,323 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.ec2.model.Image;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceInterruptionBehavior;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceType;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WarmPoolTest {
+    private static final String TABLE_NAME = TestInfrastructureConstructor.WARM_POOL_TABLE_NAME;
+    private static final String IMAGE_ID = "ami-current";
+    private static final List<String> INSTANCE_TYPES = List.of("m6g.large", "m6g.xlarge");
+
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final List<InstanceRequirements> selectedRequirements = new ArrayList<>();
+
+    WarmPoolTest() {
+        dynamoDbClient.setKeyName(TABLE_NAME, "InstanceId");
+        ec2Client.images.add(Image.builder()
+                .imageId(IMAGE_ID)
+                .name("cloudcubes-server-2026-10-01")
+                .creationDate("2026-10-01T00:00:00.000Z")
+                .state("available")
+                .architecture("arm64")
+                .build());
+    }
+
+    private WarmPool createPool(int sizePerSubnet) {
+        return new WarmPool(dynamoDbClient, TABLE_NAME, ec2Client,
+                TestInfrastructureConstructor.createConfiguration(sizePerSubnet),
+                requirements -> {
+                    selectedRequirements.add(requirements);
+                    return INSTANCE_TYPES;
+                },
+                new ServerImageResolver(ec2Client, "cloudcubes-server-"),
+                sizePerSubnet);
+    }
+
+    /**
+     * Adds an instance to the pool, as replenish() would have launched it.
+     */
+    private void addPoolInstance(String instanceId, String subnetId, String instanceType, String imageId,
+                                 String poolState, Instant createdAt, InstanceStateName instanceState) {
+        ec2Client.instances.put(instanceId, Instance.builder()
+                .instanceId(instanceId)
+                .subnetId(subnetId)
+                .instanceType(instanceType)
+                .imageId(imageId)
+                .spotInstanceRequestId("sir-" + instanceId.substring(2))
+                .state(InstanceState.builder().name(instanceState).build())
+                .launchTime(createdAt)
+                .tags(Tag.builder().key(WarmPool.POOL_TAG_KEY).value("true").build())
+                .build());
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("InstanceId", AttributeValue.builder().s(instanceId).build());
+        item.put("SubnetId", AttributeValue.builder().s(subnetId).build());
+        item.put("InstanceType", AttributeValue.builder().s(instanceType).build());
+        item.put("ImageId", AttributeValue.builder().s(imageId).build());
+        item.put("PoolState", AttributeValue.builder().s(poolState).build());
+        item.put("CreatedAt", AttributeValue.builder().s(createdAt.toString()).build());
+        if (!poolState.equals("WARMING")) {
+            item.put("SpotRequestId", AttributeValue.builder().s("sir-" + instanceId.substring(2)).build());
+        }
+        dynamoDbClient.putItem(TABLE_NAME, item);
+    }
+
+    private void addAvailableInstance(String instanceId, String subnetId, String instanceType) {
+        addPoolInstance(instanceId, subnetId, instanceType, IMAGE_ID, "AVAILABLE", Instant.now(),
+                InstanceStateName.STOPPED);
+    }
+
+    private String getPoolState(String instanceId) {
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(TABLE_NAME, instanceId);
+        return item == null ? null : item.get("PoolState").s();
+    }
+
+    private boolean hasPoolTag(String instanceId) {
+        return ec2Client.instances.get(instanceId).tags().stream()
+                .anyMatch(tag -> tag.key().equals(WarmPool.POOL_TAG_KEY));
+    }
+
+    @Test
+    void replenishLaunchesTheConfiguredNumberOfInstancesInEverySubnet() {
+        WarmPool pool = createPool(2);
+        assertTrue(pool.isEnabled());
+        assertEquals(4, pool.replenish());
+
+        Map<String, Integer> subnetSizes = new HashMap<>();
+        for (Instance instance : ec2Client.instances.values()) {
+            subnetSizes.merge(instance.subnetId(), 1, Integer::sum);
+            assertEquals(IMAGE_ID, instance.imageId());
+            // The cheapest instance type meeting the default requirements of a server
+            assertEquals("m6g.large", instance.instanceTypeAsString());
+            assertEquals("WARMING", getPoolState(instance.instanceId()));
+            assertTrue(hasPoolTag(instance.instanceId()));
+        }
+        assertEquals(Map.of("subnet-a", 2, "subnet-b", 2), subnetSizes);
+        assertEquals(Set.of("arm64"), selectedRequirements.get(0).getArchitectures());
+
+        // The pool is full, so nothing is launched
+        assertEquals(0, pool.replenish());
+        assertEquals(4, ec2Client.getRequestCount("RunInstances"));
+    }
+
+    @Test
+    void poolInstancesArePersistentSpotInstancesThatWarmUpOnEveryBoot() {
+        createPool(1).replenish();
+        RunInstancesRequest request = ec2Client.runInstancesRequests.get(0);
+        assertEquals(SpotInstanceType.PERSISTENT,
+                request.instanceMarketOptions().spotOptions().spotInstanceType());
+        // A stopped instance keeps its spot request, so an interrupted pool instance can still be claimed
+        assertEquals(InstanceInterruptionBehavior.STOP,
+                request.instanceMarketOptions().spotOptions().instanceInterruptionBehavior());
+        assertEquals(List.of("test"), request.securityGroupIds());
+
+        String userData = new String(Base64.getDecoder().decode(request.userData()), StandardCharsets.UTF_8);
+        assertTrue(userData.contains("- [scripts-user, always]"));
+        assertTrue(userData.contains("/server-startup/warm-up.sh"));
+    }
+
+    @Test
+    void instancesBecomeAvailableOnceTheyHaveStoppedAfterWarmingUp() {
+        WarmPool pool = createPool(1);
+        pool.replenish();
+        List<String> instanceIds = new ArrayList<>(ec2Client.instances.keySet());
+        assertNull(pool.claim(IMAGE_ID, INSTANCE_TYPES));
+
+        ec2Client.setInstanceState(instanceIds.get(0), InstanceStateName.STOPPED);
+        assertEquals(0, pool.replenish());
+        assertEquals("AVAILABLE", getPoolState(instanceIds.get(0)));
+        assertEquals("WARMING", getPoolState(instanceIds.get(1)));
+
+        WarmPool.PooledInstance claimed = pool.claim(IMAGE_ID, INSTANCE_TYPES);
+        assertNotNull(claimed);
+        assertEquals(instanceIds.get(0), claimed.getInstanceId());
+        assertEquals(ec2Client.instances.get(instanceIds.get(0)).spotInstanceRequestId(), claimed.getSpotRequestId());
+    }
+
+    @Test
+    void claimedInstancesLeaveThePool() {
+        WarmPool pool = createPool(1);
+        addAvailableInstance("i-1", "subnet-a", "m6g.large");
+
+        WarmPool.PooledInstance claimed = pool.claim(IMAGE_ID, INSTANCE_TYPES);
+        assertNotNull(claimed);
+        assertNull(getPoolState("i-1"));
+        assertFalse(hasPoolTag("i-1"));
+        assertNull(pool.claim(IMAGE_ID, INSTANCE_TYPES));
+
+        // The claimed instance belongs to its server, so the pool launches a replacement and leaves it alone
+        assertEquals(2, pool.replenish());
+        assertEquals(0, ec2Client.getRequestCount("TerminateInstances"));
+    }
+
+    @Test
+    void instancesAreClaimedInTheOrderTheirTypesArePreferred() {
+        WarmPool pool = createPool(1);
+        addAvailableInstance("i-xlarge", "subnet-a", "m6g.xlarge");
+        addAvailableInstance("i-large", "subnet-b", "m6g.large");
+        addAvailableInstance("i-unsuitable", "subnet-b", "t4g.nano");
+        addPoolInstance("i-outdated", "subnet-a", "m6g.large", "ami-outdated", "AVAILABLE", Instant.now(),
+                InstanceStateName.STOPPED);
+
+        assertEquals("i-large", pool.claim(IMAGE_ID, INSTANCE_TYPES).getInstanceId());
+        assertEquals("i-xlarge", pool.claim(IMAGE_ID, INSTANCE_TYPES).getInstanceId());
+        assertNull(pool.claim(IMAGE_ID, INSTANCE_TYPES));
+    }
+
+    @Test
+    void eachInstanceIsClaimedByOneServer() throws Exception {
+        WarmPool pool = createPool(1);
+        addAvailableInstance("i-1", "subnet-a", "m6g.large");
+        addAvailableInstance("i-2", "subnet-b", "m6g.large");
+
+        int servers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(servers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<WarmPool.PooledInstance>> claims = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            claims.add(executor.submit(() -> {
+                start.await();
+                return pool.claim(IMAGE_ID, INSTANCE_TYPES);
+            }));
+        }
+        start.countDown();
+        Set<String> claimedInstanceIds = new HashSet<>();
+        int successfulClaims = 0;
+        for (Future<WarmPool.PooledInstance> claim : claims) {
+            WarmPool.PooledInstance claimed = claim.get(10, TimeUnit.SECONDS);
+            if (claimed != null) {
+                successfulClaims++;
+                claimedInstanceIds.add(claimed.getInstanceId());
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(2, successfulClaims);
+        assertEquals(Set.of("i-1", "i-2"), claimedInstanceIds);
+    }
+
+    @Test
+    void releasedInstancesCanBeClaimedAgain() {
+        WarmPool pool = createPool(1);
+        addAvailableInstance("i-1", "subnet-a", "m6g.large");
+
+        WarmPool.PooledInstance claimed = pool.claim(IMAGE_ID, INSTANCE_TYPES);
+        pool.release(claimed);
+        assertEquals("AVAILABLE", getPoolState("i-1"));
+        assertTrue(hasPoolTag("i-1"));
+        assertEquals("i-1", pool.claim(IMAGE_ID, INSTANCE_TYPES).getInstanceId());
+    }
+
+    @Test
+    void replenishReplacesOutdatedStuckAndVanishedInstances() {
+        WarmPool pool = createPool(1);
+        Instant now = Instant.now();
+        addPoolInstance("i-outdated", "subnet-a", "m6g.large", "ami-outdated", "AVAILABLE", now,
+                InstanceStateName.STOPPED);
+        addPoolInstance("i-stuck", "subnet-b", "m6g.large", IMAGE_ID, "WARMING", now.minus(Duration.ofHours(1)),
+                InstanceStateName.RUNNING);
+        addAvailableInstance("i-vanished", "subnet-b", "m6g.large");
+        ec2Client.setInstanceState("i-vanished", InstanceStateName.TERMINATED);
+
+        assertEquals(2, pool.replenish());
+        assertNull(getPoolState("i-outdated"));
+        assertNull(getPoolState("i-stuck"));
+        assertNull(getPoolState("i-vanished"));
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-outdated").state().name());
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-stuck").state().name());
+        // The persistent spot requests are cancelled, so they do not launch the instances again
+        assertEquals(Set.of("sir-outdated", "sir-stuck"), ec2Client.cancelledSpotRequestIds);
+    }
+
+    @Test
+    void orphanedInstancesAreTerminatedAfterAGracePeriod() {
+        WarmPool pool = createPool(0);
+        Instant now = Instant.now();
+        addPoolInstance("i-old-orphan", "subnet-a", "m6g.large", IMAGE_ID, "WARMING", now.minus(Duration.ofHours(1)),
+                InstanceStateName.STOPPED);
+        addPoolInstance("i-new-orphan", "subnet-a", "m6g.large", IMAGE_ID, "WARMING", now,
+                InstanceStateName.RUNNING);
+        dynamoDbClient.deleteItem(request -> request.tableName(TABLE_NAME)
+                .key(Map.of("InstanceId", AttributeValue.builder().s("i-old-orphan").build())));
+        dynamoDbClient.deleteItem(request -> request.tableName(TABLE_NAME)
+                .key(Map.of("InstanceId", AttributeValue.builder().s("i-new-orphan").build())));
+
+        assertEquals(0, pool.replenish());
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-old-orphan").state().name());
+        assertEquals(InstanceStateName.RUNNING, ec2Client.instances.get("i-new-orphan").state().name());
+    }
+
+    @Test
+    void malformedEntriesAreDeletedAndTheirInstancesTerminated() {
+        WarmPool pool = createPool(1);
+        addPoolInstance("i-malformed", "subnet-a", "m6g.large", IMAGE_ID, "AVAILABLE",
+                Instant.now().minus(Duration.ofHours(1)), InstanceStateName.STOPPED);
+        Map<String, AttributeValue> item = new HashMap<>(dynamoDbClient.getItem(TABLE_NAME, "i-malformed"));
+        item.put("CreatedAt", AttributeValue.builder().s("yesterday").build());
+        dynamoDbClient.putItem(TABLE_NAME, item);
+
+        // The entry cannot be claimed, and does not count towards the size of the pool
+        assertNull(pool.claim(IMAGE_ID, INSTANCE_TYPES));
+        assertEquals(2, pool.replenish());
+        assertNull(getPoolState("i-malformed"));
+        assertEquals(InstanceStateName.TERMINATED, ec2Client.instances.get("i-malformed").state().name());
+    }
+
+    @Test
+    void subnetsWithoutCapacityAreSkippedUntilTheNextReplenish() {
+        WarmPool pool = createPool(2);
+        ec2Client.subnetsWithoutCapacity.add("subnet-a");
+        assertEquals(2, pool.replenish());
+
+        ec2Client.subnetsWithoutCapacity.clear();
+        assertEquals(2, pool.replenish());
+    }
+
+    @Test
+    void aPoolWithoutInstancesIsDisabled() {
+        assertFalse(createPool(0).isEnabled());
+    }
+
+    @Test
+    void statisticsAverageTheStartsOfEachPath() {
+        WarmPool.Statistics statistics = createPool(1).getStatistics();
+        assertNull(statistics.getAverageStartLatency(true));
+
+        statistics.recordStart(true, Duration.ofSeconds(10));
+        statistics.recordStart(true, Duration.ofSeconds(20));
+        statistics.recordStart(false, Duration.ofSeconds(90));
+        assertEquals(2, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(Duration.ofSeconds(15), statistics.getAverageStartLatency(true));
+        assertEquals(Duration.ofSeconds(90), statistics.getAverageStartLatency(false));
+        assertEquals("2 hits (average 15000 ms), 1 misses (average 90000 ms)", statistics.toString());
+    }
+}
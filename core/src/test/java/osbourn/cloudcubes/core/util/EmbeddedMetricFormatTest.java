@@ -0,0 +1,49 @@
+package osbourn.cloudcubes.core.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddedMetricFormatTest {
+    private static final Instant TIMESTAMP = Instant.ofEpochMilli(1700000000000L);
+
+    @Test
+    void durationsAreFormattedAsMillisecondMetrics() {
+        Map<String, Duration> metrics = new LinkedHashMap<>();
+        metrics.put("TimeToWorldLoaded", Duration.ofMillis(1500));
+        metrics.put("Start.READY", Duration.ofNanos(250_900_000));
+
+        String line = EmbeddedMetricFormat.formatDurations(Map.of("Function", "server-launcher"), metrics,
+                Map.of("ServerId", "1234"), TIMESTAMP);
+
+        assertEquals("{\"_aws\":{\"Timestamp\":1700000000000,\"CloudWatchMetrics\":[{\"Namespace\":\"CloudCubes\","
+                + "\"Dimensions\":[[\"Function\"]],\"Metrics\":[{\"Name\":\"TimeToWorldLoaded\","
+                + "\"Unit\":\"Milliseconds\"},{\"Name\":\"Start.READY\",\"Unit\":\"Milliseconds\"}]}]},"
+                + "\"Function\":\"server-launcher\","
+                + "\"TimeToWorldLoaded\":1500,\"Start.READY\":250,\"ServerId\":\"1234\"}", line);
+    }
+
+    @Test
+    void metricsWithoutDimensionsUseAnEmptyDimensionSet() {
+        String line = EmbeddedMetricFormat.formatDurations(Collections.emptyMap(),
+                Map.of("ColdStart", Duration.ofSeconds(2)), Collections.emptyMap(), TIMESTAMP);
+
+        assertEquals("{\"_aws\":{\"Timestamp\":1700000000000,\"CloudWatchMetrics\":[{\"Namespace\":\"CloudCubes\","
+                + "\"Dimensions\":[[]],\"Metrics\":[{\"Name\":\"ColdStart\",\"Unit\":\"Milliseconds\"}]}]},"
+                + "\"ColdStart\":2000}", line);
+    }
+
+    @Test
+    void quotesBackslashesAndControlCharactersAreEscaped() {
+        String line = EmbeddedMetricFormat.formatDurations(Collections.emptyMap(), Collections.emptyMap(),
+                Map.of("Error", "\"C:\\world\"\n"), TIMESTAMP);
+
+        assertTrue(line.endsWith(",\"Error\":\"\\\"C:\\\\world\\\"\\u000a\"}"), line);
+    }
+}
@@ -2,26 +2,49 @@ package osbourn.cloudcubes.infrastructure;
 
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.server.EC2SpotInstanceManager;
+import osbourn.cloudcubes.core.util.EmbeddedMetricFormat;
+import software.amazon.awscdk.CfnOutput;
 import software.amazon.awscdk.Duration;
 import software.amazon.awscdk.RemovalPolicy;
 import software.amazon.awscdk.Stack;
 import software.amazon.awscdk.services.dynamodb.Attribute;
 import software.amazon.awscdk.services.dynamodb.AttributeType;
 import software.amazon.awscdk.services.dynamodb.BillingMode;
+import software.amazon.awscdk.services.dynamodb.GlobalSecondaryIndexProps;
+import software.amazon.awscdk.services.dynamodb.ProjectionType;
 import software.amazon.awscdk.services.dynamodb.Table;
 import software.amazon.awscdk.services.ec2.*;
+import software.amazon.awscdk.services.events.EventPattern;
+import software.amazon.awscdk.services.events.Rule;
+import software.amazon.awscdk.services.events.Schedule;
+import software.amazon.awscdk.services.events.targets.LambdaFunction;
 import software.amazon.awscdk.services.iam.*;
+import software.amazon.awscdk.services.imagebuilder.CfnComponent;
+import software.amazon.awscdk.services.imagebuilder.CfnDistributionConfiguration;
+import software.amazon.awscdk.services.imagebuilder.CfnImagePipeline;
+import software.amazon.awscdk.services.imagebuilder.CfnImageRecipe;
+import software.amazon.awscdk.services.imagebuilder.CfnInfrastructureConfiguration;
+import software.amazon.awscdk.services.lambda.Alias;
+import software.amazon.awscdk.services.lambda.CfnFunction;
 import software.amazon.awscdk.services.lambda.Code;
 import software.amazon.awscdk.services.lambda.Function;
 import software.amazon.awscdk.services.lambda.Runtime;
+import software.amazon.awscdk.services.lambda.eventsources.SqsEventSource;
 import software.amazon.awscdk.services.s3.Bucket;
 import software.amazon.awscdk.services.s3.deployment.BucketDeployment;
 import software.amazon.awscdk.services.s3.deployment.Source;
+import software.amazon.awscdk.services.sqs.Queue;
 import software.constructs.Construct;
 
 import java.util.*;
 
 public class CloudCubesStack extends Stack {
+    /**
+     * The prefix of the names of the images baked by the server image pipeline
+     */
+    private static final String SERVER_IMAGE_NAME_PREFIX = "cloudcubes-server";
+
     public CloudCubesStack(final Construct parent, final String name) {
         super(parent, name);
 
@@ -35,6 +58,34 @@ public class CloudCubesStack extends Stack {
                 .billingMode(BillingMode.PAY_PER_REQUEST)
                 .partitionKey(serverTablePartitionKey)
                 .build();
+        // Instances launched for several servers with a single spot request find their server through this index
+        serverTable.addGlobalSecondaryIndex(GlobalSecondaryIndexProps.builder()
+                .indexName(EC2SpotInstanceManager.SPOT_REQUEST_INDEX_NAME)
+                .partitionKey(Attribute.builder()
+                        .name("EC2SpotRequestId")
+                        .type(AttributeType.STRING)
+                        .build())
+                .projectionType(ProjectionType.KEYS_ONLY)
+                .build());
+        // Spot interruption warnings only name the instance, so the server running on it is found through this index
+        serverTable.addGlobalSecondaryIndex(GlobalSecondaryIndexProps.builder()
+                .indexName(EC2SpotInstanceManager.INSTANCE_ID_INDEX_NAME)
+                .partitionKey(Attribute.builder()
+                        .name("EC2InstanceId")
+                        .type(AttributeType.STRING)
+                        .build())
+                .projectionType(ProjectionType.KEYS_ONLY)
+                .build());
+
+        // Create the DynamoDB table that records the instances of the warm pool, which servers are started on
+        Table warmPoolTable = Table.Builder.create(this, "WarmPoolTable")
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .partitionKey(Attribute.builder()
+                        .name("InstanceId")
+                        .type(AttributeType.STRING)
+                        .build())
+                .build();
 
         // Resources bucket: the contents of the resources folder will be made available as an S3 bucket
         Bucket resourceBucket = Bucket.Builder.create(this, "ResourceBucket")
@@ -43,7 +94,15 @@ public class CloudCubesStack extends Stack {
                 .build();
         BucketDeployment resourceBucketDeployment = BucketDeployment.Builder.create(this, "ResourceBucketDeployment")
                 .destinationBucket(resourceBucket)
-                .sources(Collections.singletonList(Source.asset("./resources")))
+                .sources(Arrays.asList(
+                        Source.asset("./resources"),
+                        // Contains server-agent/server-agent.jar, which startup.sh runs next to the Minecraft server
+                        Source.asset("./server-agent/build/asset")))
+                .build();
+
+        // World bucket: the files of every server are stored here while the server is offline
+        Bucket worldBucket = Bucket.Builder.create(this, "WorldBucket")
+                .removalPolicy(RemovalPolicy.RETAIN)
                 .build();
 
         // Create VPC
@@ -56,6 +115,7 @@ public class CloudCubesStack extends Stack {
         // Create security group used by server instances
         final int sshPort = 22;
         final int minecraftPort = 25565;
+        final int rconPort = 25575;
         SecurityGroup serverSecurityGroup = SecurityGroup.Builder.create(this, "ServerSecurityGroup")
                 .description("Security group for EC2 Instances launched by the CloudCubes application")
                 .vpc(serverVpc)
@@ -65,6 +125,10 @@ public class CloudCubesStack extends Stack {
         connections.allowFromAnyIpv4(Port.tcp(minecraftPort), "Allow TCP access to the Minecraft Server");
         connections.allowFromAnyIpv4(Port.udp(minecraftPort), "Allow UDP access to the Minecraft Server");
         connections.allowFromAnyIpv4(Port.tcp(sshPort), "Allows TCP access through SSH");
+        // RCON is not encrypted, so it is not open to the internet. The world is saved before a server is stopped by
+        // the server agent, which connects to RCON on the instance itself and is run through Systems Manager. Commands
+        // sent with the RCON connection pool must come from inside the VPC, from a member of this security group.
+        connections.allowInternally(Port.tcp(rconPort), "Allows TCP access to RCON from within the security group");
 
         // IAM Role for EC2 instances
         Role serverRole = Role.Builder.create(this, "ServerRole")
@@ -74,10 +138,115 @@ public class CloudCubesStack extends Stack {
         serverRole.addManagedPolicy(ManagedPolicy.fromAwsManagedPolicyName("AmazonSSMManagedInstanceCore"));
         serverTable.grantReadWriteData(serverRole);
         resourceBucket.grantRead(serverRole);
+        worldBucket.grantReadWrite(serverRole);
+        // Used by instances launched for several servers at once to find the spot request they were launched by
+        serverRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Collections.singletonList("ec2:DescribeInstances"))
+                .build());
+        // Used by startup.sh to publish the time to ONLINE, see StartLatencyMetrics.java
+        serverRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Collections.singletonList("cloudwatch:PutMetricData"))
+                .conditions(Map.of("StringEquals", Map.of("cloudwatch:namespace", EmbeddedMetricFormat.NAMESPACE)))
+                .build());
         CfnInstanceProfile serverInstanceProfile = CfnInstanceProfile.Builder.create(this, "ServerInstanceProfile")
                 .roles(Collections.singletonList(serverRole.getRoleName()))
                 .build();
 
+        // Server image pipeline: bakes the AWS CLI, a JDK and the Minecraft server into an AMI, so that servers do not
+        // have to install them every time they boot
+        // The server jar can be set with "-c minecraftServerJarUrl=<url>", otherwise it is left out of the image
+        Object minecraftServerJarUrl = this.getNode().tryGetContext("minecraftServerJarUrl");
+        StringBuilder serverImageComponentData = new StringBuilder()
+                .append("name: CloudCubesServerDependencies\n")
+                .append("schemaVersion: 1.0\n")
+                .append("phases:\n")
+                .append("  - name: build\n")
+                .append("    steps:\n")
+                .append("      - name: InstallAwsCliV2\n")
+                .append("        action: ExecuteBash\n")
+                .append("        inputs:\n")
+                .append("          commands:\n")
+                .append("            - curl \"https://awscli.amazonaws.com/awscli-exe-linux-x86_64.zip\" -o /tmp/awscliv2.zip\n")
+                .append("            - unzip -q /tmp/awscliv2.zip -d /tmp/awscliv2\n")
+                .append("            - /tmp/awscliv2/aws/install\n")
+                .append("            - rm -rf /tmp/awscliv2 /tmp/awscliv2.zip\n")
+                .append("      - name: InstallJdk\n")
+                .append("        action: ExecuteBash\n")
+                .append("        inputs:\n")
+                .append("          commands:\n")
+                .append("            - yum install -y java-17-amazon-corretto-headless\n");
+        if (minecraftServerJarUrl != null) {
+            serverImageComponentData
+                    .append("      - name: DownloadMinecraftServer\n")
+                    .append("        action: WebDownload\n")
+                    .append("        inputs:\n")
+                    .append("          - source: ").append(minecraftServerJarUrl).append("\n")
+                    .append("            destination: /opt/minecraft/server.jar\n");
+        }
+        CfnComponent serverImageComponent = CfnComponent.Builder.create(this, "ServerImageComponent")
+                .name("CloudCubesServerDependencies")
+                .platform("Linux")
+                .version("1.0.0")
+                .data(serverImageComponentData.toString())
+                .build();
+        CfnImageRecipe serverImageRecipe = CfnImageRecipe.Builder.create(this, "ServerImageRecipe")
+                .name("CloudCubesServer")
+                .version("1.0.0")
+                .parentImage("arn:aws:imagebuilder:" + this.getRegion() + ":aws:image/amazon-linux-2-x86/x.x.x")
+                .components(Collections.singletonList(CfnImageRecipe.ComponentConfigurationProperty.builder()
+                        .componentArn(serverImageComponent.getAttrArn())
+                        .build()))
+                .build();
+        Role serverImageBuilderRole = Role.Builder.create(this, "ServerImageBuilderRole")
+                .description("Grants the EC2 instances that build server images permission to run Image Builder")
+                .assumedBy(ServicePrincipal.Builder.create("ec2.amazonaws.com").build())
+                .build();
+        serverImageBuilderRole.addManagedPolicy(
+                ManagedPolicy.fromAwsManagedPolicyName("EC2InstanceProfileForImageBuilder"));
+        serverImageBuilderRole.addManagedPolicy(ManagedPolicy.fromAwsManagedPolicyName("AmazonSSMManagedInstanceCore"));
+        CfnInstanceProfile serverImageBuilderInstanceProfile = CfnInstanceProfile.Builder
+                .create(this, "ServerImageBuilderInstanceProfile")
+                .roles(Collections.singletonList(serverImageBuilderRole.getRoleName()))
+                .build();
+        CfnInfrastructureConfiguration serverImageInfrastructure = CfnInfrastructureConfiguration.Builder
+                .create(this, "ServerImageInfrastructure")
+                .name("CloudCubesServerImageInfrastructure")
+                .instanceProfileName(serverImageBuilderInstanceProfile.getRef())
+                .subnetId(serverVpc.getPublicSubnets().get(0).getSubnetId())
+                .securityGroupIds(Collections.singletonList(serverSecurityGroup.getSecurityGroupId()))
+                .terminateInstanceOnFailure(true)
+                .build();
+        CfnDistributionConfiguration serverImageDistribution = CfnDistributionConfiguration.Builder
+                .create(this, "ServerImageDistribution")
+                .name("CloudCubesServerImageDistribution")
+                .distributions(Collections.singletonList(CfnDistributionConfiguration.DistributionProperty.builder()
+                        .region(this.getRegion())
+                        .amiDistributionConfiguration(Map.of(
+                                "Name", SERVER_IMAGE_NAME_PREFIX + "-{{ imagebuilder:buildDate }}"))
+                        .build()))
+                .build();
+        CfnImagePipeline.Builder.create(this, "ServerImagePipeline")
+                .name("CloudCubesServerImagePipeline")
+                .imageRecipeArn(serverImageRecipe.getAttrArn())
+                .infrastructureConfigurationArn(serverImageInfrastructure.getAttrArn())
+                .distributionConfigurationArn(serverImageDistribution.getAttrArn())
+                // Rebuild weekly so that the image picks up security updates of its parent image
+                .schedule(CfnImagePipeline.ScheduleProperty.builder()
+                        .scheduleExpression("cron(0 4 ? * sun *)")
+                        .pipelineExecutionStartCondition("EXPRESSION_MATCH_AND_DEPENDENCY_UPDATES_AVAILABLE")
+                        .build())
+                .build();
+
+        // Start requests are queued, so that bursts of requests are launched in batches by the server launcher function
+        // The visibility timeout is several times the timeout of the function, as recommended for SQS event sources
+        Queue serverStartQueue = Queue.Builder.create(this, "ServerStartQueue")
+                .visibilityTimeout(Duration.minutes(12))
+                .build();
+
         // Create InfrastructureConfiguration object to determine environment variables for the lambda functions
         List<String> serverSubnetIds = new ArrayList<>();
         for (ISubnet subnet : serverVpc.getPublicSubnets()) {
@@ -91,31 +260,224 @@ public class CloudCubesStack extends Stack {
         ic.setValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN, serverInstanceProfile.getAttrArn());
         ic.setValue(InfrastructureSetting.SERVERSECURITYGROUPID, serverSecurityGroup.getSecurityGroupId());
         ic.setValue(InfrastructureSetting.SERVERVPCID, serverVpc.getVpcId());
+        ic.setValue(InfrastructureSetting.SERVERIMAGENAMEPREFIX, SERVER_IMAGE_NAME_PREFIX);
+        ic.setValue(InfrastructureSetting.WORLDBUCKETNAME, worldBucket.getBucketName());
+        // Servers that have been empty for this long are stopped, it can be set with "-c idleTimeoutMinutes=<minutes>"
+        Object idleTimeoutMinutes = this.getNode().tryGetContext("idleTimeoutMinutes");
+        ic.setValue(InfrastructureSetting.SERVERIDLETIMEOUTMINUTES,
+                idleTimeoutMinutes != null ? idleTimeoutMinutes.toString() : "15");
+        ic.setValue(InfrastructureSetting.WARMPOOLTABLENAME, warmPoolTable.getTableName());
+        // The number of stopped instances kept ready in every subnet, it can be set with "-c warmPoolSizePerSubnet=<n>"
+        // and is 0 by default, which disables the warm pool
+        Object warmPoolSizePerSubnet = this.getNode().tryGetContext("warmPoolSizePerSubnet");
+        ic.setValue(InfrastructureSetting.WARMPOOLSIZEPERSUBNET,
+                warmPoolSizePerSubnet != null ? warmPoolSizePerSubnet.toString() : "0");
+        ic.setValue(InfrastructureSetting.SERVERSTARTQUEUEURL, serverStartQueue.getQueueUrl());
         ic.setServerSubnetIds(serverSubnetIds);
 
         Map<String, String> infrastructureDataMap = ic.toEnvironmentVariableMap();
 
+        // Deploying with "-c coldStartProfile=true" (set by "gradlew deploy -PcoldStartProfile") tunes the Java
+        // functions for cold starts
+        boolean coldStartProfile = "true".equals(String.valueOf(this.getNode().tryGetContext("coldStartProfile")));
+        Map<String, String> serverStarterEnvironment = new HashMap<>(infrastructureDataMap);
+        if (coldStartProfile) {
+            // Short-lived invocations finish before the optimizing JIT compiler pays off
+            serverStarterEnvironment.put("JAVA_TOOL_OPTIONS", "-XX:+TieredCompilation -XX:TieredStopAtLevel=1");
+        }
+
         // Create the server starter function
         Function serverStarter = Function.Builder.create(this, "ServerStarter")
                 .code(Code.fromAsset("lambda/server-starter/build/libs/server-starter-all.jar"))
                 .handler("osbourn.cloudcubes.lambda.serverstarter.ServerStarterLambdaHandler")
                 .runtime(Runtime.JAVA_11)
-                .environment(infrastructureDataMap)
+                .environment(serverStarterEnvironment)
                 .timeout(Duration.seconds(30))
                 .memorySize(512)
                 .build();
-        assert serverStarter.getRole() != null;
-        serverStarter.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+        if (coldStartProfile) {
+            // SnapStart snapshots the initialized (and primed) handler when a version is published, and restores
+            // invocations of that version from the snapshot instead of running the init phase again
+            CfnFunction cfnServerStarter = (CfnFunction) serverStarter.getNode().getDefaultChild();
+            assert cfnServerStarter != null;
+            cfnServerStarter.addPropertyOverride("SnapStart.ApplyOn", "PublishedVersions");
+        }
+        // Invocations of the unqualified function run $LATEST, which is never restored from a snapshot, so the server
+        // starter is invoked through this alias of the current version, with or without the cold start profile
+        Alias serverStarterAlias = Alias.Builder.create(this, "ServerStarterLiveAlias")
+                .aliasName("live")
+                .version(serverStarter.getCurrentVersion())
+                .build();
+        CfnOutput.Builder.create(this, "ServerStarterFunctionArn")
+                .description("The function to invoke to start a server")
+                .value(serverStarterAlias.getFunctionArn())
+                .build();
+        serverStartQueue.grantSendMessages(serverStarter);
+
+        // Create the server launcher function, which starts the servers requested through the start queue
+        Function serverLauncher = Function.Builder.create(this, "ServerLauncher")
+                .code(Code.fromAsset("lambda/server-launcher/build/libs/server-launcher-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.serverlauncher.ServerLauncherLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                // The servers of a batch are claimed and launched one after another, which takes a few seconds each
+                // and longer when EC2 throttles the launcher, and then wait up to 20 seconds for their spot requests
+                // together
+                .timeout(Duration.minutes(2))
+                .memorySize(512)
+                .build();
+        serverLauncher.addEventSource(SqsEventSource.Builder.create(serverStartQueue)
+                .batchSize(10)
+                // Requests arriving within this window are launched together
+                .maxBatchingWindow(Duration.seconds(2))
+                .reportBatchItemFailures(true)
+                .build());
+        grantServerControl(serverLauncher, serverRole);
+        serverTable.grantReadWriteData(serverLauncher);
+        warmPoolTable.grantReadWriteData(serverLauncher);
+
+        // Create the idle monitor function, which stops servers that nobody has played on for the idle timeout
+        Function idleMonitor = Function.Builder.create(this, "IdleMonitor")
+                .code(Code.fromAsset("lambda/idle-monitor/build/libs/idle-monitor-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.idlemonitor.IdleMonitorLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                // Stopping a server waits for its world to be uploaded
+                .timeout(Duration.minutes(3))
+                .memorySize(512)
+                .build();
+        Rule.Builder.create(this, "IdleMonitorSchedule")
+                .schedule(Schedule.rate(Duration.minutes(1)))
+                .targets(Collections.singletonList(new LambdaFunction(idleMonitor)))
+                .build();
+        assert idleMonitor.getRole() != null;
+        idleMonitor.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList(
+                        // Used to find the servers and their public addresses
+                        "ec2:DescribeSpotInstanceRequests",
+                        "ec2:DescribeInstances",
+                        // Used to stop servers
+                        "ec2:CancelSpotInstanceRequests",
+                        "ec2:TerminateInstances",
+                        "ssm:SendCommand",
+                        "ssm:GetCommandInvocation"))
+                .build());
+        grantWorldVolumeControl(idleMonitor);
+        // The idle monitor needs no access to the warm pool table, as only starts claim and release pool instances and
+        // instances claimed from the pool are stopped like any other
+        serverTable.grantReadWriteData(idleMonitor);
+
+        // Create the interruption handler function, which relaunches servers whose spot instances are interrupted
+        Function interruptionHandler = Function.Builder.create(this, "InterruptionHandler")
+                .code(Code.fromAsset("lambda/interruption-handler/build/libs/interruption-handler-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.interruptionhandler.InterruptionHandlerLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                // The function waits up to the two minute notice period for the world to be saved before relaunching,
+                // and snapshotting a world volume waits for the interrupted instance to release it
+                .timeout(Duration.minutes(8))
+                .memorySize(512)
+                .build();
+        Rule.Builder.create(this, "SpotInterruptionRule")
+                .eventPattern(EventPattern.builder()
+                        .source(Collections.singletonList("aws.ec2"))
+                        .detailType(Collections.singletonList("EC2 Spot Instance Interruption Warning"))
+                        .build())
+                .targets(Collections.singletonList(new LambdaFunction(interruptionHandler)))
+                .build();
+        grantServerControl(interruptionHandler, serverRole);
+        serverTable.grantReadWriteData(interruptionHandler);
+        warmPoolTable.grantReadWriteData(interruptionHandler);
+
+        // Create the warm pool function, which keeps the warm pool at its configured size
+        Function warmPoolReplenisher = Function.Builder.create(this, "WarmPoolReplenisher")
+                .code(Code.fromAsset("lambda/warm-pool/build/libs/warm-pool-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.warmpool.WarmPoolLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                .timeout(Duration.minutes(1))
+                .memorySize(512)
+                .build();
+        Rule.Builder.create(this, "WarmPoolSchedule")
+                .schedule(Schedule.rate(Duration.minutes(1)))
+                .targets(Collections.singletonList(new LambdaFunction(warmPoolReplenisher)))
+                .build();
+        grantServerControl(warmPoolReplenisher, serverRole);
+        assert warmPoolReplenisher.getRole() != null;
+        warmPoolReplenisher.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList(
+                        // Used to launch the pool instances, which are tagged at launch
+                        "ec2:RunInstances",
+                        "ec2:CreateTags"))
+                .build());
+        warmPoolTable.grantReadWriteData(warmPoolReplenisher);
+    }
+
+    /**
+     * Allows a function that stops servers to snapshot the world volumes of the servers that keep their world on an
+     * EBS volume.
+     */
+    private static void grantWorldVolumeControl(Function function) {
+        assert function.getRole() != null;
+        function.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList(
+                        "ec2:DescribeVolumes",
+                        "ec2:CreateSnapshot",
+                        "ec2:CreateTags",
+                        "ec2:DeleteVolume",
+                        "ec2:DeleteSnapshot",
+                        // Used for servers with fast snapshot restore
+                        "ec2:DescribeSubnets",
+                        "ec2:EnableFastSnapshotRestores",
+                        "ec2:DisableFastSnapshotRestores"))
+                .build());
+    }
+
+    /**
+     * Allows a function to start and stop servers.
+     *
+     * @param function   The function
+     * @param serverRole The role of the server instances
+     */
+    private static void grantServerControl(Function function, Role serverRole) {
+        assert function.getRole() != null;
+        function.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
                 .effect(Effect.ALLOW)
                 .resources(Collections.singletonList("*"))
-                .actions(Collections.singletonList("ec2:RequestSpotInstances"))
+                .actions(Arrays.asList(
+                        "ec2:RequestSpotInstances",
+                        // Used to record the id of the instance that fulfilled a spot request
+                        "ec2:DescribeSpotInstanceRequests",
+                        // Used to verify the state of servers whose state is UNKNOWN
+                        "ec2:DescribeInstances",
+                        // Used to stop servers
+                        "ec2:CancelSpotInstanceRequests",
+                        "ec2:TerminateInstances",
+                        "ssm:SendCommand",
+                        "ssm:GetCommandInvocation",
+                        // Used to choose the subnet with the most spot capacity and the lowest price
+                        "ec2:DescribeSubnets",
+                        "ec2:DescribeSpotPriceHistory",
+                        // Used to find the latest server image
+                        "ec2:DescribeImages",
+                        // Used to start servers on the instances of the warm pool
+                        "ec2:ModifyInstanceAttribute",
+                        "ec2:StartInstances",
+                        "ec2:DeleteTags",
+                        "ec2:CreateTags"))
                 .build());
-        // serverStarter needs a special permission in order to launch servers with IAM roles
-        serverStarter.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+        grantWorldVolumeControl(function);
+        // Functions need a special permission in order to launch servers with IAM roles
+        function.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
                 .effect(Effect.ALLOW)
                 .resources(Collections.singletonList(serverRole.getRoleArn()))
                 .actions(Arrays.asList("iam:GetRole", "iam:PassRole"))
                 .build());
-        serverTable.grantReadWriteData(serverStarter);
     }
 }
@@ -0,0 +1,91 @@
+package osbourn.cloudcubes.infrastructure;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awscdk.App;
+import software.amazon.awscdk.AppProps;
+import software.amazon.awscdk.assertions.Match;
+import software.amazon.awscdk.assertions.Template;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Synthesizes the stack and checks the server image pipeline in the generated template. The stack refers to the jars
+ * of the Lambda functions and the server agent, so they have to be built first, which the test task of this module
+ * depends on.
+ */
+class CloudCubesStackTest {
+    private static Template synthesize(Map<String, Object> context) {
+        App app = new App(AppProps.builder().context(context).build());
+        return Template.fromStack(new CloudCubesStack(app, "cloudcubes"));
+    }
+
+    private static String getLogicalId(Template template, String type) {
+        Map<String, Map<String, Object>> resources = template.findResources(type);
+        assertEquals(1, resources.size(), type);
+        return resources.keySet().iterator().next();
+    }
+
+    /**
+     * Gets the document of the component that installs the dependencies of the servers.
+     */
+    @SuppressWarnings("unchecked")
+    private static String getComponentData(Template template) {
+        Map<String, Object> component = template.findResources("AWS::ImageBuilder::Component")
+                .get(getLogicalId(template, "AWS::ImageBuilder::Component"));
+        return (String) ((Map<String, Object>) component.get("Properties")).get("Data");
+    }
+
+    private static Map<String, Object> getAttributeReference(String logicalId, String attribute) {
+        return Map.of("Fn::GetAtt", List.of(logicalId, attribute));
+    }
+
+    @Test
+    void thePipelineBakesTheRecipeIntoAnImageNamedForTheLauncher() {
+        Template template = synthesize(Collections.emptyMap());
+
+        template.resourceCountIs("AWS::ImageBuilder::ImagePipeline", 1);
+        template.hasResourceProperties("AWS::ImageBuilder::ImagePipeline", Map.of(
+                "ImageRecipeArn", getAttributeReference(
+                        getLogicalId(template, "AWS::ImageBuilder::ImageRecipe"), "Arn"),
+                "InfrastructureConfigurationArn", getAttributeReference(
+                        getLogicalId(template, "AWS::ImageBuilder::InfrastructureConfiguration"), "Arn"),
+                "DistributionConfigurationArn", getAttributeReference(
+                        getLogicalId(template, "AWS::ImageBuilder::DistributionConfiguration"), "Arn"),
+                "Schedule", Match.objectLike(Map.of("ScheduleExpression", "cron(0 4 ? * sun *)"))));
+        template.hasResourceProperties("AWS::ImageBuilder::ImageRecipe", Map.of(
+                "Components", List.of(Map.of("ComponentArn", getAttributeReference(
+                        getLogicalId(template, "AWS::ImageBuilder::Component"), "Arn")))));
+
+        // The launcher resolves the latest image by the prefix of its name
+        template.hasResourceProperties("AWS::ImageBuilder::DistributionConfiguration", Map.of(
+                "Distributions", List.of(Match.objectLike(Map.of("AmiDistributionConfiguration",
+                        Map.of("Name", "cloudcubes-server-{{ imagebuilder:buildDate }}"))))));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "Handler", "osbourn.cloudcubes.lambda.serverlauncher.ServerLauncherLambdaHandler",
+                "Environment", Map.of("Variables", Match.objectLike(Map.of(
+                        "CLOUDCUBESSERVERIMAGENAMEPREFIX", "cloudcubes-server")))));
+    }
+
+    @Test
+    void theImageContainsTheCliAndAJdk() {
+        String componentData = getComponentData(synthesize(Collections.emptyMap()));
+
+        assertTrue(componentData.contains("name: InstallAwsCliV2"), componentData);
+        assertTrue(componentData.contains("name: InstallJdk"), componentData);
+        assertFalse(componentData.contains("name: DownloadMinecraftServer"), componentData);
+    }
+
+    @Test
+    void theMinecraftServerIsBakedIntoTheImageIfItsUrlIsGiven() {
+        String componentData = getComponentData(
+                synthesize(Map.of("minecraftServerJarUrl", "https://example.com/server.jar")));
+
+        assertTrue(componentData.contains("name: DownloadMinecraftServer"), componentData);
+        assertTrue(componentData.contains("- source: https://example.com/server.jar\n"
+                + "            destination: /opt/minecraft/server.jar\n"), componentData);
+    }
+}
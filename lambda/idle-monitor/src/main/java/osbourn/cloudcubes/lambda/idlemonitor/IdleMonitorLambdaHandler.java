@@ -0,0 +1,43 @@
+package osbourn.cloudcubes.lambda.idlemonitor;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.IdleServerMonitor;
+import osbourn.cloudcubes.core.server.ServerRepository;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Invoked every minute by an EventBridge schedule to stop the servers that have been empty for the idle timeout.
+ */
+public class IdleMonitorLambdaHandler implements RequestHandler<Map<String, Object>, String> {
+    @Override
+    public String handleRequest(Map<String, Object> event, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        // Shared between invocations, so that warm invocations reuse the SDK clients and the pinger thread
+        InfrastructureConstructor infrastructureConstructor = InfrastructureConstructor.fromEnvironment();
+        Duration idleTimeout = Duration.ofMinutes(Long.parseLong(infrastructureConstructor
+                .getInfrastructureConfiguration()
+                .getValue(InfrastructureSetting.SERVERIDLETIMEOUTMINUTES)));
+        IdleServerMonitor monitor = new IdleServerMonitor(infrastructureConstructor.getServerListPinger(), idleTimeout);
+
+        IdleServerMonitor.CheckResult result = monitor.checkServers(
+                new ServerRepository(infrastructureConstructor).loadAllServers());
+        for (UUID serverId : result.getStoppedServers()) {
+            logger.log("Stopped idle server " + serverId);
+        }
+        for (Map.Entry<UUID, RuntimeException> failedStop : result.getFailedStops().entrySet()) {
+            logger.log("Could not stop idle server " + failedStop.getKey() + ": " + failedStop.getValue().getMessage());
+        }
+        // The failed stops are retried by the next check, so the invocation itself does not fail
+        return result.getFailedStops().isEmpty()
+                ? "200 OK"
+                : "500 Could not stop " + result.getFailedStops().size() + " idle servers";
+    }
+}
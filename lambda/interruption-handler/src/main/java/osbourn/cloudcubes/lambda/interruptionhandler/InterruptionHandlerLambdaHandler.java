@@ -0,0 +1,48 @@
+package osbourn.cloudcubes.lambda.interruptionhandler;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.ServerRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Invoked by EventBridge with an "EC2 Spot Instance Interruption Warning" event. The server running on the instance
+ * is relaunched on another instance once the server agent has saved its world.
+ */
+public class InterruptionHandlerLambdaHandler implements RequestHandler<Map<String, Object>, String> {
+    /**
+     * The time between the interruption notice and the interruption
+     */
+    private static final Duration NOTICE_PERIOD = Duration.ofMinutes(2);
+
+    @Override
+    public String handleRequest(Map<String, Object> event, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        Object detail = event.get("detail");
+        if (!(detail instanceof Map) || !(((Map<?, ?>) detail).get("instance-id") instanceof String)) {
+            logger.log("Ignoring an event without an instance id");
+            return "400 Bad Request";
+        }
+        String instanceId = (String) ((Map<?, ?>) detail).get("instance-id");
+        Instant interruptionTime = Instant.parse((String) event.get("time")).plus(NOTICE_PERIOD);
+
+        // Shared between invocations, so that warm invocations reuse the SDK clients
+        InfrastructureConstructor infrastructureConstructor = InfrastructureConstructor.fromEnvironment();
+        UUID serverId = new ServerRepository(infrastructureConstructor)
+                .loadServersByInstanceId(instanceId)
+                .relaunchInterruptedServer(instanceId, interruptionTime);
+        if (serverId == null) {
+            logger.log("Instance " + instanceId + " does not run a server");
+            return "404 Not Found";
+        }
+        logger.log("Relaunched server " + serverId + " after instance " + instanceId + " was interrupted");
+        return "200 OK";
+    }
+}
@@ -0,0 +1,152 @@
+package osbourn.cloudcubes.lambda.serverlauncher;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import osbourn.cloudcubes.core.constructs.AdaptiveRateLimiter;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.ServerFleet;
+import osbourn.cloudcubes.core.server.ServerLifecycle;
+import osbourn.cloudcubes.core.server.ServerRepository;
+import osbourn.cloudcubes.core.server.ServerStartQueue;
+import osbourn.cloudcubes.core.server.StartLatencyMetrics;
+import osbourn.cloudcubes.core.server.WarmPool;
+import osbourn.cloudcubes.core.util.EmbeddedMetricFormat;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Invoked by SQS with a batch of requests from the {@link ServerStartQueue}. Every server is started once, however
+ * many requests for it the batch contains, with {@link ServerFleet#startServers()}. The requests of the servers that
+ * could not be started are reported as failed, so that SQS delivers them again. The time each start was requested
+ * and received is recorded with its REQUESTED phase, see {@link StartLatencyMetrics}.
+ */
+public class ServerLauncherLambdaHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+    private static boolean coldStart = true;
+
+    private final Supplier<InfrastructureConstructor> infrastructureConstructorSupplier;
+
+    public ServerLauncherLambdaHandler() {
+        // Shared between invocations, so that warm invocations reuse the SDK clients
+        this(InfrastructureConstructor::fromEnvironment);
+    }
+
+    /**
+     * Creates a handler that starts the servers of another infrastructure, for tests.
+     *
+     * @param infrastructureConstructorSupplier Supplies the infrastructure once a batch contains a server id
+     */
+    ServerLauncherLambdaHandler(Supplier<InfrastructureConstructor> infrastructureConstructorSupplier) {
+        this.infrastructureConstructorSupplier = infrastructureConstructorSupplier;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
+        Instant receivedAt = Instant.now();
+        LambdaLogger logger = context.getLogger();
+        logColdStart(receivedAt);
+
+        // The ids of the messages requesting each server, in the format (id, message ids)
+        Map<UUID, List<String>> requests = new LinkedHashMap<>();
+        // The time the earliest request for each server was sent, in the format (id, time)
+        Map<UUID, Instant> requestTimes = new LinkedHashMap<>();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            UUID serverId = ServerStartQueue.parseRequest(message.getBody());
+            if (serverId == null) {
+                // Delivering the message again would not help
+                logger.log("Ignoring message " + message.getMessageId() + ", which is not a server id");
+                continue;
+            }
+            requests.computeIfAbsent(serverId, id -> new ArrayList<>()).add(message.getMessageId());
+            Instant sentAt = getSentTime(message);
+            if (sentAt != null) {
+                requestTimes.merge(serverId, sentAt, (first, second) -> first.isBefore(second) ? first : second);
+            }
+        }
+        if (requests.isEmpty()) {
+            return new SQSBatchResponse(new ArrayList<>());
+        }
+
+        InfrastructureConstructor infrastructureConstructor = infrastructureConstructorSupplier.get();
+        // The servers are claimed right after they are loaded, which fails if an outdated version was read
+        ServerFleet fleet = new ServerRepository(infrastructureConstructor).loadServers(requests.keySet(), true);
+        for (UUID serverId : requests.keySet()) {
+            if (fleet.getServer(serverId) == null) {
+                logger.log("Ignoring the requests to start server " + serverId + ", which does not exist");
+            }
+        }
+
+        Map<UUID, List<ServerLifecycle.Event>> startMarkers = new LinkedHashMap<>();
+        for (UUID serverId : requests.keySet()) {
+            List<ServerLifecycle.Event> markers = new ArrayList<>();
+            if (requestTimes.containsKey(serverId)) {
+                markers.add(ServerLifecycle.Event.marker(StartLatencyMetrics.QUEUED, requestTimes.get(serverId)));
+            }
+            markers.add(ServerLifecycle.Event.marker(StartLatencyMetrics.DEQUEUED, receivedAt));
+            startMarkers.put(serverId, markers);
+        }
+
+        List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>();
+        for (Map.Entry<UUID, RuntimeException> failure : fleet.startServers(startMarkers).entrySet()) {
+            logger.log("Could not start server " + failure.getKey() + ": " + failure.getValue());
+            for (String messageId : requests.get(failure.getKey())) {
+                batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+            }
+        }
+        logger.log("Handled " + event.getRecords().size() + " requests for " + requests.size() + " servers, "
+                + batchItemFailures.size() + " of the requests failed");
+        WarmPool warmPool = infrastructureConstructor.getWarmPool();
+        if (warmPool.isEnabled()) {
+            logger.log("Warm pool starts: " + warmPool.getStatistics());
+        }
+        // Starting many servers at once is what gets the launcher throttled, so the throttled actions are logged
+        AdaptiveRateLimiter rateLimiter = infrastructureConstructor.getAdaptiveRateLimiter();
+        for (AdaptiveRateLimiter.ActionMetrics metrics : rateLimiter.getMetrics().values()) {
+            if (metrics.getThrottles() > 0) {
+                logger.log("Throttled: " + metrics);
+            }
+        }
+        return new SQSBatchResponse(batchItemFailures);
+    }
+
+    /**
+     * Gets the time a message was sent to the queue, which SQS adds to every message.
+     *
+     * @return The time, or null if the message does not have it
+     */
+    private static Instant getSentTime(SQSEvent.SQSMessage message) {
+        String sentTimestamp = message.getAttributes() == null ? null : message.getAttributes().get("SentTimestamp");
+        if (sentTimestamp == null) {
+            return null;
+        }
+        try {
+            return Instant.ofEpochMilli(Long.parseLong(sentTimestamp));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Prints the time from the start of the JVM until the first invocation in the embedded metric format, as part of
+     * the time a start request waits before it is received.
+     */
+    private static void logColdStart(Instant receivedAt) {
+        if (!coldStart) {
+            return;
+        }
+        coldStart = false;
+        Instant jvmStartedAt = Instant.ofEpochMilli(ManagementFactory.getRuntimeMXBean().getStartTime());
+        System.out.println(EmbeddedMetricFormat.formatDurations(Map.of("Function", "ServerLauncher"),
+                Map.of("ColdStart", Duration.between(jvmStartedAt, receivedAt)), Map.of(), receivedAt));
+    }
+}
@@ -0,0 +1,252 @@
+package osbourn.cloudcubes.lambda.serverlauncher;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.constructs.TestInfrastructureConstructor;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import osbourn.cloudcubes.core.server.FakeEc2Client;
+import osbourn.cloudcubes.core.server.ServerLifecycle;
+import osbourn.cloudcubes.core.server.StartLatencyMetrics;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerLauncherLambdaHandlerTest {
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final FakeEc2Client ec2Client = new FakeEc2Client();
+    private final TestInfrastructureConstructor infrastructureConstructor =
+            new TestInfrastructureConstructor(dynamoDbClient, ec2Client, ec2Client.asAsyncClient());
+    private final AtomicInteger infrastructureLoads = new AtomicInteger();
+    private final ServerLauncherLambdaHandler handler = new ServerLauncherLambdaHandler(() -> {
+        infrastructureLoads.incrementAndGet();
+        return infrastructureConstructor;
+    });
+    private final List<String> logs = Collections.synchronizedList(new ArrayList<>());
+    private final Context context = new TestContext();
+    private int messageCount = 0;
+
+    ServerLauncherLambdaHandlerTest() {
+        ec2Client.subnetAvailabilityZones.put("subnet-a", "us-east-1a");
+        ec2Client.subnetAvailabilityZones.put("subnet-b", "us-east-1b");
+        infrastructureConstructor.setInstanceTypeSelector(requirements -> List.of("m6g.large"));
+    }
+
+    private UUID putOfflineServer() {
+        UUID id = UUID.randomUUID();
+        dynamoDbClient.putItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(id.toString()).build(),
+                "ServerState", AttributeValue.builder().s("OFFLINE").build()));
+        return id;
+    }
+
+    private SQSEvent.SQSMessage createMessage(String body, Instant sentAt) {
+        messageCount++;
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setMessageId("message-" + messageCount);
+        message.setBody(body);
+        message.setAttributes(sentAt == null
+                ? Map.of()
+                : Map.of("SentTimestamp", Long.toString(sentAt.toEpochMilli())));
+        return message;
+    }
+
+    /**
+     * Creates a burst of requests that asks for every server several times, in a random order, like a queue does when
+     * players keep asking for servers that take a while to start.
+     */
+    private List<SQSEvent.SQSMessage> createBurst(List<UUID> serverIds, int requestsPerServer, Instant sentAt) {
+        List<SQSEvent.SQSMessage> messages = new ArrayList<>();
+        for (int i = 0; i < requestsPerServer; i++) {
+            for (UUID serverId : serverIds) {
+                messages.add(createMessage(serverId.toString(), sentAt.plusMillis(messages.size())));
+            }
+        }
+        Collections.shuffle(messages, new Random(42));
+        return messages;
+    }
+
+    private Set<String> handle(List<SQSEvent.SQSMessage> messages) {
+        SQSEvent event = new SQSEvent();
+        event.setRecords(messages);
+        SQSBatchResponse response = handler.handleRequest(event, context);
+        return response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier)
+                .collect(Collectors.toSet());
+    }
+
+    private String getStoredValue(UUID id, String key) {
+        AttributeValue value = dynamoDbClient.getItem(TestInfrastructureConstructor.SERVER_TABLE_NAME, id.toString())
+                .get(key);
+        return value == null ? null : value.s();
+    }
+
+    @Test
+    void aBurstOfRequestsLaunchesEveryServerOnceWithASharedSpotRequest() {
+        List<UUID> serverIds = List.of(putOfflineServer(), putOfflineServer(), putOfflineServer());
+
+        assertEquals(Set.of(), handle(createBurst(serverIds, 10, Instant.now())));
+        assertEquals(1, ec2Client.getRequestCount("RequestSpotInstances"));
+        assertEquals(3, ec2Client.spotInstanceRequests.size());
+        Set<String> instanceIds = new HashSet<>();
+        for (UUID serverId : serverIds) {
+            assertEquals("UNKNOWN", getStoredValue(serverId, "ServerState"));
+            assertTrue(ec2Client.spotInstanceRequests.containsKey(getStoredValue(serverId, "EC2SpotRequestId")));
+            instanceIds.add(getStoredValue(serverId, "EC2InstanceId"));
+        }
+        assertEquals(3, instanceIds.size());
+    }
+
+    @Test
+    void laterBurstsForServersThatAreAlreadyStartingLaunchNothing() {
+        List<UUID> serverIds = List.of(putOfflineServer(), putOfflineServer());
+        handle(createBurst(serverIds, 5, Instant.now()));
+        Map<UUID, String> spotRequestIds = new HashMap<>();
+        for (UUID serverId : serverIds) {
+            spotRequestIds.put(serverId, getStoredValue(serverId, "EC2SpotRequestId"));
+        }
+
+        // SQS delivers messages at least once, and players keep asking while their server starts
+        assertEquals(Set.of(), handle(createBurst(serverIds, 5, Instant.now())));
+        assertEquals(1, ec2Client.getRequestCount("RequestSpotInstances"));
+        for (UUID serverId : serverIds) {
+            assertEquals(spotRequestIds.get(serverId), getStoredValue(serverId, "EC2SpotRequestId"));
+        }
+    }
+
+    @Test
+    void theEarliestRequestOfEachServerIsRecordedAsTheTimeItWasQueued() {
+        UUID serverId = putOfflineServer();
+        Instant firstSentAt = Instant.ofEpochMilli(1_700_000_000_000L);
+        List<SQSEvent.SQSMessage> messages =
+                new ArrayList<>(createBurst(List.of(serverId), 5, firstSentAt.plusSeconds(1)));
+        messages.add(2, createMessage(serverId.toString(), firstSentAt));
+        messages.add(createMessage(serverId.toString(), null));
+        handle(messages);
+
+        List<ServerLifecycle.Event> events = infrastructureConstructor.getServerLifecycle().getEvents(serverId);
+        List<String> names = events.stream().map(ServerLifecycle.Event::getName).collect(Collectors.toList());
+        assertEquals(List.of(StartLatencyMetrics.QUEUED, StartLatencyMetrics.DEQUEUED, "REQUESTED"),
+                names.subList(0, 3));
+        assertEquals(firstSentAt.toEpochMilli(), events.get(0).getTime().toEpochMilli());
+    }
+
+    @Test
+    void everyRequestForAServerThatCouldNotBeLaunchedIsReportedAsFailed() {
+        ec2Client.subnetsWithoutCapacity.addAll(TestInfrastructureConstructor.SUBNET_IDS);
+        UUID firstServer = putOfflineServer();
+        UUID secondServer = putOfflineServer();
+        List<SQSEvent.SQSMessage> messages = createBurst(List.of(firstServer, secondServer), 4, Instant.now());
+
+        Set<String> allMessageIds = messages.stream()
+                .map(SQSEvent.SQSMessage::getMessageId)
+                .collect(Collectors.toSet());
+        assertEquals(allMessageIds, handle(messages));
+        // The servers can be started by the next delivery of the requests
+        assertEquals("OFFLINE", getStoredValue(firstServer, "ServerState"));
+        assertEquals("OFFLINE", getStoredValue(secondServer, "ServerState"));
+    }
+
+    @Test
+    void requestsThatAreNotServerIdsOrForServersThatDoNotExistAreDropped() {
+        assertEquals(Set.of(), handle(List.of(createMessage("not a server id", Instant.now()))));
+        // A batch without server ids does not even load the infrastructure
+        assertEquals(0, infrastructureLoads.get());
+
+        UUID serverId = putOfflineServer();
+        assertEquals(Set.of(), handle(List.of(
+                createMessage("not a server id", Instant.now()),
+                createMessage(UUID.randomUUID().toString(), Instant.now()),
+                createMessage(serverId.toString(), Instant.now()))));
+        assertEquals(1, ec2Client.spotInstanceRequests.size());
+        assertTrue(logs.stream().anyMatch(log -> log.contains("which does not exist")));
+    }
+
+    /**
+     * A Lambda context that records what is logged
+     */
+    private final class TestContext implements Context {
+        @Override
+        public String getAwsRequestId() {
+            return "request";
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return "/aws/lambda/ServerLauncher";
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return "stream";
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "ServerLauncher";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return "$LATEST";
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return "arn:aws:lambda:us-east-1:123456789012:function:ServerLauncher";
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return 60_000;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 512;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return new LambdaLogger() {
+                @Override
+                public void log(String message) {
+                    logs.add(message);
+                }
+
+                @Override
+                public void log(byte[] message) {
+                    logs.add(new String(message, StandardCharsets.UTF_8));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package osbourn.cloudcubes.lambda.serverstarter;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * <p>
+ * Measures the cold start of {@link ServerStarterLambdaHandler} locally. Every run starts a fresh JVM on the same
+ * classpath, which reports how long the JVM took to start, how long it took to load and construct the handler (the
+ * equivalent of the Lambda init phase) and how long the first invocation took. The parent process then prints each run
+ * along with the median and 90th percentile of every phase.
+ * </p>
+ *
+ * <p>
+ * The handler reads the infrastructure configuration from the environment variables, so the invocation only succeeds
+ * if they (and AWS credentials) are set, for example to the values of a deployed stack. Otherwise the failure is
+ * reported and the time taken to fail is measured instead. Run with {@code gradlew :lambda:server-starter:measureColdStart}
+ * (optionally with {@code -PcoldStartProfile} and {@code -PcoldStartRuns=N}).
+ * </p>
+ */
+public class ColdStartHarness {
+    private static final String CHILD_ARGUMENT = "--child";
+
+    public static void main(String[] args) throws IOException, InterruptedException, ReflectiveOperationException {
+        if (args.length > 0 && args[0].equals(CHILD_ARGUMENT)) {
+            measureSingleColdStart();
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Map<String, List<Long>> measurements = new LinkedHashMap<>();
+        for (int run = 1; run <= runs; run++) {
+            String result = runChild();
+            System.out.printf("run %d: %s%n", run, result);
+            for (String field : result.split(" ")) {
+                String[] keyAndValue = field.split("=", 2);
+                if (keyAndValue.length == 2 && keyAndValue[0].endsWith("Ms")) {
+                    measurements.computeIfAbsent(keyAndValue[0], key -> new ArrayList<>())
+                            .add(Long.parseLong(keyAndValue[1]));
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Long>> entry : measurements.entrySet()) {
+            List<Long> values = entry.getValue();
+            Collections.sort(values);
+            System.out.printf("%s: p50=%d p90=%d min=%d max=%d%n",
+                    entry.getKey(),
+                    percentile(values, 50),
+                    percentile(values, 90),
+                    values.get(0),
+                    values.get(values.size() - 1));
+        }
+    }
+
+    private static String runChild() throws IOException, InterruptedException {
+        String javaExecutable = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(
+                javaExecutable,
+                "-cp", System.getProperty("java.class.path"),
+                ColdStartHarness.class.getName(),
+                CHILD_ARGUMENT
+        ).redirectErrorStream(true).start();
+
+        String result = null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // The handler may log, only the last line reported by measureSingleColdStart matters
+                if (line.startsWith("jvmStartMs=")) {
+                    result = line;
+                }
+            }
+        }
+        process.waitFor();
+        return result == null ? "no result (exit code " + process.exitValue() + ")" : result;
+    }
+
+    private static void measureSingleColdStart() throws ReflectiveOperationException {
+        long initStart = System.currentTimeMillis();
+        long jvmStartMs = initStart - ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        ServerStarterLambdaHandler handler = (ServerStarterLambdaHandler) Class
+                .forName("osbourn.cloudcubes.lambda.serverstarter.ServerStarterLambdaHandler")
+                .getDeclaredConstructor()
+                .newInstance();
+        long invokeStart = System.currentTimeMillis();
+
+        String outcome;
+        try {
+            handler.handleRequest(Collections.emptyMap(), new HarnessContext());
+            outcome = "ok";
+        } catch (RuntimeException e) {
+            outcome = "error:" + e.getClass().getSimpleName();
+        }
+        long invokeEnd = System.currentTimeMillis();
+
+        System.out.printf("jvmStartMs=%d initMs=%d firstInvokeMs=%d outcome=%s%n",
+                jvmStartMs, invokeStart - initStart, invokeEnd - invokeStart, outcome);
+    }
+
+    private static long percentile(List<Long> sortedValues, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, index));
+    }
+
+    /**
+     * A minimal Context that stands in for the one provided by the Lambda runtime.
+     */
+    private static class HarnessContext implements Context {
+        @Override
+        public String getAwsRequestId() {
+            return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return "cold-start-harness";
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return "cold-start-harness";
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "ServerStarter";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return "$LATEST";
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return "arn:aws:lambda:local:000000000000:function:ServerStarter";
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return 30000;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 512;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return new LambdaLogger() {
+                @Override
+                public void log(String message) {
+                    System.err.println(message);
+                }
+
+                @Override
+                public void log(byte[] message) {
+                    System.err.println(new String(message, StandardCharsets.UTF_8));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package osbourn.cloudcubes.lambda.serverstarter;
+
+import com.sun.net.httpserver.HttpServer;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * <p>
+ * Compares the latency of the work {@link ServerStarterLambdaHandler} does per invocation when every invocation
+ * creates its own InfrastructureConstructor, and with it new SDK clients and connections, with the latency when warm
+ * invocations reuse the one shared through {@link InfrastructureConstructor#fromEnvironment()}. Both send their start
+ * requests to a local stand-in for SQS, and the median and 99th percentile of each are printed.
+ * </p>
+ *
+ * <p>
+ * The stand-in is plain HTTP, so the numbers leave out the TLS handshake that every new client also makes with the
+ * real endpoint. The JDK also keeps idle HTTP connections for the whole process, which new UrlConnectionHttpClients
+ * pick up as well, so the difference measured here is mostly the cost of building the clients and is the lower bound
+ * of what reuse saves in Lambda. Both variants run in the same JVM after a warm-up, so the JVM cold start is not part
+ * of it; that is measured by {@link ColdStartHarness}. Run with
+ * {@code gradlew :lambda:server-starter:measureInvocationLatency} (optionally with {@code -PinvocationRuns=N}).
+ * </p>
+ */
+public class InvocationLatencyHarness {
+    private static final UUID SERVER_ID = UUID.fromString("80000000-0000-0000-8000-000000000000");
+    private static final int WARM_UP_RUNS = 50;
+
+    public static void main(String[] args) throws IOException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        HttpServer sqsStandIn = startSqsStandIn();
+        try {
+            URI endpoint = URI.create("http://127.0.0.1:" + sqsStandIn.getAddress().getPort());
+
+            // Loads and compiles the classes of both variants, so that the first of them is not slowed down by it
+            measureNewClients(endpoint, WARM_UP_RUNS);
+            measureSharedClients(endpoint, WARM_UP_RUNS);
+
+            List<Long> newClientMicros = measureNewClients(endpoint, runs);
+            List<Long> sharedClientMicros = measureSharedClients(endpoint, runs);
+            printSummary("new clients per invocation", newClientMicros);
+            printSummary("shared clients", sharedClientMicros);
+        } finally {
+            sqsStandIn.stop(0);
+        }
+    }
+
+    /**
+     * Measures invocations that each create an InfrastructureConstructor, as the handler did before the clients were
+     * shared.
+     *
+     * @return The latency of each invocation in microseconds
+     */
+    private static List<Long> measureNewClients(URI endpoint, int runs) {
+        List<Long> latencies = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            LocalInfrastructureConstructor infrastructureConstructor = new LocalInfrastructureConstructor(endpoint);
+            infrastructureConstructor.getServerStartQueue().requestStart(SERVER_ID);
+            latencies.add((System.nanoTime() - start) / 1000);
+            // The handler never closed its clients, which only the end of the execution environment cleaned up
+            infrastructureConstructor.getSqsClient().close();
+        }
+        return latencies;
+    }
+
+    /**
+     * Measures invocations that reuse one InfrastructureConstructor, as warm invocations of the handler do.
+     *
+     * @return The latency of each invocation in microseconds
+     */
+    private static List<Long> measureSharedClients(URI endpoint, int runs) {
+        LocalInfrastructureConstructor infrastructureConstructor = new LocalInfrastructureConstructor(endpoint);
+        List<Long> latencies = new ArrayList<>();
+        try {
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                infrastructureConstructor.getServerStartQueue().requestStart(SERVER_ID);
+                latencies.add((System.nanoTime() - start) / 1000);
+            }
+        } finally {
+            infrastructureConstructor.getSqsClient().close();
+        }
+        return latencies;
+    }
+
+    private static void printSummary(String name, List<Long> latencies) {
+        List<Long> sortedLatencies = new ArrayList<>(latencies);
+        Collections.sort(sortedLatencies);
+        System.out.printf("%s: runs=%d p50=%.2fms p99=%.2fms min=%.2fms max=%.2fms%n",
+                name,
+                sortedLatencies.size(),
+                percentile(sortedLatencies, 50) / 1000.0,
+                percentile(sortedLatencies, 99) / 1000.0,
+                sortedLatencies.get(0) / 1000.0,
+                sortedLatencies.get(sortedLatencies.size() - 1) / 1000.0);
+    }
+
+    private static long percentile(List<Long> sortedValues, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, index));
+    }
+
+    /**
+     * Starts a server that answers SendMessage requests like SQS does, including the MD5 digest of the message body
+     * that the SDK checks.
+     */
+    private static HttpServer startSqsStandIn() throws IOException {
+        // The headers and body of a response are written separately, which Nagle's algorithm would delay by ~40 ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", exchange -> {
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            String messageBody = "";
+            for (String parameter : requestBody.split("&")) {
+                if (parameter.startsWith("MessageBody=")) {
+                    messageBody = URLDecoder.decode(parameter.substring("MessageBody=".length()),
+                            StandardCharsets.UTF_8);
+                }
+            }
+            byte[] response = ("<SendMessageResponse xmlns=\"http://queue.amazonaws.com/doc/2012-11-05/\">"
+                    + "<SendMessageResult><MessageId>" + UUID.randomUUID() + "</MessageId>"
+                    + "<MD5OfMessageBody>" + md5Hex(messageBody) + "</MD5OfMessageBody></SendMessageResult>"
+                    + "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata>"
+                    + "</SendMessageResponse>").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(response);
+            }
+        });
+        httpServer.start();
+        return httpServer;
+    }
+
+    private static String md5Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (byte digestByte : digest) {
+                builder.append(String.format("%02x", digestByte));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An InfrastructureConstructor whose SQS client sends its requests to the local stand-in.
+     */
+    private static class LocalInfrastructureConstructor extends InfrastructureConstructor {
+        private final URI endpoint;
+        private SqsClient sqsClient = null;
+
+        LocalInfrastructureConstructor(URI endpoint) {
+            super(createConfiguration(endpoint));
+            this.endpoint = endpoint;
+        }
+
+        private static InfrastructureConfiguration createConfiguration(URI endpoint) {
+            InfrastructureConfiguration configuration = new InfrastructureConfiguration();
+            for (InfrastructureSetting setting : InfrastructureSetting.values()) {
+                configuration.setValue(setting, "harness");
+            }
+            configuration.setValue(InfrastructureSetting.REGIONASSTRING, "us-east-2");
+            configuration.setValue(InfrastructureSetting.SERVERSTARTQUEUEURL, endpoint + "/000000000000/ServerStart");
+            return configuration;
+        }
+
+        @Override
+        public synchronized SqsClient getSqsClient() {
+            if (sqsClient == null) {
+                sqsClient = SqsClient.builder()
+                        .region(getInfrastructureConfiguration().getRegion())
+                        .endpointOverride(endpoint)
+                        .credentialsProvider(StaticCredentialsProvider.create(
+                                AwsBasicCredentials.create("harness", "harness")))
+                        .httpClientBuilder(UrlConnectionHttpClient.builder())
+                        .build();
+            }
+            return sqsClient;
+        }
+    }
+}
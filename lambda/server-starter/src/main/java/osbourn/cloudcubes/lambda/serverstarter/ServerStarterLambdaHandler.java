@@ -3,25 +3,81 @@ package osbourn.cloudcubes.lambda.serverstarter;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
-import osbourn.cloudcubes.core.server.CloudCubesServer;
-import osbourn.cloudcubes.core.server.Server;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.ServerStartQueue;
+import osbourn.cloudcubes.core.util.EmbeddedMetricFormat;
 
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Map;
 import java.util.UUID;
 
 public class ServerStarterLambdaHandler implements RequestHandler<Map<String, String>, String> {
+    /**
+     * The value of AWS_LAMBDA_INITIALIZATION_TYPE in execution environments that were restored from a snapshot
+     */
+    private static final String SNAP_START_INITIALIZATION_TYPE = "snap-start";
+    private static boolean coldStart = true;
+
+    /**
+     * Lambda creates the handler once during the init phase, so the handler is primed here: the shared SDK clients are
+     * created and a request is made, which loads and JIT-compiles the classes used to make requests before the first
+     * invocation arrives. When SnapStart is enabled, the primed state is captured in the snapshot.
+     */
+    public ServerStarterLambdaHandler() {
+        prime();
+    }
+
+    private static void prime() {
+        try {
+            InfrastructureConstructor.fromEnvironment().getServerStartQueue().getApproximateLength();
+        } catch (RuntimeException e) {
+            // Priming only makes the first invocation faster, the invocation itself will report any real problem
+        }
+    }
+
+    /**
+     * Requests the server to be started. The server is started by the server launcher function, which receives the
+     * requests from the {@link ServerStartQueue} in batches, so that a burst of requests for the same server launches
+     * a single instance.
+     */
     @Override
     public String handleRequest(Map<String, String> event, Context context) {
+        Instant receivedAt = Instant.now();
         LambdaLogger logger = context.getLogger();
+        logColdStart(receivedAt);
         String response = "200 OK";
 
-        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        // Shared between invocations, so that warm invocations reuse the SDK clients
+        InfrastructureConstructor infrastructureConstructor = InfrastructureConstructor.fromEnvironment();
         // Sample UUID
         UUID serverId = UUID.fromString("80000000-0000-0000-8000-000000000000");
-        Server server = CloudCubesServer.fromId(serverId, infrastructureConfiguration);
-        server.startServer();
+        infrastructureConstructor.getServerStartQueue().requestStart(serverId);
+        logger.log("Requested server " + serverId + " to be started");
+        System.out.println(EmbeddedMetricFormat.formatDurations(Map.of("Function", "ServerStarter"),
+                Map.of("RequestStart", Duration.between(receivedAt, Instant.now())), Map.of(), receivedAt));
 
         return response;
     }
+
+    /**
+     * Prints the time from the start of the JVM until the first invocation in the embedded metric format. The time
+     * spent in the queue and in the server launcher function is recorded with the start itself.
+     * Environments restored from a SnapStart snapshot are skipped: their JVM was started when the snapshot was taken,
+     * which can be days before the invocation, and Lambda already reports the time the restore took as
+     * RestoreDuration.
+     */
+    private static void logColdStart(Instant receivedAt) {
+        if (!coldStart) {
+            return;
+        }
+        coldStart = false;
+        if (SNAP_START_INITIALIZATION_TYPE.equals(System.getenv("AWS_LAMBDA_INITIALIZATION_TYPE"))) {
+            return;
+        }
+        Instant jvmStartedAt = Instant.ofEpochMilli(ManagementFactory.getRuntimeMXBean().getStartTime());
+        System.out.println(EmbeddedMetricFormat.formatDurations(Map.of("Function", "ServerStarter"),
+                Map.of("ColdStart", Duration.between(jvmStartedAt, receivedAt)), Map.of(), receivedAt));
+    }
 }
@@ -0,0 +1,30 @@
+package osbourn.cloudcubes.lambda.warmpool;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.WarmPool;
+
+import java.util.Map;
+
+/**
+ * Invoked every minute by an EventBridge schedule to bring the warm pool back to its configured size.
+ */
+public class WarmPoolLambdaHandler implements RequestHandler<Map<String, Object>, String> {
+    @Override
+    public String handleRequest(Map<String, Object> event, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        // Shared between invocations, so that warm invocations reuse the SDK clients
+        WarmPool warmPool = InfrastructureConstructor.fromEnvironment().getWarmPool();
+        if (!warmPool.isEnabled()) {
+            return "200 OK";
+        }
+        int launched = warmPool.replenish();
+        if (launched > 0) {
+            logger.log("Launched " + launched + " warm pool instances");
+        }
+        return "200 OK";
+    }
+}
@@ -1,6 +1,12 @@
 #!/bin/bash
 cd /home/ec2-user || exit
 
+# Markers of how far the start has got, recorded with the phases in the format "name@epochMillis", see
+# StartLatencyMetrics.java
+script_started_at=$(date +%s%3N)
+instance_booted_at=$((script_started_at - $(awk '{ printf "%d", $1 * 1000 }' /proc/uptime)))
+boot_markers="{\"S\":\"instance-booted@$instance_booted_at\"},{\"S\":\"script-started@$script_started_at\"}"
+
 # Get instance id
 ec2_instance_metadata_command_result=($(ec2-metadata -i))
 export EC2_ID=${ec2_instance_metadata_command_result[1]}
@@ -10,24 +16,182 @@ export EC2_ZONE=${ec2_zone_metadata_command_result[1]}
 # Amazon Linux comes with AWS CLI version 1 by default, this will install version 2
 # See https://docs.aws.amazon.com/cli/latest/userguide/install-cliv2-linux.html
 # After installing version 2 can be accessed with /usr/local/bin/aws
-mkdir awscliv2
-cd awscliv2
-curl "https://awscli.amazonaws.com/awscli-exe-linux-x86_64.zip" -o "awscliv2.zip"
-unzip awscliv2.zip
-sudo ./aws/install
-cd ..
-rm -rf awscliv2
+# Images baked by the stack's image pipeline already contain version 2, so this is only needed on stock Amazon Linux
+if [ ! -x /usr/local/bin/aws ]; then
+    mkdir awscliv2
+    cd awscliv2
+    curl "https://awscli.amazonaws.com/awscli-exe-linux-x86_64.zip" -o "awscliv2.zip"
+    unzip awscliv2.zip
+    sudo ./aws/install
+    cd ..
+    rm -rf awscliv2
+    boot_markers="$boot_markers,{\"S\":\"cli-installed@$(date +%s%3N)\"}"
+fi
+
+# Instances launched for several servers with a single spot request share their user data, so they find their server
+# through the spot request they were launched by, which is recorded in the server entry once the request has been made
+if [ -z "$SERVER_ID" ]; then
+    spot_request_id=$(/usr/local/bin/aws ec2 describe-instances \
+        --instance-ids "$EC2_ID" \
+        --query 'Reservations[0].Instances[0].SpotInstanceRequestId' \
+        --output text)
+    for attempt in $(seq 1 60); do
+        SERVER_ID=$(/usr/local/bin/aws dynamodb query \
+            --table-name "$CLOUDCUBESSERVERDATABASENAME" \
+            --index-name EC2SpotRequestId \
+            --key-condition-expression 'EC2SpotRequestId = :r' \
+            --expression-attribute-values "{\":r\":{\"S\":\"$spot_request_id\"}}" \
+            --query 'Items[0].Id.S' \
+            --output text)
+        if [ -n "$SERVER_ID" ] && [ "$SERVER_ID" != "None" ]; then
+            break
+        fi
+        SERVER_ID=
+        sleep 1
+    done
+    if [ -z "$SERVER_ID" ]; then
+        echo "No server was started with spot request $spot_request_id" >&2
+        exit 1
+    fi
+    export SERVER_ID
+fi
 
 # Download contents of the server-startup folder
 /usr/local/bin/aws s3 cp --recursive s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-startup startup
+boot_markers="$boot_markers,{\"S\":\"files-downloaded@$(date +%s%3N)\"}"
 
-# Update database with ONLINE state
-# See https://awscli.amazonaws.com/v2/documentation/api/latest/reference/dynamodb/update-item.html#examples
 printf '{"Id":{"S":"%s"}}\n' "$SERVER_ID" > startup/set-state-online-key.json
+
+# Every write below increments the Version of the entry like the writes of DynamoDBEntry.java do, so that a
+# compare-and-set made by a Lambda function with a version read earlier fails instead of overwriting what was written here
+
+# Record that the instance is booting, see ServerLifecycle.java. The phase is only changed if the server is still being
+# started, in the same format as the Java code uses
 /usr/local/bin/aws dynamodb update-item \
     --table-name "$CLOUDCUBESSERVERDATABASENAME" \
     --key file://startup/set-state-online-key.json \
-    --update-expression "SET #S = :s" \
+    --update-expression "SET #P = :p, #E = list_append(if_not_exists(#E, :none), :e) ADD #V :one" \
+    --condition-expression "attribute_exists(Id) AND #P IN (:requested, :fulfilled)" \
+    --expression-attribute-names '{"#P":"LifecyclePhase","#E":"LifecycleEvents","#V":"Version"}' \
+    --expression-attribute-values "$(printf '{":p":{"S":"BOOTING"},":e":{"L":[%s,{"S":"BOOTING@%s"}]},":none":{"L":[]},":requested":{"S":"REQUESTED"},":fulfilled":{"S":"FULFILLED"},":one":{"N":"1"}}' "$boot_markers" "$(date +%s%3N)")" \
+    --return-values NONE
+
+# Start the Minecraft server if the image contains one
+ready_markers=
+if [ -f /opt/minecraft/server.jar ]; then
+    /usr/local/bin/aws s3 cp s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-agent/server-agent.jar server-agent.jar
+    mkdir -p server
+
+    if [ -n "$WORLD_VOLUME_DEVICE" ]; then
+        # Servers that keep their world on an EBS volume get the volume attached at launch, created from the snapshot
+        # taken when the server was last stopped, so it only has to be mounted
+        while [ ! -b "$WORLD_VOLUME_DEVICE" ]; do
+            sleep 1
+        done
+        # The volume of a server that has never been stopped is empty
+        if ! sudo blkid "$WORLD_VOLUME_DEVICE" > /dev/null; then
+            sudo mkfs -t ext4 "$WORLD_VOLUME_DEVICE"
+        fi
+        sudo mount "$WORLD_VOLUME_DEVICE" server
+        sudo chown ec2-user:ec2-user server
+    else
+        # The server files are restored by the agent from the latest backup in the world bucket, which is made when
+        # the server is stopped. Servers that have never been backed up still have their files stored as a plain copy.
+        # The agent creates restore-ready once the files around spawn have been restored, and keeps restoring the rest
+        # of the world while the server starts.
+        rm -f restore-ready
+        java -jar server-agent.jar restore "$CLOUDCUBESWORLDBUCKETNAME" "$SERVER_ID" server restore-ready \
+            > restore.log 2>&1 &
+        restore_pid=$!
+        while [ ! -f restore-ready ] && kill -0 "$restore_pid" 2> /dev/null; do
+            sleep 0.1
+        done
+        if [ ! -f restore-ready ]; then
+            wait "$restore_pid"
+            if [ $? -eq 2 ]; then
+                /usr/local/bin/aws s3 sync "s3://$CLOUDCUBESWORLDBUCKETNAME/worlds/$SERVER_ID/" server
+            fi
+        fi
+    fi
+    ready_markers="{\"S\":\"world-restored@$(date +%s%3N)\"},"
+
+    cd server || exit
+
+    # RCON is used to save the world before the server is stopped, with the password generated when it was started
+    rcon_password=$(/usr/local/bin/aws dynamodb get-item \
+        --table-name "$CLOUDCUBESSERVERDATABASENAME" \
+        --key file://../startup/set-state-online-key.json \
+        --projection-expression RconPassword \
+        --query Item.RconPassword.S \
+        --output text)
+    touch server.properties
+    sed -i '/^enable-rcon=/d; /^rcon\.port=/d; /^rcon\.password=/d' server.properties
+    printf 'enable-rcon=true\nrcon.port=25575\nrcon.password=%s\n' "$rcon_password" >> server.properties
+    # Providing the server jar to the image pipeline implies accepting the Minecraft EULA
+    echo 'eula=true' > eula.txt
+
+    nohup java -XX:MaxRAMPercentage=75 -jar /opt/minecraft/server.jar nogui > console.log 2>&1 &
+    ready_markers="$ready_markers{\"S\":\"minecraft-launched@$(date +%s%3N)\"},"
+    cd ..
+
+    # The agent backs up the world every hour and when the spot instance receives an interruption notice
+    RCON_PASSWORD="$rcon_password" nohup java -Xmx128m -jar server-agent.jar > server-agent.log 2>&1 &
+fi
+
+# Update database with ONLINE state and the READY phase in a single write, which returns the events of this run
+# See https://awscli.amazonaws.com/v2/documentation/api/latest/reference/dynamodb/update-item.html#examples
+ready_at=$(date +%s%3N)
+printf '{":s":{"S":"ONLINE"},":p":{"S":"READY"},":e":{"L":[%s{"S":"READY@%s"}]},":none":{"L":[]},":requested":{"S":"REQUESTED"},":fulfilled":{"S":"FULFILLED"},":booting":{"S":"BOOTING"},":one":{"N":"1"}}\n' \
+    "$ready_markers" "$ready_at" > startup/set-state-online-expression-attribute-values.json
+if run_events=$(/usr/local/bin/aws dynamodb update-item \
+    --table-name "$CLOUDCUBESSERVERDATABASENAME" \
+    --key file://startup/set-state-online-key.json \
+    --update-expression "SET #S = :s, #P = :p, #E = list_append(if_not_exists(#E, :none), :e) ADD #V :one" \
+    --condition-expression "#P IN (:requested, :fulfilled, :booting)" \
     --expression-attribute-names file://startup/set-state-online-expression-attribute-names.json \
     --expression-attribute-values file://startup/set-state-online-expression-attribute-values.json \
-    --return-values NONE
+    --return-values UPDATED_NEW \
+    --query 'Attributes.LifecycleEvents.L[].S' \
+    --output text); then
+    # The time to ONLINE is published as soon as it is known, measured from the earliest event of the run like
+    # StartLatencyMetrics.getTimeUntil() does. The instance has no CloudWatch agent to extract the embedded metric
+    # format from its log, so the metric is sent with a single request instead.
+    run_started_at=$(printf '%s\n' $run_events | sed 's/.*@//' | sort -n | head -n 1)
+    if [ -n "$run_started_at" ]; then
+        /usr/local/bin/aws cloudwatch put-metric-data \
+            --namespace CloudCubes \
+            --metric-data "$(printf '[{"MetricName":"TimeToOnline","Unit":"Milliseconds","Value":%s}]' "$((ready_at - run_started_at))")"
+    fi
+else
+    # The phase was never recorded (the server was created before phases were), but the server is online anyway. A
+    # server that is being stopped or was deleted in the meantime is left alone.
+    /usr/local/bin/aws dynamodb update-item \
+        --table-name "$CLOUDCUBESSERVERDATABASENAME" \
+        --key file://startup/set-state-online-key.json \
+        --update-expression "SET #S = :s ADD #V :one" \
+        --condition-expression "attribute_exists(Id) AND attribute_not_exists(#P)" \
+        --expression-attribute-names '{"#S":"ServerState","#P":"LifecyclePhase","#V":"Version"}' \
+        --expression-attribute-values '{":s":{"S":"ONLINE"},":one":{"N":"1"}}' \
+        --return-values NONE
+fi
+
+# The server is ONLINE as soon as it has been launched, but players can only join once it has loaded the world, which
+# it logs with "Done (". The marker is only appended while the server entry exists and the phase is that of this run.
+if [ -f server/console.log ]; then
+    (
+        for attempt in $(seq 1 1800); do
+            if grep -q 'Done (' server/console.log; then
+                /usr/local/bin/aws dynamodb update-item \
+                    --table-name "$CLOUDCUBESSERVERDATABASENAME" \
+                    --key file://startup/set-state-online-key.json \
+                    --update-expression "SET #E = list_append(#E, :e) ADD #V :one" \
+                    --condition-expression "attribute_exists(Id) AND #P = :ready" \
+                    --expression-attribute-names '{"#P":"LifecyclePhase","#E":"LifecycleEvents","#V":"Version"}' \
+                    --expression-attribute-values "$(printf '{":e":{"L":[{"S":"world-loaded@%s"}]},":ready":{"S":"READY"},":one":{"N":"1"}}' "$(date +%s%3N)")" \
+                    --return-values NONE
+                break
+            fi
+            sleep 1
+        done
+    ) > world-loaded.log 2>&1 &
+fi
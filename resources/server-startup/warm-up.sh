@@ -0,0 +1,13 @@
+#!/bin/bash
+# Run on the first boot of the instances of the warm pool, which are stopped until a server is started on them
+cd /home/ec2-user || exit
+
+# Volumes created from an image load their blocks from S3 the first time they are read, so the files read while a
+# server starts (the JDK, the AWS CLI and the Minecraft server) are read once here while nobody is waiting
+sudo find /usr/lib/jvm /usr/local/aws-cli /opt/minecraft -type f -exec cat {} + > /dev/null 2>&1
+
+# Regenerate the class data sharing archive of the JDK, so that it matches the JDK and is loaded from disk
+sudo java -Xshare:dump > /dev/null 2>&1
+
+# Stopping the instance keeps its spot request, the warm pool function makes it available once it has stopped
+sudo shutdown -h now
@@ -0,0 +1,166 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Measures how long after the start of a restore the first player can join a world of a given size, and how long the
+ * restore of the whole world takes, which is when they could join before the world was restored around spawn first.
+ * For each size a synthetic world of region files of {@value #REGION_FILE_SIZE_IN_MIB} MiB around spawn is backed up
+ * to the in-memory S3 stand-in of the tests and restored into an empty directory, with a delay added to every
+ * download of a chunk to stand in for the latency of S3.
+ * </p>
+ *
+ * <p>
+ * The region files are sparse and mostly zero, so they take little space before they are restored, but every chunk of
+ * them is still unique. They compress far better than real region files, so the time spent decompressing and the
+ * bandwidth of the instance are understated, and the time to start the server itself is not part of the first join.
+ * The restore writes the whole world to disk, so a run needs that much free space in the temporary directory. Run
+ * with {@code gradlew :server-agent:measureWorldRestore} (optionally with {@code -PworldSizesGiB=1,5,20} and
+ * {@code -PgetLatencyMillis=N}).
+ * </p>
+ */
+public class WorldRestoreBenchmark {
+    private static final String BUCKET_NAME = "worlds";
+    private static final int REGION_FILE_SIZE_IN_MIB = 8;
+
+    public static void main(String[] args) throws IOException {
+        String[] worldSizesGiB = (args.length > 0 ? args[0] : "1,5,20").split(",");
+        int getLatencyMillis = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.printf("%d MiB region files, %d ms per chunk download, %d chunks in flight%n",
+                REGION_FILE_SIZE_IN_MIB, getLatencyMillis, ChunkedWorldBackup.DEFAULT_PARALLELISM);
+        for (String worldSizeGiB : worldSizesGiB) {
+            int regionFileCount = Math.max(1, (int) Math.round(
+                    Double.parseDouble(worldSizeGiB) * 1024 / REGION_FILE_SIZE_IN_MIB));
+            Path workDirectory = Files.createTempDirectory("world-restore");
+            try {
+                measure(worldSizeGiB, regionFileCount, getLatencyMillis, workDirectory);
+            } finally {
+                deleteRecursively(workDirectory);
+            }
+        }
+    }
+
+    private static void measure(String worldSizeGiB, int regionFileCount, int getLatencyMillis, Path workDirectory)
+            throws IOException {
+        UUID serverId = UUID.randomUUID();
+        DelayedS3Client s3Client = new DelayedS3Client();
+        Path source = workDirectory.resolve("source");
+        createWorld(source, regionFileCount);
+        try (ChunkedWorldBackup backup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            backup.backup(source, Instant.MAX);
+        }
+        deleteRecursively(source);
+
+        // A new instance restores the world, so nothing is remembered from the backup
+        s3Client.getLatencyMillis = getLatencyMillis;
+        long start = System.nanoTime();
+        long[] playableNanos = new long[1];
+        int[] playableChunks = new int[1];
+        try (ChunkedWorldBackup backup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            backup.restore(workDirectory.resolve("restored"), () -> {
+                playableNanos[0] = System.nanoTime() - start;
+                playableChunks[0] = s3Client.downloadedChunks.get();
+            });
+        }
+        long totalNanos = System.nanoTime() - start;
+
+        System.out.printf("%s GiB (%d region files): first join after %.1f s (%d of %d chunks), "
+                        + "whole world after %.1f s%n",
+                worldSizeGiB, regionFileCount, playableNanos[0] / 1e9, playableChunks[0],
+                s3Client.downloadedChunks.get(), totalNanos / 1e9);
+    }
+
+    /**
+     * Creates a world whose region files fill a square around the spawn at the origin, region by region outwards.
+     */
+    private static void createWorld(Path directory, int regionFileCount) throws IOException {
+        Path regionDirectory = directory.resolve("world/region");
+        Files.createDirectories(regionDirectory);
+        Files.writeString(directory.resolve("server.properties"), "level-name=world\n");
+        int created = 0;
+        for (int radius = 0; created < regionFileCount; radius++) {
+            for (int x = -radius; x <= radius && created < regionFileCount; x++) {
+                for (int z = -radius; z <= radius && created < regionFileCount; z++) {
+                    if (Math.max(Math.abs(x), Math.abs(z)) == radius) {
+                        createRegionFile(regionDirectory.resolve("r." + x + "." + z + ".mca"));
+                        created++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a sparse region file whose backup chunks each start with their own path and index, so that none of them
+     * are deduplicated.
+     */
+    private static void createRegionFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int chunkCount = REGION_FILE_SIZE_IN_MIB * 1024 * 1024 / ChunkedWorldBackup.CHUNK_SIZE;
+            for (int index = 0; index < chunkCount; index++) {
+                ByteBuffer header = ByteBuffer.wrap((path + "#" + index).getBytes(StandardCharsets.UTF_8));
+                channel.write(header, (long) index * ChunkedWorldBackup.CHUNK_SIZE);
+            }
+            channel.write(ByteBuffer.wrap(new byte[1]), (long) chunkCount * ChunkedWorldBackup.CHUNK_SIZE - 1);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The in-memory S3 client, which waits before it answers a download of a chunk once the latency has been set.
+     */
+    private static class DelayedS3Client extends InMemoryS3Client {
+        private final AtomicInteger downloadedChunks = new AtomicInteger();
+        private volatile int getLatencyMillis = 0;
+
+        @Override
+        public <ReturnT> ReturnT getObject(GetObjectRequest request,
+                                           ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+            if (request.key().startsWith("backups/chunks/")) {
+                downloadedChunks.incrementAndGet();
+                try {
+                    Thread.sleep(getLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Interrupted while downloading"));
+                }
+            }
+            return super.getObject(request, responseTransformer);
+        }
+    }
+}
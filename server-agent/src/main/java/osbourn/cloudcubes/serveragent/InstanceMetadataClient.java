@@ -0,0 +1,156 @@
+package osbourn.cloudcubes.serveragent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the instance metadata service (IMDS) of the instance the agent runs on, using IMDSv2 session tokens. See
+ * https://docs.aws.amazon.com/AWSEC2/latest/UserGuide/instancedata-data-retrieval.html for a description of the
+ * service.
+ */
+public class InstanceMetadataClient {
+    /**
+     * The address of the instance metadata service on every EC2 instance
+     */
+    public static final String DEFAULT_ENDPOINT = "http://169.254.169.254";
+
+    private static final Duration TOKEN_LIFETIME = Duration.ofHours(6);
+    private static final int TIMEOUT_MILLIS = 1000;
+    private static final Pattern ACTION_PATTERN = Pattern.compile("\"action\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern TIME_PATTERN = Pattern.compile("\"time\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final String endpoint;
+    private String token = null;
+    private Instant tokenExpiry = Instant.MIN;
+
+    /**
+     * Creates an InstanceMetadataClient.
+     *
+     * @param endpoint The address of the instance metadata service, which is {@link #DEFAULT_ENDPOINT} except when
+     *                 a stand-in is used outside EC2
+     */
+    public InstanceMetadataClient(@NotNull String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Gets the interruption notice of the spot instance.
+     *
+     * @return The notice, or null if the instance has not been told to stop
+     * @throws IOException If the instance metadata service could not be read
+     */
+    public @Nullable SpotInstanceAction getSpotInstanceAction() throws IOException {
+        String document = get("/latest/meta-data/spot/instance-action");
+        if (document == null) {
+            return null;
+        }
+        Matcher actionMatcher = ACTION_PATTERN.matcher(document);
+        Matcher timeMatcher = TIME_PATTERN.matcher(document);
+        if (!actionMatcher.find() || !timeMatcher.find()) {
+            throw new IOException("Invalid spot instance action: " + document);
+        }
+        try {
+            return new SpotInstanceAction(actionMatcher.group(1), Instant.parse(timeMatcher.group(1)));
+        } catch (DateTimeParseException e) {
+            throw new IOException("Invalid spot instance action time: " + timeMatcher.group(1), e);
+        }
+    }
+
+    /**
+     * Gets a metadata item.
+     *
+     * @param path The path of the item
+     * @return The item, or null if it does not exist
+     */
+    private @Nullable String get(String path) throws IOException {
+        HttpURLConnection connection = open(path, "GET");
+        connection.setRequestProperty("X-aws-ec2-metadata-token", getToken());
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            // The token has been invalidated, for example because the instance was stopped and started again
+            token = null;
+            connection = open(path, "GET");
+            connection.setRequestProperty("X-aws-ec2-metadata-token", getToken());
+            status = connection.getResponseCode();
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("The instance metadata service returned status " + status + " for " + path);
+        }
+        return read(connection);
+    }
+
+    private String getToken() throws IOException {
+        // Tokens are renewed a minute early so that they do not expire between being read and being used
+        if (token == null || Instant.now().isAfter(tokenExpiry.minus(Duration.ofMinutes(1)))) {
+            HttpURLConnection connection = open("/latest/api/token", "PUT");
+            connection.setRequestProperty("X-aws-ec2-metadata-token-ttl-seconds",
+                    Long.toString(TOKEN_LIFETIME.getSeconds()));
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Could not get an instance metadata token, status "
+                        + connection.getResponseCode());
+            }
+            token = read(connection);
+            tokenExpiry = Instant.now().plus(TOKEN_LIFETIME);
+        }
+        return token;
+    }
+
+    private HttpURLConnection open(String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream inputStream = connection.getInputStream()) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * An interruption notice of a spot instance
+     */
+    public static final class SpotInstanceAction {
+        private final String action;
+        private final Instant time;
+
+        private SpotInstanceAction(String action, Instant time) {
+            this.action = action;
+            this.time = time;
+        }
+
+        /**
+         * Gets what will happen to the instance.
+         *
+         * @return "terminate", "stop" or "hibernate"
+         */
+        public @NotNull String getAction() {
+            return action;
+        }
+
+        /**
+         * Gets the time the instance will be interrupted at.
+         *
+         * @return The time of the interruption
+         */
+        public @NotNull Instant getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package osbourn.cloudcubes.serveragent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.minecraft.RconClient;
+import osbourn.cloudcubes.core.server.EC2SpotInstanceManager;
+import osbourn.cloudcubes.serveragent.backup.ChunkedWorldBackup;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Saves the world of the server when its spot instance is about to be interrupted. The world is flushed to disk and
+ * the Minecraft server is stopped through RCON, the server files are backed up with a {@link ChunkedWorldBackup} (which
+ * only uploads the chunks that changed since the last backup), and the interruption is recorded in the server
+ * database so that the control plane can relaunch the server on another instance.
+ * </p>
+ *
+ * <p>
+ * Every step has a deadline derived from the interruption time, so the interruption is always recorded, even if the
+ * world could not be saved in time.
+ * </p>
+ */
+public class InterruptionResponder {
+    /**
+     * The part of the notice period kept for uploading the world, which is also used if stopping the Minecraft server
+     * takes too long
+     */
+    private static final Duration UPLOAD_RESERVE = Duration.ofSeconds(60);
+    /**
+     * The part of the notice period kept for recording the interruption in the database
+     */
+    private static final Duration RECORD_RESERVE = Duration.ofSeconds(10);
+    private static final int RCON_TIMEOUT_MILLIS = 5000;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final ChunkedWorldBackup worldBackup;
+    private final UUID serverId;
+    private final String instanceId;
+    private final Path serverDirectory;
+    private final int rconPort;
+    private final String rconPassword;
+
+    /**
+     * Creates an InterruptionResponder.
+     *
+     * @param dynamoDbClient  The client used to record the interruption
+     * @param tableName       The name of the server database
+     * @param worldBackup     The backup the world is saved with, or null if the world is kept on an EBS volume, which
+     *                        is snapshotted by the control plane once the instance has been terminated
+     * @param serverId        The id of the server running on this instance
+     * @param instanceId      The id of this instance
+     * @param serverDirectory The directory the Minecraft server runs in
+     * @param rconPort        The port the Minecraft server listens for RCON connections on
+     * @param rconPassword    The RCON password of the Minecraft server
+     */
+    public InterruptionResponder(@NotNull DynamoDbClient dynamoDbClient,
+                                 @NotNull String tableName,
+                                 @Nullable ChunkedWorldBackup worldBackup,
+                                 @NotNull UUID serverId,
+                                 @NotNull String instanceId,
+                                 @NotNull Path serverDirectory,
+                                 int rconPort,
+                                 @NotNull String rconPassword) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.worldBackup = worldBackup;
+        this.serverId = serverId;
+        this.instanceId = instanceId;
+        this.serverDirectory = serverDirectory;
+        this.rconPort = rconPort;
+        this.rconPassword = rconPassword;
+    }
+
+    /**
+     * Saves the world and records the interruption.
+     *
+     * @param interruptionTime The time the instance will be interrupted at
+     * @return true if the world was saved before the deadline
+     */
+    public boolean respond(@NotNull Instant interruptionTime) {
+        Instant uploadDeadline = interruptionTime.minus(RECORD_RESERVE);
+        stopMinecraftServer(rconPort, rconPassword, uploadDeadline.minus(UPLOAD_RESERVE));
+        boolean worldSaved = uploadWorld(uploadDeadline);
+        recordInterruption(worldSaved);
+        return worldSaved;
+    }
+
+    /**
+     * Flushes the world to disk and stops the Minecraft server on this instance, then waits for it to exit. The server
+     * agent also does this when the control plane stops the server.
+     *
+     * @param rconPort     The port the Minecraft server listens for RCON connections on
+     * @param rconPassword The RCON password of the Minecraft server
+     * @param deadline     The time by which the server must have exited
+     * @return true if the server exited before the deadline or could not be reached, in which case it is not running
+     * or the files are uploaded as they are
+     */
+    static boolean stopMinecraftServer(int rconPort, @NotNull String rconPassword, @NotNull Instant deadline) {
+        try (RconClient rconClient = RconClient.connect("127.0.0.1", rconPort, rconPassword, RCON_TIMEOUT_MILLIS)) {
+            rconClient.sendCommand("save-all flush");
+            try {
+                rconClient.sendCommand("stop");
+            } catch (IOException e) {
+                // The server may close the connection before it has answered
+            }
+        } catch (IOException e) {
+            System.err.println("Could not stop the Minecraft server: " + e.getMessage());
+            return true;
+        }
+
+        // The server closes the RCON port once it has saved every world and is about to exit
+        while (Instant.now().isBefore(deadline)) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", rconPort), RCON_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                return true;
+            }
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Backs up the server files. The agent has usually backed up the world before, so only the chunks that changed
+     * since then are uploaded.
+     */
+    private boolean uploadWorld(Instant deadline) {
+        if (worldBackup == null) {
+            // Stopping the Minecraft server has written the world to the volume
+            return true;
+        }
+        if (!Instant.now().isBefore(deadline)) {
+            return false;
+        }
+        try {
+            worldBackup.backup(serverDirectory, deadline);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not upload the world: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Marks the server UNKNOWN and records the interruption, unless the server has already been moved to another
+     * instance.
+     */
+    private void recordInterruption(boolean worldSaved) {
+        try {
+            dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(tableName)
+                    .key(Map.of("Id", AttributeValue.builder().s(serverId.toString()).build()))
+                    // The version is incremented like DynamoDBEntry does, so that the Lambda functions notice the write
+                    .updateExpression("SET #state = :unknown, #interruptedAt = :now, #worldSaved = :worldSaved "
+                            + "ADD #version :one")
+                    .conditionExpression("#instanceId = :instanceId")
+                    .expressionAttributeNames(Map.of(
+                            "#state", "ServerState",
+                            "#interruptedAt", EC2SpotInstanceManager.INTERRUPTED_AT_KEY,
+                            "#worldSaved", EC2SpotInstanceManager.INTERRUPTION_WORLD_SAVED_KEY,
+                            "#instanceId", "EC2InstanceId",
+                            "#version", DynamoDBEntry.VERSION_KEY))
+                    .expressionAttributeValues(Map.of(
+                            ":unknown", AttributeValue.builder().s("UNKNOWN").build(),
+                            ":now", AttributeValue.builder().s(Instant.now().toString()).build(),
+                            ":worldSaved", AttributeValue.builder().s(Boolean.toString(worldSaved)).build(),
+                            ":instanceId", AttributeValue.builder().s(instanceId).build(),
+                            ":one", AttributeValue.builder().n("1").build()))
+                    .build());
+        } catch (ConditionalCheckFailedException e) {
+            System.err.println("The server no longer runs on this instance, the interruption was not recorded");
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package osbourn.cloudcubes.serveragent;
+
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.minecraft.RconClient;
+import osbourn.cloudcubes.core.server.WorldSynchronizer;
+import osbourn.cloudcubes.serveragent.InstanceMetadataClient.SpotInstanceAction;
+import osbourn.cloudcubes.serveragent.backup.ChunkedWorldBackup;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Runs on every server instance next to the Minecraft server, started by startup.sh. The agent polls the instance
+ * metadata service for a spot interruption notice, which arrives two minutes before the instance is interrupted, and
+ * then saves the world with an {@link InterruptionResponder}. In the meantime it backs up the world every hour with a
+ * {@link ChunkedWorldBackup}, so that the backup made after an interruption only has to upload the latest changes.
+ * </p>
+ *
+ * <p>
+ * The agent is configured through the environment variables set by the user data: the infrastructure settings,
+ * SERVER_ID and EC2_ID, as well as RCON_PASSWORD. CLOUDCUBES_IMDS_ENDPOINT replaces the address of the instance
+ * metadata service, so that the agent can be run against a stand-in outside EC2. If WORLD_VOLUME_DEVICE is set, the
+ * world is kept on an EBS volume that is snapshotted when the server stops, and the agent makes no backups.
+ * </p>
+ *
+ * <p>
+ * The agent also makes and restores single backups and stops the Minecraft server, which only need their arguments,
+ * since they are run by startup.sh and through Systems Manager Run Command:
+ * <ul>
+ * <li>backup &lt;world bucket&gt; &lt;server id&gt; &lt;directory&gt; [deadline in epoch seconds]</li>
+ * <li>stop &lt;directory&gt; [deadline in epoch seconds], which saves the world and stops the Minecraft server through
+ * RCON with the port and password in its server.properties, and exits with status 1 if the server is still running at
+ * the deadline</li>
+ * <li>restore &lt;world bucket&gt; &lt;server id&gt; &lt;directory&gt; [ready file], which creates the ready file
+ * once the server can be started (see {@link ChunkedWorldBackup#restore(Path, Runnable)}) and keeps restoring the rest
+ * of the world, and exits with status 2 if the server has never been backed up</li>
+ * </ul>
+ * </p>
+ */
+public final class ServerAgent {
+    /**
+     * How often the instance metadata service is polled, as recommended by AWS
+     */
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration BACKUP_INTERVAL = Duration.ofHours(1);
+    private static final Duration BACKUP_TIMEOUT = Duration.ofMinutes(10);
+    private static final Duration DEFAULT_SINGLE_BACKUP_TIMEOUT = Duration.ofHours(1);
+    private static final Duration DEFAULT_STOP_TIMEOUT = Duration.ofMinutes(1);
+    private static final int RCON_TIMEOUT_MILLIS = 5000;
+    private static final int EXIT_NO_BACKUP = 2;
+
+    private ServerAgent() {
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length == 0) {
+            monitor();
+            return;
+        }
+        if (args[0].equals("stop") && args.length >= 2) {
+            Instant deadline = args.length > 2
+                    ? Instant.ofEpochSecond(Long.parseLong(args[2]))
+                    : Instant.now().plus(DEFAULT_STOP_TIMEOUT);
+            Properties serverProperties = readServerProperties(Path.of(args[1]));
+            int rconPort = Integer.parseInt(serverProperties.getProperty("rcon.port",
+                    Integer.toString(RconClient.DEFAULT_PORT)));
+            String rconPassword = Objects.requireNonNull(serverProperties.getProperty("rcon.password"),
+                    "The RCON password is not set");
+            if (!InterruptionResponder.stopMinecraftServer(rconPort, rconPassword, deadline)) {
+                System.out.println("The Minecraft server did not stop in time");
+                System.exit(1);
+            }
+            System.out.println("Stopped the Minecraft server");
+            return;
+        }
+        if (args.length < 4 || !(args[0].equals("backup") || args[0].equals("restore"))) {
+            System.err.println("Usage: server-agent.jar [backup <world bucket> <server id> <directory>"
+                    + " [deadline in epoch seconds] | restore <world bucket> <server id> <directory> [ready file]"
+                    + " | stop <directory> [deadline in epoch seconds]]");
+            System.exit(1);
+        }
+        UUID serverId = UUID.fromString(args[2]);
+        Path directory = Path.of(args[3]);
+        try (ChunkedWorldBackup backup = new ChunkedWorldBackup(createS3Client(null), args[1], serverId)) {
+            if (args[0].equals("backup")) {
+                Instant deadline = args.length > 4
+                        ? Instant.ofEpochSecond(Long.parseLong(args[4]))
+                        : Instant.now().plus(DEFAULT_SINGLE_BACKUP_TIMEOUT);
+                System.out.println("Backed up the world to " + backup.backup(directory, deadline));
+            } else if (restore(backup, directory, args.length > 4 ? Path.of(args[4]) : null)) {
+                System.out.println("Restored the world");
+            } else {
+                System.out.println("The server has never been backed up");
+                System.exit(EXIT_NO_BACKUP);
+            }
+        }
+    }
+
+    /**
+     * Reads the server.properties of the Minecraft server, which startup.sh writes the RCON settings to.
+     */
+    private static Properties readServerProperties(Path directory) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve("server.properties"))) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    /**
+     * Restores the world, creating the ready file once the server can be started. The time it takes until then and
+     * until the whole world has been restored is printed, since it decides how soon players can join.
+     */
+    private static boolean restore(ChunkedWorldBackup backup, Path directory, Path readyFile) throws IOException {
+        Instant start = Instant.now();
+        boolean restored = backup.restore(directory, () -> {
+            System.out.println("The server can be started after " + Duration.between(start, Instant.now()).toMillis()
+                    + " ms");
+            if (readyFile != null) {
+                try {
+                    Files.write(readyFile, new byte[0]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        if (restored) {
+            System.out.println("Restored the whole world after " + Duration.between(start, Instant.now()).toMillis()
+                    + " ms");
+        }
+        return restored;
+    }
+
+    private static void monitor() throws InterruptedException {
+        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(infrastructureConfiguration);
+        UUID serverId = UUID.fromString(Objects.requireNonNull(System.getenv("SERVER_ID"), "SERVER_ID is not set"));
+        String instanceId = Objects.requireNonNull(System.getenv("EC2_ID"), "EC2_ID is not set");
+        String rconPassword = Objects.requireNonNull(System.getenv("RCON_PASSWORD"), "RCON_PASSWORD is not set");
+        String metadataEndpoint = Objects.requireNonNullElse(
+                System.getenv("CLOUDCUBES_IMDS_ENDPOINT"), InstanceMetadataClient.DEFAULT_ENDPOINT);
+
+        ChunkedWorldBackup worldBackup = null;
+        ScheduledExecutorService backupScheduler = Executors.newSingleThreadScheduledExecutor();
+        if (System.getenv("WORLD_VOLUME_DEVICE") == null) {
+            ChunkedWorldBackup backup = new ChunkedWorldBackup(
+                    createS3Client(infrastructureConfiguration.getRegion()),
+                    infrastructureConfiguration.getValue(InfrastructureSetting.WORLDBUCKETNAME),
+                    serverId);
+            backupScheduler.scheduleWithFixedDelay(() -> backUpRunningWorld(backup, rconPassword),
+                    BACKUP_INTERVAL.toMillis(), BACKUP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+            worldBackup = backup;
+        }
+
+        InstanceMetadataClient metadataClient = new InstanceMetadataClient(metadataEndpoint);
+        InterruptionResponder responder = new InterruptionResponder(
+                infrastructureConstructor.getDynamoDBClient(),
+                infrastructureConfiguration.getValue(InfrastructureSetting.SERVERDATABASENAME),
+                worldBackup,
+                serverId,
+                instanceId,
+                Path.of(WorldSynchronizer.SERVER_DIRECTORY),
+                RconClient.DEFAULT_PORT,
+                rconPassword);
+        // Interrupting a running periodic backup makes it give up, so the responder does not wait for it
+        respondToInterruption(metadataClient, responder, POLL_INTERVAL, backupScheduler::shutdownNow);
+        if (worldBackup != null) {
+            worldBackup.close();
+        }
+    }
+
+    /**
+     * Polls the instance metadata service until the spot instance receives an interruption notice, then saves the
+     * world with the responder.
+     *
+     * @param beforeResponding Called once the notice has arrived, before the world is saved
+     * @return true if the world was saved before the instance is interrupted
+     */
+    static boolean respondToInterruption(InstanceMetadataClient metadataClient,
+                                         InterruptionResponder responder,
+                                         Duration pollInterval,
+                                         Runnable beforeResponding) throws InterruptedException {
+        while (true) {
+            SpotInstanceAction action;
+            try {
+                action = metadataClient.getSpotInstanceAction();
+            } catch (IOException e) {
+                System.err.println("Could not read the spot instance action: " + e.getMessage());
+                action = null;
+            }
+            if (action != null) {
+                System.out.println("Received a spot interruption notice, the instance will " + action.getAction()
+                        + " at " + action.getTime());
+                beforeResponding.run();
+                boolean worldSaved = responder.respond(action.getTime());
+                System.out.println(worldSaved ? "Saved the world" : "Could not save the world in time");
+                return worldSaved;
+            }
+            Thread.sleep(pollInterval.toMillis());
+        }
+    }
+
+    /**
+     * Backs up the world while the Minecraft server keeps running. Automatic saving is turned off during the backup,
+     * so that the files are not changed while they are read.
+     */
+    private static void backUpRunningWorld(ChunkedWorldBackup worldBackup, String rconPassword) {
+        try (RconClient rconClient = RconClient.connect(
+                "127.0.0.1", RconClient.DEFAULT_PORT, rconPassword, RCON_TIMEOUT_MILLIS)) {
+            rconClient.sendCommand("save-off");
+            try {
+                rconClient.sendCommand("save-all flush");
+                String manifestKey = worldBackup.backup(
+                        Path.of(WorldSynchronizer.SERVER_DIRECTORY), Instant.now().plus(BACKUP_TIMEOUT));
+                System.out.println("Backed up the world to " + manifestKey);
+            } finally {
+                rconClient.sendCommand("save-on");
+            }
+        } catch (IOException e) {
+            System.err.println("Could not back up the world: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the S3 client used for backups. The backups only happen on instances, where the region can be looked up
+     * in the instance metadata if the configuration is not available.
+     */
+    private static S3Client createS3Client(Region region) {
+        S3ClientBuilder builder = S3Client.builder().httpClientBuilder(UrlConnectionHttpClient.builder());
+        if (region != null) {
+            builder.region(region);
+        }
+        return builder.build();
+    }
+}
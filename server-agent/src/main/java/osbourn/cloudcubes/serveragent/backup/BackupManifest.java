@@ -0,0 +1,125 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * The list of files in a backup. Every file is split into chunks of {@link ChunkedWorldBackup#CHUNK_SIZE} bytes (the
+ * last chunk may be shorter), which are stored under the SHA-256 hash of their contents, so a manifest only records
+ * the hashes of the chunks of each file.
+ * </p>
+ *
+ * <p>
+ * The manifest is stored as text, with a header line followed by one line per file, in the format
+ * "size TAB lastModifiedMillis TAB hash,hash,... TAB path". Paths are relative to the backed up directory and use "/"
+ * as the separator.
+ * </p>
+ */
+public final class BackupManifest {
+    private static final String HEADER = "cloudcubes-backup 1";
+
+    private final List<FileEntry> files;
+
+    public BackupManifest(@NotNull List<FileEntry> files) {
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+    }
+
+    public @NotNull List<FileEntry> getFiles() {
+        return files;
+    }
+
+    /**
+     * Parses a manifest.
+     *
+     * @param text The manifest, as written by {@link #toText()}
+     * @return The manifest
+     * @throws IOException If the text is not a manifest
+     */
+    public static @NotNull BackupManifest parse(@NotNull String text) throws IOException {
+        String[] lines = text.split("\n");
+        if (lines.length == 0 || !lines[0].equals(HEADER)) {
+            throw new IOException("Unsupported backup manifest");
+        }
+        List<FileEntry> files = new ArrayList<>(lines.length - 1);
+        for (int lineNumber = 1; lineNumber < lines.length; lineNumber++) {
+            String[] fields = lines[lineNumber].split("\t", 4);
+            if (fields.length != 4) {
+                throw new IOException("Invalid backup manifest line " + (lineNumber + 1));
+            }
+            try {
+                List<String> chunkHashes = fields[2].isEmpty()
+                        ? Collections.emptyList()
+                        : Arrays.asList(fields[2].split(","));
+                files.add(new FileEntry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), chunkHashes));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid backup manifest line " + (lineNumber + 1), e);
+            }
+        }
+        return new BackupManifest(files);
+    }
+
+    /**
+     * Writes the manifest as text.
+     *
+     * @return The manifest
+     */
+    public @NotNull String toText() {
+        StringBuilder builder = new StringBuilder(HEADER).append('\n');
+        for (FileEntry file : files) {
+            builder.append(file.size).append('\t')
+                    .append(file.lastModifiedMillis).append('\t')
+                    .append(String.join(",", file.chunkHashes)).append('\t')
+                    .append(file.path).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A file in a backup
+     */
+    public static final class FileEntry {
+        private final String path;
+        private final long size;
+        private final long lastModifiedMillis;
+        private final List<String> chunkHashes;
+
+        public FileEntry(@NotNull String path, long size, long lastModifiedMillis, @NotNull List<String> chunkHashes) {
+            this.path = path;
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.chunkHashes = Collections.unmodifiableList(new ArrayList<>(chunkHashes));
+        }
+
+        /**
+         * Gets the path of the file, relative to the backed up directory and with "/" as the separator.
+         *
+         * @return The path
+         */
+        public @NotNull String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModifiedMillis() {
+            return lastModifiedMillis;
+        }
+
+        /**
+         * Gets the hashes of the chunks of the file, in the order they appear in the file.
+         *
+         * @return The hex encoded SHA-256 hashes
+         */
+        public @NotNull List<String> getChunkHashes() {
+            return chunkHashes;
+        }
+    }
+}
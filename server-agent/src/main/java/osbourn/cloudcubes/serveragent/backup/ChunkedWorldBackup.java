@@ -0,0 +1,556 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Backs up the files of a server to S3 as content-addressed chunks. Every file is split into chunks of
+ * {@link #CHUNK_SIZE} bytes, and every chunk is stored, compressed with zstd, under the SHA-256 hash of its contents.
+ * A {@link BackupManifest} lists the chunks of every file in a backup. Chunks that are already stored are not uploaded
+ * again, and files whose size and modification time have not changed since the previous backup are not even read, so
+ * a backup of a large world only costs the chunks that changed.
+ * </p>
+ *
+ * <p>
+ * Region files consist of 4 KiB sectors that are rewritten in place when the chunks stored in them change, so the
+ * chunk size is a multiple of the sector size: a change only affects the backup chunks containing the changed sectors.
+ * </p>
+ *
+ * <p>
+ * The objects are stored in the world bucket:
+ * <ul>
+ * <li>backups/chunks/&lt;first two hex digits&gt;/&lt;hash&gt;: the chunks, shared by every server</li>
+ * <li>backups/&lt;server id&gt;/manifests/&lt;time&gt;.manifest: the manifest of every backup of a server</li>
+ * <li>backups/&lt;server id&gt;/latest: the key of the latest manifest, written once a backup is complete</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Files are read and written on a small pool of threads, and chunks are transferred on a larger pool, so many chunks
+ * are in flight at once. This class is thread safe, but backups and restores of the same object run one at a time.
+ * </p>
+ */
+public class ChunkedWorldBackup implements AutoCloseable {
+    /**
+     * The size of a chunk, a multiple of the 4 KiB sectors of region files
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    /**
+     * The number of chunks transferred at once, if no other number is given
+     */
+    public static final int DEFAULT_PARALLELISM = 16;
+    /**
+     * The file that exists in a directory while a backup is restored into it
+     */
+    public static final String RESTORE_MARKER = ".cloudcubes-restoring";
+
+    private static final String RESTORING_SUFFIX = ".cloudcubes-restoring";
+    private static final String RESTORED_SUFFIX = ".cloudcubes-restored";
+
+    private static final int COMPRESSION_LEVEL = 3;
+    private static final DateTimeFormatter MANIFEST_NAME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final ThreadLocal<ByteBuffer> CHUNK_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(CHUNK_SIZE));
+    private static final ThreadLocal<byte[]> COMPRESSION_BUFFERS =
+            ThreadLocal.withInitial(() -> new byte[(int) Zstd.compressBound(CHUNK_SIZE)]);
+
+    private final S3Client s3Client;
+    private final String bucketName;
+    private final String serverPrefix;
+    private final ExecutorService fileExecutor;
+    private final ExecutorService transferExecutor;
+    /**
+     * Limits the number of chunks read into memory that are waiting to be uploaded
+     */
+    private final Semaphore pendingUploadPermits;
+    /**
+     * The hashes of the chunks known to be stored, or being uploaded by the running backup
+     */
+    private final Set<String> storedChunks = ConcurrentHashMap.newKeySet();
+    private BackupManifest latestManifest = null;
+    private boolean hasLoadedLatestManifest = false;
+
+    /**
+     * Creates a ChunkedWorldBackup that transfers {@link #DEFAULT_PARALLELISM} chunks at once.
+     *
+     * @param s3Client   The client used to store the chunks
+     * @param bucketName The bucket the backups are stored in
+     * @param serverId   The id of the server whose files are backed up
+     */
+    public ChunkedWorldBackup(@NotNull S3Client s3Client, @NotNull String bucketName, @NotNull UUID serverId) {
+        this(s3Client, bucketName, serverId, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Creates a ChunkedWorldBackup.
+     *
+     * @param s3Client    The client used to store the chunks
+     * @param bucketName  The bucket the backups are stored in
+     * @param serverId    The id of the server whose files are backed up
+     * @param parallelism The number of chunks transferred at once
+     */
+    public ChunkedWorldBackup(@NotNull S3Client s3Client, @NotNull String bucketName, @NotNull UUID serverId,
+                              int parallelism) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.serverPrefix = "backups/" + serverId + "/";
+        this.fileExecutor = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), daemonThreads("backup-file"));
+        this.transferExecutor = Executors.newFixedThreadPool(parallelism, daemonThreads("backup-transfer"));
+        this.pendingUploadPermits = new Semaphore(parallelism * 2);
+    }
+
+    /**
+     * Backs up every file in a directory.
+     *
+     * @param directory The directory
+     * @param deadline  The time by which the backup must be complete
+     * @return The key of the manifest of the backup
+     * @throws IOException If a file could not be read, a chunk could not be uploaded, the backup was not complete
+     *                     before the deadline, or the directory is still being restored. The previous backup stays the
+     *                     latest one.
+     */
+    public synchronized @NotNull String backup(@NotNull Path directory, @NotNull Instant deadline) throws IOException {
+        if (Files.exists(directory.resolve(RESTORE_MARKER))) {
+            throw new IOException("The directory has not been completely restored");
+        }
+        BackupManifest previousManifest = loadLatestManifest();
+        Map<String, BackupManifest.FileEntry> previousFiles = new HashMap<>();
+        if (previousManifest != null) {
+            for (BackupManifest.FileEntry file : previousManifest.getFiles()) {
+                previousFiles.put(file.getPath(), file);
+            }
+        }
+
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        List<Future<BackedUpFile>> backedUpFiles = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            String relativePath = toManifestPath(directory.relativize(path));
+            backedUpFiles.add(fileExecutor.submit(() -> backUpFile(path, relativePath, previousFiles.get(relativePath))));
+        }
+
+        List<BackupManifest.FileEntry> files = new ArrayList<>(paths.size());
+        try {
+            List<Future<?>> uploads = new ArrayList<>();
+            for (Future<BackedUpFile> backedUpFile : backedUpFiles) {
+                BackedUpFile file = await(backedUpFile, deadline);
+                files.add(file.entry);
+                uploads.addAll(file.uploads);
+            }
+            for (Future<?> upload : uploads) {
+                await(upload, deadline);
+            }
+        } catch (IOException e) {
+            for (Future<BackedUpFile> backedUpFile : backedUpFiles) {
+                backedUpFile.cancel(true);
+            }
+            // Only the chunks of the previous backup are known to have been stored
+            storedChunks.clear();
+            if (previousManifest != null) {
+                addStoredChunks(previousManifest);
+            }
+            throw e;
+        }
+
+        BackupManifest manifest = new BackupManifest(files);
+        String manifestKey = serverPrefix + "manifests/" + MANIFEST_NAME_FORMAT.format(Instant.now()) + ".manifest";
+        putObject(manifestKey, manifest.toText().getBytes(StandardCharsets.UTF_8));
+        // The pointer is written last, so an incomplete backup never becomes the latest one
+        putObject(serverPrefix + "latest", manifestKey.getBytes(StandardCharsets.UTF_8));
+        latestManifest = manifest;
+        return manifestKey;
+    }
+
+    /**
+     * Restores the latest backup into a directory. Files that are not part of the backup are left alone.
+     *
+     * @param directory The directory
+     * @return false if the server has never been backed up
+     * @throws IOException If a chunk could not be downloaded or a file could not be written
+     */
+    public boolean restore(@NotNull Path directory) throws IOException {
+        return restore(directory, () -> {
+        });
+    }
+
+    /**
+     * <p>
+     * Restores the latest backup into a directory, in an order that lets the server start before the whole world has
+     * been restored. Files that are not part of the backup are left alone.
+     * </p>
+     *
+     * <p>
+     * The files that are not region files are restored first, since they are small and the server needs all of them.
+     * Then the region files within {@link WorldSpawn#NEAR_SPAWN_REGION_RADIUS} of the spawn region are restored, after
+     * which onPlayable is run. The remaining region files are restored in the order of their distance from spawn.
+     * Each of them is written under a temporary name and moved into place once it is complete, so the server never
+     * reads a partially restored region file. If the server has created a region file in the meantime, the restored
+     * file is kept next to it with the suffix {@value #RESTORED_SUFFIX} instead of replacing it.
+     * </p>
+     *
+     * <p>
+     * The file {@value #RESTORE_MARKER} exists in the directory until the restore is complete, and
+     * {@link #backup(Path, Instant)} refuses to back up the directory while it exists, so a partially restored world
+     * never replaces the latest backup.
+     * </p>
+     *
+     * @param directory  The directory
+     * @param onPlayable Run once the server can be started, before the remaining region files are restored
+     * @return false if the server has never been backed up, in which case onPlayable is not run
+     * @throws IOException If a chunk could not be downloaded or a file could not be written
+     */
+    public synchronized boolean restore(@NotNull Path directory, @NotNull Runnable onPlayable) throws IOException {
+        BackupManifest manifest = loadLatestManifest();
+        if (manifest == null) {
+            return false;
+        }
+        Files.createDirectories(directory);
+        Path restoreMarker = directory.resolve(RESTORE_MARKER);
+        Files.write(restoreMarker, new byte[0]);
+
+        List<BackupManifest.FileEntry> regionFiles = new ArrayList<>();
+        List<BackupManifest.FileEntry> otherFiles = new ArrayList<>();
+        for (BackupManifest.FileEntry file : manifest.getFiles()) {
+            (file.getPath().endsWith(".mca") ? regionFiles : otherFiles).add(file);
+        }
+        restoreFiles(directory, otherFiles, false);
+
+        WorldSpawn spawn = WorldSpawn.read(directory);
+        regionFiles.sort(Comparator.comparingInt(file -> spawn.getRegionDistance(file.getPath())));
+        List<BackupManifest.FileEntry> nearSpawnFiles = new ArrayList<>();
+        List<BackupManifest.FileEntry> remainingFiles = new ArrayList<>();
+        for (BackupManifest.FileEntry file : regionFiles) {
+            (spawn.isNearSpawn(file.getPath()) ? nearSpawnFiles : remainingFiles).add(file);
+        }
+        restoreFiles(directory, nearSpawnFiles, false);
+        // Region files left over in the directory are older than the backup, and the server must not load them
+        for (BackupManifest.FileEntry file : remainingFiles) {
+            Files.deleteIfExists(directory.resolve(file.getPath()));
+        }
+
+        onPlayable.run();
+        restoreFiles(directory, remainingFiles, true);
+        Files.delete(restoreMarker);
+        return true;
+    }
+
+    /**
+     * Restores files, several at a time, in the order they are given in.
+     *
+     * @param inBackground Whether the server may be running, in which case the files are written under a temporary
+     *                     name and moved into place once they are complete
+     */
+    private void restoreFiles(Path directory, List<BackupManifest.FileEntry> files, boolean inBackground)
+            throws IOException {
+        List<Future<?>> restoredFiles = new ArrayList<>(files.size());
+        for (BackupManifest.FileEntry file : files) {
+            Path path = directory.resolve(file.getPath());
+            restoredFiles.add(fileExecutor.submit(() -> {
+                if (!inBackground) {
+                    restoreFile(path, file);
+                    return null;
+                }
+                Path temporaryPath = path.resolveSibling(path.getFileName() + RESTORING_SUFFIX);
+                restoreFile(temporaryPath, file);
+                try {
+                    Files.move(temporaryPath, path);
+                } catch (FileAlreadyExistsException e) {
+                    Path restoredPath = path.resolveSibling(path.getFileName() + RESTORED_SUFFIX);
+                    Files.move(temporaryPath, restoredPath, StandardCopyOption.REPLACE_EXISTING);
+                    System.err.println("The server created " + path + " before it was restored, the restored file"
+                            + " was kept as " + restoredPath);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> restoredFile : restoredFiles) {
+                await(restoredFile, Instant.MAX);
+            }
+        } catch (IOException e) {
+            for (Future<?> restoredFile : restoredFiles) {
+                restoredFile.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a file, hashes its chunks and starts uploading the chunks that are not stored yet. A file whose size and
+     * modification time match the previous backup is not read.
+     */
+    private BackedUpFile backUpFile(Path path, String relativePath, @Nullable BackupManifest.FileEntry previousFile)
+            throws IOException, InterruptedException {
+        long size = Files.size(path);
+        long lastModifiedMillis = Files.getLastModifiedTime(path).toMillis();
+        if (previousFile != null && previousFile.getSize() == size
+                && previousFile.getLastModifiedMillis() == lastModifiedMillis) {
+            return new BackedUpFile(previousFile, Collections.emptyList());
+        }
+
+        List<String> chunkHashes = new ArrayList<>();
+        List<Future<?>> uploads = new ArrayList<>();
+        ByteBuffer buffer = CHUNK_BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The file may grow while it is read, the backup contains the part that existed when it was measured
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                buffer.clear().limit((int) Math.min(CHUNK_SIZE, size - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException(path + " was truncated while it was backed up");
+                    }
+                }
+                String hash = sha256(buffer.array(), buffer.limit());
+                chunkHashes.add(hash);
+                if (storedChunks.add(hash)) {
+                    uploads.add(startUpload(hash, compress(buffer.array(), buffer.limit())));
+                }
+            }
+        }
+        return new BackedUpFile(new BackupManifest.FileEntry(relativePath, size, lastModifiedMillis, chunkHashes),
+                uploads);
+    }
+
+    private Future<?> startUpload(String hash, byte[] compressedChunk) throws InterruptedException {
+        pendingUploadPermits.acquire();
+        try {
+            return transferExecutor.submit(() -> {
+                try {
+                    putObject(getChunkKey(hash), compressedChunk);
+                } catch (RuntimeException e) {
+                    storedChunks.remove(hash);
+                    throw e;
+                } finally {
+                    pendingUploadPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingUploadPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Downloads the chunks of a file in parallel and writes each of them at its position in the file. The modification
+     * time of the file is set to the one in the manifest, so the next backup does not read the file again unless it
+     * changes.
+     */
+    private void restoreFile(Path path, BackupManifest.FileEntry file) throws IOException, InterruptedException {
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<?>> chunks = new ArrayList<>(file.getChunkHashes().size());
+            for (int index = 0; index < file.getChunkHashes().size(); index++) {
+                String hash = file.getChunkHashes().get(index);
+                long position = (long) index * CHUNK_SIZE;
+                int length = (int) Math.min(CHUNK_SIZE, file.getSize() - position);
+                chunks.add(transferExecutor.submit(() -> {
+                    ByteBuffer chunk = ByteBuffer.wrap(downloadChunk(hash, length));
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk, position + chunk.position());
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> chunk : chunks) {
+                    await(chunk, Instant.MAX);
+                }
+            } catch (IOException e) {
+                for (Future<?> chunk : chunks) {
+                    chunk.cancel(true);
+                }
+                throw e;
+            }
+        }
+        Files.setLastModifiedTime(path, FileTime.fromMillis(file.getLastModifiedMillis()));
+    }
+
+    /**
+     * Downloads a chunk, decompressing it while it is received, and checks it against its hash.
+     */
+    private byte[] downloadChunk(String hash, int length) throws IOException {
+        byte[] chunk = new byte[length];
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucketName).key(getChunkKey(hash)).build();
+        try (ZstdInputStream inputStream = new ZstdInputStream(s3Client.getObject(request))) {
+            if (inputStream.readNBytes(chunk, 0, length) != length || inputStream.read() >= 0) {
+                throw new IOException("Chunk " + hash + " does not have the expected size");
+            }
+        } catch (NoSuchKeyException e) {
+            throw new IOException("Chunk " + hash + " is missing", e);
+        }
+        if (!sha256(chunk, length).equals(hash)) {
+            throw new IOException("Chunk " + hash + " is corrupt");
+        }
+        storedChunks.add(hash);
+        return chunk;
+    }
+
+    /**
+     * Gets the manifest of the latest backup, which is downloaded once and then remembered.
+     *
+     * @return The manifest, or null if the server has never been backed up
+     */
+    private @Nullable BackupManifest loadLatestManifest() throws IOException {
+        if (!hasLoadedLatestManifest) {
+            byte[] latestManifestKey = getObject(serverPrefix + "latest");
+            if (latestManifestKey != null) {
+                byte[] manifest = getObject(new String(latestManifestKey, StandardCharsets.UTF_8).trim());
+                if (manifest == null) {
+                    throw new IOException("The latest backup manifest is missing");
+                }
+                latestManifest = BackupManifest.parse(new String(manifest, StandardCharsets.UTF_8));
+                addStoredChunks(latestManifest);
+            }
+            hasLoadedLatestManifest = true;
+        }
+        return latestManifest;
+    }
+
+    private void addStoredChunks(BackupManifest manifest) {
+        for (BackupManifest.FileEntry file : manifest.getFiles()) {
+            storedChunks.addAll(file.getChunkHashes());
+        }
+    }
+
+    private static String getChunkKey(String hash) {
+        // Spreading the chunks over prefixes spreads them over S3 partitions
+        return "backups/chunks/" + hash.substring(0, 2) + "/" + hash;
+    }
+
+    private static String toManifestPath(Path relativePath) {
+        StringJoiner joiner = new StringJoiner("/");
+        for (Path name : relativePath) {
+            joiner.add(name.toString());
+        }
+        return joiner.toString();
+    }
+
+    private static byte[] compress(byte[] chunk, int length) {
+        byte[] compressionBuffer = COMPRESSION_BUFFERS.get();
+        long compressedLength = Zstd.compressByteArray(
+                compressionBuffer, 0, compressionBuffer.length, chunk, 0, length, COMPRESSION_LEVEL);
+        if (Zstd.isError(compressedLength)) {
+            throw new IllegalStateException("Could not compress a chunk: " + Zstd.getErrorName(compressedLength));
+        }
+        return Arrays.copyOf(compressionBuffer, (int) compressedLength);
+    }
+
+    private static String sha256(byte[] bytes, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform supports SHA-256", e);
+        }
+        digest.update(bytes, 0, length);
+        StringBuilder hex = new StringBuilder(64);
+        for (byte hashByte : digest.digest()) {
+            hex.append(Character.forDigit((hashByte >> 4) & 0xF, 16)).append(Character.forDigit(hashByte & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private void putObject(String key, byte[] contents) {
+        s3Client.putObject(PutObjectRequest.builder().bucket(bucketName).key(key).build(),
+                RequestBody.fromBytes(contents));
+    }
+
+    private @Nullable byte[] getObject(String key) {
+        try {
+            return s3Client.getObjectAsBytes(GetObjectRequest.builder().bucket(bucketName).key(key).build())
+                    .asByteArrayUnsafe();
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a task, turning its failure into an IOException.
+     */
+    private static <T> T await(Future<T> future, Instant deadline) throws IOException {
+        try {
+            if (deadline.equals(Instant.MAX)) {
+                return future.get();
+            }
+            return future.get(Math.max(0, Duration.between(Instant.now(), deadline).toMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the backup");
+        } catch (TimeoutException e) {
+            throw new IOException("The backup did not finish before the deadline", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("The backup failed", cause);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void close() {
+        fileExecutor.shutdownNow();
+        transferExecutor.shutdownNow();
+    }
+
+    /**
+     * A file whose chunks have been hashed, and the uploads of its chunks that were not stored yet
+     */
+    private static final class BackedUpFile {
+        private final BackupManifest.FileEntry entry;
+        private final List<Future<?>> uploads;
+
+        private BackedUpFile(BackupManifest.FileEntry entry, List<Future<?>> uploads) {
+            this.entry = entry;
+            this.uploads = uploads;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ * The location of the spawn point of the world in a server directory, used to restore the region files around spawn
+ * before the rest of the world. Players join at spawn, so the server can be started once those are restored.
+ * </p>
+ *
+ * <p>
+ * The name of the world is read from server.properties and the spawn point from the level.dat file of the world, a
+ * gzipped NBT compound. If either cannot be read, the spawn point is assumed to be at the origin, where Minecraft
+ * places it in most worlds.
+ * </p>
+ */
+final class WorldSpawn {
+    /**
+     * The number of regions around the spawn region that are restored before the server is started. A region is 32 by
+     * 32 chunks, so the server can load the spawn chunks and the view distance of the players joining at spawn.
+     */
+    static final int NEAR_SPAWN_REGION_RADIUS = 1;
+
+    private static final Pattern REGION_FILE_PATTERN =
+            Pattern.compile("(.+)/(region|entities|poi)/r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    private static final int REGION_SIZE_IN_BLOCKS = 512;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    private final String levelName;
+    private final int spawnRegionX;
+    private final int spawnRegionZ;
+
+    private WorldSpawn(String levelName, int spawnX, int spawnZ) {
+        this.levelName = levelName;
+        this.spawnRegionX = Math.floorDiv(spawnX, REGION_SIZE_IN_BLOCKS);
+        this.spawnRegionZ = Math.floorDiv(spawnZ, REGION_SIZE_IN_BLOCKS);
+    }
+
+    /**
+     * Finds the spawn point of the world in a server directory.
+     *
+     * @param serverDirectory The directory containing server.properties and the world
+     * @return The spawn point, which is at the origin if it could not be read
+     */
+    static @NotNull WorldSpawn read(@NotNull Path serverDirectory) {
+        String levelName = "world";
+        Path serverProperties = serverDirectory.resolve("server.properties");
+        if (Files.isRegularFile(serverProperties)) {
+            try (Reader reader = Files.newBufferedReader(serverProperties)) {
+                Properties properties = new Properties();
+                properties.load(reader);
+                levelName = properties.getProperty("level-name", levelName);
+            } catch (IOException | IllegalArgumentException e) {
+                // Minecraft falls back to the default name as well
+            }
+        }
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                Files.newInputStream(serverDirectory.resolve(levelName).resolve("level.dat")))))) {
+            // The root compound contains the "Data" compound, which contains SpawnX and SpawnZ
+            if (inputStream.readUnsignedByte() != TAG_COMPOUND) {
+                return new WorldSpawn(levelName, 0, 0);
+            }
+            inputStream.readUTF();
+            int[] spawn = new int[2];
+            if (findSpawn(inputStream, spawn)) {
+                return new WorldSpawn(levelName, spawn[0], spawn[1]);
+            }
+        } catch (IOException e) {
+            // The world may be new or stored in another format
+        }
+        return new WorldSpawn(levelName, 0, 0);
+    }
+
+    /**
+     * Gets how far the region of a region file is from the spawn region, counted in regions along the farther axis.
+     * The entity and point of interest files of a region belong to the region as well.
+     *
+     * @param path The path of a file in the server directory, as stored in a {@link BackupManifest}
+     * @return The distance, or {@link Integer#MAX_VALUE} if the file is not a region file of the overworld
+     */
+    int getRegionDistance(@NotNull String path) {
+        Matcher matcher = REGION_FILE_PATTERN.matcher(path);
+        if (!matcher.matches() || !matcher.group(1).equals(levelName)) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            int regionX = Integer.parseInt(matcher.group(3));
+            int regionZ = Integer.parseInt(matcher.group(4));
+            return Math.max(Math.abs(regionX - spawnRegionX), Math.abs(regionZ - spawnRegionZ));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Gets whether a file is a region file needed by players joining at spawn.
+     *
+     * @param path The path of a file in the server directory, as stored in a {@link BackupManifest}
+     * @return true if the file is a region file within {@link #NEAR_SPAWN_REGION_RADIUS} of the spawn region
+     */
+    boolean isNearSpawn(@NotNull String path) {
+        return getRegionDistance(path) <= NEAR_SPAWN_REGION_RADIUS;
+    }
+
+    /**
+     * Reads the payload of a compound tag, looking for the Data compound and the spawn coordinates inside it.
+     *
+     * @param spawn Receives SpawnX and SpawnZ
+     * @return true if both coordinates were found
+     */
+    private static boolean findSpawn(DataInputStream inputStream, int[] spawn) throws IOException {
+        boolean foundX = false;
+        boolean foundZ = false;
+        int type;
+        while ((type = inputStream.readUnsignedByte()) != TAG_END) {
+            String name = inputStream.readUTF();
+            if (type == TAG_COMPOUND && name.equals("Data")) {
+                return findSpawn(inputStream, spawn);
+            } else if (type == TAG_INT && name.equals("SpawnX")) {
+                spawn[0] = inputStream.readInt();
+                foundX = true;
+            } else if (type == TAG_INT && name.equals("SpawnZ")) {
+                spawn[1] = inputStream.readInt();
+                foundZ = true;
+            } else {
+                skipPayload(inputStream, type);
+            }
+            if (foundX && foundZ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void skipPayload(DataInputStream inputStream, int type) throws IOException {
+        switch (type) {
+            case TAG_BYTE:
+                skipFully(inputStream, 1);
+                break;
+            case TAG_SHORT:
+                skipFully(inputStream, 2);
+                break;
+            case TAG_INT:
+            case TAG_FLOAT:
+                skipFully(inputStream, 4);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                skipFully(inputStream, 8);
+                break;
+            case TAG_BYTE_ARRAY:
+                skipFully(inputStream, inputStream.readInt());
+                break;
+            case TAG_STRING:
+                skipFully(inputStream, inputStream.readUnsignedShort());
+                break;
+            case TAG_LIST:
+                int elementType = inputStream.readUnsignedByte();
+                int length = inputStream.readInt();
+                for (int i = 0; i < length; i++) {
+                    skipPayload(inputStream, elementType);
+                }
+                break;
+            case TAG_COMPOUND:
+                int memberType;
+                while ((memberType = inputStream.readUnsignedByte()) != TAG_END) {
+                    inputStream.readUTF();
+                    skipPayload(inputStream, memberType);
+                }
+                break;
+            case TAG_INT_ARRAY:
+                skipFully(inputStream, 4L * inputStream.readInt());
+                break;
+            case TAG_LONG_ARRAY:
+                skipFully(inputStream, 8L * inputStream.readInt());
+                break;
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    private static void skipFully(InputStream inputStream, long length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Negative NBT length");
+        }
+        while (length > 0) {
+            long skipped = inputStream.skip(length);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new IOException("Unexpected end of NBT data");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package osbourn.cloudcubes.serveragent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import osbourn.cloudcubes.core.database.InMemoryDynamoDbClient;
+import osbourn.cloudcubes.core.server.EC2SpotInstanceManager;
+import osbourn.cloudcubes.serveragent.backup.ChunkedWorldBackup;
+import osbourn.cloudcubes.serveragent.backup.InMemoryS3Client;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the interruption handling of the agent against a stand-in for the instance metadata service and a minimal RCON
+ * server, with the world backed up to an in-memory bucket and the interruption recorded in an in-memory table.
+ */
+class ServerAgentTest {
+    private static final String TABLE_NAME = "Servers";
+    private static final String BUCKET_NAME = "worlds";
+    private static final String INSTANCE_ID = "i-1";
+    private static final String RCON_PASSWORD = "password";
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(20);
+
+    private final InMemoryDynamoDbClient dynamoDbClient = new InMemoryDynamoDbClient();
+    private final InMemoryS3Client s3Client = new InMemoryS3Client();
+    private final UUID serverId = UUID.randomUUID();
+    private final ChunkedWorldBackup worldBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId, 4);
+    private final StandInMetadataService metadataService = new StandInMetadataService();
+    private final FakeRconServer rconServer = new FakeRconServer();
+
+    @TempDir
+    Path serverDirectory;
+
+    ServerAgentTest() throws IOException {
+        dynamoDbClient.putItem(TABLE_NAME, Map.of(
+                "Id", AttributeValue.builder().s(serverId.toString()).build(),
+                "ServerState", AttributeValue.builder().s("ONLINE").build(),
+                "EC2InstanceId", AttributeValue.builder().s(INSTANCE_ID).build()));
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        worldBackup.close();
+        metadataService.close();
+        rconServer.close();
+    }
+
+    /**
+     * Starts the agent, which polls the metadata service until the test sets an interruption notice.
+     *
+     * @param noticeSeen Set once the agent has seen the notice, before it saves the world
+     */
+    private CompletableFuture<Boolean> startAgent(CompletableFuture<Instant> noticeSeen) throws IOException {
+        Files.createDirectories(serverDirectory.resolve("world/region"));
+        Files.write(serverDirectory.resolve("world/level.dat"), new byte[]{1, 2, 3});
+        Files.write(serverDirectory.resolve("world/region/r.0.0.mca"), new byte[64 * 1024]);
+        InterruptionResponder responder = new InterruptionResponder(dynamoDbClient, TABLE_NAME, worldBackup, serverId,
+                INSTANCE_ID, serverDirectory, rconServer.getPort(), RCON_PASSWORD);
+        InstanceMetadataClient metadataClient = new InstanceMetadataClient(metadataService.getEndpoint());
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return ServerAgent.respondToInterruption(metadataClient, responder, POLL_INTERVAL,
+                        () -> noticeSeen.complete(Instant.now()));
+            } catch (InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private String getStoredValue(String key) {
+        AttributeValue value = dynamoDbClient.getItem(TABLE_NAME, serverId.toString()).get(key);
+        return value == null ? null : value.s() != null ? value.s() : value.n();
+    }
+
+    @Test
+    void theWorldIsSavedBeforeTheInterruptionOnceTheNoticeArrives() throws Exception {
+        CompletableFuture<Instant> noticeSeen = new CompletableFuture<>();
+        CompletableFuture<Boolean> agent = startAgent(noticeSeen);
+        Thread.sleep(200);
+        assertFalse(agent.isDone());
+        assertTrue(metadataService.actionRequests.get() > 1);
+        assertEquals(List.of(), rconServer.receivedCommands);
+
+        // Spot instances are interrupted two minutes after the notice
+        Instant interruptionTime = Instant.now().plus(Duration.ofMinutes(2)).truncatedTo(ChronoUnit.SECONDS);
+        metadataService.instanceAction = "{\"action\": \"terminate\", \"time\": \"" + interruptionTime + "\"}";
+        assertTrue(agent.get(30, TimeUnit.SECONDS));
+        Instant finishedAt = Instant.now();
+
+        assertTrue(noticeSeen.isDone());
+        assertTrue(finishedAt.isBefore(interruptionTime));
+        // The world is flushed and the server stopped before the files are uploaded
+        assertEquals(List.of("save-all flush", "stop"), rconServer.receivedCommands);
+        assertNotNull(s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"));
+        assertEquals("UNKNOWN", getStoredValue("ServerState"));
+        assertEquals("true", getStoredValue(EC2SpotInstanceManager.INTERRUPTION_WORLD_SAVED_KEY));
+        Instant interruptedAt = Instant.parse(getStoredValue(EC2SpotInstanceManager.INTERRUPTED_AT_KEY));
+        assertFalse(interruptedAt.isBefore(noticeSeen.get()));
+        assertEquals("1", getStoredValue("Version"));
+        // Every poll used the same IMDSv2 session token
+        assertEquals(1, metadataService.tokenRequests.get());
+        assertEquals(0, metadataService.rejectedRequests.get());
+    }
+
+    @Test
+    void aNoticeTooLateToSaveTheWorldIsStillRecorded() throws Exception {
+        CompletableFuture<Boolean> agent = startAgent(new CompletableFuture<>());
+        // Less time than the agent keeps for recording the interruption, so there is no time left for the upload
+        Instant interruptionTime = Instant.now().plus(Duration.ofSeconds(5));
+        metadataService.instanceAction = "{\"action\": \"terminate\", \"time\": \"" + interruptionTime + "\"}";
+
+        assertFalse(agent.get(30, TimeUnit.SECONDS));
+        assertNull(s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"));
+        assertEquals("UNKNOWN", getStoredValue("ServerState"));
+        assertEquals("false", getStoredValue(EC2SpotInstanceManager.INTERRUPTION_WORLD_SAVED_KEY));
+    }
+
+    @Test
+    void anInvalidatedTokenIsReplaced() throws Exception {
+        CompletableFuture<Boolean> agent = startAgent(new CompletableFuture<>());
+        Thread.sleep(100);
+        // The metadata service forgets its tokens when the instance is stopped and started again
+        metadataService.tokens.clear();
+        Thread.sleep(100);
+        metadataService.instanceAction = "{\"action\": \"terminate\", \"time\": \""
+                + Instant.now().plus(Duration.ofMinutes(2)) + "\"}";
+
+        assertTrue(agent.get(30, TimeUnit.SECONDS));
+        assertEquals(2, metadataService.tokenRequests.get());
+        assertEquals(1, metadataService.rejectedRequests.get());
+    }
+
+    /**
+     * A stand-in for the instance metadata service, which hands out IMDSv2 session tokens and serves the spot
+     * interruption notice once the test has set it
+     */
+    private static final class StandInMetadataService implements AutoCloseable {
+        private final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger tokenRequests = new AtomicInteger();
+        private final AtomicInteger actionRequests = new AtomicInteger();
+        private final AtomicInteger rejectedRequests = new AtomicInteger();
+        /**
+         * The instance action document, or null while the instance has not received an interruption notice
+         */
+        private volatile String instanceAction = null;
+
+        private StandInMetadataService() throws IOException {
+            httpServer.createContext("/latest/api/token", exchange -> {
+                if (!exchange.getRequestMethod().equals("PUT")
+                        || exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token-ttl-seconds") == null) {
+                    respond(exchange, 400, null);
+                    return;
+                }
+                String token = "token-" + tokenRequests.incrementAndGet();
+                tokens.add(token);
+                respond(exchange, 200, token);
+            });
+            httpServer.createContext("/latest/meta-data/spot/instance-action", exchange -> {
+                actionRequests.incrementAndGet();
+                String token = exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token");
+                if (token == null || !tokens.contains(token)) {
+                    rejectedRequests.incrementAndGet();
+                    respond(exchange, 401, null);
+                } else {
+                    String action = instanceAction;
+                    respond(exchange, action == null ? 404 : 200, action);
+                }
+            });
+            httpServer.start();
+        }
+
+        private String getEndpoint() {
+            return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * An RCON server that answers every command with an empty output and stops listening once it receives "stop", like
+     * a Minecraft server that has saved its worlds and exits
+     */
+    private static final class FakeRconServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        private final List<String> receivedCommands = new CopyOnWriteArrayList<>();
+
+        private FakeRconServer() throws IOException {
+            Thread acceptThread = new Thread(this::acceptConnections, "fake-rcon-server");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void acceptConnections() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(socket);
+                } catch (IOException e) {
+                    // The server has been closed, or the client closed the connection
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            OutputStream outputStream = socket.getOutputStream();
+            boolean stopping = false;
+            while (true) {
+                int length = Integer.reverseBytes(inputStream.readInt());
+                byte[] packet = new byte[length];
+                inputStream.readFully(packet);
+                ByteBuffer buffer = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+                int requestId = buffer.getInt();
+                int type = buffer.getInt();
+                String body = new String(packet, 8, length - 10, StandardCharsets.US_ASCII);
+                if (type == 3) {
+                    writePacket(outputStream, body.equals(RCON_PASSWORD) ? requestId : -1, 2);
+                    continue;
+                }
+                if (type == 2) {
+                    receivedCommands.add(body);
+                    stopping = body.equals("stop");
+                }
+                // Commands and the markers following them are both answered with an empty response
+                writePacket(outputStream, requestId, 0);
+                if (stopping && type != 2) {
+                    serverSocket.close();
+                    return;
+                }
+            }
+        }
+
+        private static void writePacket(OutputStream outputStream, int requestId, int type) throws IOException {
+            ByteBuffer packet = ByteBuffer.allocate(4 + 4 + 4 + 2).order(ByteOrder.LITTLE_ENDIAN);
+            packet.putInt(4 + 4 + 2).putInt(requestId).putInt(type);
+            outputStream.write(packet.array());
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedWorldBackupTest {
+    private static final String BUCKET_NAME = "worlds";
+    private static final String CHUNK_PREFIX = "backups/chunks/";
+
+    private final InMemoryS3Client s3Client = new InMemoryS3Client();
+    private final UUID serverId = UUID.randomUUID();
+    private final ChunkedWorldBackup backup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId, 4);
+    private final Random random = new Random(42);
+
+    @TempDir
+    Path serverDirectory;
+    @TempDir
+    Path restoreDirectory;
+
+    @AfterEach
+    void closeBackup() {
+        backup.close();
+    }
+
+    private static Instant getDeadline() {
+        return Instant.now().plus(Duration.ofMinutes(1));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private Path writeFile(Path directory, String path, byte[] contents) throws IOException {
+        Path file = directory.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents);
+        return file;
+    }
+
+    private List<String> getUploadedChunks() {
+        return s3Client.getPutKeys().stream().filter(key -> key.startsWith(CHUNK_PREFIX)).collect(Collectors.toList());
+    }
+
+    private void assertSameFile(Path expected, Path actual) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual), actual.toString());
+        assertEquals(Files.getLastModifiedTime(expected).toMillis(), Files.getLastModifiedTime(actual).toMillis());
+    }
+
+    @Test
+    void restoringABackupRecreatesEveryFile() throws IOException {
+        int regionFileSize = ChunkedWorldBackup.CHUNK_SIZE * 2 + 5;
+        List<Path> files = List.of(
+                writeFile(serverDirectory, "server.properties", "motd=Hello\n".getBytes(StandardCharsets.UTF_8)),
+                writeFile(serverDirectory, "world/level.dat", randomBytes(1000)),
+                writeFile(serverDirectory, "world/region/r.0.0.mca", randomBytes(regionFileSize)),
+                writeFile(serverDirectory, "world/empty", new byte[0]));
+
+        String manifestKey = backup.backup(serverDirectory, getDeadline());
+        assertEquals(manifestKey, new String(
+                s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"), StandardCharsets.UTF_8));
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            assertTrue(restoringBackup.restore(restoreDirectory));
+        }
+        for (Path file : files) {
+            assertSameFile(file, restoreDirectory.resolve(serverDirectory.relativize(file)));
+        }
+        assertFalse(Files.exists(restoreDirectory.resolve(ChunkedWorldBackup.RESTORE_MARKER)));
+    }
+
+    @Test
+    void serversThatHaveNeverBeenBackedUpAreNotRestored() throws IOException {
+        assertFalse(backup.restore(restoreDirectory, () -> fail("The server cannot be started yet")));
+        assertFalse(Files.exists(restoreDirectory.resolve(ChunkedWorldBackup.RESTORE_MARKER)));
+    }
+
+    @Test
+    void identicalChunksAreStoredOnce() throws IOException {
+        byte[] chunk = randomBytes(ChunkedWorldBackup.CHUNK_SIZE);
+        byte[] repeatedChunk = new byte[ChunkedWorldBackup.CHUNK_SIZE * 3];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(chunk, 0, repeatedChunk, i * ChunkedWorldBackup.CHUNK_SIZE, chunk.length);
+        }
+        writeFile(serverDirectory, "world/region/r.0.0.mca", repeatedChunk);
+        writeFile(serverDirectory, "world/region/r.0.1.mca", chunk);
+        // The last chunk of a file is shorter, so it differs from the full chunk it starts like
+        writeFile(serverDirectory, "world/region/r.0.2.mca", Arrays.copyOf(chunk, 1000));
+
+        backup.backup(serverDirectory, getDeadline());
+        List<String> uploadedChunks = getUploadedChunks();
+        assertEquals(2, uploadedChunks.size());
+        assertEquals(2, uploadedChunks.stream().distinct().count());
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            restoringBackup.restore(restoreDirectory);
+        }
+        assertArrayEquals(repeatedChunk, Files.readAllBytes(restoreDirectory.resolve("world/region/r.0.0.mca")));
+    }
+
+    @Test
+    void laterBackupsOnlyUploadTheChunksThatChanged() throws IOException {
+        byte[] contents = randomBytes(ChunkedWorldBackup.CHUNK_SIZE * 3);
+        Path regionFile = writeFile(serverDirectory, "world/region/r.0.0.mca", contents);
+        writeFile(serverDirectory, "world/level.dat", randomBytes(1000));
+        backup.backup(serverDirectory, getDeadline());
+        s3Client.clearRequests();
+
+        // A sector in the middle chunk is rewritten in place, like Minecraft does when a chunk is saved
+        System.arraycopy(randomBytes(4096), 0, contents, ChunkedWorldBackup.CHUNK_SIZE + 8192, 4096);
+        Files.write(regionFile, contents);
+        Files.setLastModifiedTime(regionFile, FileTime.from(Instant.now().plusSeconds(5)));
+        // The next backup is usually made by another agent, which only knows the chunks through the manifest
+        try (ChunkedWorldBackup nextBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            nextBackup.backup(serverDirectory, getDeadline());
+        }
+        assertEquals(1, getUploadedChunks().size());
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            restoringBackup.restore(restoreDirectory);
+        }
+        assertSameFile(regionFile, restoreDirectory.resolve("world/region/r.0.0.mca"));
+    }
+
+    @Test
+    void filesWhoseSizeAndModificationTimeAreUnchangedAreNotReadAgain() throws IOException {
+        Path regionFile = writeFile(serverDirectory, "world/region/r.0.0.mca", randomBytes(10_000));
+        FileTime lastModifiedTime = Files.getLastModifiedTime(regionFile);
+        backup.backup(serverDirectory, getDeadline());
+        s3Client.clearRequests();
+
+        // A change that keeps the size and the modification time is taken as no change at all
+        Files.write(regionFile, randomBytes(10_000));
+        Files.setLastModifiedTime(regionFile, lastModifiedTime);
+        backup.backup(serverDirectory, getDeadline());
+        assertEquals(List.of(), getUploadedChunks());
+    }
+
+    @Test
+    void corruptChunksFailTheRestore() throws IOException {
+        writeFile(serverDirectory, "world/level.dat", randomBytes(1000));
+        backup.backup(serverDirectory, getDeadline());
+        String chunkKey = getUploadedChunks().get(0);
+        // A chunk of the same size that decompresses fine, but is not the chunk the hash names
+        try (ChunkedWorldBackup otherBackup = new ChunkedWorldBackup(s3Client, "other", serverId)) {
+            writeFile(restoreDirectory, "world/level.dat", randomBytes(1000));
+            otherBackup.backup(restoreDirectory, getDeadline());
+        }
+        String otherChunkKey = getUploadedChunks().get(1);
+        s3Client.setStoredObject(BUCKET_NAME, chunkKey, s3Client.getStoredObject("other", otherChunkKey));
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            IOException exception = assertThrows(IOException.class,
+                    () -> restoringBackup.restore(restoreDirectory.resolve("restored")));
+            assertTrue(exception.getMessage().contains("corrupt"), exception.getMessage());
+        }
+    }
+
+    @Test
+    void failedBackupsDoNotReplaceTheLatestBackup() throws IOException {
+        writeFile(serverDirectory, "world/level.dat", randomBytes(1000));
+        String manifestKey = backup.backup(serverDirectory, getDeadline());
+
+        writeFile(serverDirectory, "world/region/r.0.0.mca", randomBytes(ChunkedWorldBackup.CHUNK_SIZE * 4));
+        assertThrows(IOException.class, () -> backup.backup(serverDirectory, Instant.now()));
+        assertEquals(manifestKey, new String(
+                s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Backs up a world whose spawn point is in region (1, -1), with region files at several distances from spawn.
+     *
+     * @return The contents of the files, in the format (path, contents)
+     */
+    private Map<String, byte[]> backUpWorldAroundSpawn() throws IOException {
+        Map<String, byte[]> files = Map.of(
+                "server.properties", "level-name=world\n".getBytes(StandardCharsets.UTF_8),
+                "world/level.dat", WorldSpawnTest.createLevelDat(1000, -100),
+                "world/region/r.1.-1.mca", randomBytes(ChunkedWorldBackup.CHUNK_SIZE + 100),
+                "world/entities/r.2.0.mca", randomBytes(5000),
+                "world/region/r.5.5.mca", randomBytes(ChunkedWorldBackup.CHUNK_SIZE + 200),
+                "world/region/r.-3.0.mca", randomBytes(5000),
+                "world/DIM-1/region/r.1.-1.mca", randomBytes(5000));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            writeFile(serverDirectory, file.getKey(), file.getValue());
+        }
+        backup.backup(serverDirectory, getDeadline());
+        return files;
+    }
+
+    @Test
+    void theServerCanStartOnceEverythingButTheRegionsAwayFromSpawnHasBeenRestored() throws IOException {
+        Map<String, byte[]> files = backUpWorldAroundSpawn();
+        List<String> farFromSpawn = List.of(
+                "world/region/r.5.5.mca", "world/region/r.-3.0.mca", "world/DIM-1/region/r.1.-1.mca");
+        AtomicBoolean playable = new AtomicBoolean(false);
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            assertTrue(restoringBackup.restore(restoreDirectory, () -> {
+                playable.set(true);
+                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                    Path path = restoreDirectory.resolve(file.getKey());
+                    if (farFromSpawn.contains(file.getKey())) {
+                        assertFalse(Files.exists(path), file.getKey());
+                    } else {
+                        assertArrayEquals(file.getValue(), assertDoesNotThrow(() -> Files.readAllBytes(path)));
+                    }
+                }
+                assertTrue(Files.exists(restoreDirectory.resolve(ChunkedWorldBackup.RESTORE_MARKER)));
+            }));
+        }
+        assertTrue(playable.get());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), Files.readAllBytes(restoreDirectory.resolve(file.getKey())));
+        }
+        assertFalse(Files.exists(restoreDirectory.resolve(ChunkedWorldBackup.RESTORE_MARKER)));
+    }
+
+    @Test
+    void theRegionsAroundSpawnAreRestoredAfterTheOtherFilesAndBeforeTheRemainingRegions() throws IOException {
+        backUpWorldAroundSpawn();
+        List<List<String>> groups = new ArrayList<>();
+        for (List<String> paths : List.of(
+                List.of("server.properties", "world/level.dat"),
+                List.of("world/region/r.1.-1.mca", "world/entities/r.2.0.mca"),
+                List.of("world/region/r.5.5.mca", "world/region/r.-3.0.mca", "world/DIM-1/region/r.1.-1.mca"))) {
+            List<String> chunkKeys = new ArrayList<>();
+            for (String path : paths) {
+                chunkKeys.add(getFirstChunkKey(path));
+            }
+            groups.add(chunkKeys);
+        }
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            restoringBackup.restore(restoreDirectory);
+        }
+        // The files of a group are restored at the same time, but each group waits for the one before it
+        List<String> getKeys = s3Client.getGetKeys();
+        for (int group = 1; group < groups.size(); group++) {
+            int lastOfPreviousGroup = groups.get(group - 1).stream().mapToInt(getKeys::indexOf).max().orElseThrow();
+            int firstOfGroup = groups.get(group).stream().mapToInt(getKeys::indexOf).min().orElseThrow();
+            assertTrue(lastOfPreviousGroup < firstOfGroup, groups.get(group).toString());
+        }
+    }
+
+    private String getFirstChunkKey(String path) throws IOException {
+        String manifestKey = new String(
+                s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"), StandardCharsets.UTF_8);
+        BackupManifest manifest = BackupManifest.parse(
+                new String(s3Client.getStoredObject(BUCKET_NAME, manifestKey), StandardCharsets.UTF_8));
+        for (BackupManifest.FileEntry file : manifest.getFiles()) {
+            if (file.getPath().equals(path)) {
+                String hash = file.getChunkHashes().get(0);
+                return CHUNK_PREFIX + hash.substring(0, 2) + "/" + hash;
+            }
+        }
+        throw new IllegalArgumentException(path + " was not backed up");
+    }
+
+    @Test
+    void staleRegionFilesAwayFromSpawnAreDeletedBeforeTheServerStarts() throws IOException {
+        backUpWorldAroundSpawn();
+        writeFile(restoreDirectory, "world/region/r.5.5.mca", randomBytes(100));
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            restoringBackup.restore(restoreDirectory,
+                    () -> assertFalse(Files.exists(restoreDirectory.resolve("world/region/r.5.5.mca"))));
+        }
+        assertSameFile(serverDirectory.resolve("world/region/r.5.5.mca"),
+                restoreDirectory.resolve("world/region/r.5.5.mca"));
+    }
+
+    @Test
+    void regionFilesTheServerCreatedDuringTheRestoreAreKept() throws IOException {
+        Map<String, byte[]> files = backUpWorldAroundSpawn();
+        byte[] generatedRegion = randomBytes(100);
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            restoringBackup.restore(restoreDirectory, () -> assertDoesNotThrow(
+                    () -> writeFile(restoreDirectory, "world/region/r.5.5.mca", generatedRegion)));
+        }
+        assertArrayEquals(generatedRegion, Files.readAllBytes(restoreDirectory.resolve("world/region/r.5.5.mca")));
+        assertArrayEquals(files.get("world/region/r.5.5.mca"),
+                Files.readAllBytes(restoreDirectory.resolve("world/region/r.5.5.mca.cloudcubes-restored")));
+        try (Stream<Path> paths = Files.walk(restoreDirectory)) {
+            assertTrue(paths.noneMatch(path -> path.toString().endsWith(".cloudcubes-restoring")));
+        }
+    }
+
+    @Test
+    void directoriesThatAreStillBeingRestoredAreNotBackedUp() throws IOException {
+        backUpWorldAroundSpawn();
+        String manifestKey = new String(
+                s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"), StandardCharsets.UTF_8);
+
+        try (ChunkedWorldBackup restoringBackup = new ChunkedWorldBackup(s3Client, BUCKET_NAME, serverId)) {
+            restoringBackup.restore(restoreDirectory, () -> assertThrows(IOException.class,
+                    () -> restoringBackup.backup(restoreDirectory, getDeadline())));
+        }
+        assertEquals(manifestKey, new String(
+                s3Client.getStoredObject(BUCKET_NAME, "backups/" + serverId + "/latest"), StandardCharsets.UTF_8));
+    }
+}
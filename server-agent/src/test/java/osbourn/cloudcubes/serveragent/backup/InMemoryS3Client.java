@@ -0,0 +1,104 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An S3 client for tests, which keeps the objects of every bucket in memory and records the keys that were written
+ * and read. Other requests fail like the default methods of {@link S3Client} do. The client is public so that the tests
+ * of the server agent can back up worlds with it.
+ */
+public class InMemoryS3Client implements S3Client {
+    /**
+     * The objects, in the format ("bucket/key", contents)
+     */
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final List<String> putKeys = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> getKeys = Collections.synchronizedList(new ArrayList<>());
+
+    public byte[] getStoredObject(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    void setStoredObject(String bucket, String key, byte[] contents) {
+        objects.put(bucket + "/" + key, contents);
+    }
+
+    /**
+     * Gets the keys of the objects that were written, in the order they were written.
+     */
+    public List<String> getPutKeys() {
+        synchronized (putKeys) {
+            return new ArrayList<>(putKeys);
+        }
+    }
+
+    /**
+     * Gets the keys of the objects that were read, including those that did not exist, in the order they were read.
+     */
+    List<String> getGetKeys() {
+        synchronized (getKeys) {
+            return new ArrayList<>(getKeys);
+        }
+    }
+
+    void clearRequests() {
+        putKeys.clear();
+        getKeys.clear();
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody requestBody) {
+        try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+            objects.put(request.bucket() + "/" + request.key(), inputStream.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        putKeys.add(request.key());
+        return PutObjectResponse.builder().build();
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request,
+                                       ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+        getKeys.add(request.key());
+        byte[] contents = objects.get(request.bucket() + "/" + request.key());
+        if (contents == null) {
+            throw NoSuchKeyException.builder().message("The specified key does not exist.").build();
+        }
+        GetObjectResponse response = GetObjectResponse.builder().contentLength((long) contents.length).build();
+        try {
+            return responseTransformer.transform(response,
+                    AbortableInputStream.create(new ByteArrayInputStream(contents)));
+        } catch (Exception e) {
+            throw SdkClientException.create("Could not transform the response", e);
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return "s3";
+    }
+
+    @Override
+    public void close() {
+    }
+}
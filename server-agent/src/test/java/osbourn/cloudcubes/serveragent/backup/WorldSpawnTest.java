@@ -0,0 +1,113 @@
+package osbourn.cloudcubes.serveragent.backup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorldSpawnTest {
+    @TempDir
+    Path serverDirectory;
+
+    /**
+     * Creates a level.dat file with the spawn point inside the Data compound, surrounded by tags of every kind that
+     * has to be skipped to find it.
+     */
+    static byte[] createLevelDat(int spawnX, int spawnZ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream outputStream = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            outputStream.writeByte(10);
+            outputStream.writeUTF("");
+            outputStream.writeByte(10);
+            outputStream.writeUTF("Data");
+
+            outputStream.writeByte(8);
+            outputStream.writeUTF("LevelName");
+            outputStream.writeUTF("A world");
+            outputStream.writeByte(4);
+            outputStream.writeUTF("Time");
+            outputStream.writeLong(123_456_789L);
+            outputStream.writeByte(9);
+            outputStream.writeUTF("ServerBrands");
+            outputStream.writeByte(8);
+            outputStream.writeInt(2);
+            outputStream.writeUTF("vanilla");
+            outputStream.writeUTF("paper");
+            outputStream.writeByte(10);
+            outputStream.writeUTF("GameRules");
+            outputStream.writeByte(8);
+            outputStream.writeUTF("doDaylightCycle");
+            outputStream.writeUTF("true");
+            outputStream.writeByte(0);
+            outputStream.writeByte(11);
+            outputStream.writeUTF("DataPacks");
+            outputStream.writeInt(2);
+            outputStream.writeInt(1);
+            outputStream.writeInt(2);
+            outputStream.writeByte(3);
+            outputStream.writeUTF("SpawnX");
+            outputStream.writeInt(spawnX);
+            outputStream.writeByte(1);
+            outputStream.writeUTF("Difficulty");
+            outputStream.writeByte(2);
+            outputStream.writeByte(3);
+            outputStream.writeUTF("SpawnZ");
+            outputStream.writeInt(spawnZ);
+
+            outputStream.writeByte(0);
+            outputStream.writeByte(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeFile(String path, byte[] contents) throws IOException {
+        Path file = serverDirectory.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents);
+    }
+
+    @Test
+    void theSpawnPointIsReadFromTheLevelFileOfTheWorld() throws IOException {
+        writeFile("server.properties", "level-name=survival\n".getBytes(StandardCharsets.UTF_8));
+        writeFile("survival/level.dat", createLevelDat(1000, -100));
+        WorldSpawn spawn = WorldSpawn.read(serverDirectory);
+
+        // The spawn point is in region (1, -1)
+        assertEquals(0, spawn.getRegionDistance("survival/region/r.1.-1.mca"));
+        assertEquals(1, spawn.getRegionDistance("survival/region/r.2.0.mca"));
+        assertEquals(3, spawn.getRegionDistance("survival/region/r.-2.0.mca"));
+        assertTrue(spawn.isNearSpawn("survival/entities/r.0.-2.mca"));
+        assertTrue(spawn.isNearSpawn("survival/poi/r.1.-1.mca"));
+        assertFalse(spawn.isNearSpawn("survival/region/r.3.-1.mca"));
+    }
+
+    @Test
+    void filesThatAreNotRegionFilesOfTheOverworldAreInfinitelyFarAway() throws IOException {
+        writeFile("world/level.dat", createLevelDat(0, 0));
+        WorldSpawn spawn = WorldSpawn.read(serverDirectory);
+
+        assertEquals(Integer.MAX_VALUE, spawn.getRegionDistance("world/DIM-1/region/r.0.0.mca"));
+        assertEquals(Integer.MAX_VALUE, spawn.getRegionDistance("other/region/r.0.0.mca"));
+        assertEquals(Integer.MAX_VALUE, spawn.getRegionDistance("world/level.dat"));
+        assertEquals(Integer.MAX_VALUE, spawn.getRegionDistance("world/region/r.0.0.mcc"));
+    }
+
+    @Test
+    void theSpawnPointIsAtTheOriginIfTheLevelFileCannotBeRead() throws IOException {
+        assertEquals(0, WorldSpawn.read(serverDirectory).getRegionDistance("world/region/r.0.0.mca"));
+
+        writeFile("world/level.dat", "not gzipped".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, WorldSpawn.read(serverDirectory).getRegionDistance("world/region/r.0.-1.mca"));
+    }
+}
@@ -0,0 +1,145 @@
+package osbourn.cloudcubes.startreport;
+
+import osbourn.cloudcubes.core.server.ServerLifecycle;
+import osbourn.cloudcubes.core.server.ServerLifecyclePhase;
+import osbourn.cloudcubes.core.server.StartLatencyMetrics;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Prints how long the starts of the servers took, from the events {@link ServerLifecycle} recorded in the server
+ * database. For every step of a start (see {@link StartLatencyMetrics}) and for the time until the server was ONLINE and
+ * until the world was loaded, the report shows the percentiles and a histogram across the servers.
+ * </p>
+ *
+ * <p>
+ * Only the latest run of each server is kept in the database, so the report covers one start per server. The history
+ * of all starts is in the metrics published by startup.sh when the servers become ONLINE and by the Lambda functions
+ * when they stop.
+ * </p>
+ *
+ * <p>
+ * Usage: start-report.jar &lt;server database name&gt; [region]
+ * </p>
+ */
+public final class StartLatencyReport {
+    private static final String TIME_TO_ONLINE = "TimeToOnline";
+    private static final String TIME_TO_WORLD_LOADED = "TimeToWorldLoaded";
+    /**
+     * The upper bounds of the buckets of the histograms, in milliseconds. The last bucket has no upper bound.
+     */
+    private static final long[] BUCKET_BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000};
+    private static final int BAR_WIDTH = 40;
+
+    private StartLatencyReport() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: start-report.jar <server database name> [region]");
+            System.exit(1);
+        }
+        DynamoDbClientBuilder builder = DynamoDbClient.builder().httpClientBuilder(UrlConnectionHttpClient.builder());
+        if (args.length > 1) {
+            builder.region(Region.of(args[1]));
+        }
+
+        Map<UUID, List<ServerLifecycle.Event>> events;
+        try (DynamoDbClient dynamoDbClient = builder.build()) {
+            // The report only reads, so no asynchronous client or listener is needed
+            events = new ServerLifecycle(dynamoDbClient, () -> null, args[0], null).getAllEvents();
+        }
+
+        Map<String, List<Duration>> samples = collectSamples(events.values());
+        if (samples.isEmpty()) {
+            System.out.println("No server has recorded the events of a start");
+            return;
+        }
+        System.out.println("Starts of " + samples.getOrDefault(TIME_TO_ONLINE, Collections.emptyList()).size()
+                + " of " + events.size() + " servers reached READY");
+        for (Map.Entry<String, List<Duration>> entry : samples.entrySet()) {
+            System.out.println();
+            printHistogram(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Collects the durations of every step and of the times until ONLINE and until the world was loaded.
+     *
+     * @return The durations, in the format (name, durations), with the totals first and the steps in the order they
+     * were first seen
+     */
+    static Map<String, List<Duration>> collectSamples(Iterable<List<ServerLifecycle.Event>> runs) {
+        Map<String, List<Duration>> samples = new LinkedHashMap<>();
+        for (List<ServerLifecycle.Event> run : runs) {
+            Duration timeToOnline = StartLatencyMetrics.getTimeUntil(run, ServerLifecyclePhase.READY.name());
+            if (timeToOnline != null) {
+                samples.computeIfAbsent(TIME_TO_ONLINE, name -> new ArrayList<>()).add(timeToOnline);
+            }
+            Duration timeToWorldLoaded = StartLatencyMetrics.getTimeUntil(run, StartLatencyMetrics.WORLD_LOADED);
+            if (timeToWorldLoaded != null) {
+                samples.computeIfAbsent(TIME_TO_WORLD_LOADED, name -> new ArrayList<>()).add(timeToWorldLoaded);
+            }
+        }
+        for (List<ServerLifecycle.Event> run : runs) {
+            StartLatencyMetrics.getStepDurations(run).forEach((name, duration) ->
+                    samples.computeIfAbsent(name, key -> new ArrayList<>()).add(duration));
+        }
+        return samples;
+    }
+
+    private static void printHistogram(String name, List<Duration> durations) {
+        List<Long> millis = new ArrayList<>();
+        for (Duration duration : durations) {
+            millis.add(duration.toMillis());
+        }
+        Collections.sort(millis);
+        System.out.printf("%s: count %d, p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n", name, millis.size(),
+                getPercentile(millis, 50), getPercentile(millis, 90), getPercentile(millis, 99),
+                millis.get(millis.size() - 1));
+
+        int[] counts = new int[BUCKET_BOUNDS.length + 1];
+        for (long value : millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && value > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+        }
+        int maxCount = 0;
+        for (int count : counts) {
+            maxCount = Math.max(maxCount, count);
+        }
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] == 0) {
+                continue;
+            }
+            String label = bucket < BUCKET_BOUNDS.length
+                    ? "<= " + BUCKET_BOUNDS[bucket] + " ms"
+                    : "> " + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + " ms";
+            int width = Math.max(1, counts[bucket] * BAR_WIDTH / maxCount);
+            System.out.printf("  %12s | %s %d%n", label, "#".repeat(width), counts[bucket]);
+        }
+    }
+
+    /**
+     * Gets a percentile with the nearest-rank method.
+     *
+     * @param sortedValues The values, sorted in ascending order, which must not be empty
+     */
+    static long getPercentile(List<Long> sortedValues, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.size());
+        return sortedValues.get(Math.max(0, rank - 1));
+    }
+}
@@ -0,0 +1,59 @@
+package osbourn.cloudcubes.startreport;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.server.ServerLifecycle;
+import osbourn.cloudcubes.core.server.ServerLifecyclePhase;
+import osbourn.cloudcubes.core.server.StartLatencyMetrics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StartLatencyReportTest {
+    private static final Instant START = Instant.ofEpochMilli(1700000000000L);
+
+    private static List<ServerLifecycle.Event> getRun(long readyAfterMillis, boolean worldLoaded) {
+        List<ServerLifecycle.Event> run = new ArrayList<>();
+        run.add(new ServerLifecycle.Event(ServerLifecyclePhase.REQUESTED, START));
+        run.add(new ServerLifecycle.Event(ServerLifecyclePhase.BOOTING, START.plusMillis(readyAfterMillis / 2)));
+        run.add(new ServerLifecycle.Event(ServerLifecyclePhase.READY, START.plusMillis(readyAfterMillis)));
+        if (worldLoaded) {
+            run.add(ServerLifecycle.Event.marker(StartLatencyMetrics.WORLD_LOADED,
+                    START.plusMillis(readyAfterMillis + 1000)));
+        }
+        return run;
+    }
+
+    @Test
+    void samplesHaveTheTotalsFirstAndThenTheSteps() {
+        List<ServerLifecycle.Event> neverReady = List.of(
+                new ServerLifecycle.Event(ServerLifecyclePhase.REQUESTED, START),
+                new ServerLifecycle.Event(ServerLifecyclePhase.FAILED, START.plusSeconds(300)));
+
+        Map<String, List<Duration>> samples = StartLatencyReport.collectSamples(
+                List.of(getRun(40000, true), getRun(20000, false), neverReady));
+
+        assertEquals(List.of("TimeToOnline", "TimeToWorldLoaded", "BOOTING", "READY", "world-loaded"),
+                new ArrayList<>(samples.keySet()));
+        assertEquals(List.of(Duration.ofSeconds(40), Duration.ofSeconds(20)), samples.get("TimeToOnline"));
+        assertEquals(List.of(Duration.ofSeconds(41)), samples.get("TimeToWorldLoaded"));
+        assertEquals(List.of(Duration.ofSeconds(20), Duration.ofSeconds(10)), samples.get("READY"));
+    }
+
+    @Test
+    void percentilesUseTheNearestRank() {
+        List<Long> values = new ArrayList<>();
+        for (long value = 1; value <= 200; value++) {
+            values.add(value);
+        }
+
+        assertEquals(100, StartLatencyReport.getPercentile(values, 50));
+        assertEquals(198, StartLatencyReport.getPercentile(values, 99));
+        assertEquals(7, StartLatencyReport.getPercentile(List.of(7L), 50));
+        assertEquals(3, StartLatencyReport.getPercentile(List.of(1L, 2L, 3L), 99));
+    }
+}